@@ -0,0 +1,172 @@
+package replicatorg.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Builds the synthetic G-code files the benchmarks run against.
+ *
+ * A corpus file is made by taking one of the G-code files in examples/ and
+ * repeating its layers, shifted up in Z each time, until the requested line
+ * count is reached. The start code is kept once at the top and the end code
+ * once at the bottom, so the result looks like one very tall print. Files are
+ * cached in build/bench and only regenerated when missing.
+ */
+public class BenchCorpus {
+	/** Single extruder print from examples/single */
+	public static final String SINGLE = "examples/single/penny_bottle_opener.gcode";
+	/** Dual extruder print from examples/dual */
+	public static final String DUAL = "examples/dual/replicator_calibration_check.gcode";
+
+	/** The machine whose model we run the parser against */
+	public static final String MACHINE = "Replicator 2X (Sailfish)";
+
+	private static final String LAYER_START = "(<layer>";
+	private static final String LAYER_END = "(</layer>";
+
+	private BenchCorpus() {
+	}
+
+	/**
+	 * Get (and generate if needed) a corpus file of the given size.
+	 * @param example the example file to build from, relative to the working directory
+	 * @param lines approximate number of lines wanted
+	 */
+	public static synchronized File get(String example, int lines) throws IOException {
+		File template = new File(example);
+		String name = template.getName().replaceAll("\\.gcode$", "") + "-" + lines + ".gcode";
+		File corpus = new File(new File("build", "bench"), name);
+		if (!corpus.exists()) {
+			corpus.getParentFile().mkdirs();
+			generate(template, lines, corpus);
+		}
+		return corpus;
+	}
+
+	/**
+	 * Read a corpus file into memory, one string per line.
+	 */
+	public static List<String> read(File corpus) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(corpus));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Load the machine model for the given machine name from machines/.
+	 */
+	public static MachineModel loadModel(String machineName) {
+		Node node = MachineFactory.getMachineNode(machineName);
+		if (node == null)
+			throw new IllegalStateException("No machine named '" + machineName
+					+ "'; run the benchmarks from the ReplicatorG directory.");
+		MachineModel model = new MachineModel();
+		model.loadXML(node);
+		return model;
+	}
+
+	static void generate(File template, int lines, File corpus) throws IOException {
+		List<String> source = read(template);
+
+		// Split the template into start code, layers and end code. The end code
+		// starts at the "End.gcode" banner, or after the last closing layer tag.
+		int firstLayer = -1;
+		int endCode = -1;
+		for (int i = 0; i < source.size(); i++) {
+			String line = source.get(i);
+			if (firstLayer < 0) {
+				if (line.startsWith(LAYER_START))
+					firstLayer = i;
+			} else if (line.startsWith(LAYER_END)) {
+				endCode = i + 1;
+			} else if (line.startsWith("(*") && line.toLowerCase().contains("end.gcode")) {
+				endCode = i;
+				break;
+			}
+		}
+		if (firstLayer < 0)
+			throw new IOException("No layers found in " + template);
+		if (endCode < 0)
+			endCode = source.size();
+
+		List<String> start = source.subList(0, firstLayer);
+		List<String> body = source.subList(firstLayer, endCode);
+		List<String> end = source.subList(endCode, source.size());
+		double height = bodyHeight(body);
+
+		BufferedWriter out = new BufferedWriter(new FileWriter(corpus));
+		try {
+			int written = 0;
+			for (String line : start) {
+				out.write(line);
+				out.write('\n');
+				written++;
+			}
+			double offset = 0;
+			int target = lines - end.size();
+			while (written < target) {
+				for (String line : body) {
+					out.write(offset == 0 ? line : shiftZ(line, offset));
+					out.write('\n');
+					written++;
+				}
+				offset += height;
+			}
+			for (String line : end) {
+				out.write(line);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// Highest Z reached by the layers, so that repetitions stack on top of each other
+	private static double bodyHeight(List<String> body) {
+		GCodeCommand gcode = new GCodeCommand();
+		double max = 0;
+		for (String line : body) {
+			gcode.parse(line);
+			if (gcode.hasCode('G') && gcode.hasCode('Z'))
+				max = Math.max(max, gcode.getCodeValue('Z'));
+		}
+		return max;
+	}
+
+	// Rewrite the Z word of a move, leaving everything else (comments included) alone
+	private static String shiftZ(String line, double offset) {
+		if (!line.startsWith("G"))
+			return line;
+		int z = line.indexOf(" Z");
+		int comment = line.indexOf('(');
+		if (z < 0 || (comment >= 0 && comment < z))
+			return line;
+		int end = z + 2;
+		while (end < line.length() && "0123456789.+-".indexOf(line.charAt(end)) >= 0)
+			end++;
+		if (end == z + 2)
+			return line;
+		double value = Double.parseDouble(line.substring(z + 2, end)) + offset;
+		return line.substring(0, z + 2) + String.format(Locale.US, "%.3f", value) + line.substring(end);
+	}
+}
@@ -0,0 +1,73 @@
+package replicatorg.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import replicatorg.app.gcode.DualStrusionConstruction;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.MachineType;
+
+/**
+ * Whole-file cost of merging two single-extruder files into a dualstrusion
+ * file, from reading both inputs to the final progress-annotated result,
+ * either in memory or written to a file.
+ * Wipes are disabled, since they need a live machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g" })
+public class DualStrusionBenchmark {
+
+	@Param({ "1000000" })
+	public int lines;
+
+	private File left;
+	private File right;
+	private MutableGCodeSource start;
+	private MutableGCodeSource end;
+	private File out;
+
+	@Setup
+	public void load() throws IOException {
+		// merging needs closing layer tags, which only the single example has
+		left = BenchCorpus.get(BenchCorpus.SINGLE, lines);
+		right = left;
+		start = new MutableGCodeSource(new File("machines/replicator2/Dual_Head_start.gcode"));
+		end = new MutableGCodeSource(new File("machines/replicator2/Dual_Head_end.gcode"));
+		out = File.createTempFile("dualstrusion", ".gcode");
+		out.deleteOnExit();
+	}
+
+	@Benchmark
+	public MutableGCodeSource combine() {
+		DualStrusionConstruction dcs = new DualStrusionConstruction(left, right,
+				start, end, MachineType.REPLICATOR_2, false);
+		dcs.combine();
+		return dcs.getCombinedFile();
+	}
+
+	/** The streaming path the dualstrusion window uses, straight to a file. */
+	@Benchmark
+	public File combineToFile() throws IOException {
+		DualStrusionConstruction dcs = new DualStrusionConstruction(left, right,
+				start, end, MachineType.REPLICATOR_2, false);
+		dcs.combine(out);
+		return out;
+	}
+}
@@ -0,0 +1,89 @@
+package replicatorg.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.model.ArenaGCodeSource;
+
+/**
+ * Per-line cost of tokenizing G-code with GCodeCommand, both allocating a
+ * new command per line and re-using a single one the way the parser does,
+ * and parsing lines straight out of an ArenaGCodeSource.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GCodeCommandBenchmark {
+
+	@Param({ BenchCorpus.SINGLE, BenchCorpus.DUAL })
+	public String example;
+
+	@Param({ "2000000" })
+	public int lines;
+
+	private String[] source;
+	private ArenaGCodeSource arena;
+	private int next;
+	private final GCodeCommand reused = new GCodeCommand();
+
+	@Setup
+	public void load() throws IOException {
+		List<String> list = BenchCorpus.read(BenchCorpus.get(example, lines));
+		source = list.toArray(new String[list.size()]);
+		arena = new ArenaGCodeSource(BenchCorpus.get(example, lines));
+		next = 0;
+	}
+
+	private String nextLine() {
+		String line = source[next++];
+		if (next == source.length)
+			next = 0;
+		return line;
+	}
+
+	private static void consume(GCodeCommand gcode, Blackhole bh) {
+		bh.consume(gcode.hasCode('G'));
+		bh.consume(gcode.getCodeValue('X'));
+		bh.consume(gcode.getCodeValue('Y'));
+		bh.consume(gcode.getCodeValue('Z'));
+		bh.consume(gcode.getCodeValue('E'));
+		bh.consume(gcode.getCodeValue('F'));
+	}
+
+	@Benchmark
+	public void parseNew(Blackhole bh) {
+		consume(new GCodeCommand(nextLine()), bh);
+	}
+
+	@Benchmark
+	public void parseReused(Blackhole bh) {
+		consume(reused.parse(nextLine()), bh);
+	}
+
+	@Benchmark
+	public void parseArena(Blackhole bh) {
+		CharSequence line = arena.getCharSequence(next++);
+		if (next == arena.getLineCount())
+			next = 0;
+		consume(reused.parse(line), bh);
+	}
+
+	@Benchmark
+	public void parseWithComment(Blackhole bh) {
+		GCodeCommand gcode = reused.parse(nextLine());
+		consume(gcode, bh);
+		bh.consume(gcode.getComment());
+	}
+}
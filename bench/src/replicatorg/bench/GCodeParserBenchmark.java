@@ -0,0 +1,96 @@
+package replicatorg.bench;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.VirtualPrinter;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Whole-file cost of running G-code through GCodeParser and into a driver,
+ * the same way Machine.estimate() and the Direct builder do. One invocation
+ * processes the complete corpus file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class GCodeParserBenchmark {
+
+	@Param({ BenchCorpus.SINGLE })
+	public String example;
+
+	@Param({ "2000000" })
+	public int lines;
+
+	/** "estimation" for EstimationDriver, "virtual" for VirtualPrinter */
+	@Param({ "estimation", "virtual" })
+	public String driver;
+
+	private MutableGCodeSource source;
+	private MachineModel model;
+
+	@Setup
+	public void load() throws IOException {
+		source = new MutableGCodeSource(BenchCorpus.get(example, lines));
+		model = BenchCorpus.loadModel(BenchCorpus.MACHINE);
+	}
+
+	private Driver newDriver() {
+		if ("virtual".equals(driver)) {
+			VirtualPrinter printer = new VirtualPrinter();
+			printer.setMachine(model);
+			return printer;
+		}
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(model);
+		return estimator;
+	}
+
+	@Benchmark
+	public Driver parse() {
+		Driver target = newDriver();
+		GCodeParser parser = new GCodeParser();
+		parser.init((DriverQueryInterface) target);
+
+		Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+		for (String line : source) {
+			parser.parse(line, queue);
+			for (DriverCommand command : queue) {
+				try {
+					command.run(target);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// Ignore.
+				}
+			}
+			queue.clear();
+		}
+		return target;
+	}
+}
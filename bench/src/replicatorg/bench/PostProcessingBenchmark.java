@@ -0,0 +1,87 @@
+package replicatorg.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.ToolheadAlias;
+
+/**
+ * Whole-file cost of the MutableGCodeSource post-processing passes that run
+ * after slicing, one at a time and fused into a single GCodePipeline pass.
+ * Each invocation works on a fresh copy of the corpus; making the copy is not
+ * part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class PostProcessingBenchmark {
+
+	@Param({ BenchCorpus.SINGLE })
+	public String example;
+
+	@Param({ "2000000" })
+	public int lines;
+
+	private MutableGCodeSource original;
+	private MutableGCodeSource source;
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		original = new MutableGCodeSource(BenchCorpus.get(example, lines));
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		source = new MutableGCodeSource(original.asList());
+	}
+
+	@Benchmark
+	public MutableGCodeSource addProgressUpdates() {
+		source.addProgressUpdates();
+		return source;
+	}
+
+	@Benchmark
+	public MutableGCodeSource changeToolhead() {
+		source.changeToolhead(ToolheadAlias.LEFT);
+		return source;
+	}
+
+	@Benchmark
+	public MutableGCodeSource swapAndProgressAsPasses() {
+		source.changeToolhead(ToolheadAlias.LEFT);
+		source.addProgressUpdates();
+		return source;
+	}
+
+	@Benchmark
+	public MutableGCodeSource swapAndProgressFused() {
+		source.transform(GCodePipeline.changeToolhead(ToolheadAlias.LEFT),
+				GCodePipeline.progressUpdates(source.getLineCount()));
+		return source;
+	}
+
+	@Benchmark
+	public MutableGCodeSource coolUnusedToolhead() {
+		source.coolUnusedToolhead();
+		return source;
+	}
+}
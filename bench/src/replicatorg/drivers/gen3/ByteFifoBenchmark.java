@@ -0,0 +1,54 @@
+package replicatorg.drivers.gen3;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.app.util.serial.ByteFifo;
+import replicatorg.drivers.gen3.PacketProcessor.PacketException;
+
+/**
+ * Cost of taking an s3g response out of the serial read buffer: a byte at a
+ * time, the way Serial.read() is used, against handing the decoder blocks
+ * straight from the buffer, the way Serial.readFrame() does it. Only the
+ * buffer and decoding work is measured, not the thread wake-ups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ByteFifoBenchmark {
+
+	private final ByteFifo fifo = new ByteFifo();
+	private byte[] reply;
+
+	@Setup
+	public void prepare() {
+		// A GET_BUFFER_SIZE reply
+		PacketBuilder pb = new PacketBuilder(0x81);
+		pb.add32(512);
+		reply = pb.getPacket();
+	}
+
+	@Benchmark
+	public PacketResponse perByte() throws PacketException {
+		fifo.enqueue(reply, 0, reply.length);
+		PacketProcessor pp = new PacketProcessor();
+		while (!pp.processByte(fifo.dequeue()))
+			;
+		return pp.getResponse();
+	}
+
+	@Benchmark
+	public PacketResponse block() throws PacketException {
+		fifo.enqueue(reply, 0, reply.length);
+		PacketProcessor pp = new PacketProcessor();
+		fifo.feed(pp);
+		return pp.getResponse();
+	}
+}
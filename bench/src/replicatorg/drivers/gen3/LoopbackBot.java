@@ -0,0 +1,150 @@
+package replicatorg.drivers.gen3;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for a bot at the other end of a serial line, so PacketPipeline
+ * can be exercised and measured without hardware.
+ *
+ * Packets take time on the wire in both directions, according to the baud
+ * rate, and the firmware takes a fixed time to get round to each packet once
+ * it has arrived. Action commands go into a command buffer of limited size,
+ * which drains at a fixed rate as if the commands were being executed; when
+ * it's full the bot answers BUFFER_OVERFLOW. GET_BUFFER_SIZE reports the
+ * room left; every other query is just answered OK. The bot holds a limited number
+ * of received packets it hasn't answered yet; anything sent beyond that is
+ * lost, the way bytes are lost when a UART overruns.
+ */
+class LoopbackBot implements PacketPipeline.Link {
+	private static class Arrival {
+		final byte[] packet;
+		final long at;
+
+		Arrival(byte[] packet, long at) {
+			this.packet = packet;
+			this.at = at;
+		}
+	}
+
+	private final long byteNanos;
+	private final long latencyNanos;
+	private final int bufferBytes;
+	private final double drainBytesPerNano;
+	private final int readTimeoutMillis;
+
+	private final BlockingQueue<Arrival> received;
+	private final BlockingQueue<Byte> replies = new LinkedBlockingQueue<Byte>();
+	// when the last packet written finishes arriving
+	private long wireFree = 0;
+
+	// firmware state, only touched by the firmware thread
+	private double buffered = 0;
+	private long lastDrain = System.nanoTime();
+
+	final AtomicInteger accepted = new AtomicInteger();
+	final AtomicInteger rejected = new AtomicInteger();
+	final AtomicInteger dropped = new AtomicInteger();
+
+	private final Thread firmware;
+
+	/**
+	 * @param baud serial line speed, in bits per second
+	 * @param latencyMicros time the firmware takes to handle each packet
+	 * @param rxPackets how many packets the bot can hold before answering them
+	 * @param bufferBytes size of the command buffer
+	 * @param drainBytesPerSecond how fast the command buffer empties
+	 */
+	LoopbackBot(int baud, long latencyMicros, int rxPackets, int bufferBytes, double drainBytesPerSecond) {
+		// 8 data bits, a start and a stop bit
+		byteNanos = 10L * 1000000000L / baud;
+		latencyNanos = latencyMicros * 1000L;
+		this.bufferBytes = bufferBytes;
+		drainBytesPerNano = drainBytesPerSecond / 1e9;
+		readTimeoutMillis = 500;
+		received = new ArrayBlockingQueue<Arrival>(Math.max(1, rxPackets));
+
+		firmware = new Thread("loopback firmware") {
+			public void run() {
+				try {
+					while (true)
+						handle(received.take());
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		};
+		firmware.setDaemon(true);
+		firmware.start();
+	}
+
+	void close() {
+		firmware.interrupt();
+	}
+
+	public void write(byte[] packet) {
+		long at;
+		synchronized (this) {
+			wireFree = Math.max(System.nanoTime(), wireFree) + packet.length * byteNanos;
+			at = wireFree;
+		}
+		if (!received.offer(new Arrival(packet.clone(), at)))
+			dropped.incrementAndGet();
+	}
+
+	public int read() {
+		try {
+			Byte b = replies.poll(readTimeoutMillis, TimeUnit.MILLISECONDS);
+			return b == null ? -1 : (b & 0xff);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+
+	public void clear() {
+		replies.clear();
+	}
+
+	private void handle(Arrival arrival) {
+		sleepUntil(arrival.at + latencyNanos);
+
+		long now = System.nanoTime();
+		buffered = Math.max(0, buffered - (now - lastDrain) * drainBytesPerNano);
+		lastDrain = now;
+
+		byte[] packet = arrival.packet;
+		int payloadLength = packet[1] & 0xff;
+		PacketBuilder reply;
+		if (packet[2] == MotherboardCommandCode.GET_BUFFER_SIZE.getCode()) {
+			reply = new PacketBuilder(0x81);
+			reply.add32((int) (bufferBytes - buffered));
+		} else if ((packet[2] & 0x80) == 0) {
+			// other queries: answer OK, with a byte of data for the ones that want one
+			reply = new PacketBuilder(0x81);
+			reply.add8(1);
+		} else if (buffered + payloadLength > bufferBytes) {
+			reply = new PacketBuilder(0x82);
+			rejected.incrementAndGet();
+		} else {
+			buffered += payloadLength;
+			reply = new PacketBuilder(0x81);
+			accepted.incrementAndGet();
+		}
+
+		byte[] bytes = reply.getPacket();
+		sleepUntil(System.nanoTime() + bytes.length * byteNanos);
+		for (byte b : bytes)
+			replies.add(b);
+	}
+
+	private static void sleepUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+}
@@ -0,0 +1,111 @@
+package replicatorg.drivers.gen3;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+import replicatorg.drivers.gen3.PacketProcessor.PacketException;
+import replicatorg.drivers.gen3.PacketProcessor.PacketNoiseException;
+
+/**
+ * Per-packet cost of encoding and decoding s3g packets, with fresh objects
+ * per packet and with the re-usable builder and processor. Lives in the
+ * driver package because PacketBuilder is package private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PacketBenchmark {
+
+	private byte[] movePacket;
+	private byte[] okPacket;
+	private int step;
+	private final PacketProcessor processor = new PacketProcessor();
+
+	@Setup
+	public void prepare() {
+		movePacket = encodeMove(1);
+
+		// A typical reply to a queued move: OK and nothing else
+		PacketBuilder pb = new PacketBuilder(0x81);
+		okPacket = pb.getPacket();
+	}
+
+	// The packet Makerbot4GAlternateDriver.queueNewExtPoint() sends for every move
+	private byte[] encodeMove(int n) {
+		return fillMove(new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode()), n).getPacket();
+	}
+
+	private static PacketBuilder fillMove(PacketBuilder pb, int n) {
+		pb.add32(1200 + n);
+		pb.add32(-3400 - n);
+		pb.add32(250);
+		pb.add32(n * 7);
+		pb.add32(0);
+		pb.add32(3200);
+		pb.add8(0x18);
+		pb.addFloat(4.2f + n);
+		pb.add16((int) (40.0f * 64.0));
+		return pb;
+	}
+
+	private static PacketResponse decode(byte[] packet) throws CRCException, PacketNoiseException {
+		PacketProcessor pp = new PacketProcessor();
+		for (int i = 0; i < packet.length; i++) {
+			if (pp.processByte(packet[i]))
+				return pp.getResponse();
+		}
+		throw new IllegalStateException("Incomplete packet");
+	}
+
+	@Benchmark
+	public byte[] encodeMove() {
+		return encodeMove(step++ & 0xff);
+	}
+
+	@Benchmark
+	public byte[] encodeMoveReused() {
+		PacketBuilder pb = PacketBuilder.reusable(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
+		return fillMove(pb, step++ & 0xff).getSharedPacket();
+	}
+
+	@Benchmark
+	public PacketResponse decodeMove() throws CRCException, PacketNoiseException {
+		return decode(movePacket);
+	}
+
+	@Benchmark
+	public PacketResponse decodeOk() throws CRCException, PacketNoiseException {
+		return decode(okPacket);
+	}
+
+	@Benchmark
+	public int decodeMoveReused() throws PacketException {
+		processor.reset();
+		processor.decode(movePacket, 0, movePacket.length);
+		return processor.getPayloadBuffer().limit();
+	}
+
+	@Benchmark
+	public PacketResponse decodeOkReused() throws PacketException {
+		processor.reset();
+		processor.decode(okPacket, 0, okPacket.length);
+		return processor.getResponse();
+	}
+
+	@Benchmark
+	public byte crcMove() {
+		IButtonCrc crc = new IButtonCrc();
+		for (int i = 2; i < movePacket.length - 1; i++)
+			crc.update(movePacket[i]);
+		return crc.getCrc();
+	}
+}
@@ -0,0 +1,80 @@
+package replicatorg.drivers.gen3;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandType;
+
+/**
+ * Moves per second through a PacketPipeline talking to a LoopbackBot at
+ * 115200 baud. A window of 1 is the stop-and-wait sender; the bot's command
+ * buffer drains fast enough that the link, not the bot, is the limit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PacketPipelineBenchmark {
+
+	@Param({ "1", "2", "4", "8" })
+	public int window;
+
+	@Param({ "500" })
+	public int latencyMicros;
+
+	private LoopbackBot bot;
+	private PacketPipeline pipeline;
+	private byte[] move;
+
+	@Setup
+	public void connect() {
+		bot = new LoopbackBot(115200, latencyMicros, window, 512, 1e6);
+		pipeline = new PacketPipeline(bot, null, window);
+
+		// The packet Makerbot4GAlternateDriver.queueNewExtPoint() sends for every move
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
+		pb.add32(1200);
+		pb.add32(-3400);
+		pb.add32(250);
+		pb.add32(7);
+		pb.add32(0);
+		pb.add32(3200);
+		pb.add8(0x18);
+		pb.addFloat(4.2f);
+		pb.add16((int) (40.0f * 64.0));
+		move = pb.getPacket();
+	}
+
+	@TearDown
+	public void disconnect() {
+		pipeline.drain();
+		pipeline.close();
+		bot.close();
+	}
+
+	@Benchmark
+	public PacketResponse queueMove() {
+		// Retry on back-pressure, as Direct does
+		while (true) {
+			try {
+				return pipeline.send(move, Sanguino3GDriver.DEFAULT_RETRIES, CommandType.COMMAND, true);
+			} catch (RetryException e) {
+			}
+		}
+	}
+}
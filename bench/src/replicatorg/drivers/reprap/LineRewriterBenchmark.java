@@ -0,0 +1,82 @@
+package replicatorg.drivers.reprap;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.bench.BenchCorpus;
+
+/**
+ * Lines per second turned into what RepRap5DDriver sends: through clean(),
+ * fix() and applyNandChecksum(), against LineRewriter. That both give the
+ * same lines is checked by LineRewriterTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LineRewriterBenchmark {
+
+	@Param({ BenchCorpus.SINGLE, BenchCorpus.DUAL })
+	public String example;
+
+	@Param({ "1000000" })
+	public int lines;
+
+	@Param({ "false", "true" })
+	public boolean realtime;
+
+	private String[] source;
+	private int next;
+	private RepRap5DDriver driver;
+	private final LineRewriter rewriter = new LineRewriter();
+	private final AtomicInteger lineNumber = new AtomicInteger(-1);
+
+	@Setup
+	public void load() throws IOException {
+		List<String> list = BenchCorpus.read(BenchCorpus.get(example, lines));
+		source = list.toArray(new String[list.size()]);
+		next = 0;
+
+		driver = new RepRap5DDriver();
+		driver.enableRealtimeControl(realtime);
+		driver.setFeedrateMultiplier(1.2);
+		driver.setTravelFeedrateMultiplier(1.5);
+	}
+
+	private String nextLine() {
+		String line = source[next++];
+		if (next == source.length)
+			next = 0;
+		return line;
+	}
+
+	private String regex(String line) {
+		String s = driver.fix(driver.clean(line));
+		return s.length() == 0 ? s : driver.applyNandChecksum(s);
+	}
+
+	private String rewrite(String line) {
+		return rewriter.rewrite(line, realtime, driver.getFeedrateMultiplier(),
+				driver.getTravelFeedrateMultiplier(), driver.getFeedrateLimit(), lineNumber);
+	}
+
+	@Benchmark
+	public String regex() {
+		return regex(nextLine());
+	}
+
+	@Benchmark
+	public String rewriter() {
+		return rewrite(nextLine());
+	}
+}
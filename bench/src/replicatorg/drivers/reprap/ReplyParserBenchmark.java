@@ -0,0 +1,167 @@
+package replicatorg.drivers.reprap;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import replicatorg.app.util.serial.ByteFifo;
+
+/**
+ * Replies per second read out of the serial read buffer: a line at a time
+ * into a lower-cased String picked apart with regular expressions, the way
+ * RepRap5DDriver used to, against ReplyParser. The replies are the recorded
+ * Marlin, Sprinter, Teacup and Ultimaker ones in bench/replies/reprap.txt,
+ * with CR LF endings on every other one.
+ *
+ * That ReplyParser reads every reply the way the old code did is checked by
+ * ReplyParserTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplyParserBenchmark {
+
+	public static final String REPLIES = "bench/replies/reprap.txt";
+
+	private byte[][] replies;
+	private int next;
+	private final ByteFifo fifo = new ByteFifo();
+	private final ReplyParser parser = new ReplyParser();
+
+	@Setup
+	public void load() throws IOException {
+		List<byte[]> list = new ArrayList<byte[]>();
+		BufferedReader in = new BufferedReader(new FileReader(REPLIES));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#"))
+					continue;
+				String ending = (list.size() % 2 == 0) ? "\n" : "\r\n";
+				list.add((line + ending).getBytes("US-ASCII"));
+			}
+		} finally {
+			in.close();
+		}
+		replies = list.toArray(new byte[list.size()][]);
+		next = 0;
+	}
+
+	private byte[] nextReply() {
+		byte[] reply = replies[next++];
+		if (next == replies.length)
+			next = 0;
+		return reply;
+	}
+
+	// What is read from a reply
+	private static class Reading {
+		String reply;
+		double t = Double.NaN, b = Double.NaN;
+		double[] c;
+		int n = -1;
+		char dud;
+
+		Reading(String reply) {
+			this.reply = reply;
+		}
+	}
+
+	// The way RepRap5DDriver.serialByteReceivedEvent() used to read a reply
+	private static Reading regex(byte[] reply) throws IOException {
+		String line = new String(reply, 0, reply.length, "US-ASCII").trim().toLowerCase();
+		Reading r;
+		if (line.length() == 0)
+			r = new Reading("EMPTY");
+		else if (line.startsWith("ok"))
+			r = new Reading("OK");
+		else if (line.contains("sd") || line.startsWith("marlin"))
+			r = new Reading("OTHER");
+		else if (line.startsWith("echo"))
+			r = new Reading("ECHO");
+		else if (line.contains("firmware_name") || line.startsWith("x:"))
+			r = new Reading("OTHER");
+		else if (line.contains("start"))
+			r = new Reading("START");
+		else if (line.startsWith("extruder fail"))
+			r = new Reading("OTHER");
+		else if (line.startsWith("resend") || line.startsWith("rs "))
+			r = new Reading("RESEND");
+		else if (line.startsWith("t:"))
+			r = new Reading("TEMPERATURE");
+		else if (line.startsWith("c:"))
+			r = new Reading("POSITION");
+		else
+			r = new Reading("OTHER");
+
+		// A number the old code couldn't read threw NumberFormatException; here it's left out
+		if (line.startsWith("ok t:") || line.startsWith("t:")) {
+			Matcher m = Pattern.compile("t:([0-9\\.]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.t = Double.parseDouble(m.group(1));
+				} catch (NumberFormatException e) {
+				}
+			}
+			m = Pattern.compile("^ok.*b:([0-9\\.]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.b = Double.parseDouble(m.group(1));
+				} catch (NumberFormatException e) {
+				}
+			}
+		} else if (line.startsWith("ok c:") || line.startsWith("c:")) {
+			Matcher m = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.c = new double[] { Double.parseDouble(m.group(1)),
+							Double.parseDouble(m.group(2)), Double.parseDouble(m.group(3)) };
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		if (r.reply.equals("RESEND")) {
+			Matcher m = Pattern.compile("([0-9]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.n = Integer.parseInt(m.group(1));
+				} catch (NumberFormatException e) {
+				}
+			}
+			m = Pattern.compile("dud ([a-z]) code").matcher(line);
+			if (m.find())
+				r.dud = m.group(1).charAt(0);
+		}
+		return r;
+	}
+
+	@Benchmark
+	public Object regex() throws IOException {
+		byte[] reply = nextReply();
+		fifo.enqueue(reply, 0, reply.length);
+		return regex(fifo.dequeueLine());
+	}
+
+	@Benchmark
+	public ReplyParser.Reply parser() {
+		byte[] reply = nextReply();
+		fifo.enqueue(reply, 0, reply.length);
+		fifo.feed(parser);
+		ReplyParser.Reply r = parser.getReply();
+		parser.reset();
+		return r;
+	}
+}
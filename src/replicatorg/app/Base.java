@@ -75,6 +75,7 @@ import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
+import replicatorg.app.metrics.Metrics;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.app.ui.NotificationHandler;
 import replicatorg.drivers.DriverQueryInterface;
@@ -348,7 +349,7 @@ public class Base {
 	 * when generating gcode (minimum one decimal places) using . as decimal separator
 	 */
 	static private NumberFormat gcodeNF;
-	{
+	static {
 		// We don't use DFS.getInstance here to maintain compatibility with Java 5
         DecimalFormatSymbols dfs;
  	 	gcodeNF = new DecimalFormat("##0.0##");
@@ -603,6 +604,8 @@ public class Base {
 		if (cleanPrefs) {
 			resetPreferences();
 		}
+
+		Metrics.startLogging();
 		
 		// set the look and feel before opening the window
 		try {
@@ -0,0 +1,123 @@
+package replicatorg.app.gcode;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Breaks a G2/G3 arc into straight segments, one point at a time.
+ *
+ * If the machine gives an arc tolerance, the segments are made as long as
+ * they can be while staying within that distance of the arc, so a tight arc
+ * gets only a few segments and a wide one gets enough. Otherwise segments are
+ * a fixed length, the "arc resolution" preference.
+ *
+ * The points aren't worked out until they are asked for. Each one is the last
+ * turned about the center by the same small angle, so there's no trig per
+ * point. Z and the extruder axes (A and B) move evenly from the start to the
+ * end over the arc, so helical and 5D arcs come out right; the last point is
+ * always exactly the end point.
+ */
+final class ArcExpander implements Iterator<Point5d> {
+	// Never turn more than this (in radians) in one segment, however loose the tolerance
+	private static final double MAX_SEGMENT_ANGLE = 1 / 2.4;
+
+	private final Point5d start;
+	private final Point5d end;
+	private final double centerX;
+	private final double centerY;
+	private final int steps;
+
+	// Turns the radius by one segment
+	private final double cos;
+	private final double sin;
+
+	// From the center to the last point
+	private double radiusX;
+	private double radiusY;
+	private int step = 0;
+
+	/**
+	 * @param start where the arc starts
+	 * @param center the center of the arc; only X and Y are used
+	 * @param end where the arc ends
+	 * @param clockwise true for G2, false for G3
+	 * @param tolerance how far a segment may stray from the arc, in mm, or 0 to use fixed length segments
+	 * @param segmentLength the length of a segment, in mm, if there's no tolerance
+	 */
+	ArcExpander(Point5d start, Point5d center, Point5d end, boolean clockwise,
+			double tolerance, double segmentLength) {
+		this.start = new Point5d(start);
+		this.end = new Point5d(end);
+		centerX = center.x();
+		centerY = center.y();
+		radiusX = start.x() - centerX;
+		radiusY = start.y() - centerY;
+
+		double startAngle = Math.atan2(radiusY, radiusX);
+		double endAngle = Math.atan2(end.y() - centerY, end.x() - centerX);
+		double angle = clockwise ? startAngle - endAngle : endAngle - startAngle;
+		// a zero angle is a complete circle
+		if (angle <= 0)
+			angle += 2 * Math.PI;
+
+		double radius = Math.sqrt(radiusX * radiusX + radiusY * radiusY);
+		steps = segments(radius, angle, tolerance, segmentLength);
+
+		double stepAngle = angle / steps;
+		cos = Math.cos(stepAngle);
+		sin = clockwise ? -Math.sin(stepAngle) : Math.sin(stepAngle);
+	}
+
+	/**
+	 * How many segments an arc is broken into.
+	 * @param radius the radius of the arc, in mm
+	 * @param angle how far round the arc goes, in radians
+	 */
+	static int segments(double radius, double angle, double tolerance, double segmentLength) {
+		double segmentAngle = MAX_SEGMENT_ANGLE;
+		if (tolerance > 0) {
+			// A chord turning through t is radius * (1 - cos(t/2)) from the arc at most
+			if (tolerance < radius)
+				segmentAngle = Math.min(segmentAngle, 2 * Math.acos(1 - tolerance / radius));
+		} else if (segmentLength > 0 && radius > 0) {
+			segmentAngle = Math.min(segmentAngle, segmentLength / radius);
+		}
+		return Math.max(1, (int) Math.ceil(angle / segmentAngle));
+	}
+
+	/** @return how many points the arc is broken into */
+	int getSteps() {
+		return steps;
+	}
+
+	public boolean hasNext() {
+		return step < steps;
+	}
+
+	public Point5d next() {
+		if (step >= steps)
+			throw new NoSuchElementException();
+		step++;
+		if (step == steps)
+			return new Point5d(end);
+
+		double x = radiusX * cos - radiusY * sin;
+		radiusY = radiusX * sin + radiusY * cos;
+		radiusX = x;
+
+		double fraction = (double) step / steps;
+		Point5d point = new Point5d(start);
+		point.setX(centerX + radiusX);
+		point.setY(centerY + radiusY);
+		point.setZ(start.z() + (end.z() - start.z()) * fraction);
+		point.setA(start.a() + (end.a() - start.a()) * fraction);
+		point.setB(start.b() + (end.b() - start.b()) * fraction);
+		return point;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -1,12 +1,18 @@
 package replicatorg.app.gcode;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
@@ -23,6 +29,10 @@ import replicatorg.util.Point5d;
 /**
  * This class takes two existing gcode files and merges them into a single gcode that can be run on a dualstrusion printer
  * 
+ * Neither file is ever loaded whole. Both are scanned at once, each on its own thread, for where
+ * their layers are and what a toolchange into or out of each layer needs to know; the merge is
+ * worked out from that, and then the layers are copied from the files into the output in order.
+ * 
  * TODO:
  * some small changes to try, see what they do to the print:
  *   tiny hops (~1mm)
@@ -82,39 +92,116 @@ public class DualStrusionConstruction
 	 * This method handles shuffling together two gcodes, it first executes
 	 * preprocessing and then hands the gcodes off to Layer_Helper
 	 * 
+	 * The result is kept in memory for getCombinedFile(); use combine(File)
+	 * to write it straight to a file instead.
 	 */
 	public void combine()
 	{
-		MutableGCodeSource left, right;
-
-		// load our layers into something we can use 
-		left = new MutableGCodeSource(leftFile);
-		right = new MutableGCodeSource(rightFile);
-
-		// remove  some tags we don't want/get 
-		SkeinforgePostProcessor.stripNonLayerTagComments(left);
-		SkeinforgePostProcessor.stripNonLayerTagComments(right);
+		result = new MutableGCodeSource();
+		try {
+			combine(result);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not combine " + leftFile + " and " + rightFile, e);
+		}
+	}
 
-		// load our layers into something we can *really* use
-		LinkedList<Layer> leftLayers = parseLayers(left);
-		LinkedList<Layer> rightLayers = parseLayers(right);
+	/**
+	 * Shuffles the two gcodes together, writing the result to a file as it goes.
+	 * The file may be one of the inputs, in which case it is replaced once
+	 * the combined gcode has been written, as GCodePipeline.run() does it.
+	 * @param dest the file to write
+	 */
+	public void combine(File dest) throws IOException
+	{
+		File target = dest;
+		File canonical = dest.getCanonicalFile();
+		if (canonical.equals(leftFile.getCanonicalFile()) || canonical.equals(rightFile.getCanonicalFile())) {
+			dest = File.createTempFile("gcode", ".tmp", dest.getAbsoluteFile().getParentFile());
+		}
+		boolean written = false;
+		try {
+			GCodePipeline.FileSink out = new GCodePipeline.FileSink(dest);
+			try {
+				combine(out);
+			} finally {
+				out.close();
+			}
+			written = true;
+		} finally {
+			if (!written && dest != target) {
+				dest.delete();
+			}
+		}
+		if (dest != target) {
+			// renameTo won't replace an existing file everywhere
+			if (!dest.renameTo(target) && !(target.delete() && dest.renameTo(target))) {
+				throw new IOException("Could not replace " + target.getAbsolutePath());
+			}
+		}
+	}
 
-		// merge our layers into one list
-		final LinkedList<Layer> layers = doMerge(leftLayers, rightLayers);
+	private void combine(GCodePipeline.Sink out) throws IOException
+	{
+		final InputFile left = new InputFile(leftFile);
+		final InputFile right = new InputFile(rightFile);
 
-		// refresh and repopulate our result
-		result = new MutableGCodeSource();
-		for(Layer l : layers) {
-			result.add(l.getCommands());
+		// find our layers, both files at once
+		FutureTask<Void> rightScan = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws IOException {
+				right.parseLayers();
+				return null;
+			}
+		});
+		Thread scanner = new Thread(rightScan, "Dualstrusion layer scan");
+		scanner.setDaemon(true);
+		scanner.start();
+		left.parseLayers();
+		try {
+			rightScan.get();
+		} catch (InterruptedException e) {
+			rightScan.cancel(true);
+			throw new InterruptedIOException("Interrupted scanning " + rightFile);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
 		}
 
-		// add start gcode, updated based on settings
-		SkeinforgePostProcessor.prependAndModifyStartCode(result, startGCode);
-		// add end code
+		// work out the order of our layers, and the toolchanges between them
+		final List<Piece> pieces = doMerge(left.layers, right.layers);
+		int lineCount = 0;
+		for(Piece piece : pieces)
+			lineCount += piece.lineCount();
+
+		// start gcode, updated based on settings
+		final MutableGCodeSource start = SkeinforgePostProcessor.modifyStartCode(startGCode);
+		// end code
+		final MutableGCodeSource end = new MutableGCodeSource();
 		Layer endLayer = new Layer(Double.MAX_VALUE, endGCode.asList());
-		result.add(endLayer.toString());
+		end.add(endLayer.toString());
+		lineCount += start.getLineCount() + end.getLineCount();
+
+		final GCodePipeline pipeline = new GCodePipeline();
+		pipeline.add(GCodePipeline.prepend(start));
+		pipeline.add(GCodePipeline.append(end));
 		// interlace progress updates
-		result.addProgressUpdates();
+		pipeline.add(GCodePipeline.progressUpdates(lineCount));
+
+		// and copy it all out
+		GCodePipeline.Sink head = pipeline.open(out);
+		left.open();
+		try {
+			right.open();
+			try {
+				for(Piece piece : pieces)
+					piece.emit(head);
+			} finally {
+				right.close();
+			}
+		} finally {
+			left.close();
+		}
+		pipeline.finish();
 	}
 	
 //	/**
@@ -220,56 +307,234 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * parseLayers is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
-	 * but uses the same basic method because skeinforge is what it is.
-	 * look for layer tags, break up the file using those tags.
-	 * @param source
-	 * @return
+	 * One piece of the combined file: a layer, or some code that goes between layers.
 	 */
-	private LinkedList<Layer> parseLayers(GCodeSource source)
+	private interface Piece
 	{
-		final LinkedList<Layer> result = new LinkedList<Layer>();
-		String line;
-		
-		for(Iterator<String> it = source.iterator(); it.hasNext();)
+		int lineCount();
+		void emit(GCodePipeline.Sink out) throws IOException;
+	}
+
+	/**
+	 * Code we made up, like a toolchange.
+	 */
+	private static class Code implements Piece
+	{
+		private final List<String> lines;
+
+		Code(List<String> lines)
+		{
+			this.lines = lines;
+		}
+
+		public int lineCount()
+		{
+			return lines.size();
+		}
+
+		public void emit(GCodePipeline.Sink out)
+		{
+			for(String line : lines)
+				out.add(line);
+		}
+	}
+
+	/**
+	 * Where a layer is in one of our files, and what we need to know to change tools
+	 * before or after it.
+	 */
+	private static class LayerInfo implements Piece
+	{
+		final InputFile file;
+		final double height;
+		// line numbers in the file of the layer tag, and of the closing tag
+		final int firstLine;
+		int endLine;
+		// number of lines in the layer, not counting tags we strip
+		int lines = 0;
+
+		// the position of the first G1, if there's one
+		Point5d firstPosition = null;
+		// the last height a G1 moves to, see getLayerZ()
+		Double z = null;
+		// the first and last feedrates, NaN if there are none
+		double firstFeedrate = Double.NaN;
+		double lastFeedrate = Double.NaN;
+
+		LayerInfo(InputFile file, double height, int firstLine)
+		{
+			this.file = file;
+			this.height = height;
+			this.firstLine = firstLine;
+		}
+
+		void add(GCodeCommand gcode)
 		{
-			line = it.next();
-			if(line.startsWith("(<layer>"))
+			lines++;
+			if(gcode.getCodeValue('G') == 1)
 			{
-				// Get the layer height (or whatever SF claims it is)
-				float layerHeight = 0;
-				try
-				{
-					layerHeight = Float.parseFloat(line.split(" ")[1]);
-				}
-				catch(NumberFormatException e)
+				if(firstPosition == null)
 				{
-					Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
-							"please check and make sure all of them are in the format (<layer> 0.00)");
+					firstPosition = new Point5d();
+					firstPosition.setX(gcode.getCodeValue('X'));
+					firstPosition.setY(gcode.getCodeValue('Y'));
+					firstPosition.setZ(gcode.getCodeValue('Z'));
 				}
-				
-				//collect every command up to the end of the layer 
-				final List<String> accumulate = new ArrayList<String>();
-//				String next = it.next(); actually, let's keep the initial layer tag
-				String next = line;
-				while(!next.startsWith("(</layer>)"))
+				if(gcode.hasCode('Z'))
+					z = gcode.getCodeValue('Z');
+			}
+			double feedrate = gcode.getCodeValue('F');
+			if(feedrate != -1)
+			{
+				if(Double.isNaN(firstFeedrate))
+					firstFeedrate = feedrate;
+				lastFeedrate = feedrate;
+			}
+		}
+
+		public double getHeight()
+		{
+			return height;
+		}
+
+		public int lineCount()
+		{
+			return lines;
+		}
+
+		public void emit(GCodePipeline.Sink out) throws IOException
+		{
+			file.copy(this, out);
+		}
+	}
+
+	/**
+	 * removes all lines that are skeinforge tag comments, but not layer tags.
+	 */
+	private static boolean isStripped(String line)
+	{
+		return line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer"));
+	}
+
+	/**
+	 * One of the files we're combining: first scanned for its layers, then read again
+	 * to copy them out.
+	 */
+	private static class InputFile
+	{
+		final File file;
+		final LinkedList<LayerInfo> layers = new LinkedList<LayerInfo>();
+		private BufferedReader reader;
+		private int lineNumber;
+
+		InputFile(File file)
+		{
+			this.file = file;
+		}
+
+		/**
+		 * parseLayers is an improvement on the old parseLayers from Noah, etc. 's dualstrusion,
+		 * but uses the same basic method because skeinforge is what it is.
+		 * look for layer tags, break up the file using those tags.
+		 */
+		void parseLayers() throws IOException
+		{
+			final GCodeCommand gcode = new GCodeCommand();
+			final BufferedReader in = new BufferedReader(new FileReader(file));
+			try
+			{
+				LayerInfo layer = null;
+				int number = 0;
+				for(String line = in.readLine(); line != null; line = in.readLine(), number++)
 				{
-					accumulate.add(next);
-					next = it.next();
+					// remove some tags we don't want/get
+					if(isStripped(line))
+						continue;
+
+					if(layer == null)
+					{
+						if(line.startsWith("(<layer>"))
+						{
+							// Get the layer height (or whatever SF claims it is)
+							float layerHeight = 0;
+							try
+							{
+								layerHeight = Float.parseFloat(line.split(" ")[1]);
+							}
+							catch(NumberFormatException e)
+							{
+								Base.logger.log(Level.SEVERE, "one of your layer heights was unparseable, " +
+										"please check and make sure all of them are in the format (<layer> 0.00)");
+							}
+							// let's keep the initial layer tag
+							layer = new LayerInfo(this, layerHeight, number);
+							layer.add(gcode.parse(line));
+						}
+					}
+					else if(line.startsWith("(</layer>)"))
+					{
+						endLayer(layer, number);
+						layer = null;
+					}
+					else
+					{
+						//collect every command up to the end of the layer
+						layer.add(gcode.parse(line));
+					}
 				}
-				//skip empty layers
-				if(accumulate.size() > 1)
-					result.add(new Layer(layerHeight, accumulate));
+				// a layer left open at the end of the file
+				if(layer != null)
+					endLayer(layer, number);
+			}
+			finally
+			{
+				in.close();
 			}
 		}
 
-		return result;
+		private void endLayer(LayerInfo layer, int endLine)
+		{
+			layer.endLine = endLine;
+			//skip empty layers
+			if(layer.lines > 1)
+				layers.add(layer);
+		}
+
+		void open() throws IOException
+		{
+			reader = new BufferedReader(new FileReader(file));
+			lineNumber = 0;
+		}
+
+		/**
+		 * Copies a layer out. Layers must be copied in the order they're in the file.
+		 */
+		void copy(LayerInfo layer, GCodePipeline.Sink out) throws IOException
+		{
+			String line;
+			while(lineNumber < layer.firstLine && reader.readLine() != null)
+				lineNumber++;
+			while(lineNumber < layer.endLine && (line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				if(!isStripped(line))
+					out.add(line);
+			}
+		}
+
+		void close() throws IOException
+		{
+			if(reader != null)
+				reader.close();
+			reader = null;
+		}
 	}
+
 	/**
 	 * A toolchange is the code that goes in between commands for one head and commands for the other
 	 * this function creates a toolchange from a tool doing one layer to a tool doing another layer
 	 */
-	private Layer toolchange(final ToolheadAlias fromTool, final Layer fromLayer, final ToolheadAlias toTool, final Layer toLayer)
+	private Piece toolchange(final ToolheadAlias fromTool, final LayerInfo fromLayer, final ToolheadAlias toTool, final LayerInfo toLayer)
 	{
 		/*
 		 * How does a toolchange work? Glad you asked:
@@ -327,8 +592,8 @@ public class DualStrusionConstruction
 		result.add("M18 A B");
 		
 		final DecimalFormat nf = (DecimalFormat)Base.getGcodeFormat();
-		final Point5d firstPos = getFirstPosition(toLayer);
-		firstPos.setZ(getLayerZ(toLayer));
+		final Point5d firstPos = toLayer.firstPosition == null ? null : new Point5d(toLayer.firstPosition);
+		firstPos.setZ(toLayer.z);
 		
 		if(firstPos != null)
 		{
@@ -345,99 +610,26 @@ public class DualStrusionConstruction
 		
 		//TODO: catch possible null pointer exceptions?
 		// set the feedrate with an empty G1
-		String feedrate = getFirstFeedrate(toLayer);
+		String feedrate = formatFeedrate(toLayer.firstFeedrate);
 		if(feedrate.equals(""))
-			feedrate = getLastFeedrate(fromLayer);
+			feedrate = formatFeedrate(fromLayer.lastFeedrate);
 		result.add("G1 " + feedrate);
 
 		
 		//debug code///////////////////////////
 		result.add("(*************end toolchange*************)");
 		//////////////////////////////////////
-		// The 'height' of the toolchange. just the average of the surrounding layers because why not?
-		final double height = (toLayer.getHeight() - fromLayer.getHeight())/2;
-		
-		return new Layer(height, result);
-	}
-	/**
-	 * gets the first G1 from a layer, returns the position of X, Y, Z axes
-	 * @param l
-	 * @return
-	 */
-	private Point5d getFirstPosition(final Layer l)
-	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = 0; i < search.size(); i++)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('G') == 1)
-			{
-				Point5d result = new Point5d();
-				result.setX(gcode.getCodeValue('X'));
-				result.setY(gcode.getCodeValue('Y'));
-				result.setZ(gcode.getCodeValue('Z'));
-				return result;
-			}
-		}
-		return null;
-	}
-	
-	/**
-	 * Apparently skeinforge does not have all the moves in a layer at the same height.
-	 * The first one is frequently lower than the following ones, so this function finds
-	 * the last height listed in a layer
-	 * @param l the layer in which to look
-	 * @return the layer height (maybe)
-	 */
-	private Double getLayerZ(final Layer l)
-	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = search.size()-1; i >= 0; i--)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('G') == 1 && gcode.hasCode('Z'))
-			{
-				return gcode.getCodeValue('Z');
-			}
-		}
-		return null;
+		return new Code(result);
 	}
 	
 	/**
-	 * This gets the last feedrate used in a layer 
-	 * @param l
-	 * @return
+	 * Formats a feedrate found by LayerInfo, or returns "" if there wasn't one
 	 */
-	private String getLastFeedrate(final Layer l)
+	private static String formatFeedrate(double feedrate)
 	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = search.size()-1; i >= 0; i--)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('F') != -1)
-				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
-		}
-		return "";
-	}
-	/**
-	 * This gets the first feedrate used in a layer 
-	 * @param l
-	 * @return
-	 */
-	private String getFirstFeedrate(final Layer l)
-	{
-		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
-		for(int i = 0; i < search.size(); i++)
-		{
-			gcode = new GCodeCommand(search.get(i));
-			if(gcode.getCodeValue('F') != -1)
-				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
-		}
-		return "";
+		if(Double.isNaN(feedrate))
+			return "";
+		return "F"+Base.getGcodeFormat().format(feedrate);
 	}
 	
 	/**
@@ -481,7 +673,8 @@ public class DualStrusionConstruction
 		result.add("M108 "+toolWipe.getReverseRPM());
 		result.add("M102");
 		result.add("G04 "+toolWipe.getReverseDuration());
-		result.add("M103");		
+		result.add("M103");
+		
 		// wait for leak
 		result.add("G04 " + toolWipe.getWait());
 		
@@ -495,12 +688,12 @@ public class DualStrusionConstruction
 	}
 	
 	/**
-	 * This will consume two LinkedLists of Layers and return a combined List of Layers
+	 * This will consume two LinkedLists of Layers and return a combined List of Pieces
 	 * representing a dualstrusion print, with all the appropriate toolchanges inserted. 
 	 * @param left
 	 * @param right
 	 */
-	private LinkedList<Layer> doMerge(final LinkedList<Layer> left, final LinkedList<Layer> right)
+	private List<Piece> doMerge(final LinkedList<LayerInfo> left, final LinkedList<LayerInfo> right)
 	{
 		/*
 		 *   Merging layers should look something like this:
@@ -540,8 +733,9 @@ public class DualStrusionConstruction
 		 *     
 		 *           
 		 */
-		// using a LinkedList means we can getLast()
-		final LinkedList<Layer> result = new LinkedList<Layer>();
+		final List<Piece> result = new ArrayList<Piece>();
+		// the layer we added last, which is the one a toolchange is from
+		LayerInfo last = null;
 
 		// this is just a handy way to keep track of where our last layer came from
 		Object lastLayer = null;
@@ -550,13 +744,13 @@ public class DualStrusionConstruction
 		final ToolheadAlias initialTool;
 		// Start by selecting the correct toolhead
 		// This mimics how the selection happens in the loop below
-		if(right.peek().getHeight() < left.peek().getHeight())
+		if(left.isEmpty() || (!right.isEmpty() && right.peek().getHeight() < left.peek().getHeight()))
 			initialTool = ToolheadAlias.RIGHT;
 		else
 			initialTool = ToolheadAlias.LEFT;
 
 		// Prepend the switch to correct tool to the whole thing
-		result.add(new Layer(0, new ArrayList<String>(){{
+		result.add(new Code(new ArrayList<String>(){{
 			add(initialTool.getRecallOffsetGcodeCommand());
 			add("M108 "+initialTool.getTcode() + "(Set tool)");
 		}}));
@@ -569,32 +763,32 @@ public class DualStrusionConstruction
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
+					result.add(toolchange(ToolheadAlias.RIGHT, last, ToolheadAlias.LEFT, left.peek()));
+				result.add(last = left.pop());
 				lastLayer = left;
 			}
 			else if(left.isEmpty()) // used all left layers, keep grabbing from right
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
+					result.add(toolchange(ToolheadAlias.LEFT, last, ToolheadAlias.RIGHT, right.peek()));
+				result.add(last = right.pop());
 				lastLayer = right;
 			}
 			else if(left.peek().getHeight() < right.peek().getHeight()) // left has a lower layer, grab it
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(right.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.RIGHT, result.getLast(), ToolheadAlias.LEFT, left.peek()));
-				result.add(left.pop());
+					result.add(toolchange(ToolheadAlias.RIGHT, last, ToolheadAlias.LEFT, left.peek()));
+				result.add(last = left.pop());
 				lastLayer = left;
 			}
 			else if(right.peek().getHeight() < left.peek().getHeight()) // right has lower layer
 			{
 				// if last layer tool != next layer tool, add a toolchange
 				if(left.equals(lastLayer))
-					result.add(toolchange(ToolheadAlias.LEFT, result.getLast(), ToolheadAlias.RIGHT, right.peek()));
-				result.add(right.pop());
+					result.add(toolchange(ToolheadAlias.LEFT, last, ToolheadAlias.RIGHT, right.peek()));
+				result.add(last = right.pop());
 				lastLayer = right;
 			}
 			else //equal height
@@ -602,15 +796,15 @@ public class DualStrusionConstruction
 				if(lastLayer == null)
 				{
 					//arbitrary
-					result.add(left.pop());
+					result.add(last = left.pop());
 					lastLayer = left;
 				}
 				else
 				{
 					if(lastLayer == left)
-						result.add(left.pop());
+						result.add(last = left.pop());
 					else// if(lastLayer == right)
-						result.add(right.pop());
+						result.add(last = right.pop());
 				}
 			}
 		}
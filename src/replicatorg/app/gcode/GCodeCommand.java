@@ -1,151 +1,335 @@
 package replicatorg.app.gcode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * A single parsed line of GCode.
+ *
+ * The line is tokenized in one pass by hand rather than with regular
+ * expressions: code values are kept in a primitive table indexed by letter
+ * plus a presence bitmask, and the comment and command strings are only built
+ * when somebody asks for them. A GCodeCommand can be re-used for many lines
+ * via parse(), so hot loops (estimation, safety checks, building) do not need
+ * to allocate anything per line. Any CharSequence can be parsed, so lines
+ * held as bytes (see ArenaGCodeSource) don't have to be made into Strings
+ * first. A line already parsed into a ParsedGCode can be loaded back without
+ * parsing it again; its comments are only looked for if they're asked for.
+ */
 public class GCodeCommand {
 
 	// These are the letter codes that we understand
-	static protected char[] codes = { 
+	static protected char[] codes = {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
-	
-	// pattern matchers.
-	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
-	static Pattern semiPattern = Pattern.compile(";(.*)");
-	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
-	
-	
-	// The actual GCode command string
+
+	// Bitmask (bit n = 'A' + n) of the letter codes above
+	private static final int KNOWN_CODES;
+	static {
+		int mask = 0;
+		for (char code : codes)
+			mask |= 1 << (code - 'A');
+		KNOWN_CODES = mask;
+	}
+
+	// Powers of ten that can be represented exactly as doubles
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Largest mantissa that can be represented exactly as a double
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	// The original line
+	private CharSequence line = "";
+
+	// Parenthesized comment, as [parenStart, parenEnd] inclusive, or -1 if there is none
+	private int parenStart;
+	private int parenEnd;
+
+	// Position of the semicolon comment in the original line, or -1 if there is none.
+	private int semiComment;
+
+	// Position in the original line where the command (sans comments) ends
+	private int commandEnd;
+
+	// False if the line was loaded rather than parsed, until the comments are looked for
+	private boolean commentsFound;
+
+	// Lazily built command and comment strings
 	private String command;
+	private String comment;
 
-	// Parsed out comment
-	private String comment = new String();
+	// Bitmask of the codes present on this line, and of those that had a value
+	private int present;
+	private int valued;
 
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
-		}
+	// Code values, indexed by letter - 'A'
+	private final double[] values = new double[26];
+
+	/**
+	 * Create an empty command, ready to be filled by parse().
+	 */
+	public GCodeCommand() {
+		parse("");
 	}
-	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
-
-	public GCodeCommand(String command) {
-		// Copy over the command
-		this.command = new String(command);
-		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
-		
-		// Parse (and strip) any comments out into a comment string
+
+	public GCodeCommand(CharSequence command) {
+		parse(command);
+	}
+
+	/**
+	 * Reset this command and parse a new line of GCode into it.
+	 * The line is not copied; if it is not a String, it must not change while
+	 * the command and comment may still be asked for.
+	 * @param line the line of GCode to parse
+	 * @return this command
+	 * @throws NumberFormatException if a code value can not be read as a number
+	 */
+	public GCodeCommand parse(CharSequence line) {
+		this.line = line;
+		command = null;
+		comment = null;
+		present = 0;
+		valued = 0;
+
+		// Parse (and strip) any comments out
 		parseComments();
 
 		// Parse any codes out into the code tables
 		parseCodes();
+
+		return this;
+	}
+
+	/**
+	 * Reset this command to a line whose codes were parsed before, as by
+	 * parse(); see ParsedGCode.
+	 * @param present bitmask of the codes on the line
+	 * @param valued bitmask of the codes that had a value
+	 * @param packed the values, in letter order, starting at offset
+	 */
+	void load(CharSequence line, int present, int valued, double[] packed, int offset) {
+		this.line = line;
+		command = null;
+		comment = null;
+		commentsFound = false;
+		this.present = present;
+		this.valued = valued;
+		for (int bits = valued; bits != 0; bits &= bits - 1)
+			values[Integer.numberOfTrailingZeros(bits)] = packed[offset++];
+	}
+
+	/** Bitmask (bit n = 'A' + n) of the codes on this line */
+	int getPresentCodes() {
+		return present;
 	}
-	
-	// Find any comments, store them, then remove them from the command 
+
+	/** Bitmask (bit n = 'A' + n) of the codes on this line that had a value */
+	int getValuedCodes() {
+		return valued;
+	}
+
+	/**
+	 * The first word of the command, up to the first space, as
+	 * getCommand().split(" ")[0] would have it.
+	 */
+	String getFirstWord() {
+		int start = (parenStart == 0) ? parenEnd + 1 : 0;
+		int i = start;
+		while (i < commandEnd && line.charAt(i) != ' ') {
+			if (i == parenStart) {
+				// A comment in the middle of the word
+				String command = getCommand();
+				int space = command.indexOf(' ');
+				return (space < 0) ? command : command.substring(0, space);
+			}
+			i++;
+		}
+		return substring(line, start, i);
+	}
+
+	// Find any comments and remember where they are.
+	// Note that we only support one style of comments, and only one comment per row:
+	// a paren comment runs from the first '(' to the last ')', a semicolon comment
+	// runs from the first ';' to the end of the line and wins if both are present.
 	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
+		final CharSequence line = this.line;
+		final int length = line.length();
+		commentsFound = true;
+
+		parenStart = indexOf(line, '(', 0);
+		parenEnd = -1;
+		if (parenStart >= 0) {
+			parenEnd = lastIndexOf(line, ')');
+			if (parenEnd < parenStart) {
+				parenStart = -1;
+				parenEnd = -1;
+			}
+		}
+
+		semiComment = indexOf(line, ';', 0);
+
+		// The command ends at the first semicolon that isn't inside the paren comment
+		commandEnd = length;
+		for (int i = semiComment; i >= 0 && i < length; i = indexOf(line, ';', i + 1)) {
+			if (i < parenStart || i > parenEnd) {
+				commandEnd = i;
+				break;
+			}
+		}
+	}
 
-		// Note that we only support one style of comments, and only one comment per row. 
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
+	private static int indexOf(CharSequence s, char c, int from) {
+		if (s instanceof String)
+			return ((String) s).indexOf(c, from);
+		for (int i = from, length = s.length(); i < length; i++) {
+			if (s.charAt(i) == c)
+				return i;
+		}
+		return -1;
+	}
 
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
+	private static int lastIndexOf(CharSequence s, char c) {
+		if (s instanceof String)
+			return ((String) s).lastIndexOf(c);
+		for (int i = s.length() - 1; i >= 0; i--) {
+			if (s.charAt(i) == c)
+				return i;
+		}
+		return -1;
+	}
 
-		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
+	private static String substring(CharSequence s, int start, int end) {
+		return s.subSequence(start, end).toString();
+	}
 
-		// Finally, remove the comments from the command string
-		command = parenMatcher.replaceAll("");
-		
-		semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+	// Index of the next character of the command after index i, skipping the paren comment
+	private int next(int i) {
+		i++;
+		if (i == parenStart)
+			i = parenEnd + 1;
+		return i;
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
 	}
 
 	// Find any codes, and store them
 	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
-
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
-				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
+		final CharSequence line = this.line;
+		final int end = commandEnd;
+
+		int i = (parenStart == 0) ? parenEnd + 1 : 0;
+		while (i < end) {
+			char c = line.charAt(i);
+			int bit = c - 'A';
+			if (bit >= 0 && bit < 26 && (KNOWN_CODES & (1 << bit)) != 0) {
+				present |= 1 << bit;
+
+				// The value is taken from the first occurrence that is followed by a number
+				int start = next(i);
+				if ((valued & (1 << bit)) == 0 && start < end && isNumberChar(line.charAt(start))) {
+					int stop = start;
+					while (stop < end && isNumberChar(line.charAt(stop)))
+						stop = next(stop);
+					values[bit] = parseNumber(start, stop);
+					valued |= 1 << bit;
+					i = stop;
+					continue;
 				}
-				
-				parameters.add(new gCodeParameter(code, value));
+			}
+			i = next(i);
+		}
+	}
+
+	// Parse the number found between start and stop, with the same results as Double.parseDouble
+	private double parseNumber(int start, int stop) {
+		final CharSequence line = this.line;
+
+		// The (rare) number that straddles a paren comment
+		if (parenStart > start && parenStart < stop)
+			return Double.parseDouble(substring(line, start, parenStart) + substring(line, parenEnd + 1, stop));
+
+		int i = start;
+		boolean negative = false;
+		char c = line.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean point = false;
+		for (; i < stop; i++) {
+			c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (mantissa >= MAX_EXACT_MANTISSA / 10)
+					return Double.parseDouble(substring(line, start, stop));
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (point)
+					fractionDigits++;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				// Misplaced sign or second decimal point: let the JDK complain about it.
+				return Double.parseDouble(substring(line, start, stop));
 			}
 		}
+
+		if (digits == 0 || fractionDigits >= POWERS_OF_TEN.length)
+			return Double.parseDouble(substring(line, start, stop));
+
+		// Both operands are exact, so the division is correctly rounded.
+		double value = (double) mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
 	}
 
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		if (command == null) {
+			if (!commentsFound)
+				parseComments();
+			if (parenStart >= 0 && parenStart < commandEnd) {
+				command = substring(line, 0, parenStart) + substring(line, parenEnd + 1, commandEnd);
+			} else {
+				command = substring(line, 0, commandEnd);
+			}
+		}
+		return command;
 	}
-	
+
 	public String getComment() {
-		return new String(comment);
+		if (comment == null) {
+			if (!commentsFound)
+				parseComments();
+			String raw;
+			if (semiComment >= 0)
+				raw = substring(line, semiComment + 1, line.length());
+			else if (parenStart >= 0)
+				raw = substring(line, parenStart + 1, parenEnd);
+			else
+				raw = "";
+
+			// clean it up.
+			comment = raw.trim().replace('|', '\n');
+		}
+		return comment;
 	}
-	
+
 	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
-			}
-		}
-		
-		return false;
+		int bit = searchCode - 'A';
+		return bit >= 0 && bit < 26 && (present & (1 << bit)) != 0;
 	}
 
 	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
-		}
-		
-		return -1;	// TODO: What do we return if there is no code?
-	}
-	
-//	public Double removeCode(Character searchCode) {
-//		for (Iterator<gCodeParameter> i = parameters.iterator(); i.hasNext();)
-//		{
-//			gCodeParameter gcp = i.next();
-//			if(gcp.code == searchCode)
-//			{
-//				i.remove();
-//				return gcp.value;
-//			}
-//		}
-//		return null;
-//	}
-//	
-//	public void addCode(Character code, Double value)
-//	{
-//		parameters.add(new gCodeParameter(code, value));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-//	
-//	public void addCode(Character code, Integer value)
-//	{
-//		parameters.add(new gCodeParameter(code, ((Number)value).doubleValue()));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-}
\ No newline at end of file
+		if (!hasCode(searchCode))
+			return -1;	// TODO: What do we return if there is no code?
+
+		int bit = searchCode - 'A';
+		if ((valued & (1 << bit)) == 0)
+			return 0;
+		return values[bit];
+	}
+}
@@ -49,7 +49,6 @@
 package replicatorg.app.gcode;
 
 import java.util.EnumSet;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
 
@@ -77,84 +76,12 @@ public class GCodeParser {
 	 */
 	
 	// Arc drawing routine
-	// Note: 5D is not supported
-	Queue< DriverCommand > drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
-		// System.out.println("Arc from " + current.toString() + " to " +
-		// endpoint.toString() + " with center " + center);
-
-		Queue< DriverCommand > points = new LinkedList< DriverCommand >();
-		
-		// angle variables.
-		double angleA;
-		double angleB;
-		double angle;
-		double radius;
-		double length;
-
-		// delta variables.
-		double aX;
-		double aY;
-		double bX;
-		double bY;
-
-		// figure out our deltas
+	// The segments are made as the command runs; see ArcExpander
+	DriverCommand drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
 		Point5d current = driver.getCurrentPosition(false);
-		aX = current.x() - center.x();
-		aY = current.y() - center.y();
-		bX = endpoint.x() - center.x();
-		bY = endpoint.y() - center.y();
-
-		// Clockwise
-		if (clockwise) {
-			angleA = Math.atan2(bY, bX);
-			angleB = Math.atan2(aY, aX);
-		}
-		// Counterclockwise
-		else {
-			angleA = Math.atan2(aY, aX);
-			angleB = Math.atan2(bY, bX);
-		}
-
-		// Make sure angleB is always greater than angleA
-		// and if not add 2PI so that it is (this also takes
-		// care of the special case of angleA == angleB,
-		// ie we want a complete circle)
-		if (angleB <= angleA)
-			angleB += 2 * Math.PI;
-		angle = angleB - angleA;
-		// calculate a couple useful things.
-		radius = Math.sqrt(aX * aX + aY * aY);
-		length = radius * angle;
-
-		// for doing the actual move.
-		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
-
-		// this is the real draw action.
-		Point5d newPoint = new Point5d(current);
-		double arcStartZ = current.z();
-		for (s = 1; s <= steps; s++) {
-			// Forwards for CCW, backwards for CW
-			if (!clockwise)
-				step = s;
-			else
-				step = steps - s;
-
-			// calculate our waypoint.
-			newPoint.setX(center.x() + radius * Math.cos(angleA + angle * ((double) step / steps)));
-			newPoint.setY(center.y() + radius * Math.sin(angleA + angle * ((double) step / steps)));
-			newPoint.setZ(arcStartZ + (endpoint.z() - arcStartZ) * s / steps);
-
-			// start the move
-			points.add(new replicatorg.drivers.commands.QueuePoint(newPoint));
-		}
-		
-		return points;
+		double tolerance = driver.getMachine().getArcTolerance();
+		return new replicatorg.drivers.commands.QueuePoints(
+				new ArcExpander(current, center, endpoint, clockwise, tolerance, curveSection));
 	}
 	
 	// our curve section variables.
@@ -184,6 +111,9 @@ public class GCodeParser {
 	public static int UNITS_INCHES = 1;
 
 	protected int units;
+
+	// re-used for every line we parse
+	private final GCodeCommand gcode = new GCodeCommand();
 	
 	/**
 	 * Creates the driver object.
@@ -228,7 +158,16 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCodeCommand gcode = new GCodeCommand(cmd);
+		return parse(gcode.parse(cmd), commandQueue);
+	}
+
+	/**
+	 * Function packages a line of GCode that has already been tokenized into
+	 * an executable event, and queues the event for execution
+	 * 
+	 * @param gcode a single line of GCode, already parsed into a GCodeCommand.
+	 */
+	public boolean parse(GCodeCommand gcode, Queue< DriverCommand > commandQueue) {
 
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
@@ -766,7 +705,6 @@ public class GCodeParser {
 			// Counterclockwise arc
 		case G3: {
 			// call our arc drawing function.
-			// Note: We don't support 5D
 			if (gcode.hasCode('I') || gcode.hasCode('J')) {
 				// our centerpoint
 				Point5d center = new Point5d();
@@ -776,9 +714,9 @@ public class GCodeParser {
 
 				// Get the points for the arc
 				if (codeEnum == GCodeEnumeration.G2)
-					commands.addAll(drawArc(center, pos, true));
+					commands.add(drawArc(center, pos, true));
 				else
-					commands.addAll(drawArc(center, pos, false));
+					commands.add(drawArc(center, pos, false));
 			}
 			// or we want a radius based one
 			else if (gcode.hasCode('R')) {
@@ -0,0 +1,372 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.machine.model.ToolheadAlias;
+import replicatorg.model.GCodeSource;
+
+/**
+ * A chain of line-by-line G-code transformations, run as a single streaming
+ * pass.
+ *
+ * Each Stage takes lines one at a time and emits zero or more lines to the
+ * next stage; the last stage emits to a Sink, which may be a file. This lets
+ * the post-processors run all of their passes from the slicer's output file
+ * to the final file without ever holding the whole file, or copying it once
+ * per pass. Stages that need to know how long the file is, like the
+ * progress updates, are given the line count up front; countLines() finds it
+ * without decoding the file.
+ */
+public class GCodePipeline {
+
+	/** Where lines go. */
+	public interface Sink {
+		void add(String line);
+	}
+
+	/**
+	 * One transformation. Stages see every line in order, then finish() once
+	 * the input is over.
+	 */
+	public static abstract class Stage implements Sink {
+		private Sink next;
+
+		/** Pass a line on to the next stage. */
+		protected void emit(String line) {
+			next.add(line);
+		}
+
+		/** Called after the last line; emit anything that goes at the end. */
+		public void finish() {
+		}
+	}
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	/**
+	 * Add a stage to the end of the pipeline.
+	 * @return this pipeline
+	 */
+	public GCodePipeline add(Stage stage) {
+		stages.add(stage);
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return stages.isEmpty();
+	}
+
+	/**
+	 * Run lines through the pipeline. A pipeline can only be run once.
+	 */
+	public void run(Iterable<String> in, Sink out) {
+		Sink head = open(out);
+		for (String line : in) {
+			head.add(line);
+		}
+		finish();
+	}
+
+	/**
+	 * Connect the pipeline to where its output goes, for when the input is
+	 * pushed in rather than read from an Iterable. Add the lines to the
+	 * returned Sink, then call finish().
+	 */
+	public Sink open(Sink out) {
+		return connect(out);
+	}
+
+	/**
+	 * The input is over; let every stage emit what goes at the end.
+	 */
+	public void finish() {
+		// Each stage flushes into the next before that one finishes
+		for (Stage stage : stages) {
+			stage.finish();
+		}
+	}
+
+	/**
+	 * Run a file through the pipeline, writing the result to a file. The
+	 * input and output may be the same file, in which case it is replaced
+	 * once the pipeline has finished.
+	 */
+	public void run(File in, File out) throws IOException {
+		File target = out;
+		if (in.getCanonicalFile().equals(out.getCanonicalFile())) {
+			out = File.createTempFile("gcode", ".tmp", out.getAbsoluteFile().getParentFile());
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(in));
+		FileSink writer = null;
+		try {
+			writer = new FileSink(out);
+			Sink head = open(writer);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				head.add(line);
+			}
+			finish();
+		} finally {
+			reader.close();
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		if (out != target) {
+			// renameTo won't replace an existing file everywhere
+			if (!out.renameTo(target) && !(target.delete() && out.renameTo(target))) {
+				throw new IOException("Could not replace " + target.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Writes lines to a file, each followed by a '\n'. A failed write is
+	 * thrown by close().
+	 */
+	public static class FileSink implements Sink {
+		private final BufferedWriter writer;
+		private IOException failure = null;
+
+		public FileSink(File file) throws IOException {
+			writer = new BufferedWriter(new FileWriter(file));
+		}
+
+		public void add(String line) {
+			if (failure != null) {
+				return;
+			}
+			try {
+				writer.write(line);
+				writer.write('\n');
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		public void close() throws IOException {
+			writer.close();
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private Sink connect(Sink out) {
+		Sink next = out;
+		for (int i = stages.size() - 1; i >= 0; i--) {
+			stages.get(i).next = next;
+			next = stages.get(i);
+		}
+		return next;
+	}
+
+	/**
+	 * Count the lines in a file, split the way BufferedReader.readLine() splits
+	 * them, without decoding them.
+	 */
+	public static int countLines(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int lines = 0;
+			// whether the last byte seen was a '\r', and whether it ended a line
+			boolean afterCR = false;
+			boolean atLineStart = true;
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					byte b = buffer[i];
+					if (b == '\n') {
+						if (!afterCR) {
+							lines++;
+						}
+						atLineStart = true;
+						afterCR = false;
+					} else if (b == '\r') {
+						lines++;
+						atLineStart = true;
+						afterCR = true;
+					} else {
+						atLineStart = false;
+						afterCR = false;
+					}
+				}
+			}
+			if (!atLineStart) {
+				lines++;
+			}
+			return lines;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Emits the given code before the first line.
+	 */
+	public static Stage prepend(final GCodeSource code) {
+		return new Stage() {
+			private boolean started = false;
+
+			private void start() {
+				started = true;
+				for (String line : code) {
+					emit(line);
+				}
+			}
+
+			public void add(String line) {
+				if (!started) {
+					start();
+				}
+				emit(line);
+			}
+
+			public void finish() {
+				if (!started) {
+					start();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Emits the given code after the last line.
+	 */
+	public static Stage append(final GCodeSource code) {
+		return new Stage() {
+			public void add(String line) {
+				emit(line);
+			}
+
+			public void finish() {
+				for (String line : code) {
+					emit(line);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Swaps all references to the the current toolhead to instead reference
+	 * the specified toolhead.  Alters select G, M and T Codes.
+	 */
+	public static Stage changeToolhead(final ToolheadAlias tool) {
+		final String recallOffset = tool.getRecallOffsetGcodeCommand();
+		return new Stage() {
+			private final GCodeCommand gcode = new GCodeCommand();
+
+			public void add(String line) {
+				// Only T0, T1, G54 and G55 are ever replaced; don't parse lines that have none
+				if (line.indexOf('T') >= 0 || line.indexOf("G5") >= 0) {
+					line = swap(line);
+				}
+				emit(line);
+			}
+
+			private String swap(String line) {
+				gcode.parse(line);
+
+				if(gcode.hasCode('T'))
+				{
+					int value = (int)gcode.getCodeValue('T');
+					if(value != tool.number)
+					{
+						if(value == 0)
+							line = line.replace("T0", "T1");
+						else if(value == 1)
+							line = line.replace("T1", "T0");
+					}
+				}
+				if(gcode.getCodeValue('G') == 54 && !(recallOffset.equals("G54")))
+				{
+					line = line.replace("G54", recallOffset);
+				}
+				if(gcode.getCodeValue('G') == 55 && !(recallOffset.equals("G55")))
+				{
+					line = line.replace("G55", recallOffset);
+				}
+				return line;
+			}
+		};
+	}
+
+	/**
+	 * Adds an M73 for approx % done whenever the percentage, going by line
+	 * count, changes.
+	 * @param lineCount the number of lines this stage will see
+	 */
+	public static Stage progressUpdates(final int lineCount) {
+		/// TRICKY: M73 P0 is required by The Replicator to enable % display
+		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
+		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
+		// to the firmware.  A possible less tricky fix is to make a separate command for these
+		return new Stage() {
+			private int index = 0;
+			private int lastPercent = 0;
+
+			public void add(String line) {
+				int percentDone = index*100/lineCount;
+				if (percentDone != lastPercent)
+				{
+					if(percentDone == 0)	percentDone = 1;
+					if(percentDone == 100)	percentDone = 99;
+					//^^See Footnote 1 in MutableGCodeSource
+					emit("M73 P"+percentDone+" (display progress)");
+					lastPercent = percentDone;
+				}
+				emit(line);
+				index++;
+			}
+		};
+	}
+
+	/**
+	 * Adds an M73 for approx % done, going by line count, at the start of
+	 * each layer.
+	 * @param lineCount the number of lines this stage will see
+	 */
+	public static Stage slic3rProgressUpdates(final int lineCount) {
+		return new Stage() {
+			private int index = 0;
+
+			public void add(String line) {
+				if( line.startsWith("(<layer>") )
+				{
+					int percentDone = index*100/lineCount;
+					if(percentDone == 0) percentDone = 1;
+					if(percentDone == 100)	percentDone = 99;
+					//^^See Footnote 1 in MutableGCodeSource
+					emit("M73 P"+percentDone+" (display progress)");
+				}
+				emit(line);
+				index++;
+			}
+		};
+	}
+
+	/**
+	 * Removes all lines that are skeinforge tag comments, but not layer tags.
+	 */
+	public static Stage stripNonLayerTagComments() {
+		return new Stage() {
+			public void add(String line) {
+				if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
+				{
+					return;
+				}
+				emit(line);
+			}
+		};
+	}
+}
@@ -69,10 +69,10 @@ public class Layer {
 	@Override
 	public String toString()
 	{
-		String result = "";
+		StringBuilder result = new StringBuilder();
 		for(String c : commands)
-			result += c + '\n';
-		return result;
+			result.append(c).append('\n');
+		return result.toString();
 	}
 
 }
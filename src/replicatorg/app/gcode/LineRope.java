@@ -0,0 +1,305 @@
+package replicatorg.app.gcode;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import replicatorg.model.ArenaGCodeSource;
+
+/**
+ * An immutable sequence of lines, kept as a balanced tree whose leaves are
+ * pieces of shared line arrays.
+ *
+ * Nothing is ever copied to insert, slice or concatenate: the result is a new
+ * tree that shares the pieces (and most of the nodes) of the ones it was made
+ * from. Concatenating, inserting and slicing take O(log n) steps; finding a
+ * line by index takes O(log n). Since a rope never changes, sharing one
+ * between several MutableGCodeSources is safe.
+ *
+ * The tree is kept balanced the way an AVL tree is: the depths of the two
+ * halves of a node never differ by more than one.
+ *
+ * A leaf can also be a piece of an ArenaGCodeSource, so that a large file can
+ * be held as bytes; its lines are made into Strings as they are read.
+ */
+final class LineRope {
+	// Small leaves are merged when joined, so that adding a line at a time doesn't make a leaf per line
+	private static final int MERGE_LEAF_LINES = 32;
+
+	static final LineRope EMPTY = new LineRope(new String[0], null, 0, 0);
+
+	private final int size;
+	private final int depth;
+
+	// A node has two halves...
+	private final LineRope left;
+	private final LineRope right;
+
+	// ...and a leaf has a piece of an array, or of an arena
+	private final String[] lines;
+	private final ArenaGCodeSource arena;
+	private final int offset;
+
+	private LineRope(String[] lines, ArenaGCodeSource arena, int offset, int size) {
+		this.lines = lines;
+		this.arena = arena;
+		this.offset = offset;
+		this.size = size;
+		this.depth = 0;
+		this.left = null;
+		this.right = null;
+	}
+
+	private LineRope(LineRope left, LineRope right) {
+		this.left = left;
+		this.right = right;
+		this.size = left.size + right.size;
+		this.depth = Math.max(left.depth, right.depth) + 1;
+		this.lines = null;
+		this.arena = null;
+		this.offset = 0;
+	}
+
+	/**
+	 * A rope of the given lines. The array is not copied, so it must not be
+	 * changed afterwards.
+	 */
+	static LineRope of(String[] lines, int offset, int size) {
+		if (size == 0) {
+			return EMPTY;
+		}
+		return new LineRope(lines, null, offset, size);
+	}
+
+	/**
+	 * A rope of the lines the arena has now. Lines the arena gets afterwards
+	 * are not part of it.
+	 */
+	static LineRope of(ArenaGCodeSource arena) {
+		if (arena.getLineCount() == 0) {
+			return EMPTY;
+		}
+		return new LineRope(null, arena, 0, arena.getLineCount());
+	}
+
+	static LineRope of(List<String> lines) {
+		return of(lines.toArray(new String[lines.size()]), 0, lines.size());
+	}
+
+	int size() {
+		return size;
+	}
+
+	private boolean isLeaf() {
+		return left == null;
+	}
+
+	String get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Line " + index + " of " + size);
+		}
+		LineRope r = this;
+		while (!r.isLeaf()) {
+			if (index < r.left.size) {
+				r = r.left;
+			} else {
+				index -= r.left.size;
+				r = r.right;
+			}
+		}
+		return r.line(index);
+	}
+
+	// Line index of this leaf
+	private String line(int index) {
+		return lines != null ? lines[offset + index] : arena.getLine(offset + index);
+	}
+
+	// Line index of this leaf, as a String or a view of the arena's bytes
+	private CharSequence sequence(int index) {
+		return lines != null ? lines[offset + index] : arena.getCharSequence(offset + index);
+	}
+
+	// Copy the lines of this leaf into an array
+	private void copyTo(String[] to, int at) {
+		if (lines != null) {
+			System.arraycopy(lines, offset, to, at, size);
+		} else {
+			for (int i = 0; i < size; i++) {
+				to[at + i] = arena.getLine(offset + i);
+			}
+		}
+	}
+
+	/** @return this rope followed by the other */
+	LineRope concat(LineRope other) {
+		return join(this, other);
+	}
+
+	/** @return the lines from index from up to, but not including, index to */
+	LineRope slice(int from, int to) {
+		if (from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException("Lines " + from + " to " + to + " of " + size);
+		}
+		if (from == 0 && to == size) {
+			return this;
+		}
+		if (from == to) {
+			return EMPTY;
+		}
+		if (isLeaf()) {
+			return new LineRope(lines, arena, offset + from, to - from);
+		}
+		int half = left.size;
+		if (to <= half) {
+			return left.slice(from, to);
+		}
+		if (from >= half) {
+			return right.slice(from - half, to - half);
+		}
+		return join(left.slice(from, half), right.slice(0, to - half));
+	}
+
+	/** @return this rope with the other inserted before the given index */
+	LineRope insert(int index, LineRope other) {
+		if (index == size) {
+			return concat(other);
+		}
+		if (index == 0) {
+			return other.concat(this);
+		}
+		return join(join(slice(0, index), other), slice(index, size));
+	}
+
+	private static LineRope join(LineRope l, LineRope r) {
+		if (l.size == 0) {
+			return r;
+		}
+		if (r.size == 0) {
+			return l;
+		}
+		if (l.isLeaf() && r.isLeaf() && l.size + r.size <= MERGE_LEAF_LINES) {
+			String[] merged = new String[l.size + r.size];
+			l.copyTo(merged, 0);
+			r.copyTo(merged, l.size);
+			return new LineRope(merged, null, 0, merged.length);
+		}
+		if (l.depth > r.depth + 1) {
+			return balance(l.left, join(l.right, r));
+		}
+		if (r.depth > l.depth + 1) {
+			return balance(join(l, r.left), r.right);
+		}
+		return new LineRope(l, r);
+	}
+
+	// Join two ropes whose depths differ by at most two
+	private static LineRope balance(LineRope l, LineRope r) {
+		if (l.depth > r.depth + 1) {
+			if (l.left.depth >= l.right.depth) {
+				return new LineRope(l.left, new LineRope(l.right, r));
+			}
+			return new LineRope(new LineRope(l.left, l.right.left), new LineRope(l.right.right, r));
+		}
+		if (r.depth > l.depth + 1) {
+			if (r.right.depth >= r.left.depth) {
+				return new LineRope(new LineRope(l, r.left), r.right);
+			}
+			return new LineRope(new LineRope(l, r.left.left), new LineRope(r.left.right, r.right));
+		}
+		return new LineRope(l, r);
+	}
+
+	Iterator<String> iterator() {
+		return new LeafIterator<String>() {
+			String line(LineRope leaf, int index) {
+				return leaf.line(index);
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the lines without making Strings of those kept in an
+	 * arena; handy for parsing with GCodeCommand.
+	 */
+	Iterator<CharSequence> sequenceIterator() {
+		return new LeafIterator<CharSequence>() {
+			CharSequence line(LineRope leaf, int index) {
+				return leaf.sequence(index);
+			}
+		};
+	}
+
+	private abstract class LeafIterator<T> implements Iterator<T> {
+		// Nodes still to visit, right halves on top of the stack
+		private final LineRope[] stack = new LineRope[depth + 1];
+		private int top = 0;
+		private LineRope leaf = null;
+		private int next = 0;
+
+		LeafIterator() {
+			if (size > 0) {
+				stack[top++] = LineRope.this;
+			}
+		}
+
+		abstract T line(LineRope leaf, int index);
+
+		public boolean hasNext() {
+			return (leaf != null && next < leaf.size) || top > 0;
+		}
+
+		public T next() {
+			if (leaf == null || next == leaf.size) {
+				if (top == 0) {
+					throw new NoSuchElementException();
+				}
+				LineRope r = stack[--top];
+				while (!r.isLeaf()) {
+					stack[top++] = r.right;
+					r = r.left;
+				}
+				leaf = r;
+				next = 0;
+			}
+			return line(leaf, next++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * A read-only List view of this rope.
+	 */
+	List<String> asList() {
+		return new ListView(this);
+	}
+
+	private static class ListView extends AbstractList<String> implements RandomAccess {
+		private final LineRope rope;
+
+		ListView(LineRope rope) {
+			this.rope = rope;
+		}
+
+		public String get(int index) {
+			return rope.get(index);
+		}
+
+		public int size() {
+			return rope.size;
+		}
+
+		public Iterator<String> iterator() {
+			return rope.iterator();
+		}
+
+		public List<String> subList(int from, int to) {
+			return new ListView(rope.slice(from, to));
+		}
+	}
+}
@@ -1,11 +1,11 @@
 package replicatorg.app.gcode;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -13,111 +13,155 @@ import java.util.logging.Level;
 
 import replicatorg.app.Base;
 import replicatorg.machine.model.ToolheadAlias;
+import replicatorg.model.ArenaGCodeSource;
 import replicatorg.model.GCodeSource;
 
 /**
  * Class to encapsulate a GCode file, as well as all of the operations
  * that can be performed or associated with it.
  * 
+ * The lines are kept in a LineRope, so inserting code anywhere (start code,
+ * say) takes O(log n) steps, adding one source to another shares the lines
+ * rather than copying them, and copy() is free. Lines added at the end are
+ * gathered into blocks before they go into the rope.
+ * 
+ * Files (slicer output, mostly) are read into an ArenaGCodeSource, which
+ * keeps the lines as bytes rather than as a String each.
  * 
  * @author Ted Brandston <ted@makerbot.com>
  *
  */
-public class MutableGCodeSource implements GCodeSource {
+public class MutableGCodeSource implements GCodeSource, GCodePipeline.Sink {
+
+	// How many lines are gathered at the end before they go into the rope
+	private static final int TAIL_LINES = 4096;
 
 	/// all gcode source, one command per line
-	ArrayList<String> source = new ArrayList<String>();
+	private LineRope lines = LineRope.EMPTY;
+	/// lines appended since, not yet in the rope
+	private String[] tail = null;
+	private int tailSize = 0;
 	
 	public MutableGCodeSource() { }
 	
 	
 	public MutableGCodeSource(GCodeSource shallowCopy) {
-		source.addAll(shallowCopy.asList());
+		add(shallowCopy);
 	}
 	
 	
 	public MutableGCodeSource(Collection<String> shallowCopy) {
-		source.addAll(shallowCopy);
+		add(shallowCopy);
 	}
 	
 	
 	public MutableGCodeSource(File sourceFile) {
-		String curline;
-		
 		if(sourceFile == null) {
 			Base.logger.warning("MutableGCodeSource passed a null sourceFile");
 			return;
 		}
 		
 		try {
-			BufferedReader bir = new BufferedReader(new FileReader(sourceFile));
-			curline = bir.readLine();
-			while (curline != null) {
-				source.add(curline);
-				curline = bir.readLine();
-			}
-			bir.close();
+			lines = LineRope.of(new ArenaGCodeSource(sourceFile));
 		} catch (IOException e) {
 			System.err.println("couldnt read file " + sourceFile.getAbsolutePath());
 			return;
 		}
 	}
 	
+	/// all of the lines, including any still in the tail
+	LineRope rope() {
+		if (tailSize > 0) {
+			if (tailSize == tail.length) {
+				// the rope gets the array, we start a new one
+				lines = lines.concat(LineRope.of(tail, 0, tailSize));
+				tail = null;
+			} else {
+				lines = lines.concat(LineRope.of(Arrays.copyOf(tail, tailSize), 0, tailSize));
+			}
+			tailSize = 0;
+		}
+		return lines;
+	}
+	
+	private static LineRope toRope(GCodeSource code) {
+		if (code instanceof MutableGCodeSource)
+			return ((MutableGCodeSource)code).rope();
+		if (code instanceof ArenaGCodeSource)
+			return LineRope.of((ArenaGCodeSource)code);
+		return LineRope.of(code.asList());
+	}
 	
 	@Override
 	public Iterator<String> iterator() {
-		return source.iterator();
+		return rope().iterator();
 	}
 
+	/// A read-only view of the lines as they are now
 	@Override
 	public List<String> asList() {
-		return source;
+		return rope().asList();
 	}
 
 	@Override
 	public int getLineCount() {
-		return source.size();
+		return lines.size() + tailSize;
 	}
 
 	
 	///appends a line to the current source
 	public void add(String line) {
-		source.add(line);
+		if (tail == null)
+			tail = new String[TAIL_LINES];
+		tail[tailSize++] = line;
+		if (tailSize == TAIL_LINES)
+			rope();
 	}
 	
 	///appends an entire GCode source file.
 	public void add(GCodeSource toAdd) {
-		add(toAdd.asList());
+		if (toAdd instanceof MutableGCodeSource || toAdd instanceof ArenaGCodeSource) {
+			lines = rope().concat(toRope(toAdd));
+		} else {
+			for (String line : toAdd)
+				add(line);
+		}
 	}
 	
 	///appends a list (array list, linked list, etc) 
 	public void add(Collection<String> toAdd) {
-		source.addAll(toAdd);
+		if (toAdd.size() < TAIL_LINES) {
+			for (String line : toAdd)
+				add(line);
+		} else {
+			lines = rope().concat(LineRope.of(toAdd.toArray(new String[toAdd.size()]), 0, toAdd.size()));
+		}
 	}
 	
 	/// inserts the passed line at specified location, 0 indexed.
 	public void add(int location, String line) {
-		source.add(location, line);
+		lines = rope().insert(location, LineRope.of(new String[] { line }, 0, 1));
 	}
 	
 	/// inserts the passed gcode at specified location, 0 indexed.
 	public void add(int location, GCodeSource toAdd) {
-		add(location, toAdd.asList());
+		lines = rope().insert(location, toRope(toAdd));
 	}
 	
 	/// inserts the passed collection (list, linked list, etc) at specified location, 0 indexed.
 	public void add(int location, Collection<String> toAdd) {
-		source.addAll(location, toAdd);
+		lines = rope().insert(location, LineRope.of(toAdd.toArray(new String[toAdd.size()]), 0, toAdd.size()));
 	}
 	
 	/// writes the gcode to file, no path expansion or file testing happens before write attempt.
 	public void writeToFile(File f) {
 
 		try {
-			FileWriter bwr = new FileWriter(f);
+			Writer bwr = new BufferedWriter(new FileWriter(f));
 
-			for (String s : source) {
-				bwr.write(s + "\n");
+			for (String s : this) {
+				bwr.write(s);
+				bwr.write('\n');
 			}
 			bwr.close();
 		} catch (IOException e) {
@@ -141,39 +185,18 @@ public class MutableGCodeSource implements GCodeSource {
 	/// Runs through this gcode file, swapping all references to the the current toolhead 
 	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
 	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
-		int value;
-		String line;
+		transform(GCodePipeline.changeToolhead(tool));
+	}
+	
+	/// Runs this gcode through the given stages in one pass, replacing it with the result.
+	public void transform(GCodePipeline.Stage... stages) {
+		GCodePipeline pipeline = new GCodePipeline();
+		for (GCodePipeline.Stage stage : stages)
+			pipeline.add(stage);
 		///FUTURE: create a synchronize block here someday
-		ArrayList<String> newSource = new ArrayList<String>(source.size());
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
-		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
-
-			if(gcode.hasCode('T'))
-			{
-				value = (int)gcode.getCodeValue('T');
-				if(value != tool.number)
-				{
-					if(value == 0)
-						line = line.replace("T0", "T1");
-					else if(value == 1)
-						line = line.replace("T1", "T0");
-				}
-			}
-			if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
-			{
-				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
-			}
-			if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
-			{
-				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
-			}
-			newSource.add(line);
-		}
-		
-		source = newSource;
+		MutableGCodeSource result = new MutableGCodeSource();
+		pipeline.run(this, result);
+		lines = result.rope();
 	}
 	
 	/**
@@ -183,8 +206,8 @@ public class MutableGCodeSource implements GCodeSource {
 	 */
 	public void coolUnusedToolhead()
 	{		
-		GCodeCommand gcode;
-		String line;
+		GCodeCommand gcode = new GCodeCommand();
+		CharSequence line;
 
 		double tval;
 		int additionPoint = 0;
@@ -193,10 +216,10 @@ public class MutableGCodeSource implements GCodeSource {
 		boolean seenT0 = false;
 		boolean seenT1 = false;
 		
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
+		for(Iterator<CharSequence> it = rope().sequenceIterator(); it.hasNext(); )
 		{
 			line = it.next();
-			gcode = new GCodeCommand(line);
+			gcode.parse(line);
 			
 			tval = gcode.getCodeValue('T');
 			
@@ -223,27 +246,7 @@ public class MutableGCodeSource implements GCodeSource {
 	/// by that layer via using line count
 	public void addSlic3rProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-		for(String line : source)
-		{
-			if( line.startsWith("(<layer>") )
-			{
-				int percentDone = (int)(index*100)/sourceSize;
-				if(percentDone == 0) percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		transform(GCodePipeline.slic3rProgressUpdates(getLineCount()));
 	}
 	// Footnote 1: The only 'M37 100' that should happen is part of the end.gcode, since 
 	// 'M73 100' sends an s3g 'BUILD_DONE', and more than 1 'BUILD_DONE' message 
@@ -255,39 +258,16 @@ public class MutableGCodeSource implements GCodeSource {
 	/// by that layer via using line count
 	public void addProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-    int last_percent = 0;
-		for(String line : source)
-		{
-      
-      int percentDone = (int)(index*100)/sourceSize;
-      if (percentDone != last_percent)
-			{
-				if(percentDone == 0)	percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-        last_percent = percentDone;
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		transform(GCodePipeline.progressUpdates(getLineCount()));
 	}
 
 
 	
-	/// Make a deep copy of this MutableGCodeSource and returns it to the caller.
+	/// Make a copy of this MutableGCodeSource and returns it to the caller.
+	/// The copy shares this one's lines, which never change, so it costs nothing.
 	public MutableGCodeSource copy() {
 		MutableGCodeSource newSource = new MutableGCodeSource();
-		for(String line : source)
-			newSource.add(new String(line));
+		newSource.lines = rope();
 		return newSource;
 	}
 }
@@ -0,0 +1,408 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.EstimationDriver.LayerTime;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Estimates build time by running chunks of a GCodeSource through their own
+ * GCodeParser and EstimationDriver on a thread pool.
+ *
+ * Chunks are split at layer tags where possible. Since every chunk but the
+ * first starts without knowing where the machine is, it first runs a short
+ * warm-up span of the preceding lines (enough to have seen every axis and a
+ * feedrate, and to fill the driver's planner), uncounted, to rebuild the machine state; positioning mode and
+ * units are taken from a quick scan of the whole file beforehand. Once all chunks are done
+ * the seams are checked in order: if the state a chunk warmed up to is not
+ * exactly the state the previous chunk ended in (position, feedrate,
+ * units, absolute/relative mode, tool, offsets and the moves waiting in the
+ * driver's acceleration planner), that chunk is re-run
+ * sequentially from the previous chunk's real state.
+ *
+ * Chunk times are summed in the driver's whole ticks, so the result is
+ * exactly the sequential estimate, however many threads there are. Files
+ * that never fully re-establish their state (relative positioning
+ * throughout, for example) fall back to a sequential estimate.
+ *
+ * Lines are taken from the source's ParsedGCode, so a source that has
+ * already been safety checked isn't parsed again, and neither is the build
+ * that follows.
+ *
+ * The time of each layer is kept too, from each chunk's own lines: a layer
+ * split across a seam is put back together, since the chunk after it warms
+ * up to the same layer height. See getLayerTimes().
+ */
+public class ParallelEstimator {
+	// Smaller sources aren't worth the thread pool
+	private static final int PARALLEL_THRESHOLD = 100000;
+	// How far past a nominal split point we look for a layer tag
+	private static final int SEAM_SEARCH_LINES = 20000;
+	// Upper bound on the number of lines replayed to warm up a chunk
+	private static final int MAX_WARMUP_LINES = 100000;
+	// Moves replayed to warm up a chunk, at least; several times the depth
+	// of any firmware planner, so the estimator's planner window fills with
+	// the same moves it would have had
+	private static final int MIN_WARMUP_MOVES = 128;
+	// Chunks per thread, to even out the load
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final MachineModel model;
+	private final int threads;
+
+	// of the last estimate
+	private List<LayerTime> layerTimes = new ArrayList<LayerTime>();
+
+	public ParallelEstimator(MachineModel model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelEstimator(MachineModel model, int threads) {
+		this.model = model;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Estimate the build time of the given source.
+	 * @return the build time in milliseconds
+	 */
+	public double estimate(GCodeSource source) {
+		if (threads < 2 || source.getLineCount() < PARALLEL_THRESHOLD)
+			return estimateSequential(source);
+
+		ParsedGCode parsed = ParsedGCode.of(source);
+		List<String> lines = source.asList();
+		if (!(lines instanceof RandomAccess))
+			lines = new ArrayList<String>(lines);
+
+		List<Chunk> chunks = split(parsed, lines, threads * CHUNKS_PER_THREAD);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Chunk>> results = new ArrayList<Future<Chunk>>(chunks.size());
+			for (Chunk chunk : chunks)
+				results.add(pool.submit(chunk));
+			for (Future<Chunk> result : results)
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return estimateSequential(source);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return reconcile(chunks);
+	}
+
+	/**
+	 * Estimate the build time of the given source on the calling thread.
+	 * @return the build time in milliseconds
+	 */
+	public double estimateSequential(GCodeSource source) {
+		Chunk chunk = new Chunk(ParsedGCode.of(source), null, 0, 0, 0);
+		int index = 0;
+		for (String line : source)
+			chunk.run(index++, line);
+		layerTimes = chunk.driver.getLayerTimes();
+		return chunk.driver.getBuildTime();
+	}
+
+	/**
+	 * The estimated time of each layer, as EstimationDriver.getLayerTimes()
+	 * gives it, from the last estimate.
+	 */
+	public List<LayerTime> getLayerTimes() {
+		return layerTimes;
+	}
+
+	// Walk the seams in order, summing chunk times and re-running any chunk whose warm-up went astray
+	private double reconcile(List<Chunk> chunks) {
+		Chunk verified = chunks.get(0);
+		long total = verified.ticks;
+		int reruns = 0;
+		List<LayerTime> layers = new ArrayList<LayerTime>();
+		mergeLayers(layers, verified.layers);
+
+		for (int i = 1; i < chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			if (new State(verified).equals(chunk.entry)) {
+				total += chunk.ticks;
+				mergeLayers(layers, chunk.layers);
+				verified = chunk;
+			} else {
+				long before = verified.driver.getPlannedTicks();
+				List<LayerTime> layersBefore = verified.driver.getLayerTimes();
+				for (int line = chunk.start; line < chunk.end; line++)
+					verified.run(line, chunk.lines.get(line));
+				total += verified.driver.getPlannedTicks() - before;
+				mergeLayers(layers, layersSince(layersBefore, verified.driver.getLayerTimes()));
+				reruns++;
+			}
+		}
+		layerTimes = layers;
+
+		if (Base.logger.isLoggable(Level.FINE))
+			Base.logger.fine("Estimated in " + chunks.size() + " chunks on " + threads
+					+ " threads, " + reruns + " chunks re-run sequentially");
+		// as EstimationDriver.getBuildTime() does it; the planner ends as it would have
+		return EstimationDriver.ticksToMillis(total) + verified.driver.getPendingTime();
+	}
+
+	/**
+	 * The time a driver spent on each layer between two calls to
+	 * getLayerTimes(), starting with the layer it was on at the first.
+	 * Anything added to the layers before that one (moves the planner was
+	 * still holding) is counted in it.
+	 */
+	private static List<LayerTime> layersSince(List<LayerTime> before, List<LayerTime> after) {
+		List<LayerTime> layers = new ArrayList<LayerTime>();
+		int first = Math.max(0, before.size() - 1);
+		double carried = 0;
+		for (int i = 0; i < after.size(); i++) {
+			double millis = after.get(i).getMillis() - (i < before.size() ? before.get(i).getMillis() : 0);
+			if (i < first) {
+				carried += millis;
+			} else {
+				layers.add(new LayerTime(after.get(i).getZ(), millis + carried));
+				carried = 0;
+			}
+		}
+		return layers;
+	}
+
+	// Add a chunk's layers to those before it; its first carries on the last if they're at the same height
+	private static void mergeLayers(List<LayerTime> layers, List<LayerTime> chunk) {
+		for (int i = 0; i < chunk.size(); i++) {
+			LayerTime layer = chunk.get(i);
+			int last = layers.size() - 1;
+			if (i == 0 && last >= 0 && layers.get(last).getZ() == layer.getZ())
+				layers.set(last, new LayerTime(layer.getZ(), layers.get(last).getMillis() + layer.getMillis()));
+			else
+				layers.add(layer);
+		}
+	}
+
+	private List<Chunk> split(ParsedGCode parsed, List<String> lines, int count) {
+		List<Chunk> chunks = new ArrayList<Chunk>(count);
+		int size = lines.size();
+		int start = 0;
+		for (int i = 1; i <= count && start < size; i++) {
+			int end = (i == count) ? size : findSeam(lines, (int) ((long) size * i / count));
+			if (end <= start)
+				continue;
+			chunks.add(new Chunk(parsed, lines, findWarmupStart(parsed, start), start, end));
+			start = end;
+		}
+		scanModes(parsed, chunks);
+		return chunks;
+	}
+
+	// Record the positioning mode and units in effect where each chunk's warm-up begins
+	private static void scanModes(ParsedGCode parsed, List<Chunk> chunks) {
+		boolean absoluteMode = false;
+		int units = GCodeParser.UNITS_MM;
+		int line = 0;
+		for (Chunk chunk : chunks) {
+			for (; line < chunk.warmupStart; line++) {
+				if (!parsed.hasCode(line, 'G'))
+					continue;
+				switch ((int) parsed.getCodeValue(line, 'G')) {
+				case 20:
+				case 70:
+					units = GCodeParser.UNITS_INCHES;
+					break;
+				case 21:
+				case 71:
+					units = GCodeParser.UNITS_MM;
+					break;
+				case 90:
+					absoluteMode = true;
+					break;
+				case 91:
+					absoluteMode = false;
+					break;
+				}
+			}
+			chunk.parser.absoluteMode = absoluteMode;
+			chunk.parser.units = units;
+		}
+	}
+
+	// The first layer tag at or after the nominal split point, or the split point itself
+	private static int findSeam(List<String> lines, int nominal) {
+		int limit = Math.min(lines.size(), nominal + SEAM_SEARCH_LINES);
+		for (int i = nominal; i < limit; i++) {
+			if (lines.get(i).startsWith("(<layer>"))
+				return i;
+		}
+		return nominal;
+	}
+
+	// Walk back from the seam until every axis and a feedrate have been set, roughly.
+	private static int findWarmupStart(ParsedGCode parsed, int seam) {
+		final String wanted = "XYZEF";
+		int seen = 0;
+		int moves = 0;
+		int limit = Math.max(0, seam - MAX_WARMUP_LINES);
+		int i = seam;
+		while (i > limit && (seen != (1 << wanted.length()) - 1 || moves < MIN_WARMUP_MOVES)) {
+			if (!parsed.hasCode(--i, 'G'))
+				continue;
+			moves++;
+			for (int j = 0; j < wanted.length(); j++) {
+				if (parsed.hasCode(i, wanted.charAt(j)))
+					seen |= 1 << j;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * A span of lines estimated with its own parser and driver.
+	 */
+	private class Chunk implements java.util.concurrent.Callable<Chunk> {
+		final ParsedGCode parsed;
+		final List<String> lines;
+		final int warmupStart;
+		final int start;
+		final int end;
+
+		final GCodeParser parser = new GCodeParser();
+		final EstimationDriver driver = new EstimationDriver();
+		final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+		final GCodeCommand gcode = new GCodeCommand();
+
+		// modal state after warm-up, and the time spent in [start, end), in all (in ticks) and by layer
+		State entry;
+		long ticks;
+		List<LayerTime> layers;
+
+		Chunk(ParsedGCode parsed, List<String> lines, int warmupStart, int start, int end) {
+			this.parsed = parsed;
+			this.lines = lines;
+			this.warmupStart = warmupStart;
+			this.start = start;
+			this.end = end;
+
+			// Drivers change the model (the tool selected, its temperatures), so each
+			// gets its own, copied here on the calling thread, as the XML can't be read from several
+			driver.setMachine(model.copy());
+			parser.init(driver);
+		}
+
+		void run(int index, String line) {
+			if (parsed.load(index, line, gcode))
+				parser.parse(gcode, queue);
+			else
+				parser.parse(line, queue);
+			for (DriverCommand command : queue) {
+				try {
+					command.run(driver);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// Estimate straight through halts, like Machine.estimate() does.
+				}
+			}
+			queue.clear();
+		}
+
+		public Chunk call() {
+			for (int i = warmupStart; i < start; i++)
+				run(i, lines.get(i));
+			entry = new State(this);
+
+			long before = driver.getPlannedTicks();
+			List<LayerTime> layersBefore = driver.getLayerTimes();
+			for (int i = start; i < end; i++)
+				run(i, lines.get(i));
+			ticks = driver.getPlannedTicks() - before;
+			layers = layersSince(layersBefore, driver.getLayerTimes());
+			return this;
+		}
+	}
+
+	/**
+	 * Everything about a parser and its driver that affects the time of the lines that follow.
+	 */
+	private static class State {
+		final boolean absoluteMode;
+		final int units;
+		final int tool;
+		final double parserFeedrate;
+		final double driverFeedrate;
+		final Point3d currentOffset;
+		final Point5d position;
+		final Point3d[] offsets = new Point3d[7];
+		final double[] plannerState;
+
+		State(Chunk chunk) {
+			GCodeParser parser = chunk.parser;
+			EstimationDriver driver = chunk.driver;
+
+			absoluteMode = parser.absoluteMode;
+			units = parser.units;
+			tool = parser.tool;
+			parserFeedrate = parser.feedrate;
+			driverFeedrate = driver.getCurrentFeedrate();
+			currentOffset = new Point3d(parser.currentOffset);
+			position = driver.positionLost() ? null : driver.getCurrentPosition(false);
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = new Point3d(driver.getOffset(i));
+			plannerState = driver.getPlannerState();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof State))
+				return false;
+			State other = (State) o;
+			if (absoluteMode != other.absoluteMode || units != other.units || tool != other.tool
+					|| parserFeedrate != other.parserFeedrate || driverFeedrate != other.driverFeedrate
+					|| !currentOffset.equals(other.currentOffset))
+				return false;
+			if (position == null || other.position == null) {
+				if (position != other.position)
+					return false;
+			} else {
+				for (int i = 0; i < 5; i++) {
+					if (position.get(i) != other.position.get(i))
+						return false;
+				}
+			}
+			for (int i = 0; i < offsets.length; i++) {
+				if (!offsets[i].equals(other.offsets[i]))
+					return false;
+			}
+			return Arrays.equals(plannerState, other.plannerState);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) Double.doubleToLongBits(parserFeedrate) ^ tool ^ units;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package replicatorg.app.gcode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+
+/**
+ * The codes of every line of a GCodeSource, parsed once and kept as a few
+ * flat arrays.
+ *
+ * Before a build the safety check, the time estimate and the build itself
+ * all go through every line of the job; this lets them share one parse. For
+ * each line there is an opcode (the GCodeEnumeration its first word names),
+ * a bitmask of the letter codes present, a bitmask of those that had a
+ * value, and the offset of its values, which are packed in letter order
+ * into one array of doubles. A line can be asked about directly, or loaded
+ * back into a GCodeCommand; where its comments are is only worked out if
+ * they're asked for.
+ *
+ * The line text isn't kept, so the source must stay around while this is
+ * used. Parsed sources are cached, weakly, against the source: of() gives
+ * the same ParsedGCode until the source is changed or let go of. A
+ * GCodeSourceCollection is parsed part by part, so the job in the middle of
+ * a build's start and end code is only parsed once.
+ */
+public final class ParsedGCode {
+
+	/** Opcode of a line without a command, or with one that starts with a space */
+	public static final int EMPTY = -1;
+	/** Opcode of a line whose first word isn't a code we know */
+	public static final int UNKNOWN = -2;
+	/** Opcode of a line GCodeCommand couldn't parse */
+	public static final int UNPARSEABLE = -3;
+
+	// Parts of collections at most this long are parsed on the spot by ifParsed()
+	private static final int SMALL_SOURCE_LINES = 1000;
+
+	private static final GCodeEnumeration[] GCODES = GCodeEnumeration.values();
+
+	private static final Map<GCodeSource, ParsedGCode> cache = new WeakHashMap<GCodeSource, ParsedGCode>();
+
+	private final int lineCount;
+	// What the source was when it was parsed, if it can change without its line count changing
+	private final Object version;
+
+	// One per line...
+	private final int[] opcodes;
+	private final int[] present;
+	private final int[] valued;
+	private final int[] valueStarts;
+	// ...and the values, in order of line then letter
+	private final double[] values;
+
+	// Or, for a collection, its parts and the line each starts at
+	private final ParsedGCode[] parts;
+	private final int[] partStarts;
+
+	private ParsedGCode(GCodeSource source) {
+		version = versionOf(source);
+		parts = null;
+		partStarts = null;
+
+		int capacity = source.getLineCount();
+		int[] opcodes = new int[capacity];
+		int[] present = new int[capacity];
+		int[] valued = new int[capacity];
+		int[] valueStarts = new int[capacity];
+		double[] values = new double[Math.max(16, capacity * 2)];
+
+		GCodeCommand gcode = new GCodeCommand();
+		Map<String, Integer> known = new HashMap<String, Integer>();
+		int count = 0;
+		int valueCount = 0;
+		Iterator<? extends CharSequence> lines = lines(source);
+		while (lines.hasNext()) {
+			CharSequence line = lines.next();
+			if (count == opcodes.length) {
+				int grown = Math.max(16, count * 2);
+				opcodes = Arrays.copyOf(opcodes, grown);
+				present = Arrays.copyOf(present, grown);
+				valued = Arrays.copyOf(valued, grown);
+				valueStarts = Arrays.copyOf(valueStarts, grown);
+			}
+			valueStarts[count] = valueCount;
+			try {
+				gcode.parse(line);
+			} catch (RuntimeException e) {
+				opcodes[count++] = UNPARSEABLE;
+				continue;
+			}
+			opcodes[count] = opcode(gcode.getFirstWord(), known);
+			present[count] = gcode.getPresentCodes();
+			int bits = gcode.getValuedCodes();
+			valued[count] = bits;
+			if (valueCount + 26 > values.length)
+				values = Arrays.copyOf(values, values.length * 2);
+			for (; bits != 0; bits &= bits - 1)
+				values[valueCount++] = gcode.getCodeValue((char) ('A' + Integer.numberOfTrailingZeros(bits)));
+			count++;
+		}
+
+		lineCount = count;
+		this.opcodes = (count == opcodes.length) ? opcodes : Arrays.copyOf(opcodes, count);
+		this.present = (count == present.length) ? present : Arrays.copyOf(present, count);
+		this.valued = (count == valued.length) ? valued : Arrays.copyOf(valued, count);
+		this.valueStarts = (count == valueStarts.length) ? valueStarts : Arrays.copyOf(valueStarts, count);
+		this.values = Arrays.copyOf(values, valueCount);
+	}
+
+	private ParsedGCode(ParsedGCode[] parts) {
+		this.parts = parts;
+		partStarts = new int[parts.length];
+		int count = 0;
+		for (int i = 0; i < parts.length; i++) {
+			partStarts[i] = count;
+			count += parts[i].lineCount;
+		}
+		lineCount = count;
+		version = null;
+		opcodes = null;
+		present = null;
+		valued = null;
+		valueStarts = null;
+		values = null;
+	}
+
+	// The lines of a source, without making Strings of them where that can be helped
+	private static Iterator<? extends CharSequence> lines(GCodeSource source) {
+		if (source instanceof MutableGCodeSource)
+			return ((MutableGCodeSource) source).rope().sequenceIterator();
+		return source.iterator();
+	}
+
+	private static Object versionOf(GCodeSource source) {
+		// A MutableGCodeSource's rope is never changed, only replaced
+		if (source instanceof MutableGCodeSource)
+			return ((MutableGCodeSource) source).rope();
+		return null;
+	}
+
+	// Look up the code a first word names; there are only ever a handful of different ones
+	private static int opcode(String word, Map<String, Integer> known) {
+		if (word.length() == 0)
+			return EMPTY;
+		Integer opcode = known.get(word);
+		if (opcode == null) {
+			GCodeEnumeration code = GCodeEnumeration.getGCode(word);
+			opcode = (code == null) ? UNKNOWN : code.ordinal();
+			known.put(word, opcode);
+		}
+		return opcode;
+	}
+
+	/**
+	 * The parsed lines of a source, parsing it if it hasn't been parsed since
+	 * it last changed.
+	 */
+	public static ParsedGCode of(GCodeSource source) {
+		ParsedGCode parsed = cached(source);
+		if (parsed != null)
+			return parsed;
+
+		if (source instanceof GCodeSourceCollection) {
+			List<GCodeSource> sources = ((GCodeSourceCollection) source).getSources();
+			ParsedGCode[] parts = new ParsedGCode[sources.size()];
+			for (int i = 0; i < parts.length; i++)
+				parts[i] = of(sources.get(i));
+			parsed = new ParsedGCode(parts);
+		} else {
+			parsed = new ParsedGCode(source);
+		}
+		synchronized (cache) {
+			cache.put(source, parsed);
+		}
+		return parsed;
+	}
+
+	/**
+	 * The parsed lines of a source if it has already been parsed, or null.
+	 * The small parts of a collection, like the start and end code around a
+	 * job, are parsed if need be.
+	 */
+	public static ParsedGCode ifParsed(GCodeSource source) {
+		ParsedGCode parsed = cached(source);
+		if (parsed != null || !(source instanceof GCodeSourceCollection))
+			return parsed;
+
+		for (GCodeSource part : ((GCodeSourceCollection) source).getSources()) {
+			if (part.getLineCount() > SMALL_SOURCE_LINES && ifParsed(part) == null)
+				return null;
+		}
+		return of(source);
+	}
+
+	private static ParsedGCode cached(GCodeSource source) {
+		ParsedGCode parsed;
+		synchronized (cache) {
+			parsed = cache.get(source);
+		}
+		if (parsed == null || parsed.lineCount != source.getLineCount()
+				|| parsed.version != versionOf(source))
+			return null;
+		if (parsed.parts != null) {
+			// A part may have changed since
+			List<GCodeSource> sources = ((GCodeSourceCollection) source).getSources();
+			for (int i = 0; i < parsed.parts.length; i++) {
+				if (cached(sources.get(i)) != parsed.parts[i])
+					return null;
+			}
+		}
+		return parsed;
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	// The part of a collection that holds a line
+	private int part(int index) {
+		int part = parts.length - 1;
+		while (partStarts[part] > index)
+			part--;
+		return part;
+	}
+
+	private void check(int index) {
+		if (index < 0 || index >= lineCount)
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+	}
+
+	/**
+	 * What the first word of a line is: the ordinal of a GCodeEnumeration,
+	 * or EMPTY, UNKNOWN or UNPARSEABLE.
+	 * @param index the line number, 0 indexed.
+	 */
+	public int getOpcode(int index) {
+		check(index);
+		if (parts != null) {
+			int part = part(index);
+			return parts[part].getOpcode(index - partStarts[part]);
+		}
+		return opcodes[index];
+	}
+
+	/**
+	 * The code the first word of a line names, or null if there isn't one.
+	 * @param index the line number, 0 indexed.
+	 */
+	public GCodeEnumeration getGCode(int index) {
+		int opcode = getOpcode(index);
+		return (opcode >= 0) ? GCODES[opcode] : null;
+	}
+
+	/**
+	 * As GCodeCommand.hasCode(); false for lines that couldn't be parsed.
+	 * @param index the line number, 0 indexed.
+	 */
+	public boolean hasCode(int index, char code) {
+		check(index);
+		if (parts != null) {
+			int part = part(index);
+			return parts[part].hasCode(index - partStarts[part], code);
+		}
+		int bit = code - 'A';
+		return bit >= 0 && bit < 26 && (present[index] & (1 << bit)) != 0;
+	}
+
+	/**
+	 * As GCodeCommand.getCodeValue(): -1 if the line doesn't have the code,
+	 * and 0 if the code had no value.
+	 * @param index the line number, 0 indexed.
+	 */
+	public double getCodeValue(int index, char code) {
+		if (!hasCode(index, code))
+			return -1;
+		if (parts != null) {
+			int part = part(index);
+			return parts[part].getCodeValue(index - partStarts[part], code);
+		}
+		int bit = 1 << (code - 'A');
+		int bits = valued[index];
+		if ((bits & bit) == 0)
+			return 0;
+		return values[valueStarts[index] + Integer.bitCount(bits & (bit - 1))];
+	}
+
+	/**
+	 * Load a line into a GCodeCommand, as if it had been parsed.
+	 * @param index the line number, 0 indexed.
+	 * @param line the text of the line, from the source; it's kept for the
+	 * command's comment and command strings
+	 * @return false if the line couldn't be parsed, in which case the command is left alone
+	 */
+	public boolean load(int index, CharSequence line, GCodeCommand into) {
+		check(index);
+		if (parts != null) {
+			int part = part(index);
+			return parts[part].load(index - partStarts[part], line, into);
+		}
+		if (opcodes[index] == UNPARSEABLE)
+			return false;
+		into.load(line, present[index], valued[index], values, valueStarts[index]);
+		return true;
+	}
+}
@@ -0,0 +1,26 @@
+package replicatorg.app.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of things that have happened. Safe to bump from any thread
+ * without taking a lock.
+ */
+public final class Counter {
+	private final AtomicLong count = new AtomicLong();
+
+	Counter() {
+	}
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long n) {
+		count.addAndGet(n);
+	}
+
+	public long get() {
+		return count.get();
+	}
+}
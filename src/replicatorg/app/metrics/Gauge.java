@@ -0,0 +1,10 @@
+package replicatorg.app.metrics;
+
+/**
+ * A value that is read when it's wanted, like the length of a queue, rather
+ * than recorded as it changes. Called from snapshot and JMX threads, so it
+ * must be safe to call from any thread, and quick.
+ */
+public interface Gauge {
+	double getValue();
+}
@@ -0,0 +1,147 @@
+package replicatorg.app.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The spread of a value, such as how long a packet took to be answered, in
+ * buckets whose width grows with the value, the way HdrHistogram does it.
+ *
+ * Values below 32 have a bucket each. Above that, each power of two is split
+ * into 32 buckets, so a percentile read back is within about 3% of the
+ * value recorded, from a nanosecond to centuries, in 15 KB. Recording is a
+ * few atomic adds and no lock, so it can be left on in a print; values below
+ * zero count as zero.
+ *
+ * By convention the name says the unit, as in "roundTripNanos".
+ */
+public final class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// The smallest value that goes in a bucket
+	static long lowestOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long top = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		return top << (exponent - SUB_BITS);
+	}
+
+	// The value a bucket stands for: the middle of it
+	static long valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		long lowest = lowestOf(bucket);
+		long width = 1L << (bucket / SUB_BUCKETS - 1);
+		return lowest + (width - 1) / 2;
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the values recorded so far. Values recorded while this is
+	 * being taken may or may not be in it.
+	 */
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = counts.get(i);
+			n += c[i];
+		}
+		return new Snapshot(c, n, sum.get(), max.get());
+	}
+
+	/**
+	 * The values in a histogram at some point.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double)sum / count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param percentile from 0 to 100
+		 * @return the value that this percentage of the values recorded are at
+		 * or below, to within a bucket; 0 if nothing has been recorded
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+			rank = Math.max(1, rank);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(valueOf(i), max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d, mean %.0f, 50%% %d, 90%% %d, 99%% %d, 99.9%% %d, max %d",
+					count, getMean(), getPercentile(50), getPercentile(90),
+					getPercentile(99), getPercentile(99.9), max);
+		}
+	}
+}
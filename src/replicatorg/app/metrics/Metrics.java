@@ -0,0 +1,166 @@
+package replicatorg.app.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import replicatorg.app.Base;
+
+/**
+ * Counters, gauges and histograms of what goes on in the hot paths: packets
+ * and their round trips, bytes over the serial line, lines built, events
+ * waiting for listeners.
+ *
+ * Metrics are kept in groups, one for each part of ReplicatorG, and are
+ * made once, up front, and kept in a static field by whatever records them:
+ * <pre>
+ *   static final Counter RETRIES = Metrics.counter("s3g", "retries");
+ * </pre>
+ * Recording takes no locks, so metrics are always on.
+ *
+ * Each group is published as an MBean, "replicatorg:type=Metrics,name=<i>group</i>",
+ * for JConsole and the like. snapshot() takes the value of every metric at
+ * once, and addSnapshotListener() has one taken every so often. If the
+ * "metrics.log_seconds" preference is set, a snapshot is logged that often;
+ * see startLogging().
+ */
+public final class Metrics {
+	private static final ConcurrentHashMap<String, MetricsGroup> groups = new ConcurrentHashMap<String, MetricsGroup>();
+
+	// Guarded by the map
+	private static final Map<MetricsSnapshot.Listener, ScheduledFuture<?>> listeners =
+		new HashMap<MetricsSnapshot.Listener, ScheduledFuture<?>>();
+	private static ScheduledExecutorService snapshotter = null;
+
+	private Metrics() {
+	}
+
+	private static MetricsGroup group(String name) {
+		MetricsGroup group = groups.get(name);
+		if (group != null) {
+			return group;
+		}
+		group = new MetricsGroup(name);
+		MetricsGroup existing = groups.putIfAbsent(name, group);
+		if (existing != null) {
+			return existing;
+		}
+		register(group);
+		return group;
+	}
+
+	private static void register(MetricsGroup group) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(group, new ObjectName("replicatorg:type=Metrics,name=" + group.getName()));
+		} catch (Exception e) {
+			// Still counted, just not published
+			Base.logger.log(Level.FINE, "Couldn't publish the " + group.getName() + " metrics", e);
+		}
+	}
+
+	/** @return the counter of this name in a group, made if need be */
+	public static Counter counter(String group, String name) {
+		return group(group).get(name, new Counter());
+	}
+
+	/** @return the histogram of this name in a group, made if need be */
+	public static Histogram histogram(String group, String name) {
+		return group(group).get(name, new Histogram());
+	}
+
+	/**
+	 * Add a gauge to a group, in place of any gauge of the same name.
+	 */
+	public static void gauge(String group, String name, Gauge gauge) {
+		group(group).putGauge(name, gauge);
+	}
+
+	/**
+	 * Take a gauge out of a group, if it is still the one of that name.
+	 */
+	public static void removeGauge(String group, String name, Gauge gauge) {
+		group(group).removeGauge(name, gauge);
+	}
+
+	/** @return the value of every metric */
+	public static MetricsSnapshot snapshot() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (MetricsGroup group : groups.values()) {
+			group.addTo(snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Have a snapshot taken and handed to a listener every so often, on a
+	 * thread kept for the purpose, until the listener is removed.
+	 */
+	public static void addSnapshotListener(final MetricsSnapshot.Listener listener, long periodMillis) {
+		synchronized (listeners) {
+			if (listeners.containsKey(listener)) {
+				return;
+			}
+			if (snapshotter == null) {
+				snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Metrics snapshots");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			Runnable task = new Runnable() {
+				private MetricsSnapshot previous = null;
+
+				public void run() {
+					MetricsSnapshot snapshot = snapshot();
+					try {
+						listener.snapshotTaken(snapshot, previous);
+					} catch (RuntimeException e) {
+						Base.logger.log(Level.WARNING, "Metrics snapshot listener failed", e);
+					}
+					previous = snapshot;
+				}
+			};
+			listeners.put(listener, snapshotter.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	public static void removeSnapshotListener(MetricsSnapshot.Listener listener) {
+		synchronized (listeners) {
+			ScheduledFuture<?> f = listeners.remove(listener);
+			if (f != null) {
+				f.cancel(false);
+			}
+		}
+	}
+
+	private static final MetricsSnapshot.Listener logger = new MetricsSnapshot.Listener() {
+		public void snapshotTaken(MetricsSnapshot snapshot, MetricsSnapshot previous) {
+			Base.logger.info("Metrics:\n" + snapshot.toString(previous));
+		}
+	};
+
+	/**
+	 * Log a snapshot every "metrics.log_seconds" seconds, if the preference
+	 * is set; or stop, if it isn't any more.
+	 */
+	public static void startLogging() {
+		int seconds = Base.preferences.getInt("metrics.log_seconds", 0);
+		removeSnapshotListener(logger);
+		if (seconds > 0) {
+			addSnapshotListener(logger, seconds * 1000L);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package replicatorg.app.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * The metrics of one part of ReplicatorG, such as "s3g" or "serial", and
+ * the MBean they are published through.
+ *
+ * Each counter and gauge is an attribute of the same name. Each histogram
+ * is a handful of attributes: name.count, name.mean, name.p50, name.p90,
+ * name.p99, name.p999 and name.max. All are read-only.
+ */
+class MetricsGroup implements DynamicMBean {
+	private static final String[] HISTOGRAM_STATS = { "count", "mean", "p50", "p90", "p99", "p999", "max" };
+
+	private final String name;
+	// Counter, Gauge or Histogram, by name
+	private final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+	MetricsGroup(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the metric of this name, which is added if there isn't one
+	 * @throws IllegalArgumentException if there is, and it isn't the same kind
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(String metric, T ifMissing) {
+		Object existing = metrics.putIfAbsent(metric, ifMissing);
+		if (existing == null) {
+			return ifMissing;
+		}
+		if (existing.getClass() != ifMissing.getClass()) {
+			throw new IllegalArgumentException(name + "." + metric + " is already a " + existing.getClass().getSimpleName());
+		}
+		return (T)existing;
+	}
+
+	void putGauge(String metric, Gauge gauge) {
+		Object existing = metrics.put(metric, gauge);
+		if (existing != null && !(existing instanceof Gauge)) {
+			metrics.put(metric, existing);
+			throw new IllegalArgumentException(name + "." + metric + " is already a " + existing.getClass().getSimpleName());
+		}
+	}
+
+	void removeGauge(String metric, Gauge gauge) {
+		metrics.remove(metric, gauge);
+	}
+
+	void addTo(MetricsSnapshot snapshot) {
+		for (Map.Entry<String, Object> e : metrics.entrySet()) {
+			String key = name + "." + e.getKey();
+			Object metric = e.getValue();
+			if (metric instanceof Counter) {
+				snapshot.put(key, (Counter)metric);
+			} else if (metric instanceof Histogram) {
+				snapshot.put(key, (Histogram)metric);
+			} else {
+				snapshot.put(key, (Gauge)metric);
+			}
+		}
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Object metric = metrics.get(attribute);
+		if (metric instanceof Counter) {
+			return ((Counter)metric).get();
+		}
+		if (metric instanceof Gauge) {
+			return ((Gauge)metric).getValue();
+		}
+		int dot = attribute.lastIndexOf('.');
+		if (dot > 0) {
+			metric = metrics.get(attribute.substring(0, dot));
+			if (metric instanceof Histogram) {
+				Histogram.Snapshot h = ((Histogram)metric).snapshot();
+				String stat = attribute.substring(dot + 1);
+				if (stat.equals("count")) return h.getCount();
+				if (stat.equals("mean")) return h.getMean();
+				if (stat.equals("max")) return h.getMax();
+				if (stat.equals("p50")) return h.getPercentile(50);
+				if (stat.equals("p90")) return h.getPercentile(90);
+				if (stat.equals("p99")) return h.getPercentile(99);
+				if (stat.equals("p999")) return h.getPercentile(99.9);
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// left out, as the interface asks
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		String[] names = metrics.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String metric : names) {
+			Object m = metrics.get(metric);
+			if (m instanceof Counter) {
+				attributes.add(new MBeanAttributeInfo(metric, "java.lang.Long", "counter", true, false, false));
+			} else if (m instanceof Gauge) {
+				attributes.add(new MBeanAttributeInfo(metric, "java.lang.Double", "gauge", true, false, false));
+			} else if (m instanceof Histogram) {
+				for (String stat : HISTOGRAM_STATS) {
+					String type = stat.equals("mean") ? "java.lang.Double" : "java.lang.Long";
+					attributes.add(new MBeanAttributeInfo(metric + "." + stat, type, "histogram " + stat, true, false, false));
+				}
+			}
+		}
+		return new MBeanInfo(getClass().getName(), "ReplicatorG " + name + " metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+}
@@ -0,0 +1,118 @@
+package replicatorg.app.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The value of every metric at some point, keyed "group.name".
+ *
+ * Rates come from two snapshots: see getRate().
+ */
+public final class MetricsSnapshot {
+	/**
+	 * Called with each snapshot taken every so often; see
+	 * Metrics.addSnapshotListener().
+	 */
+	public interface Listener {
+		/**
+		 * @param previous the snapshot taken for this listener last time, or
+		 * null for the first
+		 */
+		void snapshotTaken(MetricsSnapshot snapshot, MetricsSnapshot previous);
+	}
+
+	private final long nanos = System.nanoTime();
+	private final long time = System.currentTimeMillis();
+	private final Map<String, Long> counters = new TreeMap<String, Long>();
+	private final Map<String, Double> gauges = new TreeMap<String, Double>();
+	private final Map<String, Histogram.Snapshot> histograms = new TreeMap<String, Histogram.Snapshot>();
+
+	MetricsSnapshot() {
+	}
+
+	void put(String key, Counter counter) {
+		counters.put(key, counter.get());
+	}
+
+	void put(String key, Gauge gauge) {
+		gauges.put(key, gauge.getValue());
+	}
+
+	void put(String key, Histogram histogram) {
+		histograms.put(key, histogram.snapshot());
+	}
+
+	/** @return when this was taken, by System.currentTimeMillis() */
+	public long getTime() {
+		return time;
+	}
+
+	public Map<String, Long> getCounters() {
+		return Collections.unmodifiableMap(counters);
+	}
+
+	public Map<String, Double> getGauges() {
+		return Collections.unmodifiableMap(gauges);
+	}
+
+	public Map<String, Histogram.Snapshot> getHistograms() {
+		return Collections.unmodifiableMap(histograms);
+	}
+
+	/** @return a counter's value, or 0 if there's no such counter */
+	public long getCounter(String key) {
+		Long value = counters.get(key);
+		return value == null ? 0 : value;
+	}
+
+	/** @return a gauge's value, or NaN if there's no such gauge */
+	public double getGauge(String key) {
+		Double value = gauges.get(key);
+		return value == null ? Double.NaN : value;
+	}
+
+	/** @return a histogram, or null if there's no such histogram */
+	public Histogram.Snapshot getHistogram(String key) {
+		return histograms.get(key);
+	}
+
+	/**
+	 * @return how fast a counter went up between an earlier snapshot and
+	 * this one, per second; 0 if they were taken at the same time
+	 */
+	public double getRate(String key, MetricsSnapshot earlier) {
+		long elapsed = nanos - earlier.nanos;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return (getCounter(key) - earlier.getCounter(key)) * 1e9 / elapsed;
+	}
+
+	/**
+	 * @return every metric, a line each, with the rate of each counter since
+	 * an earlier snapshot, if there is one
+	 */
+	public String toString(MetricsSnapshot earlier) {
+		StringBuilder s = new StringBuilder();
+		for (Map.Entry<String, Long> e : counters.entrySet()) {
+			s.append(e.getKey()).append(": ").append(e.getValue());
+			if (earlier != null) {
+				s.append(String.format(" (%.1f/s)", getRate(e.getKey(), earlier)));
+			}
+			s.append('\n');
+		}
+		for (Map.Entry<String, Double> e : gauges.entrySet()) {
+			s.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+		}
+		for (Map.Entry<String, Histogram.Snapshot> e : histograms.entrySet()) {
+			s.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+		}
+		return s.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toString(null);
+	}
+}
@@ -2,10 +2,28 @@ package replicatorg.app.tools;
 
 /**
  * This is a Java implementation of the IButton/Maxim 8-bit CRC. Code ported
- * from the AVR-libc implementation, which is used on the RR3G end.
+ * from the AVR-libc implementation, which is used on the RR3G end.  The
+ * bit-at-a-time loop is run once per possible byte up front, so updating
+ * is a single table lookup.
  */
 public class IButtonCrc {
 
+	private static final byte[] TABLE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++) {
+				if ((crc & 0x01) != 0) {
+					crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+				} else {
+					crc = (crc >>> 1) & 0xff;
+				}
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -24,14 +42,18 @@ public class IButtonCrc {
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
+		crc = TABLE[(crc ^ data) & 0xff] & 0xff; // i loathe java's promotion rules
+	}
+
+	/**
+	 * Update the CRC with a run of sequential data.
+	 */
+	public void update(byte[] data, int offset, int length) {
+		int c = crc;
+		for (int i = offset; i < offset + length; i++) {
+			c = TABLE[(c ^ data[i]) & 0xff] & 0xff;
 		}
+		crc = c;
 	}
 
 	/**
@@ -532,8 +532,12 @@ public class DualStrusionWindow extends JFrame{
 		}
 		
 		DualStrusionConstruction dsConstruction = new DualStrusionConstruction(leftGcode, rightGcode, startSource, endSource, type, uWipe);
-		dsConstruction.combine();
-		dsConstruction.getCombinedFile().writeToFile(dest);
+		try {
+			dsConstruction.combine(dest);
+		} catch (IOException e) {
+			abort("Could not write the combined gcode to " + dest.getAbsolutePath() + ": " + e.getMessage());
+			return;
+		}
 		
 		//we want to have the mainwindow load the new code, now.
 		// that should happen here.
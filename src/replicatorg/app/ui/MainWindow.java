@@ -148,7 +148,9 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
 import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.MappedGCodeSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
 import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
@@ -2184,6 +2186,24 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 	
+	/**
+	 * Get the gcode to build. Large files that haven't been edited are streamed
+	 * straight from disk instead of being copied out of the editor line by line.
+	 */
+	private GCodeSource getBuildSource() {
+		BuildCode code = (build == null) ? null : build.getCode();
+		long threshold = Base.preferences.getInt("build.mappedSourceThresholdMB", 16) * 1024L * 1024L;
+		if (code != null && code.file != null && !code.isModified() && code.file.length() >= threshold) {
+			try {
+				return new MappedGCodeSource(code.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.WARNING, "Could not map " + code.file.getAbsolutePath()
+						+ ", building from the editor instead", e);
+			}
+		}
+		return new JEditTextAreaSource(textarea);
+	}
+
 	public void doBuild()
 	{
 		if (!machineLoader.isLoaded()) {
@@ -2206,7 +2226,7 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().buildDirect(getBuildSource());
 			//doing this check allows us to recover from pre-build stuff
 //			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
 //			{
@@ -2414,7 +2434,7 @@ ToolpathGenerator.GeneratorListener
 			// start our building thread.
 			buildStart = new Date();
 			machineLoader.getDriver().setBuildToFileVersion((getExtension(path).equals(".x3g")) ? 4 : 3);
-			machineLoader.getMachineInterface().buildToFile(new JEditTextAreaSource(textarea), path);
+			machineLoader.getMachineInterface().buildToFile(getBuildSource(), path);
 		}
 	}
 
@@ -264,7 +264,8 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			content.add(arcResolutionField);
 			String arcResolutionHelp = "<html><small><em>" +
 				"The arc resolution is the default segment length that the gcode parser will break arc codes <br>"+
-				"like G2 and G3 into.  Drivers that natively handle arcs will ignore this setting." +
+				"like G2 and G3 into.  Drivers that natively handle arcs will ignore this setting, <br>" +
+				"as will machines that give an arc tolerance." +
 				"</em></small></html>";
 			arcResolutionField.setToolTipText(arcResolutionHelp);
 			arcResolutionLabel.setToolTipText(arcResolutionHelp);
@@ -56,6 +56,7 @@ import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -69,6 +70,7 @@ import replicatorg.drivers.commands.SendBeep;
 import replicatorg.machine.MachineInterface;
 import replicatorg.machine.MachineListener;
 import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineTelemetry;
 import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
@@ -92,9 +94,11 @@ public class ControlPanelWindow extends JFrame implements
 
 //	protected Driver driver;
 
-	protected UpdateThread updateThread;
+	// Redraws the panels from the latest readings
+	protected Timer updateTimer;
 
-	protected PollThread pollThread;
+	// The readings the panels want kept fresh
+	protected Vector<MachineTelemetry.Subscription> subscriptions = new Vector<MachineTelemetry.Subscription>();
 
 	private static ControlPanelWindow instance = null;
 	
@@ -182,11 +186,23 @@ public class ControlPanelWindow extends JFrame implements
 		// addWindowFocusListener(this);
 		// addWindowStateListener(this);
 
-		// start our various threads.
-		updateThread = new UpdateThread(this);
-		updateThread.start();
-		pollThread = new PollThread(machine);
-		pollThread.start();
+		// ask for the readings we show, and keep manual controls going
+		MachineTelemetry telemetry = machine.getTelemetry();
+		subscriptions.add(telemetry.subscribe(MachineTelemetry.Query.POSITION, 1000));
+		subscriptions.add(telemetry.subscribe(MachineTelemetry.Query.TEMPERATURE, 1000));
+		subscriptions.add(telemetry.subscribe(MachineTelemetry.Query.MANUAL_CONTROL, 700));
+
+		updateTimer = new Timer(1000, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				try {
+					updateStatus();
+				} catch (AssertionError ae) {
+					// probaby disconnected unexpectedly; close window.
+					dispose();
+				}
+			}
+		});
+		updateTimer.start();
 	}
 
 	private JMenuItem makeHomeItem(String name,final EnumSet<AxisId> axes,final boolean positive) {
@@ -356,12 +372,21 @@ public class ControlPanelWindow extends JFrame implements
 		}
 	}
 	
+	// Stop redrawing and polling; safe to call more than once
+	private void stopUpdates() {
+		updateTimer.stop();
+		for (MachineTelemetry.Subscription s : subscriptions) {
+			s.cancel();
+		}
+		subscriptions.clear();
+	}
+
 	public void windowClosing(WindowEvent e) {
-		updateThread.interrupt();
-		pollThread.interrupt();
+		stopUpdates();
 	}
 
 	public void windowClosed(WindowEvent e) {
+		stopUpdates();
 		synchronized(getClass()) {
 			// TODO: add this back in.
 //			machine.removeMachineStateListener(this);
@@ -386,55 +411,6 @@ public class ControlPanelWindow extends JFrame implements
 	public void windowDeactivated(WindowEvent e) {
 	}
 
-	class PollThread extends Thread {
-		MachineInterface machine;
-
-		public PollThread(MachineInterface machine) {
-			super("Control Panel Poll Thread");
-
-			this.machine = machine;
-		}
-
-		public void run() {
-			// we'll break on interrupts
-			try {
-				while (true) {
-					machine.runCommand(new replicatorg.drivers.commands.UpdateManualControl());
-					// driver.readTemperature();
-					Thread.sleep(700);  // update every .7 s
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
-	class UpdateThread extends Thread {
-		ControlPanelWindow window;
-
-		public UpdateThread(ControlPanelWindow w) {
-			super("Control Panel Update Thread");
-
-			window = w;
-		}
-
-		public void run() {
-			// we'll break on interrupts
-			try {
-				while (true) {
-					try {
-						window.updateStatus();
-					} catch (AssertionError ae) {
-						// probaby disconnected unexpectedly; close window.
-						window.dispose();
-						break;
-					}
-					Thread.sleep(1000);
-				}
-			} catch (InterruptedException e) {
-			}
-		}
-	}
-
 	public void machineProgress(MachineProgressEvent event) {
 	}
 
@@ -442,10 +418,9 @@ public class ControlPanelWindow extends JFrame implements
 		MachineState state = evt.getState();
 		// TODO: Do we handle reset correctly?
 		if (state.isBuilding() || !state.isConnected()) {
-			if (updateThread != null) { updateThread.interrupt(); }
-			if (pollThread != null) { pollThread.interrupt(); }
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
+					stopUpdates();
 					dispose();
 				}
 			});
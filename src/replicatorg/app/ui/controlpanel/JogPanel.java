@@ -647,7 +647,10 @@ public class JogPanel extends JPanel implements ActionListener, MouseListener
 	private NumberFormat positionFormatter = Base.getLocalFormat();
 
 	synchronized public void updateStatus() {
-		Point5d current = machine.getDriverQueryInterface().getCurrentPosition(false);
+		Point5d current = machine.getTelemetry().getPosition();
+		if (current == null) {
+			return;
+		}
 
 		for (AxisId axis : machine.getModel().getAvailableAxes()) {
 			double v = current.axis(axis);
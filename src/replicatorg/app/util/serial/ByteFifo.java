@@ -1,63 +1,172 @@
 package replicatorg.app.util.serial;
 
 /**
- * Non-growable FIFO.  In theory we only need enough space for a single
- * packet.  Currently set at 1K.
+ * Non-growable FIFO for bytes received from a serial port.  It is a ring
+ * buffer whose size is a power of two, so positions wrap with a mask rather
+ * than a division.
+ *
+ * The FIFO is safe without locking as long as only one thread puts bytes in
+ * (enqueue) and only one thread takes them out (dequeue, read, feed,
+ * dequeueLine, clear) at a time.  Head and tail are counters that only ever
+ * grow; the writer publishes bytes by advancing the tail, and the reader
+ * frees space by advancing the head.
  * @author phooky
  *
  */
 public class ByteFifo {
-	final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
-	private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-	private int head = 0; 
-	private int tail = 0;
+	/**
+	 * Something that assembles frames (packets, lines) out of the bytes in a
+	 * FIFO.  The FIFO hands it bytes straight out of its own buffer, in one or
+	 * two contiguous runs, until it says the frame is complete.
+	 */
+	public interface FrameDecoder<E extends Exception> {
+		/**
+		 * Consume bytes from buf[off] to buf[off+len-1], stopping after the
+		 * byte that completes a frame, if there is one.  The bytes must be
+		 * copied if they are needed later.  If this throws, the bytes passed
+		 * in are discarded.
+		 * @return the number of bytes consumed
+		 */
+		int decode(byte[] buf, int off, int len) throws E;
+		/** @return true once a whole frame has been decoded */
+		boolean isComplete();
+		/** @return the fewest bytes that could complete the frame; at least 1 */
+		int bytesNeeded();
+	}
+
+	final static int DEFAULT_FIFO_SIZE = 4 * 1024; // 4 K
+
+	private final byte[] buffer;
+	private final int mask;
+	// total bytes ever taken out / put in
+	private volatile long head = 0;
+	private volatile long tail = 0;
 	/** the point our last new line search ended or the head if it has moved past that point. */
-	private int newLineSearchHead = head;
+	private long newLineSearchHead = 0;
+
+	public ByteFifo() {
+		this(DEFAULT_FIFO_SIZE);
+	}
+
+	/**
+	 * @param capacity the most bytes the fifo can hold; rounded up to a power of two
+	 */
+	public ByteFifo(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity));
+		if (size < capacity) size <<= 1;
+		buffer = new byte[size];
+		mask = size - 1;
+	}
 
-	final private int moduloLength(int value) {
-		if (value < 0) value += buffer.length;
-		value = value % buffer.length;
-		return value;
+	public int capacity() { return buffer.length; }
+	public int size() { return (int)(tail - head); }
+	public int free() { return buffer.length - size(); }
+
+	/**
+	 * Add a byte to the fifo.
+	 * @return false if the fifo is full, in which case the byte is dropped
+	 */
+	public boolean enqueue(byte b) {
+		long t = tail;
+		if (t - head == buffer.length) return false;
+		buffer[(int)t & mask] = b;
+		tail = t + 1;
+		return true;
 	}
-	public void enqueue(byte b) {
-		buffer[tail++] = b;
-		tail = moduloLength(tail);
+
+	/**
+	 * Add as many of the given bytes as there is room for.
+	 * @return the number of bytes added
+	 */
+	public int enqueue(byte[] bytes, int off, int len) {
+		long t = tail;
+		int n = Math.min(len, buffer.length - (int)(t - head));
+		int start = (int)t & mask;
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(bytes, off, buffer, start, first);
+		System.arraycopy(bytes, off + first, buffer, 0, n - first);
+		tail = t + n;
+		return n;
 	}
-	public void clear() { head = tail = 0; }
-	public int size() { return moduloLength(tail-head); }
+
+	/**
+	 * Throw away everything in the fifo.  Only the reading thread may call this.
+	 */
+	public void clear() { head = tail; }
+
+	/**
+	 * Take the next byte.  The fifo must not be empty.
+	 */
 	public byte dequeue() {
-		int nextHead = moduloLength(head+1);
-		if (newLineSearchHead == head) newLineSearchHead = nextHead;
-		
-		byte b = buffer[head];
-		head = nextHead;
+		long h = head;
+		byte b = buffer[(int)h & mask];
+		head = h + 1;
 		return b;
 	}
-	
+
+	/**
+	 * Take up to len bytes out of the fifo.
+	 * @return the number of bytes read, which is 0 if the fifo is empty
+	 */
+	public int read(byte[] bytes, int off, int len) {
+		long h = head;
+		int n = Math.min(len, (int)(tail - h));
+		int start = (int)h & mask;
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(buffer, start, bytes, off, first);
+		System.arraycopy(buffer, 0, bytes, off + first, n - first);
+		head = h + n;
+		return n;
+	}
+
 	/**
-	 * deques the byte array up to and including the first instance of a newline (\n) 
+	 * Feed the bytes in the fifo to a decoder, until it has a complete frame
+	 * or the fifo is empty.
+	 * @return the number of bytes consumed
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends Exception> int feed(FrameDecoder<E> decoder) throws E {
+		int consumed = 0;
+		while (!decoder.isComplete()) {
+			long h = head;
+			int available = (int)(tail - h);
+			if (available == 0) break;
+			int start = (int)h & mask;
+			int run = Math.min(available, buffer.length - start);
+			int n;
+			try {
+				n = decoder.decode(buffer, start, run);
+			} catch (Exception e) {
+				head = h + run;
+				throw (E)e;
+			}
+			head = h + n;
+			consumed += n;
+			if (n < run) break;
+		}
+		return consumed;
+	}
+
+	/**
+	 * deques the byte array up to and including the first instance of a newline (\n)
 	 * byte. If the \n character is not in the fifo a empty byte array is returned.
-	 * @param pattern
 	 * @return
 	 */
-	public synchronized byte[] dequeueLine() {
-		int i = newLineSearchHead;
-		while(i !=tail)
+	public byte[] dequeueLine() {
+		long t = tail;
+		long i = Math.max(newLineSearchHead, head);
+		while (i != t)
 		{
-			if (buffer[i] == (byte)'\n')
+			if (buffer[(int)i & mask] == (byte)'\n')
 			{
-				byte[] match = new byte[moduloLength( moduloLength(i+1) - head )];
-				int k = 0;
-				for ( int j = head; j != moduloLength(i+1); j = moduloLength(j+1) )
-				{
-					match[k++] = dequeue();
-				}
+				byte[] match = new byte[(int)(i + 1 - head)];
+				read(match, 0, match.length);
+				newLineSearchHead = head;
 				return match;
 			}
-
-			i = moduloLength(i+1);
+			i++;
 		}
 		newLineSearchHead = i;
 		return new byte[0];
 	}
-}
\ No newline at end of file
+}
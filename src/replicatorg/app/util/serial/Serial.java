@@ -44,6 +44,7 @@ import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.io.FileReader;
@@ -52,6 +53,8 @@ import java.io.BufferedReader;
 import replicatorg.app.Base;
 import replicatorg.app.exceptions.SerialException;
 import replicatorg.app.exceptions.UnknownSerialPortException;
+import replicatorg.app.metrics.Counter;
+import replicatorg.app.metrics.Metrics;
 
 
 public class Serial implements SerialPortEventListener {
@@ -62,6 +65,15 @@ public class Serial implements SerialPortEventListener {
 	 */
 	private static Set<Serial> portsInUse = new HashSet<Serial>();
 
+	// Over every port
+	private static final Counter bytesIn = Metrics.counter("serial", "bytesIn");
+	private static final Counter bytesOut = Metrics.counter("serial", "bytesOut");
+	private static final Counter bytesDropped = Metrics.counter("serial", "bytesDropped");
+	private static final Counter dataEvents = Metrics.counter("serial", "dataEvents");
+	// Times a reader blocked for bytes was woken
+	private static final Counter wakeups = Metrics.counter("serial", "wakeups");
+	private static final Counter readTimeouts = Metrics.counter("serial", "readTimeouts");
+
 	
 	/** True if the device is connected **/
 	private AtomicBoolean connected = new AtomicBoolean(false);
@@ -84,6 +96,11 @@ public class Serial implements SerialPortEventListener {
 	private int timeoutMillis = TIMEOUT_DEFAULT;            
 	
 	private ByteFifo readFifo = new ByteFifo();
+	// Only used by the serial event thread
+	private final byte[] receiveBuffer = new byte[256];
+	// The thread blocked in a read, if any, and how many bytes it's waiting for
+	private volatile Thread waitingReader = null;
+	private volatile int bytesWanted = 1;
 	
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
@@ -344,34 +361,54 @@ public class Serial implements SerialPortEventListener {
 	}
 	
 	/**
-	 * polls the readFifo for new bytes. If numberOfBytes bytes are received or the 
-	 * wait times out the method returns zero. If a interrupt exception is thrown 
-	 * the method returns -1.
+	 * Waits for the readFifo to hold at least numberOfBytes bytes. The
+	 * serial event thread wakes us once enough have arrived, rather than for
+	 * every byte. If numberOfBytes bytes are received or the wait times out
+	 * the method returns zero. If the thread is interrupted the method
+	 * returns -1.
 	 * @param numberOfBytes
 	 * @return
 	 */
 	private int waitForBytes(int numberOfBytes)
 	{
+		numberOfBytes = Math.min(numberOfBytes, readFifo.capacity());
+		if (readFifo.size() >= numberOfBytes) return 0;
+
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		bytesWanted = numberOfBytes;
+		// Publish ourselves before checking the fifo, so a byte that arrives
+		// in between still wakes us
+		waitingReader = Thread.currentThread();
 		try {
-			long to = System.currentTimeMillis() + timeoutMillis;
-			while (System.currentTimeMillis() < to && readFifo.size() < numberOfBytes)
-			{
-				/*
-				 * Wait until we timeout or a byte is received (which will notify this 
-				 * method). readFifo notifies for each byte received.
-				 */
-				synchronized (readFifo) {
-					readFifo.wait(timeoutMillis);
+			while (readFifo.size() < numberOfBytes) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) break;
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					// We are most likely amidst a shutdown.  Propagate the interrupt
+					// status.
+					Thread.currentThread().interrupt();
+					return -1;
 				}
 			}
-		} catch (InterruptedException e) {
-			// We are most likely amidst a shutdown.  Propagate the interrupt
-			// status.
-			Thread.currentThread().interrupt();
-			return -1;
+		} finally {
+			waitingReader = null;
 		}
 		return 0;
 	}
+
+	private void logReadTimeout() {
+		readTimeouts.increment();
+		// dial down timeout error reporting if timeoutMillis is set
+		// below the default.  In this case, the packets will time out
+		// frequently and messaging will flood the console
+		if(timeoutMillis < TIMEOUT_DEFAULT){
+			Base.logger.finest("Read timed out.");
+		}
+		else{
+			Base.logger.warning("Read timed out.");
+		}
+	}
 	
 	/**
 	 * Attempt to read a single byte.
@@ -381,22 +418,12 @@ public class Serial implements SerialPortEventListener {
  		//wait for the fifo to fill
 		if (waitForBytes(1) == -1) return -1;
 		//read the fifo
-		synchronized(readFifo) {
-			if (readFifo.size() > 0) {
-				byte b = readFifo.dequeue();
-				return b & 0xff; 
-			} else {
-				// dial down timeout error reporting if timeoutMillis is set
-				// below the default.  In this case, the packets will time out
-				// frequently and messaging will flood the console
-				if(timeoutMillis < TIMEOUT_DEFAULT){
-					Base.logger.finest("Read timed out.");
-				}
-				else{
-					Base.logger.warning("Read timed out.");
-				}
-				return -1;
-			}
+		if (readFifo.size() > 0) {
+			byte b = readFifo.dequeue();
+			return b & 0xff; 
+		} else {
+			logReadTimeout();
+			return -1;
 		}
 	}
 
@@ -412,12 +439,35 @@ public class Serial implements SerialPortEventListener {
  		//wait for the fifo to fill
 		if (waitForBytes(bytes.length) == -1) return -1;
 		//read the fifo
-		synchronized(readFifo) {
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
+		return readFifo.read(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Read whatever has arrived, up to len bytes, waiting until at least
+	 * one byte is available or the timeout is exceeded.
+	 * @return the number of bytes read, 0 on a timeout, or -1 if interrupted.
+	 */
+	public int read(byte bytes[], int off, int len) {
+		if (waitForBytes(1) == -1) return -1;
+		return readFifo.read(bytes, off, len);
+	}
+
+	/**
+	 * Read until the decoder has a complete frame (a packet, say). The
+	 * decoder is handed the received bytes in blocks, straight out of the
+	 * read buffer, and we only wake up once it could have enough of them.
+	 * The timeout applies to each wait for more bytes.
+	 * @return true if the frame is complete; false on a timeout or interrupt.
+	 */
+	public <E extends Exception> boolean readFrame(ByteFifo.FrameDecoder<E> decoder) throws E {
+		while (true) {
+			readFifo.feed(decoder);
+			if (decoder.isComplete()) return true;
+			if (waitForBytes(decoder.bytesNeeded()) == -1) return false;
+			if (readFifo.size() == 0) {
+				logReadTimeout();
+				return false;
 			}
-			return idx;
 		}
 	}
 
@@ -430,6 +480,7 @@ public class Serial implements SerialPortEventListener {
 		try {
 			output.write(bytes);
 			output.flush(); // Reconsider?
+			bytesOut.add(bytes.length);
 
 		} catch (Exception e) { // null pointer or serial port dead
 			Base.logger.severe( "serial error: \n" + e.getMessage() );
@@ -485,7 +536,6 @@ public class Serial implements SerialPortEventListener {
 			} catch (InterruptedException e) {
 			}
 			readFifo.clear();
-			readFifo.notifyAll();
 			if (maxEats == 0) {
 				throw new RuntimeException("Much more data than expected; check your serial line and reset your machine!");
 			}
@@ -499,41 +549,60 @@ public class Serial implements SerialPortEventListener {
 
 	public void serialEvent(SerialPortEvent event) {
 		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
-		synchronized (readFifo) {
-			try {
-				while (true) {
-					synchronized(input)
-					{
-						if (input.available() == 0)
-						{
-							return;
-						}
-					}
+		dataEvents.increment();
+		try {
+			while (true) {
+				int available;
+				synchronized(input)
+				{
+					available = input.available();
+				}
+				if (available == 0)
+				{
+					return;
+				}
 
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
+				int n = input.read(receiveBuffer, 0, Math.min(available, receiveBuffer.length));
+				if (n <= 0) {
+					return;
+				}
+				bytesIn.add(n);
+				int queued = readFifo.enqueue(receiveBuffer, 0, n);
+				if (queued < n) {
+					bytesDropped.add(n - queued);
+					Base.logger.warning("Serial read buffer full; dropped " + (n - queued) + " bytes.");
+				}
+				// wake the reader once it has what it's waiting for
+				Thread reader = waitingReader;
+				if (reader != null && readFifo.size() >= bytesWanted) {
+					wakeups.increment();
+					LockSupport.unpark(reader);
+				}
+				SerialFifoEventListener l = listener.get();
+				if (l != null) {
+					synchronized (readFifo) {
+						// Let the listener take what it wants, a line at a time say
+						int before;
+						do {
+							before = readFifo.size();
 							l.serialByteReceivedEvent(readFifo);
+						} while (readFifo.size() > 0 && readFifo.size() < before);
 					}
 				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				if (connected.get()) {
-					Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
-//					connected.set(false);
-					// TODO: How do we tell rxtx that we're done using this port?
-					dispose();
-				}
+			}
+		} catch (IOException e) {
+			// Error condition
+			// e.printStackTrace();
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.  Until
+			// we have a plan for how to respond to the user when the
+			// connection drops, we'll just let this silently fail, and set
+			// a fail bit.
+			if (connected.get()) {
+				Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
+//				connected.set(false);
+				// TODO: How do we tell rxtx that we're done using this port?
+				dispose();
 			}
 		}
 	}
@@ -2,7 +2,9 @@ package replicatorg.app.util.serial;
 
 public interface SerialFifoEventListener {
 	/**
-	 * Called by serial when a byte is received and queued in the fifo.
+	 * Called by serial when bytes are received and queued in the fifo.
+	 * Several bytes may have arrived since the last call; serial calls again
+	 * for as long as each call takes something out and bytes remain.
 	 * The fifo is synchronzied for the period of this call so it will not be 
 	 * modified by any external threads.
 	 * @param fifo
@@ -0,0 +1,262 @@
+/*
+ AccelerationPlanner.java
+
+ Simulates the look-ahead planner of accelerated firmware, for estimating.
+
+ Part of the ReplicatorG project - http://www.replicat.org
+
+ This program is free software; you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation; either version 2 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software Foundation,
+ Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package replicatorg.drivers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Times moves the way an accelerated firmware (Sailfish, Jetty) executes
+ * them: each move is a trapezoid (accelerate, cruise, decelerate), and the
+ * speed at the junction between two moves is limited by the junction
+ * deviation, or by the per-axis maximum speed change if no deviation is set.
+ *
+ * Like the firmware, the planner only looks ahead over a window of moves the
+ * size of the firmware's buffer, and assumes the machine has to stop at the
+ * end of that window. A move is timed once it drops out of the window; the
+ * moves still in the window are timed as if the build ended there.
+ */
+class AccelerationPlanner {
+	/** A single queued move. Speeds are in mm/s, lengths in mm. */
+	private static class Block {
+		double length;
+		double nominalSpeed;
+		double acceleration;
+		double maxEntrySpeed;
+		double entrySpeed;
+		// direction of travel, per axis, relative to length
+		final double[] unit = new double[5];
+		boolean moves3D;
+		int layer;
+	}
+
+	private final EstimationDriver owner;
+
+	private final Point5d axisAccelerations;
+	private final Point5d axisSpeedChanges;
+	private final double accelerationRate;
+	private final double junctionDeviation;
+	private final double minimumSpeed;
+	private final int bufferSize;
+
+	private final List<Block> window = new ArrayList<Block>();
+	// the most recently queued block, or null after the machine has stopped
+	private Block last = null;
+
+	AccelerationPlanner(EstimationDriver owner, MachineModel machine) {
+		this.owner = owner;
+		axisAccelerations = machine.getMaximumAccelerations();
+		axisSpeedChanges = machine.getMaximumSpeedChanges();
+		accelerationRate = machine.getAccelerationRate();
+		junctionDeviation = machine.getJunctionDeviation();
+		minimumSpeed = machine.getMinimumPlannerSpeed();
+		bufferSize = Math.max(1, machine.getPlannerBufferSize());
+	}
+
+	/**
+	 * Queue a move.
+	 * @param delta the signed distance moved on each axis, in mm
+	 * @param feedrate the speed of the move, in mm/min
+	 * @param layer the layer the move's time is charged to
+	 */
+	void add(Point5d delta, double feedrate, int layer) {
+		Block b = new Block();
+
+		double length = delta.get3D().distance(new Point3d());
+		b.moves3D = length > 0;
+		if (!b.moves3D)
+			length = Math.max(Math.abs(delta.a()), Math.abs(delta.b()));
+		if (length <= 0 || feedrate <= 0)
+			return;
+
+		b.length = length;
+		b.nominalSpeed = feedrate / 60.0;
+		b.layer = layer;
+
+		// The slowest axis, scaled to how much of the move it covers, limits the acceleration
+		b.acceleration = accelerationRate > 0 ? accelerationRate : Double.POSITIVE_INFINITY;
+		for (int i = 0; i < 5; i++) {
+			b.unit[i] = delta.get(i) / length;
+			double share = Math.abs(b.unit[i]);
+			if (share > 0 && axisAccelerations.get(i) > 0)
+				b.acceleration = Math.min(b.acceleration, axisAccelerations.get(i) / share);
+		}
+
+		// The window is only empty when the machine is at rest, so a block
+		// that starts it enters at 0; replan() fills in the others.
+		b.maxEntrySpeed = junctionSpeed(last, b);
+		window.add(b);
+		last = b;
+
+		replan();
+		while (window.size() > bufferSize)
+			retire();
+	}
+
+	/**
+	 * Run every queued move to a stop, as the firmware does before a dwell.
+	 */
+	void flush() {
+		while (!window.isEmpty())
+			retire();
+		last = null;
+	}
+
+	/**
+	 * Add the time of the moves still in the window to the given per-layer
+	 * times, assuming the machine stops after the last one.
+	 * @return the total time of those moves in milliseconds
+	 */
+	double pendingTime(double[] layerTimes) {
+		double total = 0;
+		for (int i = 0; i < window.size(); i++) {
+			Block b = window.get(i);
+			double exit = (i + 1 < window.size()) ? window.get(i + 1).entrySpeed : 0;
+			double millis = 1000.0 * travelTime(b, b.entrySpeed, exit);
+			if (layerTimes != null)
+				layerTimes[b.layer] += millis;
+			total += millis;
+		}
+		return total;
+	}
+
+	/**
+	 * Everything that affects the time of the moves that follow, for telling
+	 * whether two planners are in the same state.
+	 */
+	double[] getState() {
+		double[] state = new double[1 + (last == null ? 0 : 6) + 5 * window.size()];
+		int n = 0;
+		state[n++] = window.size();
+		if (last != null) {
+			for (int i = 0; i < 5; i++)
+				state[n++] = last.unit[i];
+			state[n++] = last.nominalSpeed;
+		}
+		for (Block b : window) {
+			state[n++] = b.length;
+			state[n++] = b.nominalSpeed;
+			state[n++] = b.acceleration;
+			state[n++] = b.maxEntrySpeed;
+			state[n++] = b.entrySpeed;
+		}
+		return state;
+	}
+
+	// Time the oldest block, now that the speed it exits at is settled
+	private void retire() {
+		Block b = window.remove(0);
+		double exit = window.isEmpty() ? 0 : window.get(0).entrySpeed;
+		owner.addPlannedTime(b.layer, 1000.0 * travelTime(b, b.entrySpeed, exit));
+	}
+
+	// The fastest the machine may pass from one block to the next
+	private double junctionSpeed(Block prev, Block next) {
+		if (prev == null)
+			return 0;
+		double limit = Math.min(prev.nominalSpeed, next.nominalSpeed);
+
+		double speed;
+		if (!prev.moves3D || !next.moves3D) {
+			// extruder-only moves (retracts) start and end at rest
+			speed = minimumSpeed;
+		} else if (junctionDeviation > 0) {
+			double cosTheta = -(prev.unit[0] * next.unit[0] + prev.unit[1] * next.unit[1]
+					+ prev.unit[2] * next.unit[2]);
+			if (cosTheta > 0.999999) {
+				// reversing
+				speed = minimumSpeed;
+			} else if (cosTheta < -0.999999) {
+				// straight on
+				speed = limit;
+			} else {
+				double sinHalfTheta = Math.sqrt(0.5 * (1.0 - cosTheta));
+				speed = Math.sqrt(next.acceleration * junctionDeviation * sinHalfTheta
+						/ (1.0 - sinHalfTheta));
+			}
+		} else {
+			// Scale down until no axis changes speed by more than it's allowed to
+			speed = limit;
+			boolean limited = false;
+			for (int i = 0; i < 5; i++) {
+				double maxChange = axisSpeedChanges.get(i);
+				if (maxChange <= 0)
+					continue;
+				limited = true;
+				double change = Math.abs(next.unit[i] - prev.unit[i]) * limit;
+				if (change > maxChange)
+					speed = Math.min(speed, limit * maxChange / change);
+			}
+			// Nothing known about the junctions; assume the worst
+			if (!limited)
+				speed = minimumSpeed;
+		}
+		return Math.min(limit, Math.max(speed, minimumSpeed));
+	}
+
+	// Recompute the entry speeds of the window; the first block's entry speed is already committed.
+	private void replan() {
+		// Backwards: every block must be able to slow to the next one, and the last to a stop
+		double next = 0;
+		for (int i = window.size() - 1; i > 0; i--) {
+			Block b = window.get(i);
+			b.entrySpeed = Math.min(b.maxEntrySpeed, reachable(next, b.acceleration, b.length));
+			next = b.entrySpeed;
+		}
+		// Forwards: and no block can enter faster than the previous one could accelerate to
+		for (int i = 1; i < window.size(); i++) {
+			Block prev = window.get(i - 1);
+			Block b = window.get(i);
+			b.entrySpeed = Math.min(b.entrySpeed, reachable(prev.entrySpeed, prev.acceleration, prev.length));
+		}
+	}
+
+	private static double reachable(double speed, double acceleration, double length) {
+		return Math.sqrt(speed * speed + 2.0 * acceleration * length);
+	}
+
+	/**
+	 * The time taken by a trapezoidal (or, if it's too short to reach its
+	 * nominal speed, triangular) move, in seconds.
+	 */
+	private static double travelTime(Block b, double entry, double exit) {
+		double a = b.acceleration;
+		double v = b.nominalSpeed;
+		if (Double.isInfinite(a))
+			return b.length / v;
+
+		double accelDistance = (v * v - entry * entry) / (2.0 * a);
+		double decelDistance = (v * v - exit * exit) / (2.0 * a);
+		if (accelDistance + decelDistance <= b.length)
+			return (v - entry) / a + (v - exit) / a + (b.length - accelDistance - decelDistance) / v;
+
+		double peak = Math.sqrt((2.0 * a * b.length + entry * entry + exit * exit) / 2.0);
+		peak = Math.max(peak, Math.max(entry, exit));
+		return (peak - entry) / a + (peak - exit) / a;
+	}
+}
@@ -24,14 +24,67 @@
 package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.vecmath.Point3d;
 
+import replicatorg.app.Base;
+import replicatorg.app.metrics.Counter;
+import replicatorg.app.metrics.Metrics;
 import replicatorg.util.Point5d;
 
+/**
+ * Estimates build time by adding up the time each move takes.
+ *
+ * By default each move is assumed to run at its full feedrate, plus a fixed
+ * overhead for sending the command. If the machine model describes the
+ * firmware's acceleration (see MachineModel.hasAcceleration()), moves are
+ * timed with an AccelerationPlanner instead, unless the
+ * "build.estimator.acceleration" preference is turned off.
+ *
+ * Time is also broken down by layer; a new layer starts at the first move
+ * that extrudes at a new height.
+ */
 public class EstimationDriver extends DriverBaseImplementation implements InteractiveDisplay{
-	// build time in milliseconds
-	private double buildTime = 0.0;
+	/**
+	 * The estimated time spent on one layer.
+	 */
+	public static class LayerTime {
+		private final double z;
+		private final double millis;
+
+		public LayerTime(double z, double millis) {
+			this.z = z;
+			this.millis = millis;
+		}
+
+		/** The height the layer is extruded at, in mm */
+		public double getZ() { return z; }
+
+		/** Time spent on the layer, in milliseconds */
+		public double getMillis() { return millis; }
+	}
+
+	// Over every estimate
+	private static final Counter moves = Metrics.counter("estimation", "moves");
+	private static final Counter dwells = Metrics.counter("estimation", "dwells");
+
+	// A tick is about a nanosecond; see getPlannedTicks()
+	private static final double TICKS_PER_MILLI = 1 << 20;
+
+	// build time in ticks, not counting moves still in the planner
+	private long buildTicks = 0;
+
+	// the height and time of each layer so far
+	private double[] layerHeights = new double[64];
+	private double[] layerTimes = new double[64];
+	private int layerCount = 0;
+
+	// null until the first move, and if the machine has no acceleration settings
+	private AccelerationPlanner planner = null;
+	private boolean plannerChecked = false;
 
 	// the length of our last move.
 	private double moveLength = 0.0;
@@ -41,13 +94,17 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	public EstimationDriver() {
 		super();
 
-		buildTime = 0.0;
+		buildTicks = 0;
 	}
 
 	public Rectangle2D.Double getBounds() { return bounds; }
 	
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		dwells.increment();
+		// The firmware finishes every queued move before it dwells
+		if (planner != null)
+			planner.flush();
+		addTime((double) millis / 1000);
 	}
 
 	protected Point5d reconcilePosition() {
@@ -61,8 +118,23 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	 * @throws RetryException 
 	 */
 	public void queuePoint(Point5d p) throws RetryException {
+		moves.increment();
+		if (!plannerChecked) {
+			plannerChecked = true;
+			if (getMachine().hasAcceleration()
+					&& Base.preferences.getBoolean("build.estimator.acceleration", true))
+				planner = new AccelerationPlanner(this, getMachine());
+		}
+
+		Point5d signedDelta = new Point5d();
+		signedDelta.sub(p, getCurrentPosition(false));
 		Point5d delta = getDelta(p);
 
+		// Extruding at a new height starts a new layer
+		if ((signedDelta.a() > 0 || signedDelta.b() > 0) && (delta.x() > 0 || delta.y() > 0)
+				&& (layerCount == 0 || p.z() != layerHeights[layerCount - 1]))
+			startLayer(p.z());
+
 		// add to the total length
 		moveLength = delta.get3D().distance(new Point3d());
 
@@ -76,20 +148,92 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 
 		bounds.add(p.x(),p.y());
 		
-		// add it in!
-		if (millis > 0) {
+		if (planner != null) {
+			planner.add(signedDelta, feedrate, currentLayer());
+		} else if (millis > 0) {
+			// add it in!
 			//Take into account the time it takes to send a command!
 			millis = millis + 12;
 			
-			buildTime = buildTime + millis;
+			addTime(millis);
 //			System.out.println(moveLength + "mm at " + feedrate + " takes " + Math.round(millis) + " millis (" + buildTime + "	total).");
 		}
 		
 		setInternalPosition(p);
 	}
 
+	/** The estimated build time, in milliseconds */
 	public double getBuildTime() {
-		return buildTime;
+		return ticksToMillis(buildTicks) + getPendingTime();
+	}
+
+	/**
+	 * The estimated time of the moves the planner is done with, in ticks of
+	 * about a nanosecond. Ticks are whole numbers, so they add up exactly: a
+	 * build estimated in pieces, as ParallelEstimator does it, comes to the
+	 * same time as one estimated all at once.
+	 */
+	public long getPlannedTicks() {
+		return buildTicks;
+	}
+
+	/** The estimated time of the moves still in the planner, in milliseconds */
+	public double getPendingTime() {
+		return planner == null ? 0.0 : planner.pendingTime(null);
+	}
+
+	public static double ticksToMillis(long ticks) {
+		return ticks / TICKS_PER_MILLI;
+	}
+
+	/**
+	 * The estimated build time of each layer, in the order they're built.
+	 * Anything before the first layer (homing, warming up, purging) is
+	 * counted as a layer of its own.
+	 */
+	public List<LayerTime> getLayerTimes() {
+		double[] times = Arrays.copyOf(layerTimes, Math.max(layerCount, 1));
+		if (planner != null)
+			planner.pendingTime(times);
+
+		List<LayerTime> layers = new ArrayList<LayerTime>(layerCount);
+		for (int i = 0; i < layerCount; i++)
+			layers.add(new LayerTime(layerHeights[i], times[i]));
+		return layers;
+	}
+
+	/**
+	 * The state of the acceleration planner, as an opaque array: two drivers
+	 * whose planner states are equal will estimate the same time for the same
+	 * moves. Empty if the planner isn't in use.
+	 */
+	public double[] getPlannerState() {
+		return planner == null ? new double[0] : planner.getState();
+	}
+
+	// called by the planner as it finishes timing each move
+	void addPlannedTime(int layer, double millis) {
+		buildTicks += Math.round(millis * TICKS_PER_MILLI);
+		layerTimes[layer] += millis;
+	}
+
+	private void addTime(double millis) {
+		buildTicks += Math.round(millis * TICKS_PER_MILLI);
+		layerTimes[currentLayer()] += millis;
+	}
+
+	private int currentLayer() {
+		if (layerCount == 0)
+			startLayer(getCurrentPosition(false).z());
+		return layerCount - 1;
+	}
+
+	private void startLayer(double z) {
+		if (layerCount == layerHeights.length) {
+			layerHeights = Arrays.copyOf(layerHeights, layerCount * 2);
+			layerTimes = Arrays.copyOf(layerTimes, layerCount * 2);
+		}
+		layerHeights[layerCount++] = z;
 	}
 
 	static public String getBuildTimeString(double tempTime) {
@@ -0,0 +1,31 @@
+package replicatorg.drivers.commands;
+
+import java.util.Iterator;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+/**
+ * Queues a series of points, made only as they are sent, such as the
+ * segments of an arc. If the driver asks for a retry part way through, the
+ * next run carries on from the point that wasn't taken.
+ */
+public class QueuePoints implements DriverCommand {
+	private final Iterator<Point5d> points;
+	private Point5d pending = null;
+
+	public QueuePoints(Iterator<Point5d> points) {
+		this.points = points;
+	}
+
+	@Override
+	public void run(Driver driver) throws RetryException {
+		while (pending != null || points.hasNext()) {
+			if (pending == null)
+				pending = points.next();
+			driver.queuePoint(pending);
+			pending = null;
+		}
+	}
+}
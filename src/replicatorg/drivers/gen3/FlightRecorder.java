@@ -0,0 +1,255 @@
+package replicatorg.drivers.gen3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Level;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import replicatorg.app.Base;
+
+/**
+ * Keeps the last of the s3g traffic, every packet written and every response
+ * read with the System.nanoTime() it happened at, so that when a print
+ * stutters or fails there is a record of what went over the wire.
+ *
+ * Records go into a ring buffer of "replicatorg.s3g.flight_recorder_kb"
+ * kilobytes (a megabyte by default; 0 turns recording off), the oldest
+ * making way for the newest. Recording a packet is a copy into the ring
+ * under a short lock, cheap enough to leave on, unlike printDebugData().
+ *
+ * The ring is written out as a FlightRecording when the driver gives up on
+ * a packet or loses the serial line (no more than once a minute), and on
+ * demand with dump(), which is also an operation of the
+ * "replicatorg:type=FlightRecorder" MBean. Recordings go in the flight
+ * directory of the user directory.
+ */
+public final class FlightRecorder {
+	/** The operations published over JMX. */
+	public interface Control {
+		/** @return the path of the recording written */
+		String dump() throws IOException;
+
+		long getRecords();
+
+		int getBytes();
+	}
+
+	// type, length and time
+	private static final int HEADER_BYTES = 1 + 2 + 8;
+	private static final long ERROR_DUMP_INTERVAL_MILLIS = 60 * 1000;
+
+	private static final FlightRecorder recorder =
+		new FlightRecorder(Base.preferences.getInt("replicatorg.s3g.flight_recorder_kb", 1024) * 1024);
+
+	static {
+		try {
+			Control control = new Control() {
+				public String dump() throws IOException {
+					return FlightRecorder.dump().getPath();
+				}
+
+				public long getRecords() {
+					return recorder.getRecordCount();
+				}
+
+				public int getBytes() {
+					return recorder.getUsed();
+				}
+			};
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(control, Control.class),
+					new ObjectName("replicatorg:type=FlightRecorder"));
+		} catch (Exception e) {
+			Base.logger.log(Level.FINE, "Couldn't publish the flight recorder", e);
+		}
+	}
+
+	// null if recording is off
+	private final byte[] ring;
+	// everything below is guarded by this
+	private int head = 0;
+	private int used = 0;
+	private long records = 0;
+	private long lastErrorDump = 0;
+
+	private FlightRecorder(int capacity) {
+		ring = capacity > 0 ? new byte[capacity] : null;
+	}
+
+	static void packetSent(byte[] packet) {
+		recorder.add(FlightRecording.OUT, packet, packet.length);
+	}
+
+	static void responseReceived(PacketResponse response) {
+		byte[] payload = response.getPayload();
+		recorder.add(FlightRecording.IN, payload, payload == null ? 0 : payload.length);
+	}
+
+	static void timedOut() {
+		recorder.add(FlightRecording.TIMEOUT, null, 0);
+	}
+
+	static void badCrc() {
+		recorder.add(FlightRecording.BAD_CRC, null, 0);
+	}
+
+	static void noise() {
+		recorder.add(FlightRecording.NOISE, null, 0);
+	}
+
+	private void add(int type, byte[] data, int length) {
+		if (ring == null || HEADER_BYTES + length > ring.length)
+			return;
+		synchronized (this) {
+			// taken under the lock, so records are in time order
+			long now = System.nanoTime();
+			while (ring.length - used < HEADER_BYTES + length)
+				dropOldest();
+			int at = (head + used) % ring.length;
+			at = put(at, (byte) type);
+			at = put(at, (byte) (length >> 8));
+			at = put(at, (byte) length);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				at = put(at, (byte) (now >> shift));
+			for (int i = 0; i < length; i++)
+				at = put(at, data[i]);
+			used += HEADER_BYTES + length;
+			records++;
+		}
+	}
+
+	private int put(int at, byte b) {
+		ring[at] = b;
+		return at + 1 == ring.length ? 0 : at + 1;
+	}
+
+	private int get(int offset) {
+		return ring[(head + offset) % ring.length] & 0xff;
+	}
+
+	private void dropOldest() {
+		int length = (get(1) << 8) | get(2);
+		int size = HEADER_BYTES + length;
+		head = (head + size) % ring.length;
+		used -= size;
+	}
+
+	private synchronized long getRecordCount() {
+		return records;
+	}
+
+	private synchronized int getUsed() {
+		return used;
+	}
+
+	// The ring, oldest record first
+	private synchronized byte[] copy() {
+		byte[] copy = new byte[used];
+		int first = Math.min(used, ring.length - head);
+		System.arraycopy(ring, head, copy, 0, first);
+		System.arraycopy(ring, 0, copy, first, used - first);
+		return copy;
+	}
+
+	/**
+	 * Write what has been recorded as a FlightRecording.
+	 */
+	public static void dump(OutputStream stream) throws IOException {
+		byte[] copy = recorder.ring == null ? new byte[0] : recorder.copy();
+		long nowNanos = System.nanoTime();
+		long nowMillis = System.currentTimeMillis();
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.write(FlightRecording.MAGIC);
+		out.writeByte(FlightRecording.VERSION);
+		long first = copy.length == 0 ? nowNanos : readLong(copy, 3);
+		out.writeLong(nowMillis - (nowNanos - first) / 1000000);
+
+		long previous = first;
+		int at = 0;
+		while (at < copy.length) {
+			int type = copy[at];
+			int length = ((copy[at + 1] & 0xff) << 8) | (copy[at + 2] & 0xff);
+			long nanos = readLong(copy, at + 3);
+			out.writeByte(type);
+			writeVarint(out, nanos - previous);
+			writeVarint(out, length);
+			out.write(copy, at + HEADER_BYTES, length);
+			previous = nanos;
+			at += HEADER_BYTES + length;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write what has been recorded to a new file in the flight directory.
+	 * @return the file written
+	 */
+	public static File dump() throws IOException {
+		File dir = new File(Base.getUserDirectory(), "flight");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Couldn't create " + dir);
+		String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		File file = new File(dir, "s3g-" + name + ".s3gr");
+		for (int i = 2; file.exists(); i++)
+			file = new File(dir, "s3g-" + name + "-" + i + ".s3gr");
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			dump(out);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Dump the recording, on a thread of its own so as not to hold up the
+	 * driver, unless one was dumped for an error in the last minute.
+	 */
+	static void dumpOnError(final String why) {
+		if (recorder.ring == null)
+			return;
+		synchronized (recorder) {
+			long now = System.currentTimeMillis();
+			if (now - recorder.lastErrorDump < ERROR_DUMP_INTERVAL_MILLIS)
+				return;
+			recorder.lastErrorDump = now;
+		}
+		Thread t = new Thread("Flight recording dump") {
+			public void run() {
+				try {
+					File file = dump();
+					Base.logger.info(why + "; the s3g traffic before it is in " + file);
+				} catch (IOException e) {
+					Base.logger.log(Level.WARNING, "Couldn't write the flight recording", e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static long readLong(byte[] b, int at) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = (value << 8) | (b[at + i] & 0xff);
+		return value;
+	}
+
+	private static void writeVarint(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+}
@@ -0,0 +1,139 @@
+package replicatorg.drivers.gen3;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A flight recording read back from a file: the packets that went to the bot
+ * and what came back, with the time of each. See FlightRecorder for how
+ * one is made, and ReplayDriver for what can be done with it.
+ *
+ * The file is "S3GR", a version byte, and the wall-clock time of the first
+ * record in milliseconds (8 bytes, big-endian). Then come the records, oldest
+ * first, each of them:
+ * <pre>
+ *   type         1 byte: OUT, IN, TIMEOUT, BAD_CRC or NOISE
+ *   time         varint: nanoseconds since the record before it
+ *   length       varint
+ *   data         the packet, for OUT; the response payload, for IN
+ * </pre>
+ * A varint is 7 bits to a byte, least significant first, with the top bit
+ * set on every byte but the last.
+ */
+public final class FlightRecording {
+	static final byte[] MAGIC = { 'S', '3', 'G', 'R' };
+	static final int VERSION = 1;
+
+	/** A packet written, start byte to CRC */
+	public static final int OUT = 1;
+	/** A response received; its payload, starting with the response code */
+	public static final int IN = 2;
+	/** No response in time */
+	public static final int TIMEOUT = 3;
+	/** A response that failed its CRC */
+	public static final int BAD_CRC = 4;
+	/** A byte that should have started a response and didn't */
+	public static final int NOISE = 5;
+
+	public static final class Record {
+		private final int type;
+		private final long nanos;
+		private final byte[] data;
+
+		Record(int type, long nanos, byte[] data) {
+			this.type = type;
+			this.nanos = nanos;
+			this.data = data;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		/** @return nanoseconds since the first record */
+		public long getNanos() {
+			return nanos;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	private final long startTime;
+	private final List<Record> records;
+
+	private FlightRecording(long startTime, List<Record> records) {
+		this.startTime = startTime;
+		this.records = Collections.unmodifiableList(records);
+	}
+
+	/** @return when the first record was made, by System.currentTimeMillis() */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public List<Record> getRecords() {
+		return records;
+	}
+
+	public static FlightRecording read(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static FlightRecording read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i])
+				throw new IOException("Not a flight recording");
+		}
+		int version = in.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Can't read version " + version + " flight recordings");
+		long startTime = in.readLong();
+
+		List<Record> records = new ArrayList<Record>();
+		long nanos = 0;
+		int type;
+		while ((type = in.read()) != -1) {
+			if (type < OUT || type > NOISE)
+				throw new IOException("Bad record type " + type + " after " + records.size() + " records");
+			nanos += readVarint(in);
+			long length = readVarint(in);
+			if (length > PacketBuilder.MAX_PACKET_LENGTH + 3)
+				throw new IOException("Record of " + length + " bytes after " + records.size() + " records");
+			byte[] data = new byte[(int) length];
+			in.readFully(data);
+			records.add(new Record(type, nanos, data));
+		}
+		return new FlightRecording(startTime, records);
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException("Flight recording cut short");
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Bad varint in flight recording");
+	}
+}
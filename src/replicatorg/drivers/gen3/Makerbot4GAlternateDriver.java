@@ -266,10 +266,12 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				enableStepperExtruderFan(true);
 			}
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
+		PacketBuilder pb = PacketBuilder.reusable(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
 
-		Base.logger.finer("Queued new-style point " + steps + " over "
-					+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
+		if (Base.logger.isLoggable(Level.FINER)) {
+			Base.logger.finer("Queued new-style point " + steps + " over "
+						+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
+		}
 
 
 		// just add them in now.
@@ -281,7 +283,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		pb.add32((int) us);
 		pb.add8((int) relative);
 
-		runCommand(pb.getPacket());
+		runCommand(pb.getSharedPacket());
 	}
 
 	protected void queueNewExtPoint(Point5d steps, long dda_rate, int relative, float distance, float feedrate) throws RetryException {
@@ -294,12 +296,14 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				enableStepperExtruderFan(true);
 			}
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
+		PacketBuilder pb = PacketBuilder.reusable(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
 
-		Base.logger.finer("Queued new-style extended point " + steps + " over "
-					+ Long.toString(dda_rate) + " steps per sec., relative " + Integer.toString(relative)
-					+ ", distance " + Float.toString(distance)
-					+ ", feedrate " + Float.toString(feedrate));
+		if (Base.logger.isLoggable(Level.FINER)) {
+			Base.logger.finer("Queued new-style extended point " + steps + " over "
+						+ Long.toString(dda_rate) + " steps per sec., relative " + Integer.toString(relative)
+						+ ", distance " + Float.toString(distance)
+						+ ", feedrate " + Float.toString(feedrate));
+		}
 
 		// just add them in now.
 		pb.add32((int) steps.x());
@@ -312,7 +316,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		pb.addFloat(distance);
 		pb.add16((int) (feedrate * 64.0));
 
-		runCommand(pb.getPacket());
+		runCommand(pb.getSharedPacket());
 	}
 	
 	/**
@@ -111,7 +111,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 			}
 		}
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
+		PacketBuilder pb = PacketBuilder.reusable(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
@@ -126,7 +126,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		pb.add32((int) steps.b());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb.getSharedPacket());
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -153,7 +153,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 
 	protected Point5d reconcilePosition() {
 		// If we're writing to a file, we can't actually know what the current position is.
-		if (fileCaptureOstream != null) {
+		if (fileCapture != null) {
 			return null;
 		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_POSITION_EXT.getCode());
@@ -366,7 +366,8 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	    acceleratedFirmware = getAccelerationStatus() != 0;
 	    if(acceleratedFirmware)
 	        Base.logger.finest("Found accelerated firmware active");
-	    
+	    if(acceleratedFirmware && !hasJettyAcceleration())
+	        loadAccelerationSettings();
 	}
 
 	
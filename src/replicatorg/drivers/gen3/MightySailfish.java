@@ -527,7 +527,8 @@ public class MightySailfish extends Makerbot4GAlternateDriver
 	    acceleratedFirmware = getAccelerationStatus() != 0;
 	    if(acceleratedFirmware)
 	        Base.logger.finest("Found accelerated firmware active");
-	    
+	    if(acceleratedFirmware)
+	        loadAccelerationSettings();
 	}
 
 	
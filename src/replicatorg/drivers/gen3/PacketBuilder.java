@@ -17,6 +17,18 @@ public class PacketBuilder implements PacketConstants {
 
 	IButtonCrc crc = new IButtonCrc();
 
+	// Completed packets handed out by getSharedPacket(), by length
+	private byte[][] sharedPackets;
+
+	private static final ThreadLocal<PacketBuilder> perThread = new ThreadLocal<PacketBuilder>() {
+		protected PacketBuilder initialValue() {
+			return new PacketBuilder();
+		}
+	};
+
+	private PacketBuilder() {
+	}
+
 	/**
 	 * Start building a new command packet.
 	 * 
@@ -26,10 +38,34 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
+		reset(command);
+	}
+
+	/**
+	 * Get this thread's builder and start a new command packet in it. For
+	 * packets sent many times a second (moves), so that building them
+	 * allocates nothing; use getSharedPacket() to complete them.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	static PacketBuilder reusable(int command) {
+		return perThread.get().reset(command);
+	}
+
+	/**
+	 * Throw away whatever has been built and start a new command packet.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	PacketBuilder reset(int command) {
 		idx = 2;
+		crc.reset();
 		data[0] = START_BYTE;
 		// data[1] = length; // just to avoid confusion
 		add8((byte) command);
+		return this;
 	}
 
 	/**
@@ -112,4 +148,23 @@ public class PacketBuilder implements PacketConstants {
 		return rv;
 	}
 
+	/**
+	 * Complete the packet into an array owned by this builder, which is
+	 * overwritten by the next packet of the same length. Only for packets
+	 * that are sent before this builder is used again.
+	 * 
+	 * @return a byte array representing the completed packet.
+	 */
+	byte[] getSharedPacket() {
+		data[idx] = crc.getCrc();
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		if (sharedPackets == null)
+			sharedPackets = new byte[MAX_PACKET_LENGTH + 1][];
+		byte[] rv = sharedPackets[idx + 1];
+		if (rv == null)
+			rv = sharedPackets[idx + 1] = new byte[idx + 1];
+		System.arraycopy(data, 0, rv, 0, idx + 1);
+		return rv;
+	}
+
 }
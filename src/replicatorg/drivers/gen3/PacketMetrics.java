@@ -0,0 +1,29 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.app.metrics.Counter;
+import replicatorg.app.metrics.Histogram;
+import replicatorg.app.metrics.Metrics;
+
+/**
+ * The "s3g" metrics: what happened to the packets sent, one at a time by
+ * Sanguino3GDriver.runCommand() or through a PacketPipeline.
+ */
+final class PacketMetrics {
+	/** packets written, counting each time one is sent again */
+	static final Counter PACKETS = Metrics.counter("s3g", "packets");
+	/** from writing a packet to having its whole response */
+	static final Histogram ROUND_TRIP = Metrics.histogram("s3g", "roundTripNanos");
+	/** packets sent again, whatever the reason */
+	static final Counter RETRIES = Metrics.counter("s3g", "retries");
+	static final Counter CRC_ERRORS = Metrics.counter("s3g", "crcErrors");
+	static final Counter BAD_START_BYTES = Metrics.counter("s3g", "badStartBytes");
+	/** responses that didn't come in time */
+	static final Counter READ_TIMEOUTS = Metrics.counter("s3g", "readTimeouts");
+	static final Counter BUFFER_OVERFLOWS = Metrics.counter("s3g", "bufferOverflows");
+	static final Counter BOT_RX_TIMEOUTS = Metrics.counter("s3g", "botRxTimeouts");
+	/** any other response that isn't OK */
+	static final Counter ERROR_RESPONSES = Metrics.counter("s3g", "errorResponses");
+
+	private PacketMetrics() {
+	}
+}
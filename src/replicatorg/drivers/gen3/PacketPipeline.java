@@ -0,0 +1,442 @@
+package replicatorg.drivers.gen3;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+import replicatorg.drivers.gen3.PacketProcessor.PacketNoiseException;
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandType;
+
+/**
+ * Sends s3g packets without waiting for the response to each one before
+ * sending the next.
+ *
+ * Up to <i>window</i> packets may be in flight at once. A reader thread
+ * matches responses to packets in the order they were sent. Action commands
+ * (command codes with the high bit set) return as soon as they are written;
+ * their responses are checked by the reader thread. Queries wait for their
+ * response, which arrives after those of every packet sent before them.
+ *
+ * With more than one packet in flight, a command the bot rejects could be
+ * overtaken by the ones sent after it. To keep that from happening, the
+ * pipeline keeps a count of the free space in the bot's command buffer,
+ * asking for it with GET_BUFFER_SIZE when it runs short, and only sends
+ * action commands that will fit. If there isn't room, or the window is
+ * full, send() throws RetryException, so the machine thread can get on with
+ * other work and come back. Firmware that doesn't answer GET_BUFFER_SIZE
+ * gets one packet at a time.
+ *
+ * Should the bot still reject an action command with BUFFER_OVERFLOW or
+ * BOT_RX_TIMEDOUT, the pipeline stops sending, lets the packets in flight
+ * drain, then re-sends the rejected ones in their original order.
+ *
+ * A corrupt response is handled the same way: the packet it answered is held
+ * back to be sent again, and the responses to the packets after it are
+ * still read, since the bot got those and may well have run them. Only when
+ * nothing comes back in time is every packet in flight sent again. As with
+ * the stop-and-wait sender, a command whose response was lost may then run
+ * twice; with more than one packet in flight, it may also run after
+ * commands sent behind it, which is logged.
+ */
+class PacketPipeline {
+	/**
+	 * The connection to the bot.
+	 */
+	interface Link {
+		void write(byte[] packet);
+		/** @return the next byte received, or -1 if none arrived before the timeout */
+		int read();
+		/** Discard anything received but not yet read */
+		void clear();
+	}
+
+	// How long send() waits for a free slot before asking for a retry
+	private static final long SEND_WAIT_MILLIS = 20;
+	// How long to let the bot drain its buffer before re-sending rejected commands
+	private static final long BACKOFF_MILLIS = 10;
+	// After a corrupt response, how many bad start bytes to skip before blaming the next packet
+	private static final int NOISE_SKIP = PacketBuilder.MAX_PACKET_LENGTH + 3;
+
+	private static class Request {
+		final byte[] packet;
+		final CommandType commandType;
+		final boolean logOperationalErrors;
+		// action commands aren't waited for
+		final boolean async;
+		int retries;
+		// System.nanoTime() when last written
+		long sentAt;
+
+		boolean done = false;
+		boolean retry = false;
+		PacketResponse response;
+
+		Request(byte[] packet, int retries, CommandType commandType, boolean logOperationalErrors) {
+			this.retries = retries;
+			this.commandType = commandType;
+			this.logOperationalErrors = logOperationalErrors;
+			this.async = commandType == CommandType.COMMAND && (packet[2] & 0x80) != 0;
+			// The caller may re-use the packet (see PacketBuilder.getSharedPacket())
+			// once send() returns, which is before an action command is answered
+			this.packet = async ? packet.clone() : packet;
+		}
+	}
+
+	private final Link link;
+	private final Sanguino3GDriver driver;
+	private int window;
+
+	// everything below is guarded by this
+	private final LinkedList<Request> inFlight = new LinkedList<Request>();
+	// rejected commands, and those whose response was lost, waiting for the packets in flight to drain
+	private final LinkedList<Request> rejected = new LinkedList<Request>();
+	private boolean running = true;
+	// bytes known to be free in the bot's command buffer
+	private long credit = 0;
+
+	private final Thread reader;
+
+	/**
+	 * @param driver handles error responses; may be null, in which case they are just returned
+	 */
+	PacketPipeline(Link link, Sanguino3GDriver driver, int window) {
+		this.link = link;
+		this.driver = driver;
+		this.window = Math.max(1, window);
+
+		reader = new Thread("s3g packet reader") {
+			public void run() {
+				readResponses();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	synchronized int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Send a packet, with the same semantics as Sanguino3GDriver.runCommand().
+	 * @return the bot's response, or an OK response for action commands
+	 * @throws RetryException if the bot isn't taking commands right now; send it again later
+	 */
+	PacketResponse send(byte[] packet, int retries, CommandType commandType, boolean logOperationalErrors)
+			throws RetryException {
+		Request request = new Request(packet, retries, commandType, logOperationalErrors);
+		// the bot buffers the payload of each action command
+		int size = packet[1] & 0xff;
+
+		if (request.async && getWindow() > 1 && !haveCredit(size)) {
+			updateCredit();
+			if (!haveCredit(size))
+				throw new RetryException();
+		}
+
+		try {
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + SEND_WAIT_MILLIS;
+				while (running && (!rejected.isEmpty() || inFlight.size() >= window)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (request.async && remaining <= 0)
+						throw new RetryException();
+					wait(request.async ? remaining : 0);
+				}
+				if (!running)
+					return PacketResponse.timeoutResponse();
+
+				// write while holding the lock, so packets go out in the order they're queued
+				inFlight.addLast(request);
+				write(request);
+				if (request.async)
+					credit -= size;
+				if (driver != null)
+					driver.printDebugData("OUT", packet);
+				// wake the reader, if it was idle
+				notifyAll();
+
+				if (request.async)
+					return PacketResponse.okResponse();
+
+				while (!request.done)
+					wait();
+			}
+		} catch (InterruptedException e) {
+			// Leave the request to the reader, and let the caller wind down
+			Thread.currentThread().interrupt();
+			return new PacketResponse();
+		}
+
+		if (request.retry)
+			throw new RetryException();
+		return request.response;
+	}
+
+	private synchronized boolean haveCredit(int size) {
+		return credit >= size;
+	}
+
+	// Ask the bot how much room it has; it answers after every packet sent before
+	private void updateCredit() throws RetryException {
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		PacketResponse pr = send(pb.getPacket(), Sanguino3GDriver.DEFAULT_RETRIES, CommandType.QUERY, false);
+		synchronized (this) {
+			if (pr.isOK()) {
+				credit = pr.get32() & 0xffffffffL;
+			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED) {
+				Base.logger.warning("Bot can't report its buffer size; sending one packet at a time");
+				window = 1;
+			}
+		}
+	}
+
+	/**
+	 * Wait until every packet sent has been answered.
+	 * @return false if interrupted
+	 */
+	boolean drain() {
+		try {
+			synchronized (this) {
+				while (running && (!inFlight.isEmpty() || !rejected.isEmpty()))
+					wait();
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Stop the reader thread. Anyone still waiting on a response gets a timeout.
+	 */
+	void close() {
+		synchronized (this) {
+			running = false;
+			for (Request r : inFlight)
+				complete(r, PacketResponse.timeoutResponse());
+			for (Request r : rejected)
+				complete(r, PacketResponse.timeoutResponse());
+			inFlight.clear();
+			rejected.clear();
+			notifyAll();
+		}
+		reader.interrupt();
+	}
+
+	private void readResponses() {
+		PacketProcessor pp = new PacketProcessor();
+		// what's left of a corrupt response isn't blamed on the packets after it
+		int skip = 0;
+		while (true) {
+			// With nothing in flight a read could only time out, and one that
+			// started before a packet was written could time out too soon for it
+			synchronized (this) {
+				try {
+					while (running && inFlight.isEmpty() && rejected.isEmpty())
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!running)
+					return;
+			}
+
+			if (readyToResend()) {
+				// Give the bot a moment to make room
+				try {
+					Thread.sleep(BACKOFF_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				resendRejected();
+			}
+
+			long readAt = System.nanoTime();
+			int b = link.read();
+			Request head;
+			synchronized (this) {
+				if (!running)
+					return;
+				head = inFlight.peek();
+			}
+			if (head == null) {
+				// Nothing expected; either idle, or noise
+				pp.reset();
+				continue;
+			}
+
+			if (b == -1) {
+				pp.reset();
+				// The read's timeout only counts for a packet written before it began
+				if (head.sentAt - readAt < 0) {
+					skip = 0;
+					timedOut(head);
+				}
+				continue;
+			}
+
+			try {
+				if (pp.processByte((byte) b)) {
+					PacketResponse pr = pp.getResponse();
+					pp.reset();
+					skip = 0;
+					responded(head, pr);
+				}
+			} catch (CRCException e) {
+				pp.reset();
+				PacketMetrics.CRC_ERRORS.increment();
+				FlightRecorder.badCrc();
+				if (head.logOperationalErrors)
+					Base.logger.severe("Bad CRC received; retries remaining: " + Integer.toString(head.retries));
+				skip = NOISE_SKIP;
+				lost(head, true);
+			} catch (PacketNoiseException e) {
+				pp.reset();
+				PacketMetrics.BAD_START_BYTES.increment();
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				FlightRecorder.noise();
+				if (head.logOperationalErrors)
+					Base.logger.severe("Bad Start Byte received; retries remaining: " + Integer.toString(head.retries));
+				skip = NOISE_SKIP;
+				lost(head, true);
+			}
+		}
+	}
+
+	private void timedOut(Request head) {
+		PacketMetrics.READ_TIMEOUTS.increment();
+		FlightRecorder.timedOut();
+		boolean retry = true;
+		if (head.commandType == CommandType.QUERY) {
+			retry = false;
+		} else if (head.retries > 1) {
+			if (head.logOperationalErrors)
+				Base.logger.severe("Read timed out; retries remaining: " + Integer.toString(head.retries));
+		} else if (head.retries == 1 && !head.logOperationalErrors) {
+			// silently time out
+			retry = false;
+		}
+		synchronized (this) {
+			// Whatever was on its way is too late to be trusted
+			link.clear();
+			lost(head, retry);
+			// The bot answers in order, so nothing sent after the head was answered either
+			while (!inFlight.isEmpty())
+				rejected.addLast(inFlight.removeFirst());
+		}
+	}
+
+	private void responded(Request head, PacketResponse pr) {
+		PacketMetrics.ROUND_TRIP.record(System.nanoTime() - head.sentAt);
+		FlightRecorder.responseReceived(pr);
+		PacketResponse.ResponseCode code = pr.getResponseCode();
+		if (pr.isOK()) {
+			finish(head, pr);
+		} else if (code == PacketResponse.ResponseCode.BUFFER_OVERFLOW
+				|| code == PacketResponse.ResponseCode.BOT_RX_TIMEDOUT) {
+			if (code == PacketResponse.ResponseCode.BUFFER_OVERFLOW)
+				PacketMetrics.BUFFER_OVERFLOWS.increment();
+			else
+				PacketMetrics.BOT_RX_TIMEOUTS.increment();
+			if (code == PacketResponse.ResponseCode.BOT_RX_TIMEDOUT && head.logOperationalErrors)
+				Base.logger.severe("Printer timed out packet from RepG, will try again");
+			if (head.commandType == CommandType.QUERY) {
+				finish(head, PacketResponse.timeoutResponse());
+			} else if (!head.async) {
+				synchronized (this) {
+					head.retry = true;
+					finish(head, null);
+				}
+			} else {
+				reject(head);
+			}
+		} else if (driver != null && driver.handleErrorResponse(head.packet, pr, head.retries,
+				head.commandType, head.logOperationalErrors)) {
+			if (--head.retries > 0) {
+				reject(head);
+			} else {
+				if (head.logOperationalErrors) {
+					Base.logger.severe("Packet timed out!");
+					FlightRecorder.dumpOnError("Packet timed out");
+				}
+				finish(head, PacketResponse.timeoutResponse());
+			}
+		} else {
+			finish(head, pr);
+		}
+	}
+
+	private synchronized void finish(Request head, PacketResponse pr) {
+		inFlight.remove(head);
+		if (head.async && !rejected.isEmpty() && pr != null && pr.isOK())
+			Base.logger.severe("Bot accepted a command ahead of one being sent again; commands may run out of order");
+		complete(head, pr);
+		notifyAll();
+	}
+
+	private synchronized void reject(Request head) {
+		if (Base.logger.isLoggable(Level.FINER))
+			Base.logger.finer("Bot busy, holding command for re-send");
+		inFlight.remove(head);
+		rejected.addLast(head);
+		// whatever we thought, the bot is full
+		credit = 0;
+		notifyAll();
+	}
+
+	private synchronized boolean readyToResend() {
+		return running && inFlight.isEmpty() && !rejected.isEmpty();
+	}
+
+	private synchronized void resendRejected() {
+		// Nothing is in flight, so anything left over is noise
+		link.clear();
+		while (!rejected.isEmpty()) {
+			Request r = rejected.removeFirst();
+			inFlight.addLast(r);
+			PacketMetrics.RETRIES.increment();
+			write(r);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Give up on the head packet's response. Unless it is out of retries, the
+	 * packet is held with the rejected ones, to be sent again once the
+	 * packets after it have been answered; they aren't sent again themselves,
+	 * since the bot may already have run them.
+	 * @param retry whether the head packet should be sent again, or given up on
+	 */
+	private synchronized void lost(Request head, boolean retry) {
+		inFlight.remove(head);
+		if (retry && --head.retries > 0) {
+			rejected.addLast(head);
+		} else {
+			if (retry && head.logOperationalErrors) {
+				Base.logger.severe("Packet timed out!");
+				FlightRecorder.dumpOnError("Packet timed out");
+			}
+			complete(head, PacketResponse.timeoutResponse());
+		}
+		notifyAll();
+	}
+
+	private void write(Request r) {
+		link.write(r.packet);
+		r.sentAt = System.nanoTime();
+		PacketMetrics.PACKETS.increment();
+		FlightRecorder.packetSent(r.packet);
+	}
+
+	private void complete(Request r, PacketResponse pr) {
+		r.response = pr;
+		r.done = true;
+	}
+}
@@ -1,17 +1,29 @@
 package replicatorg.drivers.gen3;
 
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 
 import replicatorg.app.Base;
 import replicatorg.app.tools.IButtonCrc;
+import replicatorg.app.util.serial.ByteFifo;
 
 /**
  * A class for keeping track of the state of an incoming packet and storing
- * its payload.
+ * its payload.  Bytes can be fed in one at a time, or in blocks straight from
+ * the serial port's buffer (see Serial.readFrame()).
+ *
+ * A processor can be reset() and used for packet after packet.  The payload
+ * goes into a buffer which, if one is passed to the constructor, belongs to
+ * the caller; once a packet is complete, getPayloadBuffer() holds exactly its
+ * payload.  Decoding a packet then allocates nothing, unless a PacketResponse
+ * is asked for.
  */
-public class PacketProcessor implements PacketConstants {
-	
-	public static class CRCException extends Exception {
+public class PacketProcessor implements PacketConstants, ByteFifo.FrameDecoder<PacketProcessor.PacketException> {
+
+	/** Something wrong with the bytes received */
+	public static class PacketException extends Exception { }
+
+	public static class CRCException extends PacketException {
 		private int expected;
 		private int actual;
 		
@@ -24,7 +36,7 @@ public class PacketProcessor implements PacketConstants {
 		public int getExpected() { return expected; }
 	}
 
-	public static class PacketNoiseException extends Exception { }
+	public static class PacketNoiseException extends PacketException { }
 
 	enum PacketState {
 		START, LEN, PAYLOAD, CRC, LAST
@@ -36,11 +48,40 @@ public class PacketProcessor implements PacketConstants {
 
 	int payloadIdx = 0;
 
-	byte[] payload;
+	final ByteBuffer payload;
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	final IButtonCrc crc = new IButtonCrc();
+
+	public PacketProcessor() {
+		this(ByteBuffer.allocate(PacketBuilder.MAX_PACKET_LENGTH));
+	}
+
+	/**
+	 * @param payload where to put the payload of each packet; must hold at
+	 *            least 255 bytes
+	 */
+	public PacketProcessor(ByteBuffer payload) {
+		this.payload = payload;
+	}
+
+	/**
+	 * Forget any packet in progress, and start looking for a new one.
+	 */
+	public void reset() {
+		packetState = PacketState.START;
+		payloadLength = -1;
+		payloadIdx = 0;
+		payload.clear();
+	}
+
+	/**
+	 * The payload of the packet just completed, from position 0 to the limit.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return payload;
+	}
 
 	/**
 	 * Create a PacketResponse object that contains this packet's payload.
@@ -48,7 +89,15 @@ public class PacketProcessor implements PacketConstants {
 	 * @return A valid PacketResponse object
 	 */
 	public PacketResponse getResponse() {
-		PacketResponse pr = new PacketResponse(payload);
+		if (payloadLength < 0)
+			return new PacketResponse();
+		// Most responses are a bare OK
+		if (isComplete() && payloadLength == 1 && payload.get(0) == (byte) 0x81)
+			return PacketResponse.ACKNOWLEDGED;
+		byte[] p = new byte[Math.max(payloadLength, 0)];
+		for (int i = 0; i < p.length; i++)
+			p[i] = payload.get(i);
+		PacketResponse pr = new PacketResponse(p);
 		return pr;
 	}
 
@@ -85,15 +134,16 @@ public class PacketProcessor implements PacketConstants {
 			}
 
 			payloadLength = ((int) b) & 0xFF;
-			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			payload.clear();
+			payload.limit(payloadLength);
+			crc.reset();
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
 		case PAYLOAD:
 			// sanity check
 			if (payloadIdx < payloadLength) {
-				payload[payloadIdx++] = b;
+				payload.put(payloadIdx++, b);
 				crc.update(b);
 			}
 			if (payloadIdx >= payloadLength) {
@@ -113,9 +163,41 @@ public class PacketProcessor implements PacketConstants {
 			if (crc.getCrc() != targetCrc) {
 				throw new CRCException(crc.getCrc(), targetCrc);
 			}
+			packetState = PacketState.LAST;
+			payload.rewind();
 			return true;
 		}
 		return false;
 	}
+
+	/**
+	 * Process bytes up to the end of the packet.
+	 * @return the number of bytes used
+	 */
+	public int decode(byte[] buf, int off, int len) throws PacketException {
+		for (int i = 0; i < len; i++) {
+			if (processByte(buf[off + i]))
+				return i + 1;
+		}
+		return len;
+	}
+
+	public boolean isComplete() {
+		return packetState == PacketState.LAST;
+	}
+
+	public int bytesNeeded() {
+		switch (packetState) {
+		case START:
+			// start byte, length and CRC at the least
+			return 3;
+		case LEN:
+			return 2;
+		case PAYLOAD:
+			return payloadLength - payloadIdx + 1;
+		default:
+			return 1;
+		}
+	}
 }
 
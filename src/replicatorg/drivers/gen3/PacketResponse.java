@@ -86,6 +86,12 @@ public class PacketResponse {
 	};
 
 
+	/**
+	 * A bare OK, the response to nearly every action command. There is
+	 * nothing to read from it, so it can be shared.
+	 */
+	static final PacketResponse ACKNOWLEDGED = new PacketResponse(new byte[] { (byte) 0x81 });
+
 	byte[] payload;
 
 	int readPoint = 1;
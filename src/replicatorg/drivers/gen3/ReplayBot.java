@@ -0,0 +1,248 @@
+package replicatorg.drivers.gen3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import replicatorg.app.Base;
+
+/**
+ * Stands in for the bot at the other end of the serial line, answering each
+ * packet the way the bot in a FlightRecording answered it, and taking as
+ * long about it.
+ *
+ * The recording is turned into exchanges: each packet written, and what
+ * came of it (a response, a timeout, a bad CRC or noise). Responses are
+ * paired with packets in order, as the bot answers them; after a timeout the
+ * host sends everything in flight again, so those packets are looked for
+ * among the later ones.
+ *
+ * A packet written is matched with the first exchange not yet used, of the
+ * next LOOKAHEAD, with exactly the same bytes; or failing that, the same
+ * command. The host won't send quite what it sent before: it polls the
+ * temperature when it likes, and a different build sends different moves.
+ * A packet with no match at all is answered with the last response to that
+ * command, or just OK. The counts of each are logged on close().
+ */
+class ReplayBot implements PacketPipeline.Link {
+	// How far ahead of the first unused exchange a match is looked for
+	private static final int LOOKAHEAD = 64;
+	// How long read() waits when nothing has been written
+	private static final long IDLE_NANOS = 100 * 1000000L;
+
+	private static class Exchange {
+		final byte[] packet;
+		final long sentAt;
+		// 0 until we know what came of it
+		int outcome = 0;
+		byte[] response;
+		long roundTripNanos;
+		boolean used = false;
+
+		Exchange(byte[] packet, long sentAt) {
+			this.packet = packet;
+			this.sentAt = sentAt;
+		}
+	}
+
+	private static class Reply {
+		final long due;
+		// null for a timeout
+		final byte[] bytes;
+		int next = 0;
+
+		Reply(long due, byte[] bytes) {
+			this.due = due;
+			this.bytes = bytes;
+		}
+	}
+
+	private final double speed;
+	private final List<Exchange> exchanges = new ArrayList<Exchange>();
+
+	// everything below is guarded by this
+	// The last response to each command
+	private final Map<Byte, byte[]> responses = new HashMap<Byte, byte[]>();
+	private final LinkedList<Reply> replies = new LinkedList<Reply>();
+	// The first exchange not yet used
+	private int cursor = 0;
+	private long lastDue = 0;
+	private boolean closed = false;
+	private int exact = 0;
+	private int sameCommand = 0;
+	private int unmatched = 0;
+
+	/**
+	 * @param speed how many times faster than recorded to answer; 0 to
+	 * answer at once
+	 */
+	ReplayBot(FlightRecording recording, double speed) {
+		this.speed = speed;
+		LinkedList<Exchange> awaiting = new LinkedList<Exchange>();
+		for (FlightRecording.Record r : recording.getRecords()) {
+			if (r.getType() == FlightRecording.OUT) {
+				if (r.getData().length < 3)
+					continue;
+				Exchange e = new Exchange(r.getData(), r.getNanos());
+				exchanges.add(e);
+				awaiting.addLast(e);
+				continue;
+			}
+			// A response to a packet sent before the recording starts has nothing to pair with
+			Exchange e = awaiting.poll();
+			if (e == null)
+				continue;
+			e.outcome = r.getType();
+			e.response = r.getData();
+			e.roundTripNanos = r.getNanos() - e.sentAt;
+			if (e.outcome == FlightRecording.IN) {
+				if (!responses.containsKey(e.packet[2]))
+					responses.put(e.packet[2], e.response);
+			} else if (e.outcome == FlightRecording.TIMEOUT) {
+				awaiting.clear();
+			}
+		}
+		Base.logger.info("Replaying " + exchanges.size() + " packets, " + (speed > 0 ? speed + "x" : "without waiting"));
+	}
+
+	public synchronized void write(byte[] packet) {
+		if (packet.length < 3)
+			return;
+		Exchange e = match(packet);
+		long delay;
+		int outcome;
+		byte[] response;
+		if (e != null) {
+			delay = e.roundTripNanos;
+			outcome = e.outcome;
+			response = e.response;
+			if (outcome == FlightRecording.IN)
+				responses.put(packet[2], response);
+		} else {
+			unmatched++;
+			delay = 0;
+			outcome = FlightRecording.IN;
+			response = responses.get(packet[2]);
+			if (response == null)
+				response = (packet[2] & 0x80) != 0 ? PacketResponse.ACKNOWLEDGED.getPayload()
+						: PacketResponse.okResponse().getPayload();
+		}
+
+		long due = System.nanoTime() + (speed > 0 ? (long) (delay / speed) : 0);
+		// the bot answers in order
+		due = Math.max(due, lastDue);
+		lastDue = due;
+		replies.addLast(new Reply(due, encode(outcome, response)));
+		notifyAll();
+	}
+
+	private Exchange match(byte[] packet) {
+		int end = Math.min(exchanges.size(), cursor + LOOKAHEAD);
+		int candidate = -1;
+		for (int i = cursor; i < end; i++) {
+			Exchange e = exchanges.get(i);
+			if (e.used || e.outcome == 0)
+				continue;
+			if (Arrays.equals(e.packet, packet)) {
+				exact++;
+				return use(i);
+			}
+			if (candidate == -1 && e.packet[2] == packet[2])
+				candidate = i;
+		}
+		if (candidate == -1)
+			return null;
+		sameCommand++;
+		return use(candidate);
+	}
+
+	private Exchange use(int i) {
+		Exchange e = exchanges.get(i);
+		e.used = true;
+		while (cursor < exchanges.size() && exchanges.get(cursor).used)
+			cursor++;
+		return e;
+	}
+
+	private static byte[] encode(int outcome, byte[] response) {
+		if (outcome == FlightRecording.TIMEOUT)
+			return null;
+		if (outcome == FlightRecording.NOISE)
+			return new byte[] { 0 };
+		if (response == null || response.length == 0)
+			response = PacketResponse.ACKNOWLEDGED.getPayload();
+		PacketBuilder pb = new PacketBuilder(response[0]);
+		for (int i = 1; i < response.length; i++)
+			pb.add8(response[i]);
+		byte[] bytes = pb.getPacket();
+		if (outcome == FlightRecording.BAD_CRC)
+			bytes[bytes.length - 1] ^= 0xff;
+		return bytes;
+	}
+
+	public synchronized int read() {
+		long idleUntil = System.nanoTime() + IDLE_NANOS;
+		try {
+			while (!closed) {
+				long now = System.nanoTime();
+				Reply r = replies.peek();
+				long until = r == null ? idleUntil : r.due;
+				if (now < until) {
+					long wait = until - now;
+					wait(wait / 1000000, (int) (wait % 1000000));
+					continue;
+				}
+				if (r == null)
+					return -1;
+				if (r.bytes == null) {
+					replies.removeFirst();
+					return -1;
+				}
+				int b = r.bytes[r.next++] & 0xff;
+				if (r.next == r.bytes.length)
+					replies.removeFirst();
+				return b;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return -1;
+	}
+
+	public synchronized void clear() {
+		replies.clear();
+	}
+
+	synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		notifyAll();
+		int left = 0;
+		for (int i = cursor; i < exchanges.size(); i++) {
+			if (!exchanges.get(i).used)
+				left++;
+		}
+		Base.logger.info("Replay done: " + exact + " packets as recorded, " + sameCommand
+				+ " matched by command only, " + unmatched + " not in the recording, "
+				+ left + " recorded packets not sent");
+	}
+
+	/** @return how many packets written were answered as recorded */
+	synchronized int getExactMatches() {
+		return exact;
+	}
+
+	/** @return how many packets written were matched by their command only */
+	synchronized int getCommandMatches() {
+		return sameCommand;
+	}
+
+	/** @return how many packets written weren't in the recording */
+	synchronized int getUnmatched() {
+		return unmatched;
+	}
+}
@@ -0,0 +1,102 @@
+package replicatorg.drivers.gen3;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
+
+/**
+ * Drives a bot that isn't there: every packet goes through the usual
+ * PacketPipeline, but is answered by a ReplayBot from a FlightRecording,
+ * as the bot that was recorded answered it and after as long. A stutter
+ * can then be built again, as often as need be, with no bot attached, and
+ * the host's side of it timed.
+ *
+ * Packets are built as Makerbot4GAlternateDriver builds them. The machine
+ * XML names the recording, and may speed it up:
+ * <pre>
+ *   &lt;driver name="replay"&gt;
+ *     &lt;recording&gt;/home/me/.replicatorg/flight/s3g-20121004-101500.s3gr&lt;/recording&gt;
+ *     &lt;speed&gt;1.0&lt;/speed&gt;
+ *   &lt;/driver&gt;
+ * </pre>
+ * A speed of 2 answers twice as fast as the bot did; 0 answers at once. The
+ * "replicatorg.s3g.window" preference applies as it does to a real bot.
+ *
+ * Whatever serial port is picked, opening it opens the recording instead.
+ */
+public class ReplayDriver extends Makerbot4GAlternateDriver {
+	private File recording = null;
+	private double speed = 1.0;
+
+	// null unless "connected"
+	private ReplayBot bot = null;
+
+	public String getDriverName() {
+		return "Replay";
+	}
+
+	public void loadXML(Node xml) {
+		super.loadXML(xml);
+		if (XML.hasChildNode(xml, "recording"))
+			recording = new File(XML.getChildNodeValue(xml, "recording"));
+		if (XML.hasChildNode(xml, "speed"))
+			speed = Double.parseDouble(XML.getChildNodeValue(xml, "speed"));
+	}
+
+	public synchronized void openSerial(String portName) {
+		closeSerial();
+		if (recording == null) {
+			setError("No flight recording to replay");
+			return;
+		}
+		try {
+			Base.logger.info("Replaying flight recording " + recording);
+			bot = new ReplayBot(FlightRecording.read(recording), speed);
+			setInitialized(false);
+		} catch (IOException e) {
+			Base.logger.severe("Couldn't read flight recording " + recording + ": " + e.getMessage());
+			setError("Couldn't read flight recording: " + e.getMessage());
+		}
+	}
+
+	public synchronized void closeSerial() {
+		stopPipeline();
+		if (bot != null) {
+			bot.close();
+			bot = null;
+		}
+	}
+
+	public boolean isConnected() {
+		return bot != null;
+	}
+
+	public void initialize() {
+		if (bot == null || isInitialized())
+			return;
+		startPipeline(bot, Math.max(1, Base.preferences.getInt("replicatorg.s3g.window", 1)));
+
+		// as Sanguino3GDriver.initialize() does it, less the serial port
+		version = getVersionInternal();
+		if (version == null) {
+			Base.logger.info("The flight recording doesn't answer the version query.");
+			closeSerial();
+			return;
+		}
+		if (!initializeBot()) {
+			closeSerial();
+			return;
+		}
+		sendInit();
+		setInitialized(true);
+		invalidatePosition();
+	}
+
+	public void assessState() {
+		// No serial line to lose
+	}
+}
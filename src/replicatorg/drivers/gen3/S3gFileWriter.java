@@ -0,0 +1,141 @@
+package replicatorg.drivers.gen3;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the commands captured by a build to file into an .s3g file.
+ *
+ * Commands are gathered into large buffers. A thread of its own writes each
+ * full buffer out through a FileChannel while the next one fills, so the
+ * build doesn't wait on the disk for every packet. If a write fails, the
+ * next call to write() or close() throws the IOException.
+ */
+class S3gFileWriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// One filling, one being written, one waiting to be written
+	private static final int BUFFERS = 3;
+
+	// Tells the writer thread there's nothing more
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BUFFERS + 1);
+	private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+	private final Thread writer;
+	private volatile IOException failure = null;
+
+	private ByteBuffer current;
+
+	S3gFileWriter(File file) throws FileNotFoundException {
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+		for (int n = 0; n < BUFFERS; n++) {
+			empty.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		}
+		current = empty.remove();
+
+		writer = new Thread("s3g file writer") {
+			public void run() {
+				writeBuffers();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Add bytes to the end of the file.
+	 */
+	void write(byte[] bytes, int off, int len) throws IOException {
+		checkFailure();
+		while (len > 0) {
+			if (!current.hasRemaining()) {
+				current.flip();
+				put(current);
+				current = take();
+			}
+			int n = Math.min(len, current.remaining());
+			current.put(bytes, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write out whatever is buffered and close the file.
+	 */
+	void close() throws IOException {
+		try {
+			current.flip();
+			put(current);
+			put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			writer.interrupt();
+			throw new InterruptedIOException("Interrupted closing s3g file");
+		} finally {
+			out.close();
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void put(ByteBuffer buffer) throws InterruptedIOException {
+		try {
+			full.put(buffer);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted writing s3g file");
+		}
+	}
+
+	private ByteBuffer take() throws InterruptedIOException {
+		try {
+			ByteBuffer buffer = empty.take();
+			buffer.clear();
+			return buffer;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted writing s3g file");
+		}
+	}
+
+	// Runs on the writer thread
+	private void writeBuffers() {
+		try {
+			while (true) {
+				ByteBuffer buffer = full.take();
+				if (buffer == END) {
+					return;
+				}
+				// After a failure, keep handing buffers back so write() can't get stuck
+				if (failure == null) {
+					try {
+						while (buffer.hasRemaining()) {
+							channel.write(buffer);
+						}
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+				empty.put(buffer);
+			}
+		} catch (InterruptedException e) {
+			// Abandoned
+		}
+	}
+}
@@ -25,7 +25,6 @@ package replicatorg.drivers.gen3;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
@@ -38,6 +37,7 @@ import java.util.logging.Level;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.util.serial.Serial;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
@@ -47,8 +47,9 @@ import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SerialDriver;
 import replicatorg.drivers.Version;
 import replicatorg.drivers.gen3.PacketProcessor.CRCException;
-import replicatorg.drivers.gen3.PacketProcessor.PacketNoiseException;
+import replicatorg.drivers.gen3.PacketProcessor.PacketException;
 import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.uploader.FirmwareUploader;
 import replicatorg.util.Point5d;
@@ -121,6 +122,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 
         protected boolean absoluteXYZ = false;
 
+	// Sends packets without waiting on each response; null to send them one at a time
+	private PacketPipeline pipeline = null;
+
+	// Decodes responses for runCommand(); only used while holding the serial lock
+	private final PacketProcessor responseProcessor = new PacketProcessor();
+
 	public Sanguino3GDriver() {
 		super();
 		hasEmergencyStop = true;
@@ -172,6 +179,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 			super.initialize();
 			invalidatePosition();
 
+			// Whether a bot can take more than one packet in flight depends on its
+			// firmware, so pipelining is only on if asked for.
+			int window = Base.preferences.getInt("replicatorg.s3g.window", 1);
+			if (window > 1)
+				startPipeline(window);
+
 			return;
 		} else {
 			Base.logger.info("Unable to connect to firmware.");
@@ -220,6 +233,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		// If we are supposed to have a serial connection, see if it is still
 		// active
 		if (isInitialized() && !serial.isConnected()) {
+			FlightRecorder.dumpOnError("Serial disconnected");
 			setError("Serial disconnected");
 			setInitialized(false);
 		}
@@ -320,6 +334,8 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	
 	void printDebugData(String title, byte[] data) {
+		if (!Base.logger.isLoggable(Level.FINER))
+			return;
 		StringBuffer buf = new StringBuffer(title + ": ");
 		for (int i = 0; i < data.length; i++) {
 			buf.append(Integer.toHexString((int) data[i] & 0xff));
@@ -365,7 +381,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 			throws RetryException {
 
 		if (retries == 0) {
-			if ( logOperationalErrors )	Base.logger.severe("Packet timed out!");
+			if ( logOperationalErrors ) {
+				Base.logger.severe("Packet timed out!");
+				FlightRecorder.dumpOnError("Packet timed out");
+			}
 			return PacketResponse.timeoutResponse();
 		}
 
@@ -381,11 +400,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		boolean isCommand = (packet[2] & 0x80) != 0;
 		
-		if (fileCaptureOstream != null) {
+		if (fileCapture != null) {
 			// capture to file.
 			try {
 				if (isCommand) { // ignore query commands
-					fileCaptureOstream.write(packet, 2, packet.length - 3);
+					fileCapture.write(packet, 2, packet.length - 3);
 				}
 			} catch (IOException ioe) {
 				// IOE should be very rare and shouldn't have to contaminate
@@ -395,12 +414,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 			return PacketResponse.okResponse(); // Always pretend that it's all good.
 		}
 
+		if (pipeline != null) {
+			// Dump out if interrupted
+			if (Thread.currentThread().isInterrupted())
+				return new PacketResponse();
+			return pipeline.send(packet, retries, commandType, logOperationalErrors);
+		}
+
 		// This can actually happen during shutdown.
 		if (serial == null)
 			return PacketResponse.timeoutResponse();
 
-		PacketProcessor pp;
-		PacketResponse pr = new PacketResponse();
+		PacketProcessor pp = responseProcessor;
+		PacketResponse pr;
 
 		assert (serial != null);
 
@@ -419,10 +445,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 				}
 				// Reestablish interrupt
 				Thread.currentThread().interrupt();
-				return pr;
+				return new PacketResponse();
 			}
 
-			pp = new PacketProcessor();
+			pp.reset();
 			
 			if(packet == null) {
 				Base.logger.severe("null packet in runCommand");
@@ -436,108 +462,136 @@ public class Sanguino3GDriver extends SerialDriver implements
 			}
 			// Do not allow a stop or reset command to interrupt mid-packet!
 			serial.write(packet);
+			long sentAt = System.nanoTime();
+			PacketMetrics.PACKETS.increment();
+			FlightRecorder.packetSent(packet);
 			
 			printDebugData("OUT", packet);
 
 			// Read entire response packet
-			boolean completed = false;
-			while (!completed) {
-				// Dump out if interrupted
-				int b = serial.read();
-				if (b == -1) {
-					if (Thread.currentThread().isInterrupted()) {
-						break;
-					}
-					if ( commandType == CommandType.QUERY ) {
-						return runCommand(packet, 0, commandType, logOperationalErrors);
-					}
-
-					if ( retries > 1 ) {
-					    if ( logOperationalErrors )
-						Base.logger.severe("Read timed out; retries remaining: " + Integer.toString(retries));
-					}
-					else if ( retries == 1 && ( ! logOperationalErrors) ) {
-						// silently return a timeout response
-						return PacketResponse.timeoutResponse();
-					}
-
-					return runCommand(packet, retries - 1, commandType, logOperationalErrors);
+			boolean completed;
+			try {
+				completed = serial.readFrame(pp);
+			} catch (CRCException e) {
+				PacketMetrics.CRC_ERRORS.increment();
+				FlightRecorder.badCrc();
+				if ( logOperationalErrors )
+					Base.logger.severe("Bad CRC received; retries remaining: " + Integer.toString(retries));
+
+				PacketMetrics.RETRIES.increment();
+				return runCommand(packet, retries - 1, commandType, logOperationalErrors);
+			} catch (PacketException e) {
+				PacketMetrics.BAD_START_BYTES.increment();
+				FlightRecorder.noise();
+				if ( logOperationalErrors )
+					Base.logger.severe("Bad Start Byte received; retries remaining: " + Integer.toString(retries));
+
+				PacketMetrics.RETRIES.increment();
+				return runCommand(packet, retries - 1, commandType, logOperationalErrors);
+			}
+			// Dump out if interrupted
+			if (!completed && !Thread.currentThread().isInterrupted()) {
+				PacketMetrics.READ_TIMEOUTS.increment();
+				FlightRecorder.timedOut();
+				if ( commandType == CommandType.QUERY ) {
+					return runCommand(packet, 0, commandType, logOperationalErrors);
 				}
-				try {
-					completed = pp.processByte((byte) b);
-				} catch (CRCException e) {
-					if ( logOperationalErrors )
-						Base.logger.severe("Bad CRC received; retries remaining: " + Integer.toString(retries));
-
-					return runCommand(packet, retries - 1, commandType, logOperationalErrors);
-				} catch (PacketNoiseException e) {
-					if ( logOperationalErrors )
-						Base.logger.severe("Bad Start Byte received; retries remaining: " + Integer.toString(retries));
 
-					return runCommand(packet, retries - 1, commandType, logOperationalErrors);
+				if ( retries > 1 ) {
+				    if ( logOperationalErrors )
+					Base.logger.severe("Read timed out; retries remaining: " + Integer.toString(retries));
 				}
+				else if ( retries == 1 && ( ! logOperationalErrors) ) {
+					// silently return a timeout response
+					return PacketResponse.timeoutResponse();
+				}
+
+				PacketMetrics.RETRIES.increment();
+				return runCommand(packet, retries - 1, commandType, logOperationalErrors);
 			}
 			pr = pp.getResponse();
+			if (completed) {
+				PacketMetrics.ROUND_TRIP.record(System.nanoTime() - sentAt);
+				FlightRecorder.responseReceived(pr);
+			}
 
 			if (pr.isOK()) {
 				// okay!
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW ) {
+				PacketMetrics.BUFFER_OVERFLOWS.increment();
 				//Base.logger.severe("Command buffer full on printer");
 				if ( commandType == CommandType.QUERY )	return PacketResponse.timeoutResponse();
 				else					throw new RetryException();
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BOT_RX_TIMEDOUT) {
+				PacketMetrics.BOT_RX_TIMEOUTS.increment();
 				if ( logOperationalErrors )	Base.logger.severe("Printer timed out packet from RepG, will try again");
 				if ( commandType == CommandType.QUERY )	return PacketResponse.timeoutResponse();
 				else					throw new RetryException();
-			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL) {
-				Base.getEditor().handleStop(); ///  horrible horrible 
-				Base.logger.severe("Build Canceled by Printer");
-			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BOT_BUILDING) {
-				Base.getEditor().handleStop(); ///  horrible horrible 
-				Base.logger.severe("Printer was building from SD Card, when RepG sent it a command, build cancelled");
-			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BOT_OVERHEAT) {
-				Base.getEditor().handleStop(); ///  horrible horrible 
-				Base.logger.severe("Printer has overheated, build cancelled");
-			} else if ( pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED && packet[2] == MotherboardCommandCode.IS_FINISHED.getCode()) {
-				if (!isNotifiedFinishedFeature) {
-					Base.logger.severe("isBufferEmpty: IsFinished not supported by this firmware. " +
-							"Update your firmware.");
-					isNotifiedFinishedFeature = true;
-				}
-			} else {
-				// Other random error
+			} else if (handleErrorResponse(packet, pr, retries, commandType, logOperationalErrors)) {
+				PacketMetrics.RETRIES.increment();
+				return runCommand(packet, retries - 1, commandType, logOperationalErrors);
+			}
+		}
+		return pr;
+	}
 
-				if ( logOperationalErrors ) {
-					printDebugData("Unknown error sending, retry", packet);
-					Base.logger.severe(pr.getResponseCode().getMessage() + "; retries remaining: " + Integer.toString(retries));
-					//pr.printDebug();
-				}
-	
-				if (retries > 1) {
-					return runCommand(packet, retries - 1, commandType, logOperationalErrors);
-				} else if ( retries == 1 ) {
-					if ( pr.getResponseCode() == PacketResponse.ResponseCode.GENERIC_ERROR ||
-					     pr.getResponseCode() == PacketResponse.ResponseCode.CRC_MISMATCH ||
-					     pr.getResponseCode() == PacketResponse.ResponseCode.QUERY_OVERFLOW ||
-					     pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED ||
-					     pr.getResponseCode() == PacketResponse.ResponseCode.UNKNOWN ||
-					     pr.getResponseCode() == PacketResponse.ResponseCode.DOWNSTREAM_TIMEOUT ||
-					     pr.getResponseCode() == PacketResponse.ResponseCode.TOOL_LOCK_TIMEOUT ) {
-						if ( isInitialized() && commandType != CommandType.QUERY ) {
-							Base.getEditor().handleStop(); ///  horrible horrible 
-							Base.logger.severe("Build Canceled Due To Communications Error");
-						}
+	/**
+	 * Deal with a response that is neither OK nor a request to try again
+	 * later: report it, and cancel the build if it can't be recovered from.
+	 * @return true if the packet should be sent again
+	 */
+	boolean handleErrorResponse(byte[] packet, PacketResponse pr, int retries, CommandType commandType,
+			boolean logOperationalErrors) {
+		PacketMetrics.ERROR_RESPONSES.increment();
+		if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL) {
+			Base.getEditor().handleStop(); ///  horrible horrible 
+			Base.logger.severe("Build Canceled by Printer");
+		} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BOT_BUILDING) {
+			Base.getEditor().handleStop(); ///  horrible horrible 
+			Base.logger.severe("Printer was building from SD Card, when RepG sent it a command, build cancelled");
+		} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BOT_OVERHEAT) {
+			Base.getEditor().handleStop(); ///  horrible horrible 
+			Base.logger.severe("Printer has overheated, build cancelled");
+		} else if ( pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED && packet[2] == MotherboardCommandCode.IS_FINISHED.getCode()) {
+			if (!isNotifiedFinishedFeature) {
+				Base.logger.severe("isBufferEmpty: IsFinished not supported by this firmware. " +
+						"Update your firmware.");
+				isNotifiedFinishedFeature = true;
+			}
+		} else {
+			// Other random error
+
+			if ( logOperationalErrors ) {
+				printDebugData("Unknown error sending, retry", packet);
+				Base.logger.severe(pr.getResponseCode().getMessage() + "; retries remaining: " + Integer.toString(retries));
+				//pr.printDebug();
+			}
+
+			if (retries > 1) {
+				return true;
+			} else if ( retries == 1 ) {
+				if ( pr.getResponseCode() == PacketResponse.ResponseCode.GENERIC_ERROR ||
+				     pr.getResponseCode() == PacketResponse.ResponseCode.CRC_MISMATCH ||
+				     pr.getResponseCode() == PacketResponse.ResponseCode.QUERY_OVERFLOW ||
+				     pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED ||
+				     pr.getResponseCode() == PacketResponse.ResponseCode.UNKNOWN ||
+				     pr.getResponseCode() == PacketResponse.ResponseCode.DOWNSTREAM_TIMEOUT ||
+				     pr.getResponseCode() == PacketResponse.ResponseCode.TOOL_LOCK_TIMEOUT ) {
+					if ( isInitialized() && commandType != CommandType.QUERY ) {
+						Base.getEditor().handleStop(); ///  horrible horrible 
+						Base.logger.severe("Build Canceled Due To Communications Error");
+						FlightRecorder.dumpOnError("Build canceled due to a communications error");
 					}
 				}
 			}
 		}
-		return pr;
+		return false;
 	}
 
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
-		if (fileCaptureOstream != null) {
+		if (fileCapture != null) {
 			return true;
 		} // always done instantly if writing to file
 
@@ -559,9 +613,48 @@ public class Sanguino3GDriver extends SerialDriver implements
 	}
 
 	public void dispose() {
+		stopPipeline();
 		super.dispose();
 	}
 
+	/**
+	 * Start sending packets through a PacketPipeline, with up to window
+	 * packets waiting on a response at once.
+	 */
+	protected void startPipeline(int window) {
+		final Serial port = serial;
+		Base.logger.info("Pipelining up to " + window + " packets to the bot");
+		startPipeline(new PacketPipeline.Link() {
+			public void write(byte[] packet) {
+				port.write(packet);
+			}
+
+			public int read() {
+				return port.read();
+			}
+
+			public void clear() {
+				port.clear();
+			}
+		}, window);
+	}
+
+	/**
+	 * Send packets through a PacketPipeline over some other link than the
+	 * serial port, such as a recording being replayed.
+	 */
+	void startPipeline(PacketPipeline.Link link, int window) {
+		stopPipeline();
+		pipeline = new PacketPipeline(link, this, window);
+	}
+
+	void stopPipeline() {
+		if (pipeline != null) {
+			pipeline.close();
+			pipeline = null;
+		}
+	}
+
 	/***************************************************************************
 	 * commands used internally to driver
 	 **************************************************************************/
@@ -780,11 +873,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 	protected void queueAbsolutePoint(Point5d steps, long micros)
 			throws RetryException {
 		
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = PacketBuilder.reusable(
 				MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
-		Base.logger.fine("Queued absolute point " + steps + " at "
-				+ Long.toString(micros) + " usec.");
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Queued absolute point " + steps + " at "
+					+ Long.toString(micros) + " usec.");
+		}
 
 		// just add them in now.
 		pb.add32((int) steps.x());
@@ -792,7 +887,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		pb.add32((int) steps.z());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb.getSharedPacket());
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -1935,7 +2030,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 	protected Point5d reconcilePosition() throws RetryException {
 		// If we're writing to a file, we can't actually know what the current
 		// position is.
-		if (fileCaptureOstream != null) {
+		if (fileCapture != null) {
 			return null;
 		}
 		PacketBuilder pb = new PacketBuilder(
@@ -2286,6 +2381,20 @@ public class Sanguino3GDriver extends SerialDriver implements
             return;
         }
         
+        /// Copy the acceleration settings stored on the bot into the machine model,
+        /// so build time estimates use what the firmware will actually do
+        protected void loadAccelerationSettings() {
+            MachineModel model = getMachine();
+            model.setAccelerationRate(getAccelerationRate());
+            model.setMinimumPlannerSpeed(getAccelerationMinimumSpeed());
+            for (int axis = 0; axis < 5; axis++) {
+                model.getMaximumAccelerations().set(axis, getAxisAccelerationRate(axis));
+                model.getMaximumSpeedChanges().set(axis, getAxisJerk(axis));
+            }
+            // the firmware limits junction speeds by speed change, not deviation
+            model.setJunctionDeviation(0);
+        }
+
         @Override
         public int getAccelerationRate(){
             Base.logger.info("Cannot get acceleration rate for S3G driver");
@@ -2586,15 +2695,16 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	S3gFileWriter fileCapture = null;
 
 	public void beginFileCapture(String path) throws FileNotFoundException {
-		fileCaptureOstream = new FileOutputStream(new File(path));
+		fileCapture = new S3gFileWriter(new File(path));
 	}
 
 	public void endFileCapture() throws IOException {
-		fileCaptureOstream.close();
-		fileCaptureOstream = null;
+		S3gFileWriter capture = fileCapture;
+		fileCapture = null;
+		capture.close();
 	}
 
 	public ResponseCode beginCapture(String filename) {
@@ -0,0 +1,362 @@
+package replicatorg.drivers.reprap;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns a line of G-code into the line RepRap5DDriver sends, in one pass
+ * over its characters into buffers that are kept from line to line.
+ *
+ * It does what RepRap5DDriver.clean(), fix() and applyNandChecksum() do,
+ * in that order, and gives exactly the same line: comments are stripped,
+ * M101 to M103 lines dropped, an F code just before a trailing E code moved
+ * after it, the feedrate rescaled in realtime control mode, and a line
+ * number and checksum added. The only String made is the one returned.
+ *
+ * Lines with characters outside printable ASCII (tabs aside), or with
+ * numbers that might parse differently, aren't handled; rewrite() returns
+ * null for those and they should go the regular expression way. Not safe
+ * for use by more than one thread at a time.
+ */
+final class LineRewriter {
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// The line as it's being rewritten, and the stage before it
+	private char[] line = new char[128];
+	private int length;
+	private char[] scratch = new char[128];
+
+	// For the rescaled feedrate, as fix() formats it
+	private final DecimalFormat feedrateFormat;
+	private final StringBuffer formatted = new StringBuffer();
+	private final FieldPosition field = new FieldPosition(0);
+
+	LineRewriter() {
+		DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
+		dfs.setDecimalSeparator('.');
+		feedrateFormat = new DecimalFormat("#0.0", dfs);
+	}
+
+	/**
+	 * Rewrite a line.
+	 * @param gcode the line as given to sendCommand()
+	 * @param realtime whether feedrates are rescaled, as in realtime control mode
+	 * @param feedrateMultiply what the feedrate of a line with an E code is multiplied by
+	 * @param travelFeedrateMultiply what the feedrate of a line without one is multiplied by
+	 * @param feedrateLimit the most a rescaled feedrate can be
+	 * @param lineNumber the number of the last line sent, moved on for this one,
+	 * or null to send the line without a number or checksum
+	 * @return the line to send, without its newline; "" if there's nothing to
+	 * send, or null if the line should be rewritten the regular expression way
+	 */
+	String rewrite(String gcode, boolean realtime, double feedrateMultiply,
+			double travelFeedrateMultiply, double feedrateLimit, AtomicInteger lineNumber) {
+		if (!clean(gcode)) {
+			return null;
+		}
+		if (length == 0 || isDropped()) {
+			return "";
+		}
+		reorderFeedrate();
+		if (realtime && !rescaleFeedrate(feedrateMultiply, travelFeedrateMultiply, feedrateLimit)) {
+			return null;
+		}
+		if (lineNumber != null && !number(lineNumber)) {
+			return null;
+		}
+		return new String(line, 0, length);
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static boolean isNumeric(char c) {
+		return (c >= '0' && c <= '9') || c == '.';
+	}
+
+	// Room for this many characters; what was in the buffer isn't kept
+	private static char[] ensure(char[] buf, int capacity) {
+		if (buf.length >= capacity) {
+			return buf;
+		}
+		return new char[Math.max(capacity, buf.length * 2)];
+	}
+
+	// The stage before becomes the scratch buffer
+	private void swap() {
+		char[] t = line;
+		line = scratch;
+		scratch = t;
+	}
+
+	// As clean(): trim, then strip (comments) and ; comments
+	private boolean clean(String gcode) {
+		int start = 0;
+		int end = gcode.length();
+		while (start < end && gcode.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && gcode.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		line = ensure(line, end - start);
+		scratch = ensure(scratch, end - start + 64);
+		length = 0;
+		for (int i = start; i < end; i++) {
+			char c = gcode.charAt(i);
+			if (c == '(') {
+				int close = gcode.indexOf(')', i + 1);
+				// An unclosed ( isn't a comment, but it isn't going anywhere either
+				if (close >= 0 && close < end) {
+					i = close;
+					continue;
+				}
+			} else if (c == ';') {
+				// Runs to the end of the line, unless the line has more lines in it
+				for (int j = i + 1; j < end; j++) {
+					char d = gcode.charAt(j);
+					if ((d < ' ' && d != '\t') || d == '\u0085' || d == '\u2028' || d == '\u2029') {
+						return false;
+					}
+				}
+				break;
+			}
+			if ((c < ' ' && c != '\t') || c > '~') {
+				return false;
+			}
+			line[length++] = c;
+		}
+		return true;
+	}
+
+	private boolean contains(String s) {
+		int n = s.length();
+		outer:
+		for (int i = 0; i + n <= length; i++) {
+			for (int j = 0; j < n; j++) {
+				if (line[i + j] != s.charAt(j)) {
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private int lastIndexOf(char c) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (line[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// As fix(): lines with M01 (and something after), M101, M102 or M103 aren't sent
+	private boolean isDropped() {
+		for (int i = 0; i + 3 < length; i++) {
+			if (line[i] == 'M' && line[i + 1] == '0' && line[i + 2] == '1'
+					&& (line[i + 3] < '0' || line[i + 3] > '9')) {
+				return true;
+			}
+		}
+		return contains("M101") || contains("M102") || contains("M103");
+	}
+
+	// As fix(): a line ending F<n> E<n> ends E<n> F<n> instead
+	private void reorderFeedrate() {
+		int f = lastIndexOf('F');
+		if (f < 0) {
+			return;
+		}
+		int fEnd = f + 1;
+		while (fEnd < length && isNumeric(line[fEnd])) {
+			fEnd++;
+		}
+		int e = fEnd;
+		if (e < length && isSpace(line[e])) {
+			e++;
+		}
+		if (e >= length || line[e] != 'E') {
+			return;
+		}
+		int eEnd = e + 1;
+		while (eEnd < length && isNumeric(line[eEnd])) {
+			eEnd++;
+		}
+		if (eEnd != length) {
+			return;
+		}
+		int n = 0;
+		System.arraycopy(line, 0, scratch, n, f);
+		n += f;
+		scratch[n++] = ' ';
+		scratch[n++] = 'E';
+		System.arraycopy(line, e + 1, scratch, n, eEnd - e - 1);
+		n += eEnd - e - 1;
+		scratch[n++] = ' ';
+		System.arraycopy(line, f, scratch, n, fEnd - f);
+		n += fEnd - f;
+		swap();
+		length = n;
+	}
+
+	// As fix() in realtime control mode: rescale and limit the last F code
+	private boolean rescaleFeedrate(double feedrateMultiply, double travelFeedrateMultiply, double feedrateLimit) {
+		int f = lastIndexOf('F');
+		if (f < 0) {
+			return true;
+		}
+		int fEnd = f + 1;
+		while (fEnd < length && isNumeric(line[fEnd])) {
+			fEnd++;
+		}
+		double value = parse(line, f + 1, fEnd);
+		if (Double.isNaN(value)) {
+			// fix() would throw; let it
+			return false;
+		}
+		// FIXME: kind of an ugly way to test for extrusionless "travel" versus extrusion.
+		if (lastIndexOf('E') < 0) {
+			value *= travelFeedrateMultiply;
+		} else {
+			value *= feedrateMultiply;
+		}
+		if (value > feedrateLimit) {
+			value = feedrateLimit;
+		}
+		formatted.setLength(0);
+		feedrateFormat.format(value, formatted, field);
+
+		int rest = length - fEnd;
+		scratch = ensure(scratch, f + formatted.length() + rest + 3);
+		int n = 0;
+		System.arraycopy(line, 0, scratch, n, f);
+		n += f;
+		scratch[n++] = ' ';
+		scratch[n++] = 'F';
+		formatted.getChars(0, formatted.length(), scratch, n);
+		n += formatted.length();
+		scratch[n++] = ' ';
+		System.arraycopy(line, fEnd, scratch, n, rest);
+		n += rest;
+		swap();
+		length = n;
+		return true;
+	}
+
+	/**
+	 * Parse digits with at most one point as Double.valueOf() would.
+	 * @return the value, or NaN if Double.valueOf() would throw
+	 */
+	static double parse(char[] buf, int start, int end) {
+		long mantissa = 0;
+		int digits = 0;
+		int point = -1;
+		for (int i = start; i < end; i++) {
+			char c = buf[i];
+			if (c == '.') {
+				if (point >= 0) {
+					return Double.NaN;
+				}
+				point = i;
+			} else {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return Double.NaN;
+		}
+		int scale = (point < 0) ? 0 : end - point - 1;
+		// Both exact as doubles, so one correctly rounded division gives what valueOf() does
+		if (digits <= 15 && scale < POWERS_OF_TEN.length) {
+			return mantissa / POWERS_OF_TEN[scale];
+		}
+		return Double.parseDouble(new String(buf, start, end - start));
+	}
+
+	// As applyNandChecksum(): add N<number> and *<checksum>
+	private boolean number(AtomicInteger lineNumber) {
+		boolean reset = contains("M110");
+
+		// A line that is only n<number> sets the number, and is sent as it is
+		int i = 0;
+		if (length > 1 && line[0] == 'n') {
+			i = 1;
+			while (i < length && isSpace(line[i])) {
+				i++;
+			}
+			int digits = i;
+			while (i < length && line[i] >= '0' && line[i] <= '9') {
+				i++;
+			}
+			digits = i - digits;
+			if (i == length && digits > 0) {
+				if (digits > 9) {
+					return false;
+				}
+				int n = 0;
+				for (int j = length - digits; j < length; j++) {
+					n = n * 10 + (line[j] - '0');
+				}
+				lineNumber.set(n);
+				appendChecksum();
+				return true;
+			}
+		}
+
+		if (reset) {
+			lineNumber.set(-1);
+		}
+		int number = lineNumber.incrementAndGet();
+
+		String digits = Integer.toString(number);
+		scratch = ensure(scratch, length + digits.length() + 8);
+		int n = 0;
+		scratch[n++] = 'N';
+		digits.getChars(0, digits.length(), scratch, n);
+		n += digits.length();
+		scratch[n++] = ' ';
+		System.arraycopy(line, 0, scratch, n, length);
+		n += length;
+		scratch[n++] = ' ';
+		swap();
+		length = n;
+		appendChecksum();
+		return true;
+	}
+
+	// As applyChecksum(): * and the XOR of everything before it
+	private void appendChecksum() {
+		int checksum = 0;
+		for (int i = 0; i < length; i++) {
+			checksum ^= line[i];
+		}
+		line = grow(line, length, length + 4);
+		line[length++] = '*';
+		if (checksum >= 100) {
+			line[length++] = (char)('0' + checksum / 100);
+		}
+		if (checksum >= 10) {
+			line[length++] = (char)('0' + checksum / 10 % 10);
+		}
+		line[length++] = (char)('0' + checksum % 10);
+	}
+
+	// Room for this many characters, keeping what's used
+	private static char[] grow(char[] buf, int used, int capacity) {
+		if (buf.length >= capacity) {
+			return buf;
+		}
+		char[] grown = new char[Math.max(capacity, buf.length * 2)];
+		System.arraycopy(buf, 0, grown, 0, used);
+		return grown;
+	}
+}
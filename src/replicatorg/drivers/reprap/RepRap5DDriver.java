@@ -27,13 +27,11 @@
  */
 package replicatorg.drivers.reprap;
 
-import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.EnumSet;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -55,6 +53,8 @@ import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SerialDriver;
 import replicatorg.drivers.Version;
 import replicatorg.drivers.reprap.ExtrusionUpdater.Direction;
+import replicatorg.drivers.reprap.ReplyParser.Reply;
+import replicatorg.drivers.reprap.SendWindow.SentLine;
 import replicatorg.machine.model.AxisId;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.util.Point5d;
@@ -62,13 +62,22 @@ import replicatorg.util.Point5d;
 public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListener, RealtimeControl 
 {
 	private static Pattern gcodeCommentPattern = Pattern.compile("\\([^)]*\\)|;.*");
-	private static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
 	private static Pattern gcodeLineNumberPattern = Pattern.compile("n\\s*([0-9]+)");
+	private static Pattern feedratePattern = Pattern.compile("F(-[0-9\\.]+)");
+	private static Pattern extruderPositionPattern = Pattern.compile("E([-0-9\\.]+)");
+	private static Pattern stopPattern = Pattern.compile("M01[^0-9]");
+	private static Pattern extruderOnOffPattern = Pattern.compile("M10[123](.*)");
+	private static Pattern feedrateBeforeEPattern = Pattern.compile("^(.*)(F[0-9\\.]*)\\s?E([0-9\\.]*)$");
+	private static Pattern feedrateValuePattern = Pattern.compile("(.*)F([0-9\\.]*)(.*)");
 	
 	public final AtomicReference<Double> feedrate = new AtomicReference<Double>(0.0);
 	public final AtomicReference<Double> ePosition = new AtomicReference<Double>(0.0);
 	
 	private final ReentrantLock sendCommandLock = new ReentrantLock();
+	/** The firmware's reply being read; guarded by readResponseLock */
+	private final ReplyParser reply = new ReplyParser();
+	/** Rewrites lines as clean(), fix() and applyNandChecksum() do; guarded by sendCommandLock */
+	private final LineRewriter rewriter = new LineRewriter();
 	
 	/** true if a line containing the start keyword has been received from the firmware*/
 	private final AtomicBoolean startReceived = new AtomicBoolean(false);
@@ -154,11 +163,24 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	private int maxBufferSize = 128;
 
 	/**
-	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
-	 * if there is a checksum problem.
+	 * The commands sent but not yet acknowledged by the firmware, kept to no more than
+	 * fits in its buffer. Stored so they can be resent if there is a checksum problem.
 	 */
-	private LinkedList<String> buffer = new LinkedList<String>();
-	private ReentrantLock bufferLock = new ReentrantLock();
+	private SendWindow window = new SendWindow(maxBufferSize);
+
+	/** held while writing to the serial port, so a resend can't be split by a new command */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/** how many "ok"s the firmware will send that aren't for a command in the window */
+	private final AtomicInteger skipOks = new AtomicInteger(0);
+
+	/**
+	 * The line last resent from, and how many more requests for it may be
+	 * the firmware turning away the lines that were on their way after it.
+	 * Only used by the reader of the firmware's replies.
+	 */
+	private int resendingFrom = -1;
+	private int resendEchoes = 0;
 	
 	/** locks the readResponse method to prevent multiple concurrent reads */
 	private ReentrantLock readResponseLock = new ReentrantLock();
@@ -236,6 +258,10 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	if (XML.hasChildNode(xml, "alwaysRelativeE")) {
 		alwaysRelativeE = Boolean.parseBoolean(XML.getChildNodeValue(xml, "alwaysRelativeE"));
 	}
+	if (XML.hasChildNode(xml, "bufferSize")) {
+		maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "bufferSize"));
+		window = new SendWindow(maxBufferSize);
+	}
     if (XML.hasChildNode(xml, "hasEmergencyStop")) {
     	hasEmergencyStop = Boolean.parseBoolean(XML.getChildNodeValue(xml, "hasEmergencyStop"));
     }
@@ -318,11 +344,15 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 			// Send a line # reset command, this allows us to catch the "ok" response.
 			// If we get a "start" while trying this we'll go again.
-			synchronized(okReceived)
+			okReceived.set(false);
+			while (!okReceived.get())
 			{
-				okReceived.set(false);
-				while (!okReceived.get())
+				// Tries that went unanswered would otherwise fill the window
+				flushBuffer();
+				synchronized(okReceived)
 				{
+					if (okReceived.get())
+						break;
 					sendCommand("M110", false);
 					Base.logger.info("GCode sent. waiting for response..");
 					
@@ -417,11 +447,6 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	/**
 	 * Returns null or the first instance of the matching group
 	 */
-	private String getRegexMatch(String regex, String input, int group)
-	{
-		return getRegexMatch(Pattern.compile(regex), input, group);
-	}
-
 	private String getRegexMatch(Pattern regex, String input, int group)
 	{
 		Matcher matcher = regex.matcher(input);
@@ -433,139 +458,154 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * Actually sends command over serial.
 	 * 
 	 * Commands sent here are acknowledged asynchronously in another 
-	 * thread so as to increase our serial GCode throughput.
+	 * thread so as to increase our serial GCode throughput. A command is
+	 * sent as soon as it fits in what the commands not yet acknowledged
+	 * leave of the firmware's buffer; until then this method blocks.
 	 * 
 	 * Only one command can be sent at a time. If another command is 
 	 * being sent this method will block until the previous command 
 	 * is finished sending.
+	 * 
+	 * @return a Future that is done when the firmware acknowledges the
+	 * command, or null if there was nothing to send
 	 */
-	protected void sendCommand(String next) {
-		_sendCommand(next, true, false);
-	}
-
-	protected void sendCommand(String next, boolean synchronous) {
-		_sendCommand(next, synchronous, false);
-	}
-
-	
-	protected void resendCommand(String command) {
-		synchronized (sendCommandLock)
-		{
-			numResends++;
-			if(debugLevel > 0)
-				Base.logger.warning("Resending: \"" + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
-			_sendCommand(command, false, true);
-		}
+	protected Future<Boolean> sendCommand(String next) {
+		return sendCommand(next, false);
 	}
 
 	/**
-	 * inner method. not for use outside sendCommand and resendCommand
+	 * @param synchronous if true, wait for the firmware to acknowledge the command
 	 */
-	protected void _sendCommand(String next, boolean synchronous, boolean resending) {
-				
-		// If this line is uncommented, it simply sends the next line instead of doing a retransmit!
-		if (!resending) 
-		{
-			sendCommandLock.lock();
-
+	protected Future<Boolean> sendCommand(String next, boolean synchronous) {
+		SentLine sent;
+		sendCommandLock.lock();
+		try {
 			//assert (isInitialized());
 			// System.out.println("sending: " + next);
 	
-			next = clean(next);
-			next = fix(next); // make it compatible with older versions of the GCode interpeter
-			
-			// skip empty commands.
-			if (next.length() == 0)
-			{
-				sendCommandLock.unlock();
-				return;
+			String rewritten = rewriter.rewrite(next, realtimeControl, rcFeedrateMultiply,
+					rcTravelFeedrateMultiply, rcFeedrateLimit, hasChecksums ? lineNumber : null);
+			if (rewritten == null) {
+				// Something out of the ordinary; do it the long way
+				next = clean(next);
+				next = fix(next); // make it compatible with older versions of the GCode interpeter
+				if (next.length() == 0)
+					return null;
+				// applychecksum replaces the line that was to be retransmitted, into the next line.
+				if (hasChecksums) next = applyNandChecksum(next);
+			} else {
+				// skip empty commands.
+				if (rewritten.length() == 0)
+					return null;
+				next = rewritten;
 			}
-	
+
+			// The line number and checksum don't have F or E in them
 			//update the current feedrate
-			String feedrate = getRegexMatch("F(-[0-9\\.]+)", next, 1);
+			String feedrate = getRegexMatch(feedratePattern, next, 1);
 			if (feedrate!=null) this.feedrate.set(Double.parseDouble(feedrate));
 
 			if (!alwaysRelativeE) {
 				//update the current extruder position
-				String e = getRegexMatch("E([-0-9\\.]+)", next, 1);
+				String e = getRegexMatch(extruderPositionPattern, next, 1);
 				if (e!=null) this.ePosition.set(Double.parseDouble(e));
 			} else {
 				ePosition.set(0.0);
 			}
-
-			// applychecksum replaces the line that was to be retransmitted, into the next line.
-			if (hasChecksums) next = applyNandChecksum(next);
 			
 			Base.logger.finest("sending: "+next);
+
+			// Block until we can fit the command on the Arduino
+			window.awaitRoom(next.length());
+
+			// debug... let us know whats up!
+			if(debugLevel > 1)
+				Base.logger.info("Sending: " + next);
+
+			writeLock.lock();
+			try {
+				// record it in our buffer tracker, then do the actual send.
+				sent = window.add(next, lineNumberOf(next));
+				write(next);
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (InterruptedException e1) {
+			//Presumably we're shutting down
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			sendCommandLock.unlock();
 		}
-		else
-		{
-			Base.logger.finest("resending: "+next);
-		}
-		// Block until we can fit the command on the Arduino
-/*		synchronized(bufferLock)
-		{
-			//wait for the number of commands queued in the buffer to shrink before 
-			//adding the next command to it.
-                        // NOTE: must compute bufferSize from buffer elements now
-			while(bufferSize + next.length() + 1 > maxBufferSize)
-			{
-				Base.logger.warning("reprap driver buffer full. gcode write slowed.");
-				try {
-					bufferLock.wait();
-				}
-				catch (InterruptedException e1) {
-					//Presumably we're shutting down
-					Thread.currentThread().interrupt();
-					return;
-				}
+
+		// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
+		if (synchronous) {
+			try {
+				sent.get();
+			} catch (InterruptedException e1) {
+				Thread.currentThread().interrupt();
 			}
-		}*/
-		
+		}
+		return sent;
+	}
 
-		// debug... let us know whats up!
-		if(debugLevel > 1)
-			Base.logger.info("Sending: " + next);
+	/**
+	 * Send a command that is already in the window again, as it was.
+	 * Only for use while holding writeLock.
+	 */
+	private void resendCommand(String command) {
+		numResends++;
+		if(debugLevel > 0)
+			Base.logger.warning("Resending: \"" + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
+		write(command);
+	}
 
+	/**
+	 * Tell the firmware the number of the last line it had, so that the next
+	 * line it expects is the one after. Only for use while holding writeLock.
+	 */
+	private void resyncLineNumber(int lastLineNumber) {
+		// Its "ok" isn't for anything in the window
+		skipOks.incrementAndGet();
+		resendCommand(applyChecksum("N" + lastLineNumber + " M110"));
+	}
 
+	/**
+	 * Write a line to the serial port, garbled now and then if we've been
+	 * asked to introduce noise.
+	 */
+	private void write(String line) {
+		serialInUse.lock();
 		try {
-			synchronized(next)
-			{
-				// do the actual send.
-				serialInUse.lock();
-				bufferLock.lock();
-
-				// record it in our buffer tracker.
-				buffer.addFirst(next);
-				
-				if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
-					Base.logger.info("Introducing noise (lineIterator=="
-							+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
-					lineIterator = 0;
-					String noisyNext = next.replace('6','7').replace('7','1') + "\n";
-					serial.write(noisyNext);
-				} else {
-					serial.write(next + "\n");
-				}
-				bufferLock.unlock();
-				serialInUse.unlock();
-
-				// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
-				if (synchronous) next.wait();
+			if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
+				Base.logger.info("Introducing noise (lineIterator=="
+						+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
+				lineIterator = 0;
+				String noisyNext = line.replace('6','7').replace('7','1') + "\n";
+				serial.write(noisyNext);
+			} else {
+				serial.write(line + "\n");
 			}
-		} catch (InterruptedException e1) {
-			//Presumably we're shutting down
-			Thread.currentThread().interrupt();
-			if (!resending) 
-				sendCommandLock.unlock();
-			return;
+		} finally {
+			serialInUse.unlock();
 		}
+	}
 
-		// Wait for the response (synchronous gcode transmission)
-		//while(!isFinished()) {}
-		
-		if (!resending) 
-			sendCommandLock.unlock();
+	/**
+	 * @return the N number a line starts with, or -1 if it doesn't
+	 */
+	static int lineNumberOf(String line) {
+		if (line.length() < 2 || line.charAt(0) != 'N')
+			return -1;
+		int n = 0;
+		int i = 1;
+		for (; i < line.length() && i < 11; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			n = n * 10 + (c - '0');
+		}
+		return (i == 1) ? -1 : n;
 	}
 
 	public String clean(String str) {
@@ -586,8 +626,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		String fixed = str;
 		// The 5D firmware expects E codes for extrusion control instead of M101, M102, M103
 
-		Pattern r = Pattern.compile("M01[^0-9]");
-		Matcher m = r.matcher(fixed);
+		Matcher m = stopPattern.matcher(fixed);
 		if (m.find())
 		{
 			return "";
@@ -595,8 +634,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 	    // Remove M10[123] codes
 	    // This piece of code causes problems?!? Restarts?
-		r = Pattern.compile("M10[123](.*)");
-		m = r.matcher(fixed);
+		m = extruderOnOffPattern.matcher(fixed);
 	    if (m.find( )) {
 //	    	System.out.println("Didn't find pattern in: " + str );
 //	    	fixed = m.group(1)+m.group(3)+";";
@@ -605,16 +643,14 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		
 		// Reorder E and F codes? F-codes need to go LAST!
 		//requires: import java.util.regex.Matcher; and import java.util.regex.Pattern;
-		r = Pattern.compile("^(.*)(F[0-9\\.]*)\\s?E([0-9\\.]*)$");
-	    m = r.matcher(fixed);
+	    m = feedrateBeforeEPattern.matcher(fixed);
 	    if (m.find( )) {
 			fixed = m.group(1)+" E"+m.group(3)+" "+m.group(2);
 	    }
 
 	    if(realtimeControl) {
 		    // Rescale F value
-		    r = Pattern.compile("(.*)F([0-9\\.]*)(.*)");
-		    m = r.matcher(fixed);
+		    m = feedrateValuePattern.matcher(fixed);
 		    if (m.find( )) {
 		    	double newvalue = Double.valueOf(m.group(2).trim()).doubleValue();
 		    	// FIXME: kind of an ugly way to test for extrusionless "travel" versus extrusion.
@@ -684,340 +720,327 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	
 	public void serialByteReceivedEvent(ByteFifo fifo) {
 		readResponseLock.lock();
-
-		serialInUse.lock();
-		byte[] response = fifo.dequeueLine();
-		int responseLength = response.length;
-		serialInUse.unlock();
-
-		// 0 is now an acceptable value; it merely means that we timed out
-		// waiting for input
-		if (responseLength < 0) {
-			// This signifies EOF. FIXME: How do we handle this?
-			Base.logger.severe("SerialPassthroughDriver.readResponse(): EOF occured");
-			readResponseLock.unlock();
-			return;
-		} else if(responseLength!=0) {
-			String line;
-			try
-			{
-				//convert to string and remove any trailing \r or \n's
-				line = new String(response, 0, responseLength, "US-ASCII")
-							.trim().toLowerCase();
-			} catch (UnsupportedEncodingException e) {
-				Base.logger.severe("US-ASCII required. Terminating.");
-				readResponseLock.unlock();
-				throw new RuntimeException(e);
+		try {
+			serialInUse.lock();
+			try {
+				fifo.feed(reply);
+			} finally {
+				serialInUse.unlock();
 			}
+			if (reply.isComplete()) {
+				try {
+					processReply();
+				} finally {
+					reply.reset();
+				}
+			}
+		} finally {
+			readResponseLock.unlock();
+		}
+	}
 
-			//System.out.println("received: " + line);
-			if(debugLevel > 1)
-				Base.logger.info("<< " + line);
+	/**
+	 * Act on the line from the firmware that has just been read into reply.
+	 */
+	private void processReply() {
+		//System.out.println("received: " + reply);
+		if(debugLevel > 1)
+			Base.logger.info("<< " + reply);
 
-			if (line.length() == 0)
-				Base.logger.fine("empty line received");
-			else if (line.startsWith("echo:")) {
-					//if echo is turned on relay it to the user for debugging
-					Base.logger.info(line.substring(5));
-			}
-			else if (line.startsWith("ok t:")||line.startsWith("t:")) {
-				Pattern r = Pattern.compile("t:([0-9\\.]+)");
-			    Matcher m = r.matcher(line);
-			    if (m.find( )) {
-			    	String temp = m.group(1);
-					
-					machine.currentTool().setCurrentTemperature(
-							Double.parseDouble(temp));
-			    }
-				r = Pattern.compile("^ok.*b:([0-9\\.]+)");
-			    m = r.matcher(line);
-			    if (m.find( )) {
-			    	String bedTemp = m.group(1);
-					machine.currentTool().setPlatformCurrentTemperature(
-							Double.parseDouble(bedTemp));
-			    }
+		if (reply.getReply() == Reply.EMPTY) {
+			Base.logger.fine("empty line received");
+			return;
+		}
+		if (reply.startsWith("echo:")) {
+			//if echo is turned on relay it to the user for debugging
+			Base.logger.info(reply.toString().substring(5));
+		}
+		if (reply.hasTemperature()) {
+			machine.currentTool().setCurrentTemperature(reply.getTemperature());
+		}
+		if (reply.hasPlatformTemperature()) {
+			machine.currentTool().setPlatformCurrentTemperature(reply.getPlatformTemperature());
+		}
+		if (reply.hasPosition()) {
+			// super to avoid parroting back a G92
+			try {
+				super.setCurrentPosition(new Point5d(reply.getX(), reply.getY(), reply.getZ()));
+			} catch (RetryException e) {
+				// do or do not, there is no retry
 			}
-			else if (line.startsWith("ok c:")||line.startsWith("c:")) {
-				Pattern r = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)");
-				Matcher m = r.matcher(line);
-				if (m.find()) {
-					double x = Double.parseDouble(m.group(1));
-					double y = Double.parseDouble(m.group(2));
-					double z = Double.parseDouble(m.group(3));
-					// super to avoid parroting back a G92
-					try {
-						super.setCurrentPosition(new Point5d(x, y, z));
-						//Base.logger.fine("setting currentposition to:"+x+","+y+","+z+".");
-					} catch (RetryException e) {
-						// do or do not, there is no retry
-					}
-				}
+		}
+
+		switch (reply.getReply()) {
+		case OK:
+			synchronized(okReceived)
+			{
+				okReceived.set(true);
+				okReceived.notifyAll();
 			}
-			if (line.startsWith("ok")) {
-				
-				synchronized(okReceived)
-				{
-					okReceived.set(true);
-					okReceived.notifyAll();
-				}
 
-				bufferLock.lock();
-				//Notify the thread waiting in this gcode's sendCommand method that the gcode has been received.
-				if (buffer.isEmpty()) {
+			//Complete the oldest command, letting anyone waiting on it or for room in the window know.
+			if (skipOks.get() > 0) {
+				// an extra ok after a resend or start
+				skipOks.decrementAndGet();
+			} else {
+				SentLine accepted = window.acknowledge();
+				if (accepted == null) {
 					Base.logger.severe("Received OK with nothing queued!");
 				} else {
-					String notifier = buffer.removeLast();
+					resendingFrom = -1;
 					if(debugLevel > 1)
-						Base.logger.info("FW Accepted: " + notifier);
-					synchronized(notifier) { notifier.notifyAll(); }
-				}
-				bufferLock.unlock();
-				
-				synchronized(bufferLock)
-				{ /*let any sendCommand method waiting to send know that the buffer is 
-					now smaller and may be able to fit their command.*/
-					bufferLock.notifyAll();
+						Base.logger.info("FW Accepted: " + accepted.text);
 				}
 			}
-			else if(line.contains("sd"))
+			break;
+
+		// Ultimakers send start
+		case START:
+			String line = reply.toString();
+			if (version.getMajor() == 0 && version.getMinor() == 0)
 			{
-				if (line.contains("fail"))
-				{
-					Base.logger.warning("SD card failure!");
-				}
-				else
-				{
-					Base.logger.info("SD card connected");
-				}
+				version = new Version(0,1);
+				setFirmwareName("5D");
 			}
-			else if (line.startsWith("marlin"))
+			// Reset line number first in case gcode is sent below
+			lineNumber.set(-1);
+			
+			String[] infosetup = line.split("start\\s.*BATCH=([0-9a-z.]{0,}).*PCB=([^,]{0,}).*ATMEGA=([^\\s]{0,}).*FW:V=([^,]{0,}).*BUILD=([^,]{0,}).*E0:([^,]{0,}).*SPEED=([^\\s]{0,}).*Z:PITCH=([^\\s]{0,})");
+			
+			if (line.contains("ULTIMAKER"))
 			{
-				Pattern p = Pattern.compile("marlin u([0-9]).([0-9]).*");
-				Matcher m = p.matcher(line);
-				m.find();
-				version = new Version(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)));
-				//Some marlin versions send out their code...
-				if (version.atLeast(minimumVersion))
-				{
-					if (version.compareTo(preferredVersion) == 1)
-					{
-						//We are running an unsupported version
-						Base.logger.warning("You are running an unsupported firmware version!");
-					}
-				}
-				else
-				{
-					this.uninitialize();
-					throw new BadFirmwareVersionException(version,preferredVersion);
+				//Assume its an old 5D Ultimaker
+				Base.logger.info("Ultimaker 5D firmware detected.");
+				Base.logger.info(line);
+				Base.logger.finer("Batchnumber = "+infosetup[1]);
+				Base.logger.finer("PCB version = "+infosetup[2]);
+				Base.logger.finer("ATMega = " + infosetup[3]);
+				Base.logger.finer("Firmware version = " + infosetup[4]);
+				Base.logger.finer("Build version = " + infosetup[5]);
+				Base.logger.finer("Extruder = " + infosetup[6]);
+				Base.logger.finer("Speed = " + infosetup[7]);
+				Base.logger.finer("Z PITCH = " + infosetup[8]);
+			}
+			
+			boolean active = !window.isEmpty();
+			flushBuffer();
+
+			if (isInitialized()) {
+				sendInitializationGcode(false);
+
+				// If there were outstanding commands try to abort any print in progress.
+				// This is a poor test:  but do we know if we're printing at this level?
+				// tried setInitialized(false); but that didn't work well
+				if (active) {
+					Base.logger.severe("Firmware reset with active commands!");
+					setError("Firmware reset with active commands!");
 				}
 			}
-			else if (line.startsWith("echo"))
-			{
-				//Do nothing
+			if (okAfterStart) {
+				// firmware sends "ok" after start, make a note to consume it:
+				skipOks.incrementAndGet();
 			}
-			else if (line.contains("firmware_name"))
-			{
-				Pattern p = Pattern.compile("firmware_name:([0-9a-z.]{0,}).*firmware_url:([\\S.]{0,}.*).*protocol_version:([0-9]{0,}).([0-9]{0,}).*machine_type:([a-z]{0,}).*extruder_count:([0-9]{0,})");
-				Matcher m = p.matcher(line);
-				m.find();
-				Base.logger.fine("Detecting firmware!");
-				//Assume we got an answer to M115, lets see what we got:
-				if (m.group(1).startsWith("marlin"))
-				{
-					Base.logger.fine("setting marlin");
-					setFirmwareName("Marlin");
-				}
-				else
-				{
-					setFirmwareName("Unknown");
-				}
-				if (m.group(2).contains("ultimaker") || m.group(5).contains("ultimaker"))
-				{
-					//We got an ultimaker, hurray!
-				}
-				else
-				{
-					Base.logger.warning("Could not detect Ultimaker firmware.");
-				}
-				version = new Version(Integer.parseInt(m.group(3)),Integer.parseInt(m.group(4)));
-				//infosetup[5] = extruder amount!
-				if (version.atLeast(minimumVersion))
-				{
-					if (version.compareTo(preferredVersion) == 1)
-					{
-						//We are running an unsupported version
-						Base.logger.warning("You are running an unsupported firmware version!");
-					}
-				}
-				else
-				{
-					this.uninitialize();
-					throw new BadFirmwareVersionException(version,preferredVersion);
-				}
+			
+			// todo: set version
+			synchronized (startReceived) {
+				startReceived.set(true);
+				startReceived.notifyAll();
 			}
-			else if (line.startsWith("x:"))
-			{
-				String[] curlocation = line.split("[a-z]:");
-				
-				try {
-					super.setCurrentPosition(new Point5d(Double.parseDouble(curlocation[1]), Double.parseDouble(curlocation[2]), Double.parseDouble(curlocation[3])));
-				} catch (NumberFormatException e) {
-					// TODO Auto-generated catch block
-					Base.logger.warning("Firmware sent unknown string: " + line);
-				} catch (RetryException e) {
-				}
-				Base.logger.fine("E: " + curlocation[4]);
+
+			// Wake up connect task to try again
+			synchronized (okReceived) {
+				okReceived.set(false);
+				okReceived.notifyAll();
 			}
-			// Ultimakers send start
-			else if (line.contains("start")) {
-				if (version.getMajor() == 0 && version.getMinor() == 0)
-				{
-					version = new Version(0,1);
-					setFirmwareName("5D");
-				}
-				// Reset line number first in case gcode is sent below
-				lineNumber.set(-1);
-				
-				String[] infosetup = line.split("start\\s.*BATCH=([0-9a-z.]{0,}).*PCB=([^,]{0,}).*ATMEGA=([^\\s]{0,}).*FW:V=([^,]{0,}).*BUILD=([^,]{0,}).*E0:([^,]{0,}).*SPEED=([^\\s]{0,}).*Z:PITCH=([^\\s]{0,})");
-				
-				if (line.contains("ULTIMAKER"))
-				{
-					//Assume its an old 5D Ultimaker
-					Base.logger.info("Ultimaker 5D firmware detected.");
-					Base.logger.info(line);
-					Base.logger.finer("Batchnumber = "+infosetup[1]);
-					Base.logger.finer("PCB version = "+infosetup[2]);
-					Base.logger.finer("ATMega = " + infosetup[3]);
-					Base.logger.finer("Firmware version = " + infosetup[4]);
-					Base.logger.finer("Build version = " + infosetup[5]);
-					Base.logger.finer("Extruder = " + infosetup[6]);
-					Base.logger.finer("Speed = " + infosetup[7]);
-					Base.logger.finer("Z PITCH = " + infosetup[8]);
-				}
-				
-				boolean active = !buffer.isEmpty();
-				flushBuffer();
+			break;
 
-				if (isInitialized()) {
-					sendInitializationGcode(false);
+		case RESEND:
+			// Bad checksum, resend requested
+			int badLineNumber = reply.getResendLine();
 
-					// If there were outstanding commands try to abort any print in progress.
-					// This is a poor test:  but do we know if we're printing at this level?
-					// tried setInitialized(false); but that didn't work well
-					if (active) {
-						Base.logger.severe("Firmware reset with active commands!");
-						setError("Firmware reset with active commands!");
-					}
-				}
-				if (okAfterStart) {
-					// firmware sends "ok" after start, put something here to consume it:
-					bufferLock.lock();
-					buffer.addLast(";start-ok");
-					bufferLock.unlock();
-				}
-				
-				// todo: set version
-				synchronized (startReceived) {
-					startReceived.set(true);
-					startReceived.notifyAll();
-				}
+			// Is it a Dud M or G code?
+			char dudLetter = reply.getDudLetter();
 
-				// Wake up connect task to try again
-				synchronized (okReceived) {
-					okReceived.set(false);
-					okReceived.notifyAll();
+			if (badLineNumber >= 0)
+			{
+				if(debugLevel > 1)
+					Base.logger.warning("Received resend request for line " + badLineNumber);
+
+				// The firmware answers in order, so the lines sent before the
+				// bad one have been acknowledged already.
+				SentLine bad = window.find(badLineNumber);
+				if (bad != null)
+					window.acknowledgeBefore(bad);
+				
+				if (okAfterResend) {
+					// firmware sends "ok" after resend, make a note to consume it:
+					skipOks.incrementAndGet();
 				}
 
-			} else if (line.startsWith("extruder fail")) {
-				setError("Extruder failed:  cannot extrude as this rate.");
-
-			} else if (line.startsWith("resend")||line.startsWith("rs ")) {
-				// Bad checksum, resend requested
-				Matcher badLineMatch = resendLinePattern.matcher(line);
-
-				// Is it a Dud M or G code?
-				String dudLetter = getRegexMatch("dud ([a-z]) code", line, 1);
-
-				if (badLineMatch.find())
-				{
-					int badLineNumber = Integer.parseInt(
-							badLineMatch.group(1) );
-					if(debugLevel > 1)
-						Base.logger.warning("Received resend request for line " + badLineNumber);
-
-					Queue<String> resend = new LinkedList<String>();
-					boolean found = false;
-					// Search backwards for the bad line in our buffer.
-					// Firmware flushed everything after this line, so
-					// build a queue of lines to resend.
-					bufferLock.lock();
-					lineSearch: while (!buffer.isEmpty())
-					{
-						String bufferedLine = buffer.removeLast();
-						if(debugLevel > 1)
-							Base.logger.info("Searching: " + bufferedLine);
-						int bufferedLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, bufferedLine.toLowerCase(), 1) );
-						if (dudLetter != null && bufferedLineNumber == badLineNumber) {
-							Base.logger.info("Dud "+dudLetter+" code: Dropping " + bufferedLine);
-							synchronized (bufferedLine) {
-								bufferedLine.notifyAll();
+				writeLock.lock();
+				try {
+					if (dudLetter != 0) {
+						if (bad != null) {
+							Base.logger.info("Dud "+dudLetter+" code: Dropping " + bad.text);
+							window.drop();
+						}
+					} else if (badLineNumber == resendingFrom && resendEchoes > 0) {
+						// A line sent before the resend, turned away as out of order; the
+						// resent lines are already on their way.
+						resendEchoes--;
+					} else {
+						// Firmware flushed everything from this line on, so
+						// send all of it again.
+						SentLine[] resend = window.waiting();
+						resendingFrom = badLineNumber;
+						resendEchoes = Math.max(0, resend.length - 1);
+						if (bad == null) {
+							if (resend.length == 0) {
+								Base.logger.severe("resend for line " + badLineNumber + " not in our buffer, which is empty.");
+								resyncLineNumber(lineNumber.get());
+							} else {
+								int restartLineNumber = resend[0].lineNumber;
+								Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
+								resyncLineNumber(restartLineNumber-1);
 							}
-							found = true;
-							break lineSearch;
 						}
-						resend.add(bufferedLine);
-						if (bufferedLineNumber == badLineNumber) {
-							found = true;
-							break lineSearch;
+						for (SentLine bufferedLine : resend) {
+							resendCommand(bufferedLine.text);
 						}
 					}
-					if (okAfterResend) {
-						// firmware sends "ok" after resend, put something here to consume it:
-						buffer.addLast(";resend-ok");
-					}
-					bufferLock.unlock();
-
-					if (!found) {
-						int restartLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, resend.element().toLowerCase(), 1) );
-						Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
-						this.resendCommand(applyChecksum("N"+(restartLineNumber-1)+" M110"));
-					}
-					// resend the lines
-					while (!resend.isEmpty())
-					{
-						String bufferedLine = resend.remove();
-						this.resendCommand(bufferedLine);
-					}
+				} finally {
+					writeLock.unlock();
 				}
-				else
-				{
-					// Malformed resend line request received. Resetting the line number
-					Base.logger.warning("malformed line resend request, "
-							+"resetting line number. Malformed Data: \n"+line);
-					this.resendCommand(applyChecksum("N"+(lineNumber.get()-1)+" M110"));
+			}
+			else
+			{
+				// Malformed resend line request received. Resetting the line number
+				Base.logger.warning("malformed line resend request, "
+						+"resetting line number. Malformed Data: \n"+reply);
+				writeLock.lock();
+				try {
+					resyncLineNumber(lineNumber.get()-1);
+				} finally {
+					writeLock.unlock();
 				}
+			}
+			break;
+
+		case OTHER:
+			processOtherReply(reply.toString());
+			break;
 
-			} else if (line.startsWith("t:") || line.startsWith("c:")) {
-				// temperature, position handled above
+		default:
+			// echoes; temperature and position handled above
+			break;
+		}
+	}
+
+	/**
+	 * Act on a line from the firmware that isn't one of the usual replies.
+	 */
+	private void processOtherReply(String line) {
+		if(line.contains("sd"))
+		{
+			if (line.contains("fail"))
+			{
+				Base.logger.warning("SD card failure!");
+			}
+			else
+			{
+				Base.logger.info("SD card connected");
 			}
-			else{
-				//Check for unknown lines, this means baudrate is off!
-				Pattern p = Pattern.compile("[^\\x20-\\x7E].*");
-				Matcher m = p.matcher(line);
-				if (version.equals(new Version(0,0)) && m.find())
+		}
+		else if (line.startsWith("marlin"))
+		{
+			Pattern p = Pattern.compile("marlin u([0-9]).([0-9]).*");
+			Matcher m = p.matcher(line);
+			m.find();
+			version = new Version(Integer.parseInt(m.group(1)),Integer.parseInt(m.group(2)));
+			//Some marlin versions send out their code...
+			if (version.atLeast(minimumVersion))
+			{
+				if (version.compareTo(preferredVersion) == 1)
 				{
-					Base.logger.severe("Wrong baud rate or faulty firmware detected.");
-					Base.logger.severe("Please select the right machine Driver and try again.");
-					this.uninitialize();
-					throw new BadFirmwareVersionException(version,preferredVersion);
+					//We are running an unsupported version
+					Base.logger.warning("You are running an unsupported firmware version!");
 				}
-				Base.logger.severe("Unknown: " + line);
+			}
+			else
+			{
+				this.uninitialize();
+				throw new BadFirmwareVersionException(version,preferredVersion);
 			}
 		}
-
-		readResponseLock.unlock();
+		else if (line.contains("firmware_name"))
+		{
+			Pattern p = Pattern.compile("firmware_name:([0-9a-z.]{0,}).*firmware_url:([\\S.]{0,}.*).*protocol_version:([0-9]{0,}).([0-9]{0,}).*machine_type:([a-z]{0,}).*extruder_count:([0-9]{0,})");
+			Matcher m = p.matcher(line);
+			m.find();
+			Base.logger.fine("Detecting firmware!");
+			//Assume we got an answer to M115, lets see what we got:
+			if (m.group(1).startsWith("marlin"))
+			{
+				Base.logger.fine("setting marlin");
+				setFirmwareName("Marlin");
+			}
+			else
+			{
+				setFirmwareName("Unknown");
+			}
+			if (m.group(2).contains("ultimaker") || m.group(5).contains("ultimaker"))
+			{
+				//We got an ultimaker, hurray!
+			}
+			else
+			{
+				Base.logger.warning("Could not detect Ultimaker firmware.");
+			}
+			version = new Version(Integer.parseInt(m.group(3)),Integer.parseInt(m.group(4)));
+			//infosetup[5] = extruder amount!
+			if (version.atLeast(minimumVersion))
+			{
+				if (version.compareTo(preferredVersion) == 1)
+				{
+					//We are running an unsupported version
+					Base.logger.warning("You are running an unsupported firmware version!");
+				}
+			}
+			else
+			{
+				this.uninitialize();
+				throw new BadFirmwareVersionException(version,preferredVersion);
+			}
+		}
+		else if (line.startsWith("x:"))
+		{
+			String[] curlocation = line.split("[a-z]:");
+			
+			try {
+				super.setCurrentPosition(new Point5d(Double.parseDouble(curlocation[1]), Double.parseDouble(curlocation[2]), Double.parseDouble(curlocation[3])));
+			} catch (NumberFormatException e) {
+				// TODO Auto-generated catch block
+				Base.logger.warning("Firmware sent unknown string: " + line);
+			} catch (RetryException e) {
+			}
+			Base.logger.fine("E: " + curlocation[4]);
+		}
+		else if (line.startsWith("extruder fail")) {
+			setError("Extruder failed:  cannot extrude as this rate.");
+		}
+		else {
+			//Check for unknown lines, this means baudrate is off!
+			Pattern p = Pattern.compile("[^\\x20-\\x7E].*");
+			Matcher m = p.matcher(line);
+			if (version.equals(new Version(0,0)) && m.find())
+			{
+				Base.logger.severe("Wrong baud rate or faulty firmware detected.");
+				Base.logger.severe("Please select the right machine Driver and try again.");
+				this.uninitialize();
+				throw new BadFirmwareVersionException(version,preferredVersion);
+			}
+			Base.logger.severe("Unknown: " + line);
+		}
 	}
 
 	public boolean isFinished() {
@@ -1029,49 +1052,40 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * waiting for their completion.
 	 */
 	private void flushBuffer() {
-		bufferLock.lock();
-		while (!buffer.isEmpty())
-		{
-			String notifier = buffer.removeLast();
-			if(debugLevel > 1)
-				Base.logger.fine("Flushing dead command: " + notifier);
-			synchronized(notifier) { notifier.notifyAll(); }
+		// Only the reader of the firmware's replies takes commands out of the window
+		readResponseLock.lock();
+		try {
+			skipOks.set(0);
+			int flushed = window.flush();
+			if(debugLevel > 1 && flushed > 0)
+				Base.logger.fine("Flushed " + flushed + " dead commands");
+		} finally {
+			readResponseLock.unlock();
 		}
-		bufferLock.unlock();
 	}
 
 	/**
 	 * Is our buffer empty? If don't have a buffer, its always true.
 	 */
 	public boolean isBufferEmpty() {
-		bufferLock.lock();
-		boolean isEmpty = buffer.isEmpty();
-		bufferLock.unlock();
-		return isEmpty;
+		return window.isEmpty();
 	}
 
 	/**
 	 * What is our queue size?  Used by extrusion driver
 	 */
 	public int queueSize() {
-		bufferLock.lock();
-		int queueSize = buffer.size();
-		bufferLock.unlock();
-		return queueSize;
+		return window.size();
 	}
 
 	private synchronized void disconnect() {
-		bufferLock.lock();
 		flushBuffer();
 		closeSerial();
-		bufferLock.unlock();
 	}
 
 	public synchronized void dispose() {
-		bufferLock.lock();
 		flushBuffer();
 		super.dispose();
-		bufferLock.unlock();
 	}
 
 	/***************************************************************************
@@ -1430,7 +1444,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	protected Point5d reconcilePosition() {
-		sendCommand("M114");
+		sendCommand("M114", true);
 		// If the firmware returned a position then the reply parser
 		// already set the current position.  Return null to tell
 		// caller not to touch the position if it is now known.
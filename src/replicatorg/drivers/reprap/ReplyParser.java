@@ -0,0 +1,381 @@
+package replicatorg.drivers.reprap;
+
+import java.io.UnsupportedEncodingException;
+
+import replicatorg.app.util.serial.ByteFifo;
+
+/**
+ * Reads the firmware's replies a line at a time straight out of the serial
+ * read buffer, and picks out what RepRap5DDriver wants from the common ones
+ * without making Strings or running regular expressions.
+ *
+ * The line is trimmed and lower-cased as it is copied into a buffer that is
+ * kept from line to line. Once the newline is in, the line is sorted into one
+ * of the Reply kinds below, in the order RepRap5DDriver has always looked
+ * for them, and the numbers in it are read:
+ * <ul>
+ * <li>the extruder temperature, from the first t:, of a line starting "t:"
+ * or "ok t:"; the platform temperature, from the last b:, of one starting
+ * "ok t:"</li>
+ * <li>the position, from "c: x:.. y:.. z:..", of a line starting "c:" or
+ * "ok c:"</li>
+ * <li>the line asked for, the first number in the line, and the code letter
+ * of "dud .. code", of a resend request</li>
+ * </ul>
+ * A number that doesn't read as one is left out, as if it wasn't there.
+ *
+ * Anything else is OTHER: firmware names and versions, SD card news, M114
+ * positions, and whatever the firmware sends that we don't know. Those are
+ * rare enough that the driver can look at them as a String; see toString().
+ *
+ * Used by one thread at a time, as a FrameDecoder for ByteFifo.feed(): feed
+ * it until isComplete(), then reset() it for the next line.
+ */
+final class ReplyParser implements ByteFifo.FrameDecoder<RuntimeException> {
+
+	/** What a line from the firmware is, for the driver's purposes. */
+	enum Reply {
+		/** nothing but whitespace */
+		EMPTY,
+		/** "ok", which may have a temperature or position on it */
+		OK,
+		/** "echo", other than echoes about the SD card */
+		ECHO,
+		/** the firmware has (re)started */
+		START,
+		/** "resend" or "rs": the firmware wants lines sent again */
+		RESEND,
+		/** a temperature report that isn't an ok, as sent while heating */
+		TEMPERATURE,
+		/** a position report that isn't an ok */
+		POSITION,
+		/** anything else; see toString() */
+		OTHER
+	}
+
+	// Longer lines than this lose what comes after, but still end at the newline
+	private static final int MAX_LENGTH = 4096;
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private byte[] line = new byte[128];
+	private int length = 0;
+	private boolean complete = false;
+
+	private Reply reply;
+	private double temperature;
+	private double platformTemperature;
+	private double x, y, z;
+	private boolean hasTemperature, hasPlatformTemperature, hasPosition;
+	private int resendLine;
+	private char dudLetter;
+
+	// Where a number read by number() ended
+	private int numberEnd;
+
+	public int decode(byte[] buf, int off, int len) {
+		for (int i = 0; i < len; i++) {
+			byte b = buf[off + i];
+			if (b == '\n') {
+				complete = true;
+				finish();
+				return i + 1;
+			}
+			if (length == 0 && (b & 0xff) <= ' ') {
+				// leading whitespace
+				continue;
+			}
+			if (length == line.length) {
+				if (length == MAX_LENGTH) {
+					continue;
+				}
+				byte[] grown = new byte[Math.min(MAX_LENGTH, length * 2)];
+				System.arraycopy(line, 0, grown, 0, length);
+				line = grown;
+			}
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			line[length++] = b;
+		}
+		return len;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public int bytesNeeded() {
+		return 1;
+	}
+
+	/** Forget the line, ready for the next. */
+	void reset() {
+		length = 0;
+		complete = false;
+	}
+
+	Reply getReply() { return reply; }
+
+	boolean hasTemperature() { return hasTemperature; }
+	double getTemperature() { return temperature; }
+	boolean hasPlatformTemperature() { return hasPlatformTemperature; }
+	double getPlatformTemperature() { return platformTemperature; }
+
+	boolean hasPosition() { return hasPosition; }
+	double getX() { return x; }
+	double getY() { return y; }
+	double getZ() { return z; }
+
+	/** @return the line number a resend request asks for, or -1 if it doesn't say */
+	int getResendLine() { return resendLine; }
+	/** @return the letter of the code a resend request calls a dud, or 0 if it doesn't */
+	char getDudLetter() { return dudLetter; }
+
+	/** @return true if the line starts with the given lower-case text */
+	boolean startsWith(String s) {
+		return regionMatches(0, s);
+	}
+
+	/** @return true if the line has the given lower-case text in it */
+	boolean contains(String s) {
+		return indexOf(s, 0) >= 0;
+	}
+
+	/** @return the line, trimmed and lower-cased, as a String */
+	@Override
+	public String toString() {
+		try {
+			return new String(line, 0, length, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// The whole line is in
+	private void finish() {
+		while (length > 0 && (line[length - 1] & 0xff) <= ' ') {
+			length--;
+		}
+		hasTemperature = false;
+		hasPlatformTemperature = false;
+		hasPosition = false;
+		resendLine = -1;
+		dudLetter = 0;
+		reply = classify();
+
+		if (startsWith("ok t:") || startsWith("t:")) {
+			readTemperatures();
+		} else if (startsWith("ok c:") || startsWith("c:")) {
+			readPosition();
+		}
+		if (reply == Reply.RESEND) {
+			readResend();
+		}
+	}
+
+	private Reply classify() {
+		if (length == 0) {
+			return Reply.EMPTY;
+		}
+		if (startsWith("ok")) {
+			return Reply.OK;
+		}
+		if (contains("sd") || startsWith("marlin")) {
+			return Reply.OTHER;
+		}
+		if (startsWith("echo")) {
+			return Reply.ECHO;
+		}
+		if (contains("firmware_name") || startsWith("x:")) {
+			return Reply.OTHER;
+		}
+		if (contains("start")) {
+			return Reply.START;
+		}
+		if (startsWith("extruder fail")) {
+			return Reply.OTHER;
+		}
+		if (startsWith("resend") || startsWith("rs ")) {
+			return Reply.RESEND;
+		}
+		if (startsWith("t:")) {
+			return Reply.TEMPERATURE;
+		}
+		if (startsWith("c:")) {
+			return Reply.POSITION;
+		}
+		return Reply.OTHER;
+	}
+
+	private boolean regionMatches(int at, String s) {
+		int n = s.length();
+		if (at + n > length) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			if (line[at + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(String s, int from) {
+		for (int i = from; i + s.length() <= length; i++) {
+			if (regionMatches(i, s)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isNumeric(byte b) {
+		return (b >= '0' && b <= '9') || b == '.';
+	}
+
+	private void readTemperatures() {
+		// The first t: with a number after it
+		for (int i = indexOf("t:", 0); i >= 0; i = indexOf("t:", i + 1)) {
+			if (i + 2 < length && isNumeric(line[i + 2])) {
+				temperature = number(i + 2, false);
+				hasTemperature = !Double.isNaN(temperature);
+				break;
+			}
+		}
+		if (!startsWith("ok")) {
+			return;
+		}
+		// The last b: with a number after it, short of any stray carriage return
+		int end = indexOf("\r", 0);
+		if (end < 0) {
+			end = length;
+		}
+		for (int i = Math.min(length - 2, end - 1); i >= 0; i--) {
+			if (line[i] == 'b' && line[i + 1] == ':' && i + 2 < length && isNumeric(line[i + 2])) {
+				platformTemperature = number(i + 2, false);
+				hasPlatformTemperature = !Double.isNaN(platformTemperature);
+				break;
+			}
+		}
+	}
+
+	// "c: *x:?([-0-9.]+) *y:?([-0-9.]+) *z:?([-0-9.]+)", wherever it first matches
+	private void readPosition() {
+		for (int i = indexOf("c:", 0); i >= 0; i = indexOf("c:", i + 1)) {
+			int p = coordinate(i + 2, 'x');
+			if (p < 0) continue;
+			double cx = number(p, true);
+			p = coordinate(numberEnd, 'y');
+			if (p < 0) continue;
+			double cy = number(p, true);
+			p = coordinate(numberEnd, 'z');
+			if (p < 0) continue;
+			double cz = number(p, true);
+			if (!Double.isNaN(cx) && !Double.isNaN(cy) && !Double.isNaN(cz)) {
+				x = cx;
+				y = cy;
+				z = cz;
+				hasPosition = true;
+			}
+			return;
+		}
+	}
+
+	// Skip " *<axis>:?" from here; return where the number starts, or -1
+	private int coordinate(int i, char axis) {
+		while (i < length && line[i] == ' ') {
+			i++;
+		}
+		if (i >= length || line[i] != axis) {
+			return -1;
+		}
+		i++;
+		if (i < length && line[i] == ':') {
+			i++;
+		}
+		if (i >= length || !(isNumeric(line[i]) || line[i] == '-')) {
+			return -1;
+		}
+		return i;
+	}
+
+	private void readResend() {
+		int i = 0;
+		while (i < length && (line[i] < '0' || line[i] > '9')) {
+			i++;
+		}
+		if (i < length) {
+			long n = 0;
+			while (i < length && line[i] >= '0' && line[i] <= '9' && n <= Integer.MAX_VALUE) {
+				n = n * 10 + (line[i++] - '0');
+			}
+			resendLine = (n <= Integer.MAX_VALUE) ? (int)n : -1;
+		}
+		int dud = indexOf("dud ", 0);
+		while (dud >= 0) {
+			if (regionMatches(dud + 5, " code") && line[dud + 4] >= 'a' && line[dud + 4] <= 'z') {
+				dudLetter = (char)line[dud + 4];
+				break;
+			}
+			dud = indexOf("dud ", dud + 1);
+		}
+	}
+
+	/**
+	 * Read the run of digits and points (and minus signs, if signed) from
+	 * here, as Double.parseDouble() would; sets numberEnd.
+	 * @return the number, or NaN if it isn't one
+	 */
+	private double number(int start, boolean signed) {
+		int end = start;
+		while (end < length && (isNumeric(line[end]) || (signed && line[end] == '-'))) {
+			end++;
+		}
+		numberEnd = end;
+
+		int i = start;
+		boolean negative = false;
+		if (signed && i < end && line[i] == '-') {
+			negative = true;
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int point = -1;
+		for (; i < end; i++) {
+			byte b = line[i];
+			if (b == '.') {
+				if (point >= 0) {
+					return Double.NaN;
+				}
+				point = i;
+			} else if (b == '-') {
+				return Double.NaN;
+			} else {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return Double.NaN;
+		}
+		int scale = (point < 0) ? 0 : end - point - 1;
+		double value;
+		// Both exact as doubles, so one correctly rounded division gives what parseDouble() does
+		if (digits <= 15 && scale < POWERS_OF_TEN.length) {
+			value = mantissa / POWERS_OF_TEN[scale];
+		} else {
+			try {
+				value = Double.parseDouble(new String(line, start, end - start, "US-ASCII"));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			return value;
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,250 @@
+package replicatorg.drivers.reprap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lines sent to the firmware that it hasn't acknowledged yet, counted
+ * in characters against the size of its receive buffer.
+ *
+ * The firmware answers each line with an "ok" once the line has left its
+ * receive buffer, in the order the lines were sent. So a line can be sent
+ * as soon as it fits in what the lines still waiting leave of the buffer,
+ * rather than only after the line before it is acknowledged. A line longer
+ * than the whole buffer is sent on its own.
+ *
+ * The lines are kept in a ring, oldest first, whose size is a power of two.
+ * Head and tail are counters that only ever grow; one thread at a time adds
+ * lines (the sender) and one at a time takes them out (the reader of the
+ * firmware's replies), so the ring needs no lock. A line can also be looked
+ * up by its line number, for resends, without searching.
+ *
+ * Each line is a Future that is done when the firmware acknowledges it
+ * (true), or when it is dropped or flushed without being acknowledged
+ * (false).
+ */
+class SendWindow {
+	// The most lines that may be waiting; "N1 G1\n" is about the shortest a
+	// numbered line gets, so this is plenty for any buffer we'd see
+	private static final int RING_SIZE = 256;
+	private static final int MASK = RING_SIZE - 1;
+
+	/**
+	 * A line waiting to be acknowledged.
+	 */
+	static class SentLine implements Future<Boolean> {
+		final String text;
+		/** the N number of the line, or -1 if it doesn't have one */
+		final int lineNumber;
+		final int length;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean acknowledged = false;
+
+		SentLine(String text, int lineNumber) {
+			this.text = text;
+			this.lineNumber = lineNumber;
+			// Counting the newline
+			length = text.length() + 1;
+		}
+
+		private void complete(boolean acknowledged) {
+			this.acknowledged = acknowledged;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public Boolean get() throws InterruptedException {
+			done.await();
+			return acknowledged;
+		}
+
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return acknowledged;
+		}
+	}
+
+	private final SentLine[] lines = new SentLine[RING_SIZE];
+	// Where in the ring each line number was last put, by line number
+	private final long[] positions = new long[RING_SIZE];
+	// total lines ever taken out / put in
+	private volatile long head = 0;
+	private volatile long tail = 0;
+
+	private final int capacity;
+	private final AtomicInteger chars = new AtomicInteger();
+
+	// The sender, while it waits for room; guarded by this
+	private volatile boolean senderWaiting = false;
+
+	/**
+	 * @param capacity the size of the firmware's receive buffer, in characters
+	 */
+	SendWindow(int capacity) {
+		this.capacity = capacity;
+	}
+
+	private boolean hasRoom(int length) {
+		long count = tail - head;
+		if (count == 0) {
+			return true;
+		}
+		return count < RING_SIZE && chars.get() + length <= capacity;
+	}
+
+	/**
+	 * Wait until a line of this many characters, without its newline, can
+	 * be sent.
+	 */
+	void awaitRoom(int length) throws InterruptedException {
+		length++;
+		if (hasRoom(length)) {
+			return;
+		}
+		synchronized (this) {
+			senderWaiting = true;
+			try {
+				while (!hasRoom(length)) {
+					wait();
+				}
+			} finally {
+				senderWaiting = false;
+			}
+		}
+	}
+
+	/**
+	 * Add a line that is being sent. Only the sender calls this, after
+	 * awaitRoom().
+	 */
+	SentLine add(String text, int lineNumber) {
+		SentLine line = new SentLine(text, lineNumber);
+		long t = tail;
+		lines[(int)t & MASK] = line;
+		if (lineNumber >= 0) {
+			positions[lineNumber & MASK] = t;
+		}
+		chars.addAndGet(line.length);
+		tail = t + 1;
+		return line;
+	}
+
+	// Take the oldest line out
+	private SentLine remove(boolean acknowledged) {
+		long h = head;
+		if (h == tail) {
+			return null;
+		}
+		int i = (int)h & MASK;
+		SentLine line = lines[i];
+		lines[i] = null;
+		chars.addAndGet(-line.length);
+		head = h + 1;
+		line.complete(acknowledged);
+		if (senderWaiting) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * The firmware has acknowledged the oldest line.
+	 * @return the line, or null if there wasn't one waiting
+	 */
+	SentLine acknowledge() {
+		return remove(true);
+	}
+
+	/**
+	 * @return the line waiting with this line number, or null if there isn't one
+	 */
+	SentLine find(int lineNumber) {
+		if (lineNumber < 0) {
+			return null;
+		}
+		long p = positions[lineNumber & MASK];
+		if (p < head || p >= tail) {
+			return null;
+		}
+		SentLine line = lines[(int)p & MASK];
+		return (line != null && line.lineNumber == lineNumber) ? line : null;
+	}
+
+	/**
+	 * Drop the lines older than this one, which the firmware must have
+	 * acknowledged already as it answers in order.
+	 */
+	void acknowledgeBefore(SentLine line) {
+		while (head != tail && lines[(int)head & MASK] != line) {
+			remove(true);
+		}
+	}
+
+	/**
+	 * Drop the oldest line without it being acknowledged.
+	 */
+	SentLine drop() {
+		return remove(false);
+	}
+
+	/**
+	 * @return the lines waiting, oldest first
+	 */
+	SentLine[] waiting() {
+		long h = head;
+		long t = tail;
+		SentLine[] waiting = new SentLine[(int)(t - h)];
+		for (int i = 0; i < waiting.length; i++) {
+			waiting[i] = lines[(int)(h + i) & MASK];
+		}
+		return waiting;
+	}
+
+	/**
+	 * Drop every line waiting without it being acknowledged.
+	 * @return how many were dropped
+	 */
+	int flush() {
+		int count = 0;
+		while (remove(false) != null) {
+			count++;
+		}
+		return count;
+	}
+
+	boolean isEmpty() {
+		return head == tail;
+	}
+
+	/** @return how many lines are waiting */
+	int size() {
+		return (int)(tail - head);
+	}
+
+	/** @return how many characters the lines waiting take up in the firmware's buffer */
+	int getChars() {
+		return chars.get();
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+}
@@ -26,10 +26,8 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -48,15 +46,12 @@ import net.miginfocom.swing.MigLayout;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
-import replicatorg.app.gcode.GCodeCommand;
-import replicatorg.app.gcode.GCodeEnumeration;
-import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.ParallelEstimator;
+import replicatorg.app.gcode.ParsedGCode;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
-import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
-import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.MachineState.State;
 import replicatorg.machine.model.AxisId;
@@ -151,6 +146,7 @@ public class Machine implements MachineInterface {
 
 	MachineThread machineThread;
 	final MachineCallbackHandler callbackHandler;
+	final MachineTelemetry telemetry;
 	
 	// TODO: WTF is this here for.
 	// this is the xml config for this machine.
@@ -168,6 +164,12 @@ public class Machine implements MachineInterface {
 		this.callbackHandler = callbackHandler; 
 		
 		machineNode = mNode;
+		
+		// Keep an eye on the connection and the temperatures for as long as there is a machine
+		telemetry = new MachineTelemetry(this);
+		telemetry.subscribe(MachineTelemetry.Query.STATUS, 1000);
+		telemetry.subscribe(MachineTelemetry.Query.TEMPERATURE, 1000);
+		
 		machineThread = new MachineThread(this, mNode);
 		machineThread.start();
 
@@ -350,44 +352,38 @@ public class Machine implements MachineInterface {
 //		buildVolume.setY(machineThread.getModel().getBuildVolume().getY()/2);
 //		buildVolume.setZ(machineThread.getModel().getBuildVolume().getZ()/2);
 		
-		GCodeCommand gcode;
-		String message, cmd, mainCode;
-		Integer lineNumber = 0;
+		// Parsed once for the estimate and the build, too
+		ParsedGCode parsed = ParsedGCode.of(source);
+		// Only needed for the messages
+		List<String> lines = null;
+		String message;
 		
-		for(String line : source)
+		for(int lineNumber = 0; lineNumber < parsed.getLineCount(); lineNumber++)
 		{
-			try
+			int opcode = parsed.getOpcode(lineNumber);
+			if(opcode == ParsedGCode.UNPARSEABLE || opcode == ParsedGCode.UNKNOWN)
 			{
-				gcode = new GCodeCommand(line);
-			} //Catching every kind of exception is generally bad form,
-			//  It can hide where the problem is happening, and should be avoided
-			//  But I'm doing it anyway.
-			catch(Exception e)
-			{
-				message = "ReplicatorG can't parse '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				continue;
-			}
+				if(lines == null) lines = source.asList();
+				if(opcode == ParsedGCode.UNPARSEABLE)
+				{
+					message = "ReplicatorG can't parse '" + lines.get(lineNumber) +"'";
 
-			cmd = gcode.getCommand();
-			if(cmd.split(" ").length < 1) continue; //to avoid null index problems
-			
-			mainCode = cmd.split(" ")[0];
+					messages.put(message, lineNumber);
+					Base.logger.log(Level.SEVERE, message);
+					continue;
+				}
 
-			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-			{
-				message = "ReplicatorG doesn't recognize GCode '" + line +"'";
+				message = "ReplicatorG doesn't recognize GCode '" + lines.get(lineNumber) +"'";
 
 				messages.put(message, lineNumber);
 				Base.logger.log(Level.SEVERE, message);
 			}
 			
 			// Check for homing in the wrong direction
-			if(!homingDirectionIsSafe(gcode))
+			if(!homingDirectionIsSafe(parsed, lineNumber))
 			{
-				message = "Homing in the wrong direction for selected machine: '" + line +"'";
+				if(lines == null) lines = source.asList();
+				message = "Homing in the wrong direction for selected machine: '" + lines.get(lineNumber) +"'";
 
 				messages.put(message, lineNumber);
 				Base.logger.log(Level.SEVERE, message);
@@ -396,28 +392,29 @@ public class Machine implements MachineInterface {
 			// we're going to check for the correct number of toolheads in each command
 			// the list of exceptions keeps growing, do we really need to do this check?
 			// maybe we should just specify the things to check, rather than the reverse
-			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
-													   && gcode.getCodeValue('M') != 106
-													   && gcode.getCodeValue('M') != 107)
+			if(parsed.getCodeValue(lineNumber, 'T') > nToolheads-1 && parsed.getCodeValue(lineNumber, 'M') != 109
+																	&& parsed.getCodeValue(lineNumber, 'M') != 106
+																	&& parsed.getCodeValue(lineNumber, 'M') != 107)
 			{
-				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
+				message = "Toolheads index error! You don't have a toolhead numbered " + parsed.getCodeValue(lineNumber, 'T');
 				messages.put(message, lineNumber);
 				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
 				messages.put(message, lineNumber);
 				Base.logger.log(Level.SEVERE, message);
 				return; //TRICKY: see footnote [1]
 			}
-			if(gcode.hasCode('F'))
+			if(parsed.hasCode(lineNumber, 'F'))
 			{
-				double fVal = gcode.getCodeValue('F');
-				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
-					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
+				double fVal = parsed.getCodeValue(lineNumber, 'F');
+				if( (parsed.hasCode(lineNumber, 'X') && fVal > maxRates.x()) ||
+					(parsed.hasCode(lineNumber, 'Y') && fVal > maxRates.y()) ||
 // we're going to ignore this for now, since most of the time the z isn't actually moving 
-//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-					(gcode.hasCode('A') && fVal > maxRates.a()) ||
-					(gcode.hasCode('B') && fVal > maxRates.b()))
+//					(parsed.hasCode(lineNumber, 'Z') && fVal > maxRates.z()) ||  
+					(parsed.hasCode(lineNumber, 'A') && fVal > maxRates.a()) ||
+					(parsed.hasCode(lineNumber, 'B') && fVal > maxRates.b()))
 				{
-					message = "You're moving too fast! " + line +
+					if(lines == null) lines = source.asList();
+					message = "You're moving too fast! " + lines.get(lineNumber) +
 							 " turns at least one axis faster than it's max speed.";
 
 					messages.put(message, lineNumber);
@@ -426,15 +423,14 @@ public class Machine implements MachineInterface {
 				//BUGFIX! Can cause problems when used on reprap machines!
 				if (fVal < 0)
 				{
-					message = "Negative feedrate detected! '" + line +
+					if(lines == null) lines = source.asList();
+					message = "Negative feedrate detected! '" + lines.get(lineNumber) +
 							 "' causes crashes in the reprap driver.";
 
 					messages.put(message, lineNumber);
 					Base.logger.log(Level.SEVERE, message);
 				}
 			}
-			
-			lineNumber++;
 		}
 	}
 	//footnote [1]:
@@ -442,20 +438,20 @@ public class Machine implements MachineInterface {
 	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
 	// thousands of exactly the same error
 	
-	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
+	private boolean homingDirectionIsSafe(ParsedGCode parsed, int line) {
 		Endstops xstop, ystop, zstop;
 		
 		// If it doesn't have the code, ignore it
 		xstop = ystop = zstop = Endstops.BOTH;
 		
-		if(gcode.hasCode('X'))
+		if(parsed.hasCode(line, 'X'))
 			xstop = machineThread.getModel().getEndstops(AxisId.X);
-		if(gcode.hasCode('Y'))
+		if(parsed.hasCode(line, 'Y'))
 			ystop = machineThread.getModel().getEndstops(AxisId.Y);
-		if(gcode.hasCode('Z'))
+		if(parsed.hasCode(line, 'Z'))
 			zstop = machineThread.getModel().getEndstops(AxisId.Z);
 		
-		if(gcode.getCodeValue('G') == 161)
+		if(parsed.getCodeValue(line, 'G') == 161)
 		{
 			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
 				return false;
@@ -464,7 +460,7 @@ public class Machine implements MachineInterface {
 			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
 				return false;
 		}
-		else if(gcode.getCodeValue('G') == 162)
+		else if(parsed.getCodeValue(line, 'G') == 162)
 		{
 			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
 				return false;
@@ -482,31 +478,9 @@ public class Machine implements MachineInterface {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
-
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
-
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-			
-			for (DriverCommand command : estimatorQueue) {
-				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
-				}
-			}
-			estimatorQueue.clear();
-		}
+		// TODO: Hooks for plugins to add estimated time?
+		ParallelEstimator estimator = new ParallelEstimator(machineThread.getModel());
+		double buildTime = estimator.estimate(source);
 
 		// TODO: Set simulator up properly.
 		// if (simulator != null) {
@@ -517,9 +491,28 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
+		machineThread.setEstimatedBuildTime(buildTime);
 		Base.logger.info("Estimated build time is: " + 
-					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+					EstimationDriver.getBuildTimeString(buildTime));
+		logLayerTimes(estimator.getLayerTimes());
+	}
+
+	private void logLayerTimes(List<EstimationDriver.LayerTime> layers) {
+		if (layers.isEmpty())
+			return;
+		EstimationDriver.LayerTime slowest = layers.get(0);
+		for (EstimationDriver.LayerTime layer : layers) {
+			if (layer.getMillis() > slowest.getMillis())
+				slowest = layer;
+		}
+		Base.logger.info(layers.size() + " layers; the longest is at z=" + slowest.getZ() + ", "
+				+ EstimationDriver.getBuildTimeString(slowest.getMillis(), true));
+		if (Base.logger.isLoggable(Level.FINE)) {
+			StringBuilder sb = new StringBuilder("Estimated layer times:");
+			for (EstimationDriver.LayerTime layer : layers)
+				sb.append("\n  z=" + layer.getZ() + ": " + EstimationDriver.getBuildTimeString(layer.getMillis(), true));
+			Base.logger.fine(sb.toString());
+		}
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
@@ -530,6 +523,10 @@ public class Machine implements MachineInterface {
 		return machineThread.getDriver();
 	}
 
+	public MachineTelemetry getTelemetry() {
+		return telemetry;
+	}
+
 	public SimulationDriver getSimulatorDriver() {
 		return machineThread.getSimulator();
 	}
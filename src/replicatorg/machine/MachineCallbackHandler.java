@@ -1,101 +1,318 @@
 package replicatorg.machine;
 
-import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
 import replicatorg.app.Base;
+import replicatorg.app.metrics.Gauge;
+import replicatorg.app.metrics.Metrics;
+import replicatorg.machine.model.ToolModel;
 
 
 /** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+ *
+ * Events go into one queue, in the order they were scheduled, and this
+ * thread wakes as soon as there is one to hand out. Each listener has its
+ * own queue of events and its own thread to deliver them, so a listener
+ * that is slow to return (a status panel redrawing, a data capture writing
+ * to disk) only holds up itself. Scheduling never waits on a listener.
+ *
+ * A listener sees events in the order they were scheduled, but a listener
+ * that falls behind only gets the latest of some of them: a new progress
+ * event replaces one still waiting, as does a new status for the same tool,
+ * and the new one goes to the back of the queue. State changes are never
+ * replaced. If a listener gets MAX_PENDING events behind it is taken to be
+ * stuck, and its oldest progress or tool status event is dropped for each
+ * new one. State changes are never dropped: if they are all a listener has
+ * waiting, its queue grows past MAX_PENDING instead.
+ *
+ * The getters at the bottom give counts of what has happened to the events,
+ * for keeping an eye on listeners that can't keep up. While this thread runs
+ * they are also the "machine.events" metrics.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
+
+	// Events a listener may have waiting before the oldest that can be are dropped
+	static final int MAX_PENDING = 256;
+
 	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
+	private final CopyOnWriteArrayList<Delivery> deliveries = new CopyOnWriteArrayList<Delivery>();
+
+	// Events of every kind, in the order they were scheduled
+	private final BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger peakDepth = new AtomicInteger();
+
+	private static final String METRICS_GROUP = "machine.events";
+	private static final String[] GAUGE_NAMES =
+		{ "queueDepth", "peakQueueDepth", "published", "delivered", "coalesced", "dropped" };
+	private final Gauge[] gauges = new Gauge[GAUGE_NAMES.length];
+
 	public MachineCallbackHandler() {
 		super("Machine Callback Handler");
-		
-		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
-	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
-			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
-		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
-			}
-			machineProgressEventQueue.remove();
-		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
-			}
-			machineToolStatusEventQueue.remove();
+		for (int i = 0; i < gauges.length; i++) {
+			final int which = i;
+			gauges[i] = new Gauge() {
+				public double getValue() {
+					switch (which) {
+					case 0: return getQueueDepth();
+					case 1: return getPeakQueueDepth();
+					case 2: return getPublishedEvents();
+					case 3: return getDeliveredEvents();
+					case 4: return getCoalescedEvents();
+					default: return getDroppedEvents();
+					}
+				}
+			};
 		}
 	}
-	
+
 	@Override
 	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
-				break;
+		for (int i = 0; i < gauges.length; i++) {
+			Metrics.gauge(METRICS_GROUP, GAUGE_NAMES[i], gauges[i]);
+		}
+		try {
+			while (true) {
+				Object event = events.take();
+				if (event instanceof MachineStateChangeEvent) {
+					Base.logger.fine("Sending machine state change event: "
+							+ ((MachineStateChangeEvent)event).getState().getState().toString());
+				}
+				for (Delivery d : deliveries) {
+					d.offer(event);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Terminate!
+			Base.logger.fine("taking callback handler down, " + events.size() + " events unsent, "
+					+ getDeliveredEvents() + " delivered, " + getCoalescedEvents() + " replaced, "
+					+ getDroppedEvents() + " dropped, at most " + getPeakQueueDepth() + " waiting for a listener");
+			for (Delivery d : deliveries) {
+				d.stop();
+			}
+		} finally {
+			for (int i = 0; i < gauges.length; i++) {
+				Metrics.removeGauge(METRICS_GROUP, GAUGE_NAMES[i], gauges[i]);
 			}
 		}
 	}
-	
-	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
+
+	public void addMachineListener(MachineListener listener) {
+		Delivery d = new Delivery(listener);
+		deliveries.add(d);
+		d.start();
 		// TODO: Was this important?
 //		listener.machineStateChanged(new MachineStateChangeEvent(this,
 //				getMachineState()));
 	}
 
-	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+	public void removeMachineListener(MachineListener listener) {
+		for (Delivery d : deliveries) {
+			if (d.listener.equals(listener)) {
+				deliveries.remove(d);
+				d.stop();
+				return;
+			}
+		}
 	}
 
-	synchronized public void schedule(MachineStateChangeEvent status) {
-		machineStateChangeEventQueue.add(status);
+	public void schedule(MachineStateChangeEvent status) {
+		publish(status);
 		Base.logger.fine("Scheduling machine state change event: "
 				+ status.getState().getState().toString());
 	}
 
-	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+	public void schedule(MachineProgressEvent progress) {
+		publish(progress);
+	}
+
+	public void schedule(MachineToolStatusEvent e) {
+		publish(e);
+	}
+
+	private void publish(Object event) {
+		published.incrementAndGet();
+		events.add(event);
+	}
+
+	/** @return how many events have been scheduled */
+	public long getPublishedEvents() {
+		return published.get();
+	}
+
+	/** @return how many times an event has been handed to a listener */
+	public long getDeliveredEvents() {
+		return delivered.get();
+	}
+
+	/** @return how many events a listener didn't get because a newer one replaced them */
+	public long getCoalescedEvents() {
+		return coalesced.get();
+	}
+
+	/** @return how many events a listener didn't get because it was too far behind */
+	public long getDroppedEvents() {
+		return dropped.get();
 	}
 
-	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+	/** @return how many events are waiting, to be handed out or for a listener */
+	public int getQueueDepth() {
+		int depth = events.size();
+		for (Delivery d : deliveries) {
+			depth += d.depth();
+		}
+		return depth;
+	}
+
+	/** @return the most events that have been waiting for any one listener */
+	public int getPeakQueueDepth() {
+		return peakDepth.get();
+	}
+
+	/**
+	 * Hands events to one listener, on a thread of its own.
+	 */
+	private class Delivery implements Runnable {
+		final MachineListener listener;
+		private final Thread thread;
+
+		// Guarded by this
+		private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+		// The progress event waiting, and the status waiting for each tool, if any
+		private MachineProgressEvent progress = null;
+		private final Map<ToolModel, MachineToolStatusEvent> toolStatus = new IdentityHashMap<ToolModel, MachineToolStatusEvent>();
+		private boolean stopped = false;
+		private boolean warned = false;
+
+		Delivery(MachineListener listener) {
+			this.listener = listener;
+			String name = listener.getClass().getSimpleName();
+			thread = new Thread(this, "Machine listener " + (name.length() > 0 ? name : listener.getClass().getName()));
+			thread.setDaemon(true);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		synchronized void stop() {
+			stopped = true;
+			notify();
+		}
+
+		synchronized int depth() {
+			return pending.size();
+		}
+
+		synchronized void offer(Object event) {
+			if (stopped) {
+				return;
+			}
+			if (event instanceof MachineProgressEvent) {
+				if (progress != null) {
+					pending.removeFirstOccurrence(progress);
+					coalesced.incrementAndGet();
+				}
+				progress = (MachineProgressEvent)event;
+			} else if (event instanceof MachineToolStatusEvent) {
+				MachineToolStatusEvent e = (MachineToolStatusEvent)event;
+				MachineToolStatusEvent old = toolStatus.put(e.getTool(), e);
+				if (old != null) {
+					pending.removeFirstOccurrence(old);
+					coalesced.incrementAndGet();
+				}
+			}
+			if (pending.size() >= MAX_PENDING) {
+				if (!warned) {
+					Base.logger.warning(thread.getName() + " is " + MAX_PENDING
+							+ " events behind; dropping the oldest progress and tool status events");
+					warned = true;
+				}
+				dropOldest();
+			}
+			pending.addLast(event);
+
+			int depth = pending.size();
+			int peak = peakDepth.get();
+			while (depth > peak && !peakDepth.compareAndSet(peak, depth)) {
+				peak = peakDepth.get();
+			}
+			notify();
+		}
+
+		// Drop the oldest event waiting that isn't a state change, if there is one
+		private void dropOldest() {
+			for (Iterator<Object> i = pending.iterator(); i.hasNext();) {
+				Object event = i.next();
+				if (!(event instanceof MachineStateChangeEvent)) {
+					i.remove();
+					forget(event);
+					dropped.incrementAndGet();
+					return;
+				}
+			}
+		}
+
+		// An event has left the queue; it can't be replaced any more
+		private void forget(Object event) {
+			if (event == progress) {
+				progress = null;
+			} else if (event instanceof MachineToolStatusEvent) {
+				MachineToolStatusEvent e = (MachineToolStatusEvent)event;
+				if (toolStatus.get(e.getTool()) == e) {
+					toolStatus.remove(e.getTool());
+				}
+			}
+		}
+
+		private synchronized Object take() throws InterruptedException {
+			while (pending.isEmpty() && !stopped) {
+				wait();
+			}
+			if (stopped) {
+				return null;
+			}
+			Object event = pending.removeFirst();
+			forget(event);
+			return event;
+		}
+
+		public void run() {
+			try {
+				Object event;
+				while ((event = take()) != null) {
+					try {
+						if (event instanceof MachineStateChangeEvent) {
+							listener.machineStateChanged((MachineStateChangeEvent)event);
+						} else if (event instanceof MachineProgressEvent) {
+							listener.machineProgress((MachineProgressEvent)event);
+						} else {
+							listener.toolStatusChanged((MachineToolStatusEvent)event);
+						}
+					} catch (RuntimeException e) {
+						// Don't let one bad event stop this listener hearing about the rest
+						Base.logger.log(Level.SEVERE, "Machine listener failed to handle an event", e);
+					}
+					delivered.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			}
+		}
 	}
 }
@@ -85,6 +85,9 @@ public interface MachineInterface {
 	/** Stop the machine. **/
 	public void stopAll();
 		
+	/** Get the readings the machine is polled for, and subscribe to them **/
+	public MachineTelemetry getTelemetry();
+	
 	/** Run a command on the driver **/ 
 	public void runCommand(DriverCommand command);
 	
@@ -7,17 +7,36 @@ public class MachineProgressEvent {
 	private double estimated;
 	private int lines;
 	private int totalLines;
+	private int commands;
+	private double linesPerSecond;
+	private double commandsPerSecond;
 	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines) {
+		this(elapsed, estimated, lines, totalLines, 0, 0, 0);
+	}
+
+	/**
+	 * @param commands driver commands run so far
+	 * @param linesPerSecond lines processed per second since the last event
+	 * @param commandsPerSecond driver commands run per second since the last event
+	 */
+	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines,
+			int commands, double linesPerSecond, double commandsPerSecond) {
 		this.elapsed = elapsed;
 		this.estimated = estimated;
 		this.lines = lines;
 		this.totalLines = totalLines;
+		this.commands = commands;
+		this.linesPerSecond = linesPerSecond;
+		this.commandsPerSecond = commandsPerSecond;
 	}
 	
 	public double getElapsed() { return elapsed; }
 	public double getEstimated() { return estimated; }
 	public int getLines() { return lines; }
 	public int getTotalLines() { return totalLines; }
+	public int getCommands() { return commands; }
+	public double getLinesPerSecond() { return linesPerSecond; }
+	public double getCommandsPerSecond() { return commandsPerSecond; }
 	
 	public String toString() {
 		double proportion = (double)lines/(double)totalLines;
@@ -30,6 +49,8 @@ public class MachineProgressEvent {
 		buf.append("     |     Time remaining: ");
 		double remaining = estimated * (1.0 - proportion);
 		buf.append(EstimationDriver.getBuildTimeString(remaining, true));
+		buf.append("     |     ");
+		buf.append(String.format("%1$.0f lines/s, %2$.0f commands/s", linesPerSecond, commandsPerSecond));
 		return buf.toString();
 	}
 	
@@ -0,0 +1,203 @@
+package replicatorg.machine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorts the requests for the machine thread into lanes, so that the ones
+ * that matter most aren't stuck behind the rest.
+ *
+ * In order of priority:
+ * <ul>
+ * <li>EMERGENCY: stop and pause requests, and shutdown. These are looked for
+ * between every line of a build.</li>
+ * <li>INTERACTIVE: whatever the user asked for, like jogging, connecting or
+ * starting a build. A build also gives way to these between lines.</li>
+ * <li>BULK: the build itself. It has no queue; the machine thread runs the
+ * build's lines for up to a time slice at a go.</li>
+ * </ul>
+ * Temperature and status polls aren't queued here; MachineTelemetry runs
+ * them between the INTERACTIVE lane and the build.
+ *
+ * A request in a higher lane is run ahead of requests in lower lanes that
+ * were made before it: a pause asked for just after a build is started may
+ * be looked at before the build starts.
+ *
+ * For each lane there are counts of requests queued and run, how long they
+ * waited, how many were waiting at most, and how long the machine thread
+ * spent on them.
+ */
+class MachineScheduler {
+
+	enum Lane {
+		EMERGENCY,
+		INTERACTIVE,
+		BULK
+	}
+
+	/** The lane a request goes in, unless it is scheduled into one. */
+	static Lane laneOf(MachineCommand command) {
+		switch (command.type) {
+		case STOP_ALL:
+		case STOP_MOTION:
+		case PAUSE:
+		case UNPAUSE:
+		case SHUTDOWN:
+			return Lane.EMERGENCY;
+		default:
+			return Lane.INTERACTIVE;
+		}
+	}
+
+	private static class Entry {
+		final MachineCommand command;
+		final long queuedAt = System.nanoTime();
+
+		Entry(MachineCommand command) {
+			this.command = command;
+		}
+	}
+
+	/**
+	 * What has happened in one lane.
+	 */
+	static class LaneStats {
+		final AtomicLong queued = new AtomicLong();
+		final AtomicLong run = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		final AtomicLong maxWaitNanos = new AtomicLong();
+		final AtomicLong busyNanos = new AtomicLong();
+		final AtomicInteger peakWaiting = new AtomicInteger();
+
+		/** @return how many requests have been put in this lane */
+		public long getQueued() { return queued.get(); }
+		/** @return how many requests (or, for BULK, lines) have been run */
+		public long getRun() { return run.get(); }
+		/** @return the average time a request waited before it was run, in ms */
+		public double getMeanWaitMillis() {
+			long n = run.get();
+			return n == 0 ? 0 : waitNanos.get() / 1e6 / n;
+		}
+		/** @return the longest a request waited before it was run, in ms */
+		public double getMaxWaitMillis() { return maxWaitNanos.get() / 1e6; }
+		/** @return how long the machine thread has spent on this lane, in ms */
+		public double getBusyMillis() { return busyNanos.get() / 1e6; }
+		/** @return the most requests that have been waiting at once */
+		public int getPeakWaiting() { return peakWaiting.get(); }
+	}
+
+	private final List<ConcurrentLinkedQueue<Entry>> queues;
+	private final AtomicInteger[] waiting;
+	private final LaneStats[] stats;
+
+	MachineScheduler() {
+		int lanes = Lane.values().length;
+		queues = new ArrayList<ConcurrentLinkedQueue<Entry>>(lanes);
+		waiting = new AtomicInteger[lanes];
+		stats = new LaneStats[lanes];
+		for (int i = 0; i < lanes; i++) {
+			queues.add(new ConcurrentLinkedQueue<Entry>());
+			waiting[i] = new AtomicInteger();
+			stats[i] = new LaneStats();
+		}
+	}
+
+	void schedule(MachineCommand command) {
+		schedule(command, laneOf(command));
+	}
+
+	void schedule(MachineCommand command, Lane lane) {
+		if (lane == Lane.BULK) {
+			throw new IllegalArgumentException("Builds aren't queued");
+		}
+		int i = lane.ordinal();
+		queues.get(i).add(new Entry(command));
+		stats[i].queued.incrementAndGet();
+		max(stats[i].peakWaiting, waiting[i].incrementAndGet());
+	}
+
+	boolean isEmpty(Lane lane) {
+		return queues.get(lane.ordinal()).isEmpty();
+	}
+
+	/** @return true if no requests are waiting in any lane */
+	boolean isIdle() {
+		for (ConcurrentLinkedQueue<Entry> queue : queues) {
+			if (!queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return the next request in a lane, or null if there isn't one */
+	MachineCommand poll(Lane lane) {
+		int i = lane.ordinal();
+		Entry entry = queues.get(i).poll();
+		if (entry == null) {
+			return null;
+		}
+		waiting[i].decrementAndGet();
+		long wait = System.nanoTime() - entry.queuedAt;
+		stats[i].run.incrementAndGet();
+		stats[i].waitNanos.addAndGet(wait);
+		max(stats[i].maxWaitNanos, wait);
+		return entry.command;
+	}
+
+	/** Count time the machine thread spent on a lane. */
+	void busy(Lane lane, long nanos) {
+		stats[lane.ordinal()].busyNanos.addAndGet(nanos);
+	}
+
+	/** Count a line of the build. */
+	void ranBulk(long nanos) {
+		LaneStats s = stats[Lane.BULK.ordinal()];
+		s.run.incrementAndGet();
+		s.busyNanos.addAndGet(nanos);
+	}
+
+	/** @return how many requests are waiting in a lane */
+	int getWaiting(Lane lane) {
+		return waiting[lane.ordinal()].get();
+	}
+
+	LaneStats getStats(Lane lane) {
+		return stats[lane.ordinal()];
+	}
+
+	private static void max(AtomicInteger max, int value) {
+		int old = max.get();
+		while (value > old && !max.compareAndSet(old, value)) {
+			old = max.get();
+		}
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long old = max.get();
+		while (value > old && !max.compareAndSet(old, value)) {
+			old = max.get();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Lane lane : Lane.values()) {
+			LaneStats l = getStats(lane);
+			if (s.length() > 0) {
+				s.append("; ");
+			}
+			s.append(lane).append(": ").append(l.getRun()).append(" run");
+			if (lane != Lane.BULK) {
+				s.append(String.format(", wait %.1f ms mean, %.1f ms max, %d waiting at most",
+						l.getMeanWaitMillis(), l.getMaxWaitMillis(), l.getPeakWaiting()));
+			}
+			s.append(String.format(", %.0f ms busy", l.getBusyMillis()));
+		}
+		return s.toString();
+	}
+}
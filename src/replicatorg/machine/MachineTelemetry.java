@@ -0,0 +1,301 @@
+package replicatorg.machine;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.Driver;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Polls the machine for its status, temperatures and position on behalf of
+ * everything that wants to keep an eye on them, and keeps the latest
+ * readings.
+ *
+ * Rather than polling for itself, anything that wants a reading subscribes
+ * to it, saying how old a reading it can put up with. Each query is polled
+ * as often as its most demanding subscriber asks, and not at all if it has
+ * no subscribers. The machine thread runs the polls after the user's
+ * requests and before the build; while building only one is run per build
+ * slice.
+ *
+ * During a build, polls are held to a share of the machine thread's time
+ * (the "machinecontroller.telemetry_share" preference, a percentage, 5 by
+ * default): after a poll that took t, the next isn't run for t / share - t.
+ * A poll waits for the moves queued ahead of it, so the busier the link, the
+ * less often it is asked. A subscriber may then get older readings than it
+ * asked for; such polls are counted as held back. Temperatures aren't polled
+ * during a build at all if the "build.monitor_temp" preference is off.
+ */
+public class MachineTelemetry {
+	private static final int DEFAULT_SHARE_PERCENT = 5;
+
+	public enum Query {
+		/** Whether the machine is still there; see Driver.assessState() */
+		STATUS,
+		/** Extruder and platform temperatures, kept in the machine's ToolModels */
+		TEMPERATURE,
+		/** Where the driver thinks the machine is */
+		POSITION,
+		/** Keeps manual controls, such as continuous extrusion, going */
+		MANUAL_CONTROL
+	}
+
+	/**
+	 * A standing request for a query to be polled. Cancel it when the
+	 * readings are no longer wanted.
+	 */
+	public class Subscription {
+		private final Query query;
+		private final long maxAgeNanos;
+
+		private Subscription(Query query, long maxAgeNanos) {
+			this.query = query;
+			this.maxAgeNanos = maxAgeNanos;
+		}
+
+		public Query getQuery() {
+			return query;
+		}
+
+		/** @return true if the latest reading is as fresh as was asked for */
+		public boolean isFresh() {
+			long age = getAgeNanos(query);
+			return age >= 0 && age <= maxAgeNanos;
+		}
+
+		public void cancel() {
+			channel(query).subscribers.remove(this);
+		}
+	}
+
+	// Everything about one query
+	private static class Channel {
+		final CopyOnWriteArrayList<Subscription> subscribers = new CopyOnWriteArrayList<Subscription>();
+
+		// When it was last read, by System.nanoTime(); only meaningful once read is set
+		volatile boolean read = false;
+		volatile long readAt;
+
+		// Written only by the machine thread
+		volatile long polls;
+		volatile long pollNanos;
+		volatile long heldBack;
+	}
+
+	private final Machine controller;
+	private final Channel[] channels;
+
+	private volatile Point5d position = null;
+
+	private volatile boolean monitorTempDuringBuild;
+	private volatile double share;
+
+	// Only used by the machine thread
+	private long nextAllowed = 0;
+	private boolean wasBuilding = false;
+	private long lastCall;
+	private volatile long buildNanos;
+	private volatile long buildPollNanos;
+
+	MachineTelemetry(Machine controller) {
+		this.controller = controller;
+		channels = new Channel[Query.values().length];
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = new Channel();
+		}
+		readPrefs();
+	}
+
+	/**
+	 * Read the preferences that decide what is polled during a build.
+	 */
+	void readPrefs() {
+		monitorTempDuringBuild = Base.preferences.getBoolean("build.monitor_temp", true);
+		int percent = Base.preferences.getInt("machinecontroller.telemetry_share", DEFAULT_SHARE_PERCENT);
+		share = Math.min(100, Math.max(1, percent)) / 100.0;
+	}
+
+	private Channel channel(Query query) {
+		return channels[query.ordinal()];
+	}
+
+	/**
+	 * Ask for a query to be polled.
+	 * @param maxAgeMillis the oldest a reading should get, in ms
+	 */
+	public Subscription subscribe(Query query, int maxAgeMillis) {
+		Subscription s = new Subscription(query, Math.max(1, maxAgeMillis) * 1000000L);
+		channel(query).subscribers.add(s);
+		// The machine thread may be asleep until some later poll
+		MachineThread thread = controller.machineThread;
+		if (thread != null) {
+			thread.wake();
+		}
+		return s;
+	}
+
+	// How often a query has been asked for, or -1 if it isn't wanted
+	private long intervalNanos(Channel c, Query query, boolean building) {
+		if (building && query == Query.TEMPERATURE && !monitorTempDuringBuild) {
+			return -1;
+		}
+		long interval = -1;
+		for (Subscription s : c.subscribers) {
+			if (interval < 0 || s.maxAgeNanos < interval) {
+				interval = s.maxAgeNanos;
+			}
+		}
+		return interval;
+	}
+
+	// When a query is next due, or Long.MAX_VALUE if it isn't wanted
+	private long dueAt(Query query, boolean building, long now) {
+		Channel c = channel(query);
+		long interval = intervalNanos(c, query, building);
+		if (interval < 0) {
+			return Long.MAX_VALUE;
+		}
+		return c.read ? c.readAt + interval : now;
+	}
+
+	/**
+	 * Run the polls that are due: all of them, or if building, at most one,
+	 * and only if the share of time allowed for them has been earned back.
+	 * Called by the machine thread while the machine is connected.
+	 */
+	void poll(Driver driver, boolean building) {
+		long now = System.nanoTime();
+		if (building && wasBuilding) {
+			buildNanos += now - lastCall;
+		}
+		wasBuilding = building;
+		lastCall = now;
+
+		if (building && now - nextAllowed < 0) {
+			return;
+		}
+		for (Query query : Query.values()) {
+			long due = dueAt(query, building, now);
+			if (due == Long.MAX_VALUE || due - now > 0) {
+				continue;
+			}
+			Channel c = channel(query);
+			if (building && c.read && nextAllowed - due > 0) {
+				c.heldBack++;
+			}
+
+			long start = System.nanoTime();
+			run(query, driver);
+			long end = System.nanoTime();
+			long took = end - start;
+
+			c.readAt = end;
+			c.read = true;
+			c.polls++;
+			c.pollNanos += took;
+			if (building) {
+				buildPollNanos += took;
+				nextAllowed = end + (long)(took / share) - took;
+				return;
+			}
+			now = end;
+		}
+	}
+
+	private void run(Query query, Driver driver) {
+		switch (query) {
+		case STATUS:
+			driver.assessState();
+			break;
+		case TEMPERATURE:
+			driver.readAllTemperatures();
+			driver.readAllPlatformTemperatures();
+			for (ToolModel t : controller.getModel().getTools()) {
+				controller.emitToolStatus(t);
+			}
+			break;
+		case POSITION:
+			position = driver.getCurrentPosition(false);
+			break;
+		case MANUAL_CONTROL:
+			driver.updateManualControl();
+			break;
+		}
+	}
+
+	/**
+	 * @return how long until the next poll is due, in ms; at least 1, or 0
+	 * if nothing is to be polled.
+	 */
+	long millisUntilDue(boolean building) {
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		for (Query query : Query.values()) {
+			long due = dueAt(query, building, now);
+			if (due != Long.MAX_VALUE && (next == Long.MAX_VALUE || due - next < 0)) {
+				next = due;
+			}
+		}
+		if (next == Long.MAX_VALUE) {
+			return 0;
+		}
+		if (building && nextAllowed - next > 0) {
+			next = nextAllowed;
+		}
+		return Math.max(1, (next - now) / 1000000L);
+	}
+
+	/** @return the last position read, or null if it hasn't been */
+	public Point5d getPosition() {
+		Point5d p = position;
+		return p == null ? null : new Point5d(p);
+	}
+
+	/** @return how long ago a query was last polled, in ms, or -1 if it hasn't been */
+	public long getAgeMillis(Query query) {
+		long age = getAgeNanos(query);
+		return age < 0 ? -1 : age / 1000000L;
+	}
+
+	private long getAgeNanos(Query query) {
+		Channel c = channel(query);
+		return c.read ? System.nanoTime() - c.readAt : -1;
+	}
+
+	/** @return how many times a query has been polled */
+	public long getPolls(Query query) {
+		return channel(query).polls;
+	}
+
+	/** @return how long polling a query has taken, all told, in ms */
+	public double getPollMillis(Query query) {
+		return channel(query).pollNanos / 1e6;
+	}
+
+	/** @return how many polls of a query were later than asked for, to keep to the share allowed during a build */
+	public long getHeldBack(Query query) {
+		return channel(query).heldBack;
+	}
+
+	/** @return the fraction of the machine thread's time during builds that went on polls */
+	public double getBuildShare() {
+		long n = buildNanos;
+		return n == 0 ? 0 : (double)buildPollNanos / n;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Query query : Query.values()) {
+			long polls = getPolls(query);
+			if (polls == 0) {
+				continue;
+			}
+			s.append(query).append(String.format(": %d polls, %.1f ms mean, %d held back; ",
+					polls, getPollMillis(query) / polls, getHeldBack(query)));
+		}
+		s.append(String.format("%.1f%% of build time", getBuildShare() * 100));
+		return s.toString();
+	}
+}
@@ -1,7 +1,9 @@
 package replicatorg.machine;
 
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -17,93 +19,52 @@ import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.UsesSerial;
-import replicatorg.drivers.commands.AssessState;
-import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
+import replicatorg.machine.MachineScheduler.Lane;
 import replicatorg.machine.builder.Direct;
 import replicatorg.machine.builder.MachineBuilder;
 import replicatorg.machine.builder.ToLocalFile;
 import replicatorg.machine.builder.ToRemoteFile;
 import replicatorg.machine.builder.UsingRemoteFile;
 import replicatorg.machine.model.MachineModel;
-import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
 import replicatorg.model.GCodeSourceCollection;
 import replicatorg.model.StringListSource;
 
 /**
  * The MachineThread is responsible for communicating with the machine.
+ *
+ * Requests are sorted into lanes by a MachineScheduler. Each time round the
+ * main loop, stop and pause requests are run first, then the user's
+ * requests, then whatever MachineTelemetry polls are due; a build then runs
+ * for up to a time slice
+ * (the "machinecontroller.build_slice_ms" preference), giving way between
+ * lines as soon as a stop, pause or user request comes in.
  */
 class MachineThread extends Thread {
 
-	AssessStatusThread statusThread;
+	ProgressDispatcher progressDispatcher;
 	
-	// TODO: Should this be here?
-	class AssessStatusThread extends Thread {
-		
-		MachineThread machineThread;
-		
-		public AssessStatusThread(MachineThread machineThread) {
-			super("Assess Status");
-			this.machineThread = machineThread;
-		}
-		
-		public void run() {
-			while (true) {
-				try {
-					synchronized(this) {
-						// Send out a request, then sleep for a bit, then start over.
-						DriverCommand assessCommand = new AssessState();
-						
-						machineThread.scheduleRequest(new MachineCommand(
-								RequestType.RUN_COMMAND, assessCommand));
-						
-						sleep(1000);
-					}
-				} catch(InterruptedException e) {
-					Base.logger.fine("taking assess status thread down");
-					break;
-				}
-			}
-		}
-	}
-	
-	// TODO: The timeout/elapse behaivor of this is 
-	// a little wonky. It could be converted to some standard timer someday
-	class MachineTimer {
-		private long lastEventTime = 0;
-		private boolean enabled = false;
-		private long intervalMs = 3000;
-		
-		public void start(long interval) {
-			enabled = true;
-			intervalMs = interval;
-			lastEventTime = System.currentTimeMillis();
-		}
-		
-		public void stop() {
-			enabled = false;
-		}
-		
-		// checks for timeout elapsing, and resets the time for a new interval
-		public boolean elapsed() {
-			if (!enabled) {
-				return false;
-			}
-			long curMillis = System.currentTimeMillis();
-			if (lastEventTime + intervalMs <= curMillis) {
-				lastEventTime = curMillis;
-				return true;
+	// Polls the machine for whoever has subscribed
+	private final MachineTelemetry telemetry;
+
+	// Machine commands to run, by lane
+	final MachineScheduler scheduler = new MachineScheduler();
+
+	// Longest a build runs before status polls get a turn, in ms
+	private static final int DEFAULT_BUILD_SLICE_MS = 50;
+	private long buildSliceNanos;
+
+	// What is polled during a build may be changed in the middle of one
+	private final PreferenceChangeListener prefListener = new PreferenceChangeListener() {
+		public void preferenceChange(PreferenceChangeEvent evt) {
+			if ("build.monitor_temp".equals(evt.getKey())
+					|| "machinecontroller.telemetry_share".equals(evt.getKey())) {
+				readBuildPrefs();
 			}
-			return false;
 		}
-	}
-	
-	private MachineTimer pollingTimer;
-
-	// Link of machine commands to run
-	ConcurrentLinkedQueue<MachineCommand> pendingQueue;
+	};
 		
 	// this is the xml config for this machine.
 	private Node machineNode;
@@ -140,10 +101,9 @@ class MachineThread extends Thread {
 	public MachineThread(Machine controller, Node machineNode) {
 		super("Machine Thread");
 		
-		pollingTimer = new MachineTimer();
-		pollingTimer.start(1000);
-		
-		pendingQueue = new ConcurrentLinkedQueue<MachineCommand>();
+		telemetry = controller.telemetry;
+		readBuildPrefs();
+		Base.preferences.addPreferenceChangeListener(prefListener);
 		
 		// save our XML
 		this.machineNode = machineNode;
@@ -154,12 +114,18 @@ class MachineThread extends Thread {
 		loadExtraPrefs();
 		parseName();
 		
-		statusThread = new AssessStatusThread(this);
-		statusThread.start();
+		progressDispatcher = new ProgressDispatcher(controller);
+		progressDispatcher.start();
 
 
 	}
 
+	// Base.preferences may have been replaced since we started listening to it, so this is also read at the start of each build
+	private void readBuildPrefs() {
+		telemetry.readPrefs();
+		buildSliceNanos = Math.max(1, Base.preferences.getInt("machinecontroller.build_slice_ms", DEFAULT_BUILD_SLICE_MS)) * 1000000L;
+	}
+
 	/**
 	 * Loads create warmup and cooldown commands from xml file
 	 */
@@ -519,62 +485,28 @@ class MachineThread extends Thread {
 				}
 			}
 			
-			// Check for and run any control requests that might be in the queue.
-			while (!pendingQueue.isEmpty()) {
-				runCommand(pendingQueue.remove());
-			}
-
+			// Stops and pauses come first, then anything the user asked for
+			runLane(Lane.EMERGENCY, Integer.MAX_VALUE);
+			runLane(Lane.INTERACTIVE, Integer.MAX_VALUE);
 			
-			if(state.isConnected())
-			{
-				/// Check the status poll machine.
-				if ( pollingTimer.elapsed() ) {
-					/// if we're not building, or if we are have 'moniter temp during build' enabled, 
-					//check for temp
-					boolean checkTempDuringBuild = Base.preferences.getBoolean("build.monitor_temp", true);
-
-					if ( false == state.isBuilding() || checkTempDuringBuild ) {
-						MachineCommand pollCmd = new MachineCommand( RequestType.RUN_COMMAND, new replicatorg.drivers.commands.ReadTemperature() );
-						this.scheduleRequest( pollCmd );
-						Vector<ToolModel> tools = controller.getModel().getTools();
-						for (ToolModel t : tools) {
-							controller.emitToolStatus(t);
-						}
-					}
-				}
+			// Then whatever polls are due; while building, one at most
+			if (state.isConnected()) {
+				telemetry.poll(driver, state.isBuilding());
 			}
 			
 			// If we are building
 			if ( state.isBuilding() && !state.isPaused() ) {
-				//run another instruction on the machine.
-				machineBuilder.runNext();
-				
-				// Send out a progress event
-				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
-							machineBuilder.getLinesTotal());
-				controller.emitProgress(progress);
-				
-				if (machineBuilder.finished()) {
-					// TODO: Exit correctly.
-					if (state.getState() == MachineState.State.BUILDING) {
-						setState(new MachineState(MachineState.State.READY),
-								readyMessage());
-					} else {
-						setState(new MachineState(MachineState.State.NOT_ATTACHED),
-								notConnectedMessage());
-					}
-				}
+				runBuildSlice();
 			}
 			
-			// If there is nothing to do, sleep.
-			if ( !state.isBuilding() ) {
+			// If there is nothing to do, sleep. A paused build is nothing to do.
+			if ( !state.isBuilding() || state.isPaused() ) {
 				try {
 					synchronized(this) {
-						wait();
+						// Requests and subscriptions are made before we're notified, so one can't slip in unseen
+						if (scheduler.isIdle()) {
+							wait(state.isConnected() ? telemetry.millisUntilDue(state.isBuilding()) : 0);
+						}
 					}
 				} catch(InterruptedException e) {
 					break;
@@ -591,13 +523,66 @@ class MachineThread extends Thread {
 		dispose();
 	}
 	
+	// Run up to count requests from a lane, as long as none come in for a lane above it
+	private void runLane(Lane lane, int count) {
+		MachineCommand command;
+		while (count-- > 0 && (command = scheduler.poll(lane)) != null) {
+			long start = System.nanoTime();
+			runCommand(command);
+			scheduler.busy(lane, System.nanoTime() - start);
+			if (lane != Lane.EMERGENCY && !scheduler.isEmpty(Lane.EMERGENCY)) {
+				break;
+			}
+		}
+	}
+	
+	// Run lines of the build until the slice is up or a stop, pause or user request comes in
+	private void runBuildSlice() {
+		long start = System.nanoTime();
+		long end = start + buildSliceNanos;
+		long now;
+		do {
+			//run another instruction on the machine.
+			machineBuilder.runNext();
+			
+			// Let the progress dispatcher know; it sends out events at its own pace
+			progressDispatcher.update(machineBuilder.getLinesProcessed(),
+					machineBuilder.getLinesTotal(),
+					machineBuilder.getCommandsProcessed(),
+					startTimeMillis,
+					estimatedBuildTime);
+			
+			now = System.nanoTime();
+			scheduler.ranBulk(now - start);
+			start = now;
+			
+			if (machineBuilder.finished()) {
+				// TODO: Exit correctly.
+				if (state.getState() == MachineState.State.BUILDING) {
+					setState(new MachineState(MachineState.State.READY),
+							readyMessage());
+				} else {
+					setState(new MachineState(MachineState.State.NOT_ATTACHED),
+							notConnectedMessage());
+				}
+				return;
+			}
+		} while (now - end < 0 && scheduler.isEmpty(Lane.EMERGENCY)
+				&& scheduler.isEmpty(Lane.INTERACTIVE) && !isInterrupted());
+	}
+	
 	public boolean scheduleRequest(MachineCommand request) {
-		pendingQueue.add(request);
-		synchronized(this) { notify(); }
+		scheduler.schedule(request);
+		wake();
 		
 		return true;
 	}
 	
+	// Have the main loop look again at what there is to do
+	void wake() {
+		synchronized(this) { notify(); }
+	}
+	
 	public boolean isReadyToPrint() { return state.canPrint(); }
 	
 
@@ -646,6 +631,17 @@ class MachineThread extends Thread {
 	private void setState(MachineState state, String message) {
 		MachineState oldState = this.state;
 		this.state = state;
+		// However the build ended, let the builder clean up after itself
+		if (oldState.isBuilding() && !state.isBuilding() && machineBuilder != null) {
+			machineBuilder.dispose();
+			progressDispatcher.finish();
+			if (Base.logger.isLoggable(Level.FINE)) {
+				Base.logger.fine("Machine thread lanes: " + scheduler);
+				Base.logger.fine("Machine telemetry: " + telemetry);
+			}
+		} else if (!oldState.isBuilding() && state.isBuilding()) {
+			readBuildPrefs();
+		}
 		if (!oldState.equals(state)) {
 			controller.emitStateChange(state, message);
 		}
@@ -687,6 +683,7 @@ class MachineThread extends Thread {
 	}
 	
 	private void dispose() {
+		Base.preferences.removePreferenceChangeListener(prefListener);
 		if (driver != null) {
 			driver.dispose();
 		}
@@ -694,12 +691,8 @@ class MachineThread extends Thread {
 			simulator.dispose();
 		}
 		
-		if (statusThread != null) {
-			try {
-				statusThread.interrupt();
-				statusThread.join(1000);
-			} catch (InterruptedException e) {
-			}
+		if (progressDispatcher != null) {
+			progressDispatcher.interrupt();
 		}
 		
 		setState(new MachineState(MachineState.State.NOT_ATTACHED));
@@ -0,0 +1,123 @@
+package replicatorg.machine;
+
+import replicatorg.app.Base;
+
+/**
+ * Sends build progress to the machine's listeners at a fixed rate, rather
+ * than once per line.
+ *
+ * The machine thread calls update() after every line, which just records
+ * where the build is. This thread wakes up a few times a second and, if the
+ * build has moved on, turns the latest numbers into one MachineProgressEvent,
+ * along with how many lines and commands per second went by since the last.
+ * The rate is the "machinecontroller.progress_rate" preference, in events
+ * per second, read at the start of each build.
+ */
+class ProgressDispatcher extends Thread {
+	private static final int DEFAULT_RATE = 10;
+
+	private final Machine controller;
+
+	// Written by the machine thread
+	private volatile int lines;
+	private volatile int totalLines;
+	private volatile int commands;
+	private volatile double startTimeMillis;
+	private volatile double estimated;
+	private volatile boolean changed = false;
+
+	// Only changed while holding this
+	private volatile boolean active = false;
+
+	// Guarded by this
+	private long periodMillis;
+	private long lastTime;
+	private int lastLines;
+	private int lastCommands;
+
+	ProgressDispatcher(Machine controller) {
+		super("Machine Progress");
+		this.controller = controller;
+		setDaemon(true);
+	}
+
+	/**
+	 * Record the progress of the build. Cheap enough to call after every line.
+	 */
+	void update(int lines, int totalLines, int commands, double startTimeMillis, double estimated) {
+		this.lines = lines;
+		this.totalLines = totalLines;
+		this.commands = commands;
+		this.startTimeMillis = startTimeMillis;
+		this.estimated = estimated;
+		changed = true;
+		if (!active) {
+			begin();
+		}
+	}
+
+	private synchronized void begin() {
+		if (active) {
+			return;
+		}
+		int rate = Base.preferences.getInt("machinecontroller.progress_rate", DEFAULT_RATE);
+		periodMillis = 1000 / Math.max(1, Math.min(1000, rate));
+		lastTime = System.currentTimeMillis();
+		lastLines = 0;
+		lastCommands = 0;
+		active = true;
+		notify();
+	}
+
+	/**
+	 * The build is over; send where it got to and stop until the next one.
+	 */
+	synchronized void finish() {
+		if (active) {
+			emit();
+			active = false;
+		}
+	}
+
+	private synchronized void emit() {
+		if (!changed) {
+			return;
+		}
+		changed = false;
+
+		long now = System.currentTimeMillis();
+		int l = lines;
+		int c = commands;
+		double seconds = Math.max(1, now - lastTime) / 1000.0;
+		double linesPerSecond = (l - lastLines) / seconds;
+		double commandsPerSecond = (c - lastCommands) / seconds;
+		lastTime = now;
+		lastLines = l;
+		lastCommands = c;
+
+		controller.emitProgress(new MachineProgressEvent(now - startTimeMillis, estimated,
+				l, totalLines, c, linesPerSecond, commandsPerSecond));
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				long period;
+				synchronized (this) {
+					while (!active) {
+						wait();
+					}
+					period = periodMillis;
+				}
+				sleep(period);
+				synchronized (this) {
+					if (active) {
+						emit();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Base.logger.fine("taking progress dispatcher down");
+		}
+	}
+}
@@ -3,12 +3,26 @@ package replicatorg.machine.builder;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
 import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.ParsedGCode;
+import replicatorg.app.metrics.Counter;
+import replicatorg.app.metrics.Metrics;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.RetryException;
@@ -20,6 +34,16 @@ import replicatorg.model.GCodeSource;
 
 /**
  * Machine builder for building a GCodeSource on a Driver
+ *
+ * Lines are read from the source and tokenized on a reader thread of their
+ * own, in chunks, into a bounded queue, while the machine thread turns them
+ * into DriverCommands and sends them. Turning a line into DriverCommands has
+ * to wait for the commands before it to have run, since the parser asks the
+ * driver where the machine is; reading and tokenizing don't. Given a pool of
+ * tokenizer threads, chunks are tokenized side by side, and still handed over
+ * in order. If the source was parsed before the build (see ParsedGCode), as
+ * it is for the safety check and the time estimate, its lines are loaded
+ * from that instead of being tokenized again.
  * TODO: Break the simulator out of this!
  * @author mattmets
  *
@@ -32,11 +56,62 @@ public class Direct implements MachineBuilder{
 		FINISHED
 	}
 	
+	// Lines in each chunk handed from the reader to the machine thread
+	private static final int CHUNK_LINES = 256;
+	// How many chunks the reader may get ahead of the machine
+	private static final int READ_AHEAD_CHUNKS = 8;
+	// How long runNext() waits for the reader before handing control back to the machine thread
+	private static final long READ_WAIT_MILLIS = 10;
+
+	/** Lines from the source, tokenized off the machine thread. */
+	private static class Chunk implements Callable<Chunk> {
+		final String[] lines = new String[CHUNK_LINES];
+		final GCodeCommand[] commands = new GCodeCommand[CHUNK_LINES];
+		// false if the line couldn't be tokenized; the parser gets to complain about it
+		final boolean[] tokenized = new boolean[CHUNK_LINES];
+		int count;
+		// The source's parsed lines, if it has them, and the index of the first line here
+		ParsedGCode parsed;
+		int first;
+
+		Chunk() {
+			for (int n = 0; n < CHUNK_LINES; n++) {
+				commands[n] = new GCodeCommand();
+			}
+		}
+
+		public Chunk call() {
+			if (parsed != null) {
+				for (int n = 0; n < count; n++) {
+					tokenized[n] = parsed.load(first + n, lines[n], commands[n]);
+				}
+				return this;
+			}
+			for (int n = 0; n < count; n++) {
+				try {
+					commands[n].parse(lines[n]);
+					tokenized[n] = true;
+				} catch (RuntimeException e) {
+					tokenized[n] = false;
+				}
+			}
+			return this;
+		}
+	}
+
+	// Marks the end of the source
+	private static final Future<Chunk> END = new FutureTask<Chunk>(new Chunk());
+
+	// Over every build; a snapshot's rates give lines and commands a second
+	private static final Counter linesRun = Metrics.counter("build", "lines");
+	private static final Counter commandsRun = Metrics.counter("build", "commands");
+	private static final Counter retries = Metrics.counter("build", "retries");
+
 	GCodeSource source;
-	Iterator<String> i;
 	
-	int linesProcessed;
+	volatile int linesProcessed;
 	int linesTotal;
+	volatile int commandsProcessed;
 	
 	Driver driver;
 	GCodeParser parser;
@@ -52,16 +127,32 @@ public class Direct implements MachineBuilder{
 	
 	State state;
 	
+	// Chunks read ahead, and spent ones for the reader to fill again
+	private final BlockingQueue<Future<Chunk>> readChunks = new ArrayBlockingQueue<Future<Chunk>>(READ_AHEAD_CHUNKS);
+	private final BlockingQueue<Chunk> spareChunks = new ArrayBlockingQueue<Chunk>(READ_AHEAD_CHUNKS + 2);
+	private final Thread reader;
+	private final ExecutorService tokenizers;
+	// The chunk being run, and the next line in it
+	private Chunk chunk = null;
+	private int chunkLine = 0;
+	// True once the reader has handed over the last line
+	private boolean endOfSource = false;
+
 	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source) {
+		this(driver, simulator, source, 0);
+	}
+
+	/**
+	 * @param tokenizerThreads how many threads to tokenize chunks of the
+	 * source on, besides the reader thread; 0 to tokenize on the reader
+	 */
+	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source, int tokenizerThreads) {
 		this.driver = driver;
 		this.source = source;
 	
 		linesProcessed = 0;
 		linesTotal = source.getLineCount();
 		
-		// Initialize our gcode provider
-		i = source.iterator();
-		
 		if (driver == null) {
 			building = false;
 		} else {
@@ -93,8 +184,89 @@ public class Direct implements MachineBuilder{
 		simulating = false;
 	
 		state = State.RUNNING_GCODE;
+
+		// Initialize our gcode provider
+		// One chunk being run, one being filled, and the ones in between
+		for (int n = 0; n < READ_AHEAD_CHUNKS + 2; n++) {
+			spareChunks.add(new Chunk());
+		}
+		if (tokenizerThreads > 0) {
+			tokenizers = Executors.newFixedThreadPool(tokenizerThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "G-code tokenizer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			tokenizers = null;
+		}
+		reader = new Thread("G-code reader") {
+			public void run() {
+				readSource();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// Runs on the reader thread
+	private void readSource() {
+		try {
+			ParsedGCode parsed = ParsedGCode.ifParsed(source);
+			int lines = 0;
+			Iterator<String> i = source.iterator();
+			while (i.hasNext()) {
+				Chunk read = spareChunks.take();
+				read.count = 0;
+				read.parsed = parsed;
+				read.first = lines;
+				while (read.count < CHUNK_LINES && i.hasNext()) {
+					read.lines[read.count++] = i.next();
+				}
+				lines += read.count;
+				FutureTask<Chunk> task = new FutureTask<Chunk>(read);
+				// Loading parsed lines is quick enough to do here
+				if (tokenizers == null || parsed != null) {
+					task.run();
+				} else {
+					tokenizers.execute(task);
+				}
+				readChunks.put(task);
+			}
+			readChunks.put(END);
+		} catch (InterruptedException e) {
+			// The build is over
+		}
 	}
 	
+	// Move on to the next line to run; false if there isn't one yet
+	private boolean nextLine() throws InterruptedException {
+		if (chunk != null && chunkLine < chunk.count) {
+			return true;
+		}
+		if (chunk != null) {
+			spareChunks.add(chunk);
+			chunk = null;
+		}
+		// Don't hold up the machine thread if the reader is behind
+		Future<Chunk> next = readChunks.poll(READ_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		if (next == null) {
+			return false;
+		}
+		if (next == END) {
+			endOfSource = true;
+			return false;
+		}
+		try {
+			chunk = next.get();
+		} catch (ExecutionException e) {
+			// Chunk.call() doesn't throw
+			throw new RuntimeException(e.getCause());
+		}
+		chunkLine = 0;
+		return true;
+	}
 	
 	@Override
 	public boolean finished() {
@@ -104,13 +276,8 @@ public class Direct implements MachineBuilder{
 	// Run the next command on the driver
 	@Override
 	public void runNext() { 
-		if (!i.hasNext()) {
-			// TODO: This is clunky.
-			if (driver.isFinished()) {
-				state = State.FINISHED;
-			} else {
-				state = State.WAITING_FOR_MACHINE_FINISH;
-			}
+		if (endOfSource) {
+			waitForMachine();
 			return;
 		}
 		
@@ -123,18 +290,41 @@ public class Direct implements MachineBuilder{
 		
 		// Read and process next line
 		if (retry == false) {
-			String line = i.next();
+			try {
+				if (!nextLine()) {
+					if (endOfSource) {
+						waitForMachine();
+					}
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			String line = chunk.lines[chunkLine];
 			linesProcessed++;
+			linesRun.increment();
 
 			// Parse a line for the actual machine
 			if (building) {
-				parser.parse(line, driverQueue);
+				if (chunk.tokenized[chunkLine]) {
+					parser.parse(chunk.commands[chunkLine], driverQueue);
+				} else {
+					parser.parse(line, driverQueue);
+				}
 			}
 			
 			// If we're simulating, parse a line to feed to the simulator 
 			if (simulating) {
-				simulationParser.parse(line, simulatorQueue);
+				if (chunk.tokenized[chunkLine]) {
+					simulationParser.parse(chunk.commands[chunkLine], simulatorQueue);
+				} else {
+					simulationParser.parse(line, simulatorQueue);
+				}
 			}
+
+			chunk.lines[chunkLine] = null;
+			chunkLine++;
 		}
 		
 		// Simulate the command. Just run everything against the simulator, and ignore errors.
@@ -157,6 +347,8 @@ public class Direct implements MachineBuilder{
 				while(!driverQueue.isEmpty()) {
 					driverQueue.peek().run(driver);
 					driverQueue.remove();
+					commandsProcessed++;
+					commandsRun.increment();
 				}
 			}
 			
@@ -165,6 +357,7 @@ public class Direct implements MachineBuilder{
 			// Indicate that we should retry the current line, rather
 			// than proceeding to the next, on the next go-round.
 			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+			retries.increment();
 			retry = true;
 		} catch (StopException e) {
 			// TODO: Just returning here seems dangerous, better to notify the state machine.
@@ -186,6 +379,7 @@ public class Direct implements MachineBuilder{
 				
 				if (result == JOptionPane.YES_OPTION) {
 					driverQueue.remove();
+					commandsProcessed++;
 				} else {
 					state = State.FINISHED;
 				}
@@ -197,6 +391,30 @@ public class Direct implements MachineBuilder{
 				break;
 			}
 		}
+
+		if (state == State.FINISHED) {
+			dispose();
+		}
+	}
+
+	private void waitForMachine() {
+		// TODO: This is clunky.
+		if (driver.isFinished()) {
+			state = State.FINISHED;
+		} else {
+			state = State.WAITING_FOR_MACHINE_FINISH;
+		}
+	}
+
+	/**
+	 * Stop reading ahead. Called when the build ends, however it ends.
+	 */
+	@Override
+	public void dispose() {
+		reader.interrupt();
+		if (tokenizers != null) {
+			tokenizers.shutdownNow();
+		}
 	}
 	
 	public int getLinesTotal() {
@@ -205,6 +423,9 @@ public class Direct implements MachineBuilder{
 	public int getLinesProcessed() {
 		return linesProcessed;
 	}
+	public int getCommandsProcessed() {
+		return commandsProcessed;
+	}
 
 	@Override
 	public boolean isInteractive() {
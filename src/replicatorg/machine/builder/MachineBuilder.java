@@ -13,6 +13,8 @@ public interface MachineBuilder {
 	
 	public int getLinesTotal();
 	public int getLinesProcessed();
+	// Driver commands run so far
+	public int getCommandsProcessed();
 
 	// Run the next command on the machine, if possible.
 	public void runNext();
@@ -28,4 +30,10 @@ public interface MachineBuilder {
 	 * @return
 	 */
 	public JobTarget getTarget();
+
+	/**
+	 * Release anything the builder holds on to (threads, files). Called once
+	 * the build is over, whether it finished or was stopped.
+	 */
+	public void dispose();
 }
@@ -1,5 +1,6 @@
 package replicatorg.machine.builder;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -17,6 +18,12 @@ import replicatorg.model.GCodeSource;
  * Build to a file on the remote machine.
  * This just wraps MachineBuilder.Direct() with some extra code to signal the machine
  * that it should be saving to a file.
+ *
+ * Nothing waits on a machine, so the machine thread's build slice runs
+ * line after line through runNext(), and the source is tokenized on every
+ * spare processor. Turning lines into packets stays on the machine thread,
+ * in order, since each packet depends on where the last one left the
+ * machine.
  * @author mattmets
  *
  */
@@ -26,6 +33,10 @@ public class ToLocalFile implements MachineBuilder {
 	
 	SDCardCapture sdcc;
 	public boolean setupFailed = true;
+	private boolean captureEnded = false;
+	
+	private String remoteName;
+	private long startNanos;
 
 	public ToLocalFile(Driver driver, SimulationDriver simulator, GCodeSource source, String remoteName) {
 		if(!(driver instanceof SDCardCapture))
@@ -39,7 +50,10 @@ public class ToLocalFile implements MachineBuilder {
 		
 		try {
 			sdcc.beginFileCapture(remoteName);
-			directBuilder = new Direct(driver, simulator, source);
+			this.remoteName = remoteName;
+			startNanos = System.nanoTime();
+			int tokenizers = Runtime.getRuntime().availableProcessors() - 1;
+			directBuilder = new Direct(driver, simulator, source, tokenizers);
 			setupFailed = false;
 		} catch (FileNotFoundException e) {
 			Base.logger.log(Level.WARNING, "Build to file failed: File Not Found!");
@@ -53,14 +67,33 @@ public class ToLocalFile implements MachineBuilder {
 		if(!directBuilder.finished()) 
 			return false;
 		
+		if(!captureEnded) {
+			endCapture();
+			if(!setupFailed) {
+				logThroughput();
+			}
+		}
+		
+		return true;
+	}
+	
+	private void endCapture() {
+		captureEnded = true;
 		try {
 			sdcc.endFileCapture();
 			Base.logger.info("Finished writing to file!");
 		} catch (IOException e) {
 			Base.logger.log(Level.WARNING, "Could not finish writing to file");
+			setupFailed = true;
 		}
-		
-		return true;
+	}
+	
+	private void logThroughput() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		int lines = directBuilder.getLinesProcessed();
+		long bytes = new File(remoteName).length();
+		Base.logger.info(String.format("Compiled %d lines to %d bytes of s3g in %.1f s (%.0f lines/s, %.0f KB/s)",
+				lines, bytes, seconds, lines / seconds, bytes / 1024.0 / seconds));
 	}
 	
 	@Override
@@ -83,6 +116,13 @@ public class ToLocalFile implements MachineBuilder {
 		return directBuilder.getLinesProcessed();
 	}
 
+	@Override
+	public int getCommandsProcessed() {
+		if(directBuilder == null)
+			return -1;
+		return directBuilder.getCommandsProcessed();
+	}
+
 	@Override
 	public boolean isInteractive() {
 		return false;
@@ -92,4 +132,14 @@ public class ToLocalFile implements MachineBuilder {
 	public JobTarget getTarget() {
 		return JobTarget.FILE;
 	}
+
+	@Override
+	public void dispose() {
+		if(directBuilder != null) {
+			directBuilder.dispose();
+			// Stopped part way; let go of the file
+			if(!captureEnded)
+				endCapture();
+		}
+	}
 }
@@ -65,6 +65,13 @@ public class ToRemoteFile implements MachineBuilder {
 		return directBuilder.getLinesProcessed();
 	}
 
+	@Override
+	public int getCommandsProcessed() {
+		if(directBuilder == null)
+			return -1;
+		return directBuilder.getCommandsProcessed();
+	}
+
 	@Override
 	public boolean isInteractive() {
 		return false;
@@ -74,4 +81,10 @@ public class ToRemoteFile implements MachineBuilder {
 	public JobTarget getTarget() {
 		return JobTarget.REMOTE_FILE;
 	}
+
+	@Override
+	public void dispose() {
+		if(directBuilder != null)
+			directBuilder.dispose();
+	}
 }
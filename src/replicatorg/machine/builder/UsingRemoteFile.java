@@ -46,6 +46,11 @@ public class UsingRemoteFile implements MachineBuilder{
 		return 0;
 	}
 
+	@Override
+	public int getCommandsProcessed() {
+		return 0;
+	}
+
 	@Override
 	public int getLinesTotal() {
 		return 0;
@@ -60,4 +65,8 @@ public class UsingRemoteFile implements MachineBuilder{
 	public JobTarget getTarget() {
 		return JobTarget.MACHINE;
 	}
+
+	@Override
+	public void dispose() {
+	}
 }
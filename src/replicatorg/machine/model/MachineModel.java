@@ -66,6 +66,17 @@ public class MachineModel
 	private Point5d homingFeedrates;
 	private Point5d stepsPerMM;
     private Point5d timeOut;
+
+	//acceleration information, used to estimate builds on accelerated firmware
+	private Point5d maximumAccelerations;
+	private Point5d maximumSpeedChanges;
+	private double accelerationRate = 0.0;
+	private double junctionDeviation = 0.0;
+	private double minimumPlannerSpeed = 0.0;
+	private int plannerBufferSize = 16;
+
+	//how far, in mm, the segments G2/G3 arcs are broken into may stray from the arc; 0 if unknown
+	private double arcTolerance = 0.0;
 	
 	//our drive status
 	protected boolean drivesEnabled = true;
@@ -111,12 +122,26 @@ public class MachineModel
 		maximumFeedrateSteps = new Point5d();
 		homingFeedrates = new Point5d();
 		timeOut = new Point5d();
+		maximumAccelerations = new Point5d();
+		maximumSpeedChanges = new Point5d();
 		stepsPerMM = new Point5d(1, 1, 1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool.set(nullTool);
 	}
 	
 	
+	/**
+	 * A new model loaded from the same XML, in its initial state, for work
+	 * such as estimating a build that mustn't change this one.
+	 */
+	public MachineModel copy()
+	{
+		MachineModel copy = new MachineModel();
+		if (xml != null)
+			copy.loadXML(xml);
+		return copy;
+	}
+
 	//load data from xml config
 	public void loadXML(Node node)
 	{
@@ -124,6 +149,8 @@ public class MachineModel
 		
 		parseType();
 		parseAxes();
+		parseAcceleration();
+		parseArcs();
 		parseClamps();
 		parseTools();
 		parseBuildVolume();
@@ -263,6 +290,8 @@ public class MachineModel
 						// can be overriden in .xml for each axis, the max val is all we use currently
 						double defaultTimeout = 20.0;
 						double timeout = 0;
+						double maxAcceleration = 0.0;
+						double maxSpeedChange = 0.0;
 						//if values are missing, ignore them.
 						try {
 						 	length = Double.parseDouble(XML.getAttributeValue(axis, "length"));
@@ -287,6 +316,12 @@ public class MachineModel
 							// if no timeout is specified, used the default
 						       timeout = defaultTimeout;
 						}
+						try {
+							maxAcceleration = Double.parseDouble(XML.getAttributeValue(axis, "maxacceleration"));
+						} catch (Exception e) {}
+						try {
+							maxSpeedChange = Double.parseDouble(XML.getAttributeValue(axis, "maxspeedchange"));
+						} catch (Exception e) {}
 						String endstopStr = XML.getAttributeValue(axis, "endstops");
 						if (endstopStr != null) {
 							try {
@@ -300,6 +335,8 @@ public class MachineModel
 						homingFeedrates.setAxis(id,homingFeedrate);
 						stepsPerMM.setAxis(id,stepspermm);
 						timeOut.setAxis(id,timeout);
+						maximumAccelerations.setAxis(id,maxAcceleration);
+						maximumSpeedChanges.setAxis(id,maxSpeedChange);
 						this.endstops.put(id, endstops);
 						Base.logger.fine("Loaded axis " + id.name()
 								+ ": (Length: " + length 
@@ -318,6 +355,46 @@ public class MachineModel
 		}
 	}
 	
+	//load acceleration planner configuration
+	private void parseAcceleration()
+	{
+		if(XML.hasChildNode(xml, "acceleration"))
+		{
+			Node acceleration = XML.getChildNodeByName(xml, "acceleration");
+
+			//if values are missing, ignore them.
+			try {
+				accelerationRate = Double.parseDouble(XML.getAttributeValue(acceleration, "rate"));
+			} catch (Exception e) {}
+			try {
+				junctionDeviation = Double.parseDouble(XML.getAttributeValue(acceleration, "junctiondeviation"));
+			} catch (Exception e) {}
+			try {
+				minimumPlannerSpeed = Double.parseDouble(XML.getAttributeValue(acceleration, "minimumspeed"));
+			} catch (Exception e) {}
+			try {
+				plannerBufferSize = Integer.parseInt(XML.getAttributeValue(acceleration, "buffersize"));
+			} catch (Exception e) {}
+			Base.logger.fine("Loaded acceleration: (rate: " + accelerationRate
+					+ " mm/s^2, junction deviation: " + junctionDeviation
+					+ "mm, minimum speed: " + minimumPlannerSpeed
+					+ " mm/s, buffer: " + plannerBufferSize + " moves)");
+		}
+	}
+
+	//load arc configuration
+	private void parseArcs()
+	{
+		if(XML.hasChildNode(xml, "arcs"))
+		{
+			Node arcs = XML.getChildNodeByName(xml, "arcs");
+			try {
+				arcTolerance = Double.parseDouble(XML.getAttributeValue(arcs, "tolerance"));
+			} catch (Exception e) {}
+			Base.logger.fine("Loaded arc tolerance: " + arcTolerance + "mm");
+		}
+	}
+
 	//load clamp configuration
 	private void parseClamps()
 	{
@@ -628,6 +705,76 @@ public class MachineModel
 	public Point5d getTimeOut() {
 		return timeOut;
 	}
+
+	/*************************************
+	*  Acceleration planner settings
+	*************************************/
+
+	/// Maximum acceleration of each axis in mm/s^2, 0 if unknown
+	public Point5d getMaximumAccelerations() {
+		return maximumAccelerations;
+	}
+
+	/// Largest instantaneous speed change of each axis at a junction, in mm/s, 0 if unknown
+	public Point5d getMaximumSpeedChanges() {
+		return maximumSpeedChanges;
+	}
+
+	/// Acceleration applied to every move, in mm/s^2, 0 if unknown
+	public double getAccelerationRate() {
+		return accelerationRate;
+	}
+
+	public void setAccelerationRate(double rate) {
+		accelerationRate = rate;
+	}
+
+	/// Junction deviation in mm; 0 means junction speeds are limited by the max speed changes instead
+	public double getJunctionDeviation() {
+		return junctionDeviation;
+	}
+
+	public void setJunctionDeviation(double deviation) {
+		junctionDeviation = deviation;
+	}
+
+	/// Slowest speed the firmware planner will slow to at a junction, in mm/s
+	public double getMinimumPlannerSpeed() {
+		return minimumPlannerSpeed;
+	}
+
+	public void setMinimumPlannerSpeed(double speed) {
+		minimumPlannerSpeed = speed;
+	}
+
+	/// Number of moves the firmware plans ahead over
+	public int getPlannerBufferSize() {
+		return plannerBufferSize;
+	}
+
+	public void setPlannerBufferSize(int size) {
+		plannerBufferSize = size;
+	}
+
+	/// Largest distance, in mm, a segment of a G2/G3 arc may be from the arc; 0 if unknown
+	public double getArcTolerance() {
+		return arcTolerance;
+	}
+
+	public void setArcTolerance(double tolerance) {
+		arcTolerance = tolerance;
+	}
+
+	/** true if enough is known about the machine's acceleration to plan moves with it */
+	public boolean hasAcceleration() {
+		if (accelerationRate > 0)
+			return true;
+		for (int i = 0; i < 5; i++) {
+			if (maximumAccelerations.get(i) > 0)
+				return true;
+		}
+		return false;
+	}
 	  
 	/** returns the endstop configuration for the given axis */
 	public Endstops getEndstops(AxisId axis)
@@ -0,0 +1,391 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A GCodeSource that keeps all of its lines as bytes in one growable array.
+ *
+ * G-code is ASCII, so a line held as a String costs about three times what it
+ * does in the file once the String's header and character array are counted.
+ * Here each line is a start offset and a length into a shared byte array.
+ * Short lines are looked up in a hash table as they are added, and a line
+ * that has been seen before (M103, G1 F1800 and so on turn up thousands of
+ * times) just points at the bytes of the first one.
+ *
+ * Lines are only made into Strings when they are asked for as Strings;
+ * getCharSequence() gives a view that GCodeCommand can parse directly, and
+ * getBytes() gives the raw bytes. Lines with characters outside ASCII are
+ * kept as UTF-8 and are always decoded.
+ *
+ * Lines can be added but never changed, so views of lines already added stay
+ * valid. A source must not be added to while another thread reads it.
+ */
+public class ArenaGCodeSource implements GCodeSource {
+
+	// Lines at most this long are checked for repeats
+	private static final int DEDUP_MAX_BYTES = 32;
+
+	// Set in a line's length if it holds UTF-8 rather than ASCII
+	private static final int UTF8 = 1 << 31;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] data = new byte[4096];
+	private int dataSize = 0;
+
+	private int[] starts = new int[256];
+	private int[] lengths = new int[256];
+	private int lineCount = 0;
+
+	// Open-addressed table of line index + 1 for short lines, 0 where empty
+	private int[] dedup = new int[1024];
+	private int dedupCount = 0;
+	private int repeatedLines = 0;
+
+	public ArenaGCodeSource() { }
+
+	/**
+	 * Read a file, splitting lines the way BufferedReader.readLine() does, on
+	 * '\n', '\r' or "\r\n". Lines are decoded with the default charset, as
+	 * FileReader would.
+	 */
+	public ArenaGCodeSource(File file) throws IOException {
+		long size = file.length();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("File too large: " + file.getAbsolutePath());
+		data = new byte[(int) size];
+		InputStream in = new FileInputStream(file);
+		try {
+			read(in);
+		} finally {
+			in.close();
+		}
+		trimToSize();
+	}
+
+	// The line being read is kept at the end of the data until it's complete
+	private void read(InputStream in) throws IOException {
+		final Charset charset = Charset.defaultCharset();
+		byte[] buffer = new byte[64 * 1024];
+		int length = 0;
+		boolean ascii = true;
+		boolean afterCR = false;
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			int i = 0;
+			while (i < n) {
+				// Copy up to the end of the line, or of the buffer
+				int from = i;
+				byte b = 0;
+				while (i < n) {
+					b = buffer[i];
+					if (b == '\n' || b == '\r')
+						break;
+					ascii &= (b >= 0);
+					i++;
+				}
+				if (i > from) {
+					ensureData(length + i - from);
+					System.arraycopy(buffer, from, data, dataSize + length, i - from);
+					length += i - from;
+					afterCR = false;
+				}
+				if (i == n)
+					break;
+
+				// A "\r\n" is one line break
+				if (!(b == '\n' && afterCR))
+					endLine(length, ascii, charset);
+				length = 0;
+				ascii = true;
+				afterCR = (b == '\r');
+				i++;
+			}
+		}
+		if (length > 0)
+			endLine(length, ascii, charset);
+	}
+
+	private void endLine(int length, boolean ascii, Charset charset) {
+		if (ascii)
+			commit(length, 0);
+		else
+			addUTF8(new String(data, dataSize, length, charset));
+	}
+
+	/**
+	 * Add a line of ASCII to the end.
+	 */
+	public void add(byte[] bytes, int offset, int length) {
+		ensureData(length);
+		System.arraycopy(bytes, offset, data, dataSize, length);
+		commit(length, 0);
+	}
+
+	/**
+	 * Add a line to the end.
+	 */
+	public void add(CharSequence line) {
+		final int length = line.length();
+		ensureData(length);
+		final byte[] data = this.data;
+		final int at = dataSize;
+		for (int i = 0; i < length; i++) {
+			char c = line.charAt(i);
+			if (c >= 0x80) {
+				addUTF8(line.toString());
+				return;
+			}
+			data[at + i] = (byte) c;
+		}
+		commit(length, 0);
+	}
+
+	private void addUTF8(String line) {
+		byte[] bytes = line.getBytes(UTF_8);
+		ensureData(bytes.length);
+		System.arraycopy(bytes, 0, data, dataSize, bytes.length);
+		commit(bytes.length, UTF8);
+	}
+
+	private void ensureData(int length) {
+		if (dataSize + length > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + length));
+	}
+
+	// Make the bytes just written at the end of the data the next line
+	private void commit(int length, int flags) {
+		if (lineCount == starts.length) {
+			int capacity = Math.max(256, lineCount * 2);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		int start = dataSize;
+		if (length <= DEDUP_MAX_BYTES) {
+			int first = findOrAdd(start, length | flags);
+			if (first >= 0) {
+				// Seen before: share its bytes, and give back the ones just written
+				start = starts[first];
+				repeatedLines++;
+			} else {
+				dataSize += length;
+			}
+		} else {
+			dataSize += length;
+		}
+		starts[lineCount] = start;
+		lengths[lineCount] = length | flags;
+		lineCount++;
+	}
+
+	// The index of an earlier line with the same bytes, or -1 after noting the new line
+	private int findOrAdd(int start, int lengthAndFlags) {
+		final int length = lengthAndFlags & ~UTF8;
+		final int hash = hash(start, lengthAndFlags);
+		final int mask = dedup.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = dedup[slot];
+			if (entry == 0) {
+				dedup[slot] = lineCount + 1;
+				if (++dedupCount * 2 > dedup.length)
+					rehash();
+				return -1;
+			}
+			int other = entry - 1;
+			if (lengths[other] == lengthAndFlags && sameBytes(starts[other], start, length))
+				return other;
+		}
+	}
+
+	private int hash(int start, int lengthAndFlags) {
+		final byte[] data = this.data;
+		final int end = start + (lengthAndFlags & ~UTF8);
+		int hash = lengthAndFlags;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + data[i];
+		return hash ^ (hash >>> 16);
+	}
+
+	private boolean sameBytes(int a, int b, int length) {
+		final byte[] data = this.data;
+		for (int i = 0; i < length; i++) {
+			if (data[a + i] != data[b + i])
+				return false;
+		}
+		return true;
+	}
+
+	private void rehash() {
+		int[] old = dedup;
+		dedup = new int[old.length * 2];
+		final int mask = dedup.length - 1;
+		for (int entry : old) {
+			if (entry == 0)
+				continue;
+			int line = entry - 1;
+			int slot = hash(starts[line], lengths[line]) & mask;
+			while (dedup[slot] != 0)
+				slot = (slot + 1) & mask;
+			dedup[slot] = entry;
+		}
+	}
+
+	/**
+	 * Let go of the spare room at the end of the arrays. Lines can still be
+	 * added afterwards.
+	 */
+	public void trimToSize() {
+		data = Arrays.copyOf(data, dataSize);
+		starts = Arrays.copyOf(starts, lineCount);
+		lengths = Arrays.copyOf(lengths, lineCount);
+	}
+
+	private void check(int index) {
+		if (index < 0 || index >= lineCount)
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+	}
+
+	/**
+	 * Decode a single line.
+	 * @param index the line number, 0 indexed.
+	 */
+	public String getLine(int index) {
+		check(index);
+		int length = lengths[index];
+		if ((length & UTF8) != 0)
+			return new String(data, starts[index], length & ~UTF8, UTF_8);
+		return new String(data, starts[index], length, ASCII);
+	}
+
+	/**
+	 * A view of a single line, without making a String of it.
+	 * @param index the line number, 0 indexed.
+	 */
+	public CharSequence getCharSequence(int index) {
+		check(index);
+		int length = lengths[index];
+		if ((length & UTF8) != 0)
+			return getLine(index);
+		return new AsciiSequence(data, starts[index], length);
+	}
+
+	/**
+	 * The bytes of a single line, without its line terminator, as a read-only
+	 * buffer. ASCII lines are one byte per character; others are UTF-8.
+	 * @param index the line number, 0 indexed.
+	 */
+	public ByteBuffer getBytes(int index) {
+		check(index);
+		return ByteBuffer.wrap(data, starts[index], lengths[index] & ~UTF8).slice().asReadOnlyBuffer();
+	}
+
+	/** @return how many lines shared the bytes of an earlier line */
+	public int getRepeatedLineCount() {
+		return repeatedLines;
+	}
+
+	/** @return how many bytes the lines take up, not counting repeats */
+	public int getByteCount() {
+		return dataSize;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			int next = 0;
+
+			public boolean hasNext() {
+				return next < lineCount;
+			}
+
+			public String next() {
+				if (next >= lineCount)
+					throw new NoSuchElementException();
+				return getLine(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of the lines; nothing is decoded until it is read.
+	 */
+	@Override
+	public List<String> asList() {
+		return new Lines();
+	}
+
+	private class Lines extends AbstractList<String> implements RandomAccess {
+		@Override
+		public String get(int index) {
+			return getLine(index);
+		}
+
+		@Override
+		public int size() {
+			return lineCount;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return ArenaGCodeSource.this.iterator();
+		}
+	}
+
+	@Override
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Characters of a piece of a byte array of ASCII. The array is only ever
+	 * appended to, so the piece never changes, even if the source grows.
+	 */
+	private static final class AsciiSequence implements CharSequence {
+		private final byte[] data;
+		private final int start;
+		private final int length;
+
+		AsciiSequence(byte[] data, int start, int length) {
+			this.data = data;
+			this.start = start;
+			this.length = length;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException("Index " + index + " of " + length);
+			return (char) data[start + index];
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > length || from > to)
+				throw new IndexOutOfBoundsException("From " + from + " to " + to + " of " + length);
+			return new AsciiSequence(data, start + from, to - from);
+		}
+
+		@Override
+		public String toString() {
+			return new String(data, start, length, ASCII);
+		}
+	}
+}
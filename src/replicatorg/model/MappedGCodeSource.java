@@ -0,0 +1,166 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A read-only GCodeSource backed by a memory-mapped file.
+ *
+ * The file is scanned once to build a table of line start offsets; lines are
+ * only decoded into Strings as they are asked for, so the whole file never
+ * has to live on the heap. This is meant for streaming very large files to
+ * the machine (or to a file) without loading them into a MutableGCodeSource.
+ *
+ * Lines are split the same way BufferedReader.readLine() splits them, on
+ * '\n', '\r' or "\r\n". G-code is plain ASCII; bytes are decoded as
+ * ISO-8859-1. Files must be smaller than 2GB.
+ */
+public class MappedGCodeSource implements GCodeSource {
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+
+	// lineStarts[i] is the offset of line i; lineStarts[lineCount] is the end of the data
+	private final int[] lineStarts;
+	private final int lineCount;
+
+	public MappedGCodeSource(File file) throws IOException {
+		this.file = file;
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File too large to map: " + file.getAbsolutePath());
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			// The mapping stays valid after the channel is closed.
+			in.close();
+		}
+
+		// Scan for line breaks
+		final int size = buffer.limit();
+		int[] starts = new int[Math.max(16, size / 32)];
+		int count = 0;
+		int i = 0;
+		while (i < size) {
+			if (count + 1 >= starts.length)
+				starts = Arrays.copyOf(starts, starts.length * 2);
+			starts[count++] = i;
+
+			byte b = 0;
+			while (i < size) {
+				b = buffer.get(i++);
+				if (b == '\n' || b == '\r')
+					break;
+			}
+			if (b == '\r' && i < size && buffer.get(i) == '\n')
+				i++;
+		}
+		starts[count] = size;
+
+		lineCount = count;
+		lineStarts = Arrays.copyOf(starts, count + 1);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Decode a single line.
+	 * @param index the line number, 0 indexed.
+	 */
+	public String getLine(int index) {
+		if (index < 0 || index >= lineCount)
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+		return decode(index, new char[lineLength(index)]);
+	}
+
+	private int lineLength(int index) {
+		int start = lineStarts[index];
+		int end = lineStarts[index + 1];
+
+		// strip the line terminator
+		if (end > start && buffer.get(end - 1) == '\n')
+			end--;
+		if (end > start && buffer.get(end - 1) == '\r')
+			end--;
+		return end - start;
+	}
+
+	// decode a line, using scratch as the character buffer if it's big enough
+	private String decode(int index, char[] scratch) {
+		int start = lineStarts[index];
+		int length = lineLength(index);
+		if (scratch.length < length)
+			scratch = new char[length];
+		for (int i = 0; i < length; i++)
+			scratch[i] = (char) (buffer.get(start + i) & 0xff);
+		return new String(scratch, 0, length);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			int next = 0;
+			char[] scratch = new char[256];
+
+			public boolean hasNext() {
+				return next < lineCount;
+			}
+
+			public String next() {
+				if (next >= lineCount)
+					throw new NoSuchElementException();
+				return decode(next++, scratch);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of the lines; nothing is decoded until it is read.
+	 * Any line can be got straight from the table of line starts, so the view
+	 * is RandomAccess, and may be read from several threads at once.
+	 */
+	@Override
+	public List<String> asList() {
+		return new LineList();
+	}
+
+	private class LineList extends AbstractList<String> implements RandomAccess {
+		@Override
+		public String get(int index) {
+			return getLine(index);
+		}
+
+		@Override
+		public int size() {
+			return lineCount;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return MappedGCodeSource.this.iterator();
+		}
+	}
+
+	@Override
+	public int getLineCount() {
+		return lineCount;
+	}
+}
@@ -3,13 +3,14 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,6 +24,7 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -129,7 +131,10 @@ public class SkeinforgePostProcessor {
 	
 	private final SkeinforgeGenerator generator;
 	
-	private MutableGCodeSource source;
+	// all the passes, run in one go from the generator's output file back to it
+	private GCodePipeline pipeline;
+	// lines going into the next stage added to the pipeline
+	private int lineCount;
 	
 	// options:
 	private MutableGCodeSource startCode = null;
@@ -159,8 +164,13 @@ public class SkeinforgePostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		pipeline = new GCodePipeline();
+		try {
+			lineCount = GCodePipeline.countLines(generator.output.file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not read generated gcode.", e);
+			return generator.output;
+		}
 		
 		if( ! dualstruding )
 		{
@@ -180,7 +190,7 @@ public class SkeinforgePostProcessor {
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addProgressUpdates();
+			pipeline.add(GCodePipeline.progressUpdates(lineCount));
 		}
 		
 		if(prependMetaInfo)
@@ -199,8 +209,15 @@ public class SkeinforgePostProcessor {
 			runPrepend(metaInfo);
 		}
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		//Run every pass and write the modified source back to our file
+		if(!pipeline.isEmpty())
+		{
+			try {
+				pipeline.run(generator.output.file, generator.output.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.SEVERE, "Could not post-process generated gcode.", e);
+			}
+		}
 		
 		return generator.output;
 	}
@@ -220,7 +237,7 @@ public class SkeinforgePostProcessor {
 	private void runToolheadSwap(ToolheadAlias switchTo)
 	{
 		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
+		pipeline.add(GCodePipeline.changeToolhead(switchTo));
 	}
 	
 	/**
@@ -228,7 +245,8 @@ public class SkeinforgePostProcessor {
 	 */
 	private void runPrependStartCode()
 	{
-		prependAndModifyStartCode(source, startCode);
+		if(startCode != null)
+			runPrepend(modifyStartCode(startCode));
 	}
 
 	/**
@@ -237,14 +255,23 @@ public class SkeinforgePostProcessor {
 	 * @param startGCode code to hack/verify/modify and append to the start of sourceGCode
 	 */
 	static public void prependAndModifyStartCode(MutableGCodeSource sourceGCode, MutableGCodeSource startGCode)
+	{
+		sourceGCode.add(0, modifyStartCode(startGCode));
+	}
+	
+	/**
+	 * Makes a copy of the start code, modified based on settings.
+	 * @param startGCode code to hack/verify/modify
+	 */
+	static public MutableGCodeSource modifyStartCode(MutableGCodeSource startGCode)
 	{
 		MutableGCodeSource newStart = new MutableGCodeSource();
 
 		///modify local copy of start code based on settings
 		int matched = 0;
+		Pattern p = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
 		for(String line : startGCode)
 		{
-			Pattern p = Pattern.compile("^M104\\s+S(\\d+)\\s+T(\\d)\\s+(.*)\\s*$");
 			Matcher m = p.matcher(line);
 			if(m.matches() ){
 				int newTemp = Base.preferences.getInt("replicatorg.skeinforge.printOMatic5D.printTemp", 220);
@@ -262,9 +289,8 @@ public class SkeinforgePostProcessor {
 				
 			}
 		}
-		sourceGCode.add(0, newStart);
 		Base.logger.finer("printTemp replace count : " + matched);
-		
+		return newStart;
 	}
 		
 	/**
@@ -274,7 +300,10 @@ public class SkeinforgePostProcessor {
 	private void runPrepend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(0, newCode);
+		{
+			pipeline.add(GCodePipeline.prepend(newCode));
+			lineCount += newCode.getLineCount();
+		}
 	}
 	
 	/**
@@ -284,7 +313,10 @@ public class SkeinforgePostProcessor {
 	private void runAppend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(newCode);
+		{
+			pipeline.add(GCodePipeline.append(newCode));
+			lineCount += newCode.getLineCount();
+		}
 	}
 	
 	/**
@@ -352,16 +384,7 @@ public class SkeinforgePostProcessor {
 	 * removes all lines that are skeinforge tag comments, but not layer tags.
 	 */
 	static public void stripNonLayerTagComments(MutableGCodeSource source) {
-		String line;
-		for(Iterator<String> i = source.iterator(); i.hasNext();)
-		{
-			line = i.next();
-			
-			if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
-			{
-				i.remove();
-			}
-		}
+		source.transform(GCodePipeline.stripNonLayerTagComments());
 	}
 	
 	/**
@@ -3,12 +3,14 @@ package replicatorg.plugin.toolpath.slic3r;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
@@ -20,6 +22,7 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
@@ -126,7 +129,10 @@ public class Slic3rPostProcessor {
 	
 	private final Slic3rGenerator generator;
 	
-	private MutableGCodeSource source;
+	// all the passes, run in one go from the generator's output file back to it
+	private GCodePipeline pipeline;
+	// lines going into the next stage added to the pipeline
+	private int lineCount;
 	
 	// options:
 	private MutableGCodeSource startCode = null;
@@ -156,8 +162,13 @@ public class Slic3rPostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		pipeline = new GCodePipeline();
+		try {
+			lineCount = GCodePipeline.countLines(generator.output.file);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not read generated gcode.", e);
+			return generator.output;
+		}
 		
 		if(!dualstruding)
 		{
@@ -176,7 +187,7 @@ public class Slic3rPostProcessor {
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
 		{
-			source.addSlic3rProgressUpdates();
+			pipeline.add(GCodePipeline.slic3rProgressUpdates(lineCount));
 		}
 		
 		if(prependMetaInfo)
@@ -199,8 +210,15 @@ public class Slic3rPostProcessor {
 //		if( multiHead )	
 //			source.coolUnusedToolhead();
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
+		//Run every pass and write the modified source back to our file
+		if(!pipeline.isEmpty())
+		{
+			try {
+				pipeline.run(generator.output.file, generator.output.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.SEVERE, "Could not post-process generated gcode.", e);
+			}
+		}
 		
 		return generator.output;
 	}
@@ -219,7 +237,7 @@ public class Slic3rPostProcessor {
 	private void runToolheadSwap(ToolheadAlias switchTo)
 	{
 		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
+		pipeline.add(GCodePipeline.changeToolhead(switchTo));
 	}
 	
 	/**
@@ -229,7 +247,10 @@ public class Slic3rPostProcessor {
 	private void runPrepend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(0, newCode);
+		{
+			pipeline.add(GCodePipeline.prepend(newCode));
+			lineCount += newCode.getLineCount();
+		}
 	}
 	
 	/**
@@ -239,7 +260,10 @@ public class Slic3rPostProcessor {
 	private void runAppend(GCodeSource newCode)
 	{
 		if(newCode != null)
-			source.add(newCode);
+		{
+			pipeline.add(GCodePipeline.append(newCode));
+			lineCount += newCode.getLineCount();
+		}
 	}
 	
 	/**
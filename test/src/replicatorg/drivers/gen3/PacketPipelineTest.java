@@ -0,0 +1,219 @@
+package replicatorg.drivers.gen3;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandType;
+
+/**
+ * Checks the windowed sender against a ScriptedBot: that commands the bot
+ * rejects are held and sent again in their original order, that a lost
+ * response has only its own packet sent again, and that send() asks for a
+ * retry when the bot's buffer has no room.
+ */
+public class PacketPipelineTest {
+
+	private static final int WINDOW = 4;
+	private static final int COMMANDS = 20;
+
+	/**
+	 * A bot at the other end of the Link that answers each packet as soon as
+	 * it is written, and keeps the number of each action command it runs, in
+	 * the order it runs them. Its buffer never empties: each command run takes
+	 * up its payload in it. Like Serial, read() times out READ_MILLIS after
+	 * it begins.
+	 */
+	private static class ScriptedBot implements PacketPipeline.Link {
+		static final long READ_MILLIS = 50;
+
+		// the numbers of the action commands run
+		final List<Integer> ran = new ArrayList<Integer>();
+		// free space in the buffer, as reported by GET_BUFFER_SIZE
+		long free = 100000;
+
+		private final Map<Integer, Integer> arrivals = new HashMap<Integer, Integer>();
+		private final LinkedList<Integer> pending = new LinkedList<Integer>();
+
+		/**
+		 * The response payload to an action command, on its nth arrival
+		 * (counting from 1); the command is run if it's OK.
+		 */
+		byte[] answer(int command, int arrival) {
+			return new byte[] { (byte) 0x81 };
+		}
+
+		/** @return true to spoil the CRC of the answer to an action command */
+		boolean corrupt(int command, int arrival) {
+			return false;
+		}
+
+		public synchronized void write(byte[] packet) {
+			byte[] payload;
+			boolean spoil = false;
+			if (packet[2] == MotherboardCommandCode.GET_BUFFER_SIZE.getCode()) {
+				payload = new byte[] { (byte) 0x81, (byte) free, (byte) (free >> 8),
+						(byte) (free >> 16), (byte) (free >> 24) };
+			} else {
+				int command = (packet[3] & 0xff) | ((packet[4] & 0xff) << 8);
+				Integer n = arrivals.get(command);
+				int arrival = n == null ? 1 : n + 1;
+				arrivals.put(command, arrival);
+				payload = answer(command, arrival);
+				if (payload[0] == (byte) 0x81) {
+					ran.add(command);
+					free -= packet[1] & 0xff;
+				}
+				spoil = corrupt(command, arrival);
+			}
+			PacketBuilder pb = new PacketBuilder(payload[0]);
+			for (int i = 1; i < payload.length; i++)
+				pb.add8(payload[i]);
+			byte[] response = pb.getPacket();
+			if (spoil)
+				response[response.length - 1] ^= 0xff;
+			for (byte b : response)
+				pending.addLast(b & 0xff);
+			notifyAll();
+		}
+
+		public synchronized int read() {
+			long deadline = System.currentTimeMillis() + READ_MILLIS;
+			try {
+				while (pending.isEmpty()) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						return -1;
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+			return pending.removeFirst();
+		}
+
+		public synchronized void clear() {
+			pending.clear();
+		}
+
+		synchronized List<Integer> getRan() {
+			return new ArrayList<Integer>(ran);
+		}
+	}
+
+	private static byte[] command(int n) {
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
+		pb.add16(n);
+		return pb.getPacket();
+	}
+
+	// Send the numbered commands, retrying as the machine thread would, and wait for their answers
+	private static void sendAll(PacketPipeline pipeline) {
+		for (int i = 0; i < COMMANDS; i++) {
+			while (true) {
+				try {
+					pipeline.send(command(i), Sanguino3GDriver.DEFAULT_RETRIES, CommandType.COMMAND, false);
+					break;
+				} catch (RetryException e) {
+					// the window or the bot's buffer is full; try again
+				}
+			}
+		}
+		assertTrue(pipeline.drain());
+	}
+
+	private static List<Integer> inOrder() {
+		List<Integer> commands = new ArrayList<Integer>();
+		for (int i = 0; i < COMMANDS; i++)
+			commands.add(i);
+		return commands;
+	}
+
+	@Test
+	public void rejectedCommandsAreSentAgainInOrder() {
+		// Full from command 5, until the first command sent again gets there
+		ScriptedBot bot = new ScriptedBot() {
+			boolean drained = false;
+
+			byte[] answer(int command, int arrival) {
+				if (arrival > 1)
+					drained = true;
+				if (command >= 5 && !drained)
+					return new byte[] { (byte) 0x82 };
+				return super.answer(command, arrival);
+			}
+		};
+		PacketPipeline pipeline = new PacketPipeline(bot, null, WINDOW);
+		try {
+			sendAll(pipeline);
+		} finally {
+			pipeline.close();
+		}
+		assertEquals(bot.getRan(), inOrder());
+	}
+
+	@Test
+	public void lostResponseSendsOnlyItsPacketAgain() {
+		ScriptedBot bot = new ScriptedBot() {
+			boolean corrupt(int command, int arrival) {
+				return command == 10 && arrival == 1;
+			}
+		};
+		PacketPipeline pipeline = new PacketPipeline(bot, null, WINDOW);
+		try {
+			sendAll(pipeline);
+		} finally {
+			pipeline.close();
+		}
+		// Command 10 ran, but its answer was lost, so it runs again; nothing else does
+		List<Integer> ran = bot.getRan();
+		assertEquals(ran.size(), COMMANDS + 1);
+		assertTrue(ran.lastIndexOf(10) > ran.indexOf(10));
+		ran.remove(ran.lastIndexOf(10));
+		assertEquals(ran, inOrder());
+	}
+
+	@Test(expectedExceptions = RetryException.class)
+	public void noRoomInTheBotAsksForARetry() throws RetryException {
+		ScriptedBot bot = new ScriptedBot();
+		bot.free = 0;
+		PacketPipeline pipeline = new PacketPipeline(bot, null, WINDOW);
+		try {
+			pipeline.send(command(0), Sanguino3GDriver.DEFAULT_RETRIES, CommandType.COMMAND, false);
+		} finally {
+			pipeline.close();
+			assertEquals(bot.getRan().size(), 0);
+		}
+	}
+
+	@Test
+	public void roomInTheBotIsUsedUp() throws RetryException {
+		ScriptedBot bot = new ScriptedBot();
+		// room for two of our commands, less a byte
+		bot.free = 2 * command(0)[1] - 1;
+		PacketPipeline pipeline = new PacketPipeline(bot, null, WINDOW);
+		try {
+			pipeline.send(command(0), Sanguino3GDriver.DEFAULT_RETRIES, CommandType.COMMAND, false);
+			try {
+				pipeline.send(command(1), Sanguino3GDriver.DEFAULT_RETRIES, CommandType.COMMAND, false);
+				fail("sent a command the bot had no room for");
+			} catch (RetryException e) {
+				// as it should
+			}
+			assertTrue(pipeline.drain());
+		} finally {
+			pipeline.close();
+		}
+		assertEquals(bot.getRan().size(), 1);
+	}
+}
@@ -0,0 +1,67 @@
+package replicatorg.drivers.reprap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that LineRewriter turns every line of the example prints into
+ * exactly what RepRap5DDriver sent before it: clean(), fix() and, with
+ * checksums on, applyNandChecksum(). Feedrates are rescaled as in realtime
+ * control mode, and not.
+ */
+public class LineRewriterTest {
+
+	public static final String SINGLE = "examples/single/penny_bottle_opener.gcode";
+	public static final String DUAL = "examples/dual/replicator_calibration_check.gcode";
+
+	@Test
+	public void single() throws IOException {
+		check(SINGLE, false, true);
+		check(SINGLE, true, true);
+	}
+
+	@Test
+	public void dual() throws IOException {
+		check(DUAL, false, true);
+		check(DUAL, true, true);
+	}
+
+	@Test
+	public void withoutChecksums() throws IOException {
+		check(SINGLE, false, false);
+		check(SINGLE, true, false);
+	}
+
+	private void check(String example, boolean realtime, boolean checksums) throws IOException {
+		RepRap5DDriver driver = new RepRap5DDriver();
+		driver.enableRealtimeControl(realtime);
+		driver.setFeedrateMultiplier(1.2);
+		driver.setTravelFeedrateMultiplier(1.5);
+		LineRewriter rewriter = new LineRewriter();
+		// The driver numbers lines itself for applyNandChecksum(); this keeps in step with it
+		AtomicInteger lineNumber = checksums ? new AtomicInteger(-1) : null;
+
+		BufferedReader in = new BufferedReader(new FileReader(example));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String expected = driver.fix(driver.clean(line));
+				if (checksums && expected.length() > 0)
+					expected = driver.applyNandChecksum(expected);
+				String actual = rewriter.rewrite(line, realtime, driver.getFeedrateMultiplier(),
+						driver.getTravelFeedrateMultiplier(), driver.getFeedrateLimit(), lineNumber);
+				assertNotNull(actual, "\"" + line + "\" wasn't rewritten");
+				assertEquals(actual, expected, "\"" + line + "\"");
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
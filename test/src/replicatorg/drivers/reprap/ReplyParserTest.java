@@ -0,0 +1,181 @@
+package replicatorg.drivers.reprap;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import replicatorg.app.util.serial.ByteFifo;
+
+/**
+ * Checks that ReplyParser sorts every recorded reply in
+ * bench/replies/reprap.txt the way RepRap5DDriver used to, with a String and
+ * regular expressions, and reads the same numbers out of it. The replies go
+ * through the serial read buffer whole, and a byte at a time; every other
+ * one ends in CR LF.
+ */
+public class ReplyParserTest {
+
+	public static final String REPLIES = "bench/replies/reprap.txt";
+
+	private List<byte[]> replies;
+
+	@BeforeClass
+	public void load() throws IOException {
+		replies = new ArrayList<byte[]>();
+		BufferedReader in = new BufferedReader(new FileReader(REPLIES));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#"))
+					continue;
+				String ending = (replies.size() % 2 == 0) ? "\n" : "\r\n";
+				replies.add((line + ending).getBytes("US-ASCII"));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void whole() throws IOException {
+		ByteFifo fifo = new ByteFifo();
+		ReplyParser parser = new ReplyParser();
+		for (byte[] reply : replies) {
+			fifo.enqueue(reply, 0, reply.length);
+			fifo.feed(parser);
+			assertEquals(new Reading(parser).toString(), regex(reply).toString(), text(reply));
+			parser.reset();
+		}
+	}
+
+	@Test
+	public void byteAtATime() throws IOException {
+		ByteFifo fifo = new ByteFifo();
+		ReplyParser parser = new ReplyParser();
+		for (byte[] reply : replies) {
+			for (byte b : reply) {
+				fifo.enqueue(b);
+				fifo.feed(parser);
+			}
+			assertEquals(new Reading(parser).toString(), regex(reply).toString(), text(reply));
+			parser.reset();
+		}
+	}
+
+	private static String text(byte[] reply) throws IOException {
+		return "\"" + new String(reply, "US-ASCII").trim() + "\"";
+	}
+
+	// What is read from a reply
+	private static class Reading {
+		String reply;
+		double t = Double.NaN, b = Double.NaN;
+		double[] c;
+		int n = -1;
+		char dud;
+
+		Reading(ReplyParser p) {
+			reply = p.getReply().toString();
+			if (p.hasTemperature())
+				t = p.getTemperature();
+			if (p.hasPlatformTemperature())
+				b = p.getPlatformTemperature();
+			if (p.hasPosition())
+				c = new double[] { p.getX(), p.getY(), p.getZ() };
+			n = p.getResendLine();
+			dud = p.getDudLetter();
+		}
+
+		Reading(String reply) {
+			this.reply = reply;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder(reply);
+			s.append(" t=").append(t).append(" b=").append(b);
+			if (c != null)
+				s.append(" c=").append(c[0]).append(',').append(c[1]).append(',').append(c[2]);
+			if (reply.equals("RESEND"))
+				s.append(" n=").append(n).append(" dud=").append((int)dud);
+			return s.toString();
+		}
+	}
+
+	// The way RepRap5DDriver.serialByteReceivedEvent() used to read a reply
+	private static Reading regex(byte[] reply) throws IOException {
+		String line = new String(reply, 0, reply.length, "US-ASCII").trim().toLowerCase();
+		Reading r;
+		if (line.length() == 0)
+			r = new Reading("EMPTY");
+		else if (line.startsWith("ok"))
+			r = new Reading("OK");
+		else if (line.contains("sd") || line.startsWith("marlin"))
+			r = new Reading("OTHER");
+		else if (line.startsWith("echo"))
+			r = new Reading("ECHO");
+		else if (line.contains("firmware_name") || line.startsWith("x:"))
+			r = new Reading("OTHER");
+		else if (line.contains("start"))
+			r = new Reading("START");
+		else if (line.startsWith("extruder fail"))
+			r = new Reading("OTHER");
+		else if (line.startsWith("resend") || line.startsWith("rs "))
+			r = new Reading("RESEND");
+		else if (line.startsWith("t:"))
+			r = new Reading("TEMPERATURE");
+		else if (line.startsWith("c:"))
+			r = new Reading("POSITION");
+		else
+			r = new Reading("OTHER");
+
+		// A number the old code couldn't read threw NumberFormatException; here it's left out
+		if (line.startsWith("ok t:") || line.startsWith("t:")) {
+			Matcher m = Pattern.compile("t:([0-9\\.]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.t = Double.parseDouble(m.group(1));
+				} catch (NumberFormatException e) {
+				}
+			}
+			m = Pattern.compile("^ok.*b:([0-9\\.]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.b = Double.parseDouble(m.group(1));
+				} catch (NumberFormatException e) {
+				}
+			}
+		} else if (line.startsWith("ok c:") || line.startsWith("c:")) {
+			Matcher m = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.c = new double[] { Double.parseDouble(m.group(1)),
+							Double.parseDouble(m.group(2)), Double.parseDouble(m.group(3)) };
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		if (r.reply.equals("RESEND")) {
+			Matcher m = Pattern.compile("([0-9]+)").matcher(line);
+			if (m.find()) {
+				try {
+					r.n = Integer.parseInt(m.group(1));
+				} catch (NumberFormatException e) {
+				}
+			}
+			m = Pattern.compile("dud ([a-z]) code").matcher(line);
+			if (m.find())
+				r.dud = m.group(1).charAt(0);
+		}
+		return r;
+	}
+}